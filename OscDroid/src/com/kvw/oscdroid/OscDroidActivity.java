@@ -21,6 +21,13 @@
 package com.kvw.oscdroid;
 
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
@@ -31,6 +38,7 @@ import android.graphics.Color;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
@@ -44,15 +52,36 @@ import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.RadioGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.kvw.oscdroid.capture.CaptureHeader;
+import com.kvw.oscdroid.capture.CaptureReader;
+import com.kvw.oscdroid.capture.CaptureRecorder;
+import com.kvw.oscdroid.capture.FrameRecorder;
+import com.kvw.oscdroid.capture.WaveformExporter;
 import com.kvw.oscdroid.channels.AnalogChannel;
+import com.kvw.oscdroid.channels.ChannelFilter;
+import com.kvw.oscdroid.channels.ChannelPairMeasurements;
 import com.kvw.oscdroid.channels.Cursor;
+import com.kvw.oscdroid.channels.MaskTest;
+import com.kvw.oscdroid.channels.MathChannel;
+import com.kvw.oscdroid.channels.ReferenceWaveform;
 import com.kvw.oscdroid.channels.Measurement;
+import com.kvw.oscdroid.channels.MeasurementResults;
 import com.kvw.oscdroid.channels.Trigger;
+import com.kvw.oscdroid.channels.WaveformHistogram;
+import com.kvw.oscdroid.channels.EyeDiagram;
 import com.kvw.oscdroid.connection.ConnectionService;
+import com.kvw.oscdroid.connection.AcquisitionState;
+import com.kvw.oscdroid.connection.SegmentStore;
+import com.kvw.oscdroid.decode.DecodeLog;
+import com.kvw.oscdroid.decode.I2cDecoder;
+import com.kvw.oscdroid.decode.ProtocolDecoding;
+import com.kvw.oscdroid.decode.SpiDecoder;
+import com.kvw.oscdroid.decode.UartDecoder;
 import com.kvw.oscdroid.display.OscDroidSurfaceView;
 import com.kvw.oscdroid.settings.SettingsActivity;
 
@@ -97,6 +126,12 @@ public class OscDroidActivity extends Activity{
     private TextView measure6;
     private TextView measure7;
     private TextView measure8;
+    private TextView[] measureViews;
+    private final StringBuilder[] measureText = new StringBuilder[MeasurementResults.MAX_RESULTS];
+    private final char[][] measureChars = new char[MeasurementResults.MAX_RESULTS][];
+    /** Results currently displayed, to only format results that changed */
+    private final MeasurementResults shownResults = new MeasurementResults();
+    private static final String[] MEASUREMENT_SOURCES = {"","CH1 ","CH2 ","MATH ","CH1-CH2 "};
     
     private Button channels;
     private Button selectMeasurements;
@@ -128,6 +163,7 @@ public class OscDroidActivity extends Activity{
     private AlertDialog optionsDialog;
     
     private ConnectionService connectionService=null;
+    private CaptureReader captureReader=null;
     
     /** User preferences */
     private int connectionType;
@@ -141,9 +177,40 @@ public class OscDroidActivity extends Activity{
     
     private AnalogChannel channel1;
     private AnalogChannel channel2;
+    private MathChannel mathChannel;
+    private static final int MATH_COLOR=Color.rgb(255, 128, 0);
+    private static final CharSequence[] FILTER_TYPES = {"Off","Low-pass","High-pass","Band-pass","Notch",
+    	"Moving average"};
+    private static final CharSequence[] GATE_TIMES = {"Off","0.1 s gate","1 s gate","10 s gate"};
+    private static final float[] GATE_SECONDS = {0,0.1f,1,10};
     
     private Trigger mTrigger;
     
+    private final ReferenceWaveform[] references = new ReferenceWaveform[ReferenceWaveform.NUM_REFERENCES];
+    private static final int[] REFERENCE_COLORS = {Color.WHITE,Color.YELLOW,Color.CYAN,Color.MAGENTA};
+    
+    private MaskTest maskTest;
+    private final WaveformHistogram histogram = new WaveformHistogram();
+    private final ChannelPairMeasurements channelPair = new ChannelPairMeasurements();
+    private static final CharSequence[] HISTOGRAM_MODES = {"Off","Levels","Period","+Width","-Width"};
+    private final EyeDiagram eyeDiagram = new EyeDiagram();
+    private static final CharSequence[] BIT_RATES = {"Recover from signal","1200 bit/s","9600 bit/s",
+    	"19200 bit/s","38400 bit/s","57600 bit/s","115200 bit/s","250 kbit/s","500 kbit/s","1 Mbit/s",
+    	"2 Mbit/s","5 Mbit/s","10 Mbit/s"};
+    private static final double[] BIT_RATE_VALUES = {0,1200,9600,19200,38400,57600,115200,250e3,500e3,1e6,
+    	2e6,5e6,10e6};
+    
+    private final ProtocolDecoding decoding = new ProtocolDecoding();
+    private static final CharSequence[] UART_RATES = {"1200","2400","4800","9600","19200","38400","57600",
+    	"115200","230400","460800","921600"};
+    private static final int[] UART_RATE_VALUES = {1200,2400,4800,9600,19200,38400,57600,115200,230400,
+    	460800,921600};
+    private static final CharSequence[] UART_FORMATS = {"8N1","8E1","8O1","7E1","7O1"};
+    private static final int[] UART_DATA_BITS = {8,8,8,7,7};
+    private static final int[] UART_PARITY = {UartDecoder.PARITY_NONE,UartDecoder.PARITY_EVEN,
+    	UartDecoder.PARITY_ODD,UartDecoder.PARITY_EVEN,UartDecoder.PARITY_ODD};
+    private static final CharSequence[] SPI_MODES = {"Mode 0","Mode 1","Mode 2","Mode 3"};
+    
     private Cursor timeCursor1;
     private Cursor timeCursor2;
     private Cursor voltCursor1;
@@ -186,6 +253,16 @@ public class OscDroidActivity extends Activity{
         channel2.setVoltDivs(SELECTED_DIV_CH1);
         channel2.setTimeDivs(SELECTED_DIV_TIME);
         
+        for(int i=0;i<references.length;i++)
+        	references[i]=new ReferenceWaveform("REF" + (i+1), REFERENCE_COLORS[i]);
+        
+        mathChannel=new MathChannel(mHandler);
+        mathChannel.setColor(MATH_COLOR);
+        mathChannel.setVoltDivs(SELECTED_DIV_CH1);
+        mathChannel.setTimeDivs(SELECTED_DIV_TIME);
+        
+        maskTest=new MaskTest(mHandler);
+        
         measure=new Measurement(mHandler);
         measure.setRunning(true);
         measure.start();
@@ -226,10 +303,17 @@ public class OscDroidActivity extends Activity{
         oscSurface.setHandler(mHandler);
         oscSurface.addChannel(channel1,oscSurface.getWidth(),oscSurface.getHeight());
         oscSurface.addChannel(channel2,oscSurface.getWidth(),oscSurface.getHeight());
+        oscSurface.setMathChannel(mathChannel);
         oscSurface.setTrigger(mTrigger);
+        oscSurface.setReferences(references);
+        oscSurface.setMaskTest(maskTest);
+        oscSurface.setHistogram(histogram);
+        oscSurface.setEyeDiagram(eyeDiagram);
+        oscSurface.setDecoding(decoding);
         oscSurface.addCursors(voltCursor1, voltCursor2, timeCursor1, timeCursor2);
         
         measure.addCursors(voltCursor1, voltCursor2, timeCursor1, timeCursor2);
+        measure.setChannelPair(channelPair);
         
         
         channels = (Button) findViewById(R.id.textView1);
@@ -254,6 +338,12 @@ public class OscDroidActivity extends Activity{
         measure6 = (TextView) findViewById(R.id.Measure6);
         measure7 = (TextView) findViewById(R.id.Measure7);
         measure8 = (TextView) findViewById(R.id.Measure8);
+        measureViews = new TextView[]{measure1,measure2,measure3,measure4,
+        		measure5,measure6,measure7,measure8};
+        for(int i=0;i<measureText.length;i++){
+        	measureText[i]=new StringBuilder(128);
+        	measureChars[i]=new char[128];
+        }
     }
     
     /** Enable interaction for all UI components. Set onClickListeners */
@@ -456,6 +546,11 @@ public class OscDroidActivity extends Activity{
     	connectionService.cleanup();
     	connectionService=null;
     	
+    	if(captureReader!=null){
+    		captureReader.close();
+    		captureReader=null;
+    	}
+    	
     	super.onStop();    	
     }
     
@@ -469,6 +564,7 @@ public class OscDroidActivity extends Activity{
     	if(connectionService==null){
     		
     		connectionService = new ConnectionService(this,mHandler);
+    		connectionService.setOnFrameListener(frameListener);
             UsbDevice tmpAcc = this.getIntent().getParcelableExtra(UsbManager.EXTRA_DEVICE);
             if(tmpAcc!=null)
             	connectionService.setDevice(tmpAcc);
@@ -519,6 +615,19 @@ public class OscDroidActivity extends Activity{
         return true;
     }
     
+    /** Recording may have been stopped by the connection service, a running segmented capture can be stopped */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu){
+    	MenuItem record = menu.findItem(R.id.record);
+    	if(record!=null)
+    		record.setChecked(connectionService!=null && connectionService.isRecording());
+    	MenuItem segmented = menu.findItem(R.id.segmented);
+    	if(segmented!=null)
+    		segmented.setTitle(connectionService!=null && connectionService.isSegmentedCapture() ? 
+    				R.string.segmentedStop : R.string.segmented);
+    	return super.onPrepareOptionsMenu(menu);
+    }
+    
     /** Handle options clicked item */
     @Override
     public boolean onOptionsItemSelected(MenuItem item){
@@ -554,6 +663,72 @@ public class OscDroidActivity extends Activity{
     			break;
     		}
     		break;
+    	case R.id.peakDetect:
+    		item.setChecked(!item.isChecked());
+    		if(connectionService!=null)
+    			connectionService.setPeakDetect(item.isChecked());
+    		break;
+    	case R.id.segmented:
+    		if(connectionService!=null && connectionService.isSegmentedCapture())
+    			connectionService.stopSegmentedCapture();
+    		else
+    			selectSegmentsDialog();
+    		break;
+    	case R.id.record:
+    		if(connectionService==null)
+    			break;
+    		if(connectionService.isRecording())
+    			stopRecording();
+    		else
+    			startRecording();
+    		item.setChecked(connectionService.isRecording());
+    		break;
+    	case R.id.saveCapture:
+    		saveCapture();
+    		break;
+    	case R.id.openCapture:
+    		selectCaptureDialog(false);
+    		break;
+    	case R.id.replayCapture:
+    		selectCaptureDialog(true);
+    		break;
+    	case R.id.export:
+    		exportSourceDialog();
+    		break;
+    	case R.id.references:
+    		referencesDialog();
+    		break;
+    	case R.id.maskTest:
+    		maskTestDialog();
+    		break;
+    	case R.id.math:
+    		mathChannelDialog();
+    		break;
+    	case R.id.filter:
+    		filterChannelDialog();
+    		break;
+    	case R.id.statistics:
+    		statisticsDialog();
+    		break;
+    	case R.id.freqCounter:
+    		frequencyCounterDialog();
+    		break;
+    	case R.id.histogram:
+    		histogramDialog();
+    		break;
+    	case R.id.eyeDiagram:
+    		eyeDiagramDialog();
+    		break;
+    	case R.id.decode:
+    		decodeDialog();
+    		break;
+    	case R.id.gated:
+    		item.setChecked(!item.isChecked());
+    		channel1.getMeasurements().setGating(item.isChecked());
+    		channel2.getMeasurements().setGating(item.isChecked());
+    		mathChannel.getMeasurements().setGating(item.isChecked());
+    		measure.setGated(item.isChecked());
+    		break;
     	}    	
     	return true;
     }	    
@@ -574,6 +749,7 @@ public class OscDroidActivity extends Activity{
     			logColor=data.getExtras().getInt(SettingsActivity.COLOR_LOGCH);
     			overlayColor=data.getExtras().getInt(SettingsActivity.COLOR_OVERLAY);
     			backColor=data.getExtras().getInt(SettingsActivity.COLOR_BACK);
+    			shownResults.clear();
     			
     			
 //    			Log.v(TAG,"settings received");
@@ -637,6 +813,7 @@ public class OscDroidActivity extends Activity{
     	timeDiv.setText(getString(R.string.timeDiv) + " " + TIME_DIVS[div]);
     	channel1.setTimeDivs(div);
     	channel2.setTimeDivs(div);
+    	mathChannel.setTimeDivs(div);
     	
     	if(connectionService.isConnected()){
     		connectionService.setTimeDiv(div);
@@ -771,10 +948,9 @@ public class OscDroidActivity extends Activity{
 				@Override
 				public void onClick(DialogInterface dialog, int which) {
 					
-					measure1.setVisibility(View.INVISIBLE);
-					measure2.setVisibility(View.INVISIBLE);
-					measure3.setVisibility(View.INVISIBLE);
-					measure4.setVisibility(View.INVISIBLE);
+					for(TextView view : measureViews)
+						view.setVisibility(View.INVISIBLE);
+					shownResults.clear();
 					
 					switch(tmpView.getId()){
 					case R.id.Measure1:
@@ -891,6 +1067,10 @@ public class OscDroidActivity extends Activity{
     	        		   mChannel = channel2;
     	        		   mChan = 2;
     	        		   break;
+    	        	   case R.id.mathSource:
+    	        		   mChannel = mathChannel;
+    	        		   mChan = 3;
+    	        		   break;
     	        	   }
     	        	   
     	        	   switch (type.getCheckedRadioButtonId()){
@@ -915,6 +1095,81 @@ public class OscDroidActivity extends Activity{
     	        	   case R.id.avg:
 	    	        	   mType=6;
 	    	        	   break;
+    	        	   case R.id.rms:
+    	        		   mType=7;
+    	        		   break;
+    	        	   case R.id.acRms:
+    	        		   mType=8;
+    	        		   break;
+    	        	   case R.id.amplitude:
+    	        		   mType=9;
+    	        		   break;
+    	        	   case R.id.top:
+    	        		   mType=10;
+    	        		   break;
+    	        	   case R.id.base:
+    	        		   mType=11;
+    	        		   break;
+    	        	   case R.id.overshoot:
+    	        		   mType=12;
+    	        		   break;
+    	        	   case R.id.riseTime:
+    	        		   mType=13;
+    	        		   break;
+    	        	   case R.id.fallTime:
+    	        		   mType=14;
+    	        		   break;
+    	        	   case R.id.period:
+    	        		   mType=15;
+    	        		   break;
+    	        	   case R.id.posWidth:
+    	        		   mType=16;
+    	        		   break;
+    	        	   case R.id.negWidth:
+    	        		   mType=17;
+    	        		   break;
+    	        	   case R.id.duty:
+    	        		   mType=18;
+    	        		   break;
+    	        	   case R.id.edges:
+    	        		   mType=19;
+    	        		   break;
+    	        	   case R.id.delay:
+    	        		   mType=Measurement.PAIR_TYPES+ChannelPairMeasurements.DELAY;
+    	        		   break;
+    	        	   case R.id.phase:
+    	        		   mType=Measurement.PAIR_TYPES+ChannelPairMeasurements.PHASE;
+    	        		   break;
+    	        	   case R.id.ratio:
+    	        		   mType=Measurement.PAIR_TYPES+ChannelPairMeasurements.RATIO;
+    	        		   break;
+    	        	   case R.id.correlationDelay:
+    	        		   mType=Measurement.PAIR_TYPES+ChannelPairMeasurements.CORRELATION_DELAY;
+    	        		   break;
+    	        	   case R.id.thd:
+    	        		   mType=Measurement.HARMONIC_TYPES;
+    	        		   break;
+    	        	   case R.id.thdPercent:
+    	        		   mType=Measurement.HARMONIC_TYPES+1;
+    	        		   break;
+    	        	   case R.id.snr:
+    	        		   mType=Measurement.HARMONIC_TYPES+2;
+    	        		   break;
+    	        	   case R.id.sinad:
+    	        		   mType=Measurement.HARMONIC_TYPES+3;
+    	        		   break;
+    	        	   case R.id.sfdr:
+    	        		   mType=Measurement.HARMONIC_TYPES+4;
+    	        		   break;
+    	        	   case R.id.enob:
+    	        		   mType=Measurement.HARMONIC_TYPES+5;
+    	        		   break;
+    	        	   }
+    	        	   
+    	        	   // Channel pair measurements do not depend on the selected source
+    	        	   if(mType>=Measurement.PAIR_TYPES && mType<Measurement.HARMONIC_TYPES){
+    	        		   mChannel = channel1;
+    	        		   mChan = 4;
     	        	   }
     	        	   
     	        	   if(mChannel!=null && mType!=-1)
@@ -980,6 +1235,7 @@ public class OscDroidActivity extends Activity{
 					oscSurface.setRunningMode(which);
 					channel1.resetZoom();
 					channel2.resetZoom();
+					mathChannel.resetZoom();
 					dialog.dismiss();
 				}
 			});
@@ -987,68 +1243,280 @@ public class OscDroidActivity extends Activity{
     	optionsDialog.show();
     }
     
-    /** Display dialog to select Trigger Source */
-    private void selectTriggerSource()
+    /**
+     * 
+     * @return directory on external storage for capture files
+     */
+    private File getCaptureDir()
     {
-    	final CharSequence[] items={"Channel 1","Channel 2"};
+    	File dir = new File(Environment.getExternalStorageDirectory(),"OscDroid");
+    	dir.mkdirs();
+    	return dir;
+    }
+    
+    /**
+     * 
+     * @return new capture file, named after the current time
+     */
+    private File newCaptureFile()
+    {
+    	String name = "capture_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".osc";
+    	return new File(getCaptureDir(),name);
+    }
+    
+    /**
+     * 
+     * @return capture files on external storage, sorted by name
+     */
+    private File[] listCaptureFiles()
+    {
+    	File[] files = getCaptureDir().listFiles(new FilenameFilter(){
+    		public boolean accept(File dir, String name){
+    			return name.endsWith(".osc");
+    		}
+    	});
+    	if(files==null)
+    		return new File[0];
+    	Arrays.sort(files);
+    	return files;
+    }
+    
+    /** Save the acquisition on the enabled channels to a new capture file */
+    private void saveCapture()
+    {
+    	CaptureHeader header = new CaptureHeader();
+    	header.timeDiv=channel1.getTimeDiv();
+    	header.sampleRate=AnalogChannel.getSampleRate(header.timeDiv);
+    	header.ch1VoltDiv=channel1.getVoltDiv();
+    	header.ch2VoltDiv=channel2.getVoltDiv();
+    	header.trigAddress=channel1.isEnabled() ? channel1.getTriggerAddress() : channel2.getTriggerAddress();
+    	
+    	// Min/max pairs are no samples, the capture file has no layout for them
+    	int[] ch1=null;
+    	int[] ch2=null;
+    	synchronized(channel1){
+    		if(channel1.isEnabled() && !channel1.isPeakDetect())
+    			ch1=channel1.getDataSet();
+    	}
+    	synchronized(channel2){
+    		if(channel2.isEnabled() && !channel2.isPeakDetect())
+    			ch2=channel2.getDataSet();
+    	}
+    	if((channel1.isEnabled() && ch1==null) || (channel2.isEnabled() && ch2==null)){
+    		Toast.makeText(this, R.string.peakDetectData, Toast.LENGTH_SHORT).show();
+    		return;
+    	}
+    	
+    	File file = newCaptureFile();
+    	try{
+    		CaptureRecorder.saveFrame(file, header, ch1, ch2);
+    		Toast.makeText(this, "Saved to " + file.getPath(), Toast.LENGTH_SHORT).show();
+    	}catch(IOException ex){
+    		Log.e(TAG,"Can't save " + file + ": " + ex.getMessage());
+    		Toast.makeText(this, R.string.recordFailed, Toast.LENGTH_SHORT).show();
+    	}
+    }
+    
+    /**
+     * Display dialog to select a capture file
+     * @param replay true to replay the file, false to display it
+     */
+    private void selectCaptureDialog(final boolean replay)
+    {
+    	final File[] files = listCaptureFiles();
+    	if(files.length==0){
+    		Toast.makeText(this, R.string.noCaptures, Toast.LENGTH_SHORT).show();
+    		return;
+    	}
+    	
+    	final CharSequence[] items = new CharSequence[files.length];
+    	for(int i=0;i<files.length;i++)
+    		items[i]=files[i].getName();
+    	
     	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
-    	optionsBuilder.setTitle("Trigger source")
+    	optionsBuilder.setTitle("Capture files")
     		.setCancelable(true)
-    		.setSingleChoiceItems(items, TRIG_SOURCE, new DialogInterface.OnClickListener() {
+    		.setItems(items, new DialogInterface.OnClickListener() {
 				
 				@Override
 				public void onClick(DialogInterface dialog, int which) {
-					switch(which){
-					case CHANNEL1:
-						TRIG_SOURCE=CHANNEL1;
-						if(connectionService.isConnected()){
-							connectionService.setTriggerSource(1);
-							connectionService.getData();
-						}
-						mTrigger.setSource(1);
-						break;
-					case CHANNEL2:
-						TRIG_SOURCE=CHANNEL2;
-						if(connectionService.isConnected()){
-							connectionService.setTriggerSource(2);
-							connectionService.getData();
-						}
-						mTrigger.setSource(2);
-						break;
-					}
 					dialog.dismiss();
+					if(replay)
+						replaySpeedDialog(files[which]);
+					else
+						openCapture(files[which]);
 				}
 			});
     	optionsDialog=optionsBuilder.create();
     	optionsDialog.show();
     }
     
-    /** Display dialog to select Trigger Mode */
-    private void selectTriggerMode()
+    /**
+     * Open a capture file and display it on the enabled channels. 
+     * Acquisition is stopped, so live data does not replace it.
+     * @param file capture file
+     */
+    private void openCapture(File file)
     {
-    	final CharSequence[] items={"Rising edge","Falling edge"};
+    	CaptureReader reader;
+    	try{
+    		reader = new CaptureReader(file);
+    	}catch(IOException ex){
+    		Toast.makeText(this, file.getName() + ": " + ex.getMessage(), Toast.LENGTH_SHORT).show();
+    		return;
+    	}
+    	
+    	if(reader.getHeader().layout==CaptureHeader.LAYOUT_FRAMES){
+    		reader.close();
+    		Toast.makeText(this, R.string.useReplay, Toast.LENGTH_SHORT).show();
+    		return;
+    	}
+    	
+    	if(captureReader!=null)
+    		captureReader.close();
+    	captureReader=reader;
+    	
+    	if(connectionService!=null){
+    		CURRENT_MODE=1;
+    		connectionService.setMode(1);
+    		oscSurface.setRunningMode(1);
+    	}
+    	
+    	if(channel1.isEnabled() && reader.hasChannel(CaptureHeader.CHANNEL_1))
+    		channel1.showCapture(reader, CaptureHeader.CHANNEL_1);
+    	if(channel2.isEnabled() && reader.hasChannel(CaptureHeader.CHANNEL_2))
+    		channel2.showCapture(reader, CaptureHeader.CHANNEL_2);
+    	else if(channel2.isEnabled() && !channel1.isEnabled() && reader.hasChannel(CaptureHeader.CHANNEL_1))
+    		channel2.showCapture(reader, CaptureHeader.CHANNEL_1);
+    }
+    
+    /**
+     * Display dialog to select the replay speed, then replay the file
+     * @param file capture file
+     */
+    private void replaySpeedDialog(final File file)
+    {
+    	final CharSequence[] items = {"Real time","10x","Max speed"};
+    	final float[] speeds = {1,10,ConnectionService.REPLAY_MAX_SPEED};
     	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
-    	optionsBuilder.setTitle("Trigger mode")
+    	optionsBuilder.setTitle("Replay speed")
     		.setCancelable(true)
-    		.setSingleChoiceItems(items, TRIG_MODE, new DialogInterface.OnClickListener() {
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					replayCapture(file,speeds[which]);
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Replay a capture file through the acquisition path, live acquisition is stopped
+     * @param file capture file
+     * @param speed replay speed
+     */
+    private void replayCapture(File file, float speed)
+    {
+    	if(connectionService==null)
+    		return;
+    	if(connectionService.isReplaying()){
+    		Toast.makeText(this, R.string.replayBusy, Toast.LENGTH_SHORT).show();
+    		return;
+    	}
+    	
+    	CaptureReader reader;
+    	try{
+    		reader = new CaptureReader(file);
+    	}catch(IOException ex){
+    		Toast.makeText(this, file.getName() + ": " + ex.getMessage(), Toast.LENGTH_SHORT).show();
+    		return;
+    	}
+    	
+    	CURRENT_MODE=1;
+    	connectionService.setMode(1);
+    	oscSurface.setRunningMode(1);
+    	
+    	// Continuous recordings are displayed on channel 1, like continuous mode
+    	if(reader.getHeader().layout==CaptureHeader.LAYOUT_CONTINUOUS && !channel1.isEnabled())
+    		Toast.makeText(this, "Enable channel 1 to see the replay", Toast.LENGTH_SHORT).show();
+    	
+    	connectionService.startReplay(reader, speed);
+    }
+    
+    /**
+     * Display dialog to select one of the reference waveforms
+     */
+    private void referencesDialog()
+    {
+    	final CharSequence[] items = new CharSequence[references.length];
+    	for(int i=0;i<references.length;i++){
+    		items[i]=references[i].getDescription();
+    		if(references[i].isDiffEnabled())
+    			items[i]=items[i] + String.format(" max %.3f V", references[i].getMaxDeviation());
+    	}
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Reference waveforms")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					referenceDialog(references[which]);
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog with the actions for a reference waveform
+     * @param ref reference waveform
+     */
+    private void referenceDialog(final ReferenceWaveform ref)
+    {
+    	final CharSequence[] items = {"Store CH1","Store CH2",
+    			ref.isVisible() ? "Hide" : "Show",
+    			ref.isDiffEnabled() ? "Difference off" : "Difference on",
+    			"Clear"};
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle(ref.getName())
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
 				
 				@Override
 				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
 					switch(which){
-					case RISING_EDGE:
-						TRIG_MODE=RISING_EDGE;
-						mTrigger.setRising(true);
-						if(connectionService.isConnected())
-							connectionService.setTriggerEdge(true);
+					case 0:
+					case 1:
+						AnalogChannel channel = which==0 ? channel1 : channel2;
+						if(!channel.isEnabled()){
+							Toast.makeText(OscDroidActivity.this, channel.getName() + " is disabled", 
+									Toast.LENGTH_SHORT).show();
+							break;
+						}
+						if(!ref.store(channel))
+							Toast.makeText(OscDroidActivity.this, R.string.peakDetectData, 
+									Toast.LENGTH_SHORT).show();
 						break;
-					case FALLING_EDGE:
-						TRIG_MODE=FALLING_EDGE;
-						mTrigger.setRising(false);
-						if(connectionService.isConnected())
-							connectionService.setTriggerEdge(false);
+					case 2:
+						ref.setVisible(!ref.isVisible());
+						break;
+					case 3:
+						ref.setDiffEnabled(!ref.isDiffEnabled());
+						break;
+					case 4:
+						ref.clear();
 						break;
 					}
-					dialog.dismiss();
+					if(ref.isSettingsChanged())
+						Toast.makeText(OscDroidActivity.this, ref.getName() + 
+								" was stored with other volt/time divisions", Toast.LENGTH_SHORT).show();
 				}
 			});
     	optionsDialog=optionsBuilder.create();
@@ -1056,143 +1524,1073 @@ public class OscDroidActivity extends Activity{
     }
     
     /**
-     * Handle Message containing measurement result
-     * @param msg
+     * Display dialog to select the channel to filter
      */
-    private void handleMeasurementMsg(Message msg)
+    private void filterChannelDialog()
     {
-    	//float val = msg.getData().getFloat(Measurement.MEASUREMENT_RESULT);
-		String result = msg.getData().getString(Measurement.MEASUREMENT_RESULT);
+    	final AnalogChannel[] channels = {channel1,channel2};
+    	final CharSequence[] items = new CharSequence[channels.length];
+    	for(int i=0;i<channels.length;i++){
+    		ChannelFilter filter=channels[i].getFilter();
+    		items[i]=channels[i].getName() + (filter.isActive() ? 
+    				"  (" + FILTER_TYPES[filter.getType()] + " " + filter.getFrequency() + " Hz)" : "");
+    	}
     	
-    	if(msg.arg2==0){
-			if(msg.getData().getInt(Measurement.SOURCE)==1){
-				measure1.setText("CH1 ");
-				measure1.setTextColor(ch1Color);
-			}
-			else if (msg.getData().getInt(Measurement.SOURCE)==2){
-				measure1.setText("CH2 ");
-				measure1.setTextColor(ch2Color);
-			}
-			measure1.setVisibility(View.VISIBLE);
-			measure1.append(MEASUREMENTS[msg.arg1] + result);
-		}else if (msg.arg2==1){
-			if(msg.getData().getInt(Measurement.SOURCE)==1){
-				measure2.setText("CH1 ");
-				measure2.setTextColor(ch1Color);
-			}
-			else if (msg.getData().getInt(Measurement.SOURCE)==2){
-				measure2.setText("CH2 ");
-				measure2.setTextColor(ch2Color);
-			}
-			measure2.setVisibility(View.VISIBLE);
-			measure2.append(MEASUREMENTS[msg.arg1] + result);
-		}else if (msg.arg2==2){
-			if(msg.getData().getInt(Measurement.SOURCE)==1){
-				measure3.setText("CH1 ");
-				measure3.setTextColor(ch1Color);
-			}
-			else if (msg.getData().getInt(Measurement.SOURCE)==2){
-				measure3.setText("CH2 ");
-				measure3.setTextColor(ch2Color);
-			}
-			measure3.setVisibility(View.VISIBLE);
-			measure3.append(MEASUREMENTS[msg.arg1] + result);
-		}else if (msg.arg2==3){
-			if(msg.getData().getInt(Measurement.SOURCE)==1){
-				measure4.setText("CH1 ");
-				measure4.setTextColor(ch1Color);
-			}
-			else if (msg.getData().getInt(Measurement.SOURCE)==2){
-				measure4.setText("CH2 ");
-				measure4.setTextColor(ch2Color);
-			}
-			measure4.setVisibility(View.VISIBLE);
-			measure4.append(MEASUREMENTS[msg.arg1] + result);
-		}
-		else if (msg.arg2==4){
-			if(msg.getData().getInt(Measurement.SOURCE)==1){
-				measure5.setText("CH1 ");
-				measure5.setTextColor(ch1Color);
-			}
-			else if (msg.getData().getInt(Measurement.SOURCE)==2){
-				measure5.setText("CH2 ");
-				measure5.setTextColor(ch2Color);
-			}
-			measure5.setVisibility(View.VISIBLE);
-			measure5.append(MEASUREMENTS[msg.arg1] + result);
-		}
-		else if (msg.arg2==5){
-			if(msg.getData().getInt(Measurement.SOURCE)==1){
-				measure6.setText("CH1 ");
-				measure6.setTextColor(ch1Color);
-			}
-			else if (msg.getData().getInt(Measurement.SOURCE)==2){
-				measure6.setText("CH2 ");
-				measure6.setTextColor(ch2Color);
-			}
-			measure6.setVisibility(View.VISIBLE);
-			measure6.append(MEASUREMENTS[msg.arg1] + result);
-		}
-		else if (msg.arg2==6){
-			if(msg.getData().getInt(Measurement.SOURCE)==1){
-				measure7.setText("CH1 ");
-				measure7.setTextColor(ch1Color);
-			}
-			else if (msg.getData().getInt(Measurement.SOURCE)==2){
-				measure7.setText("CH2 ");
-				measure7.setTextColor(ch2Color);
-			}
-			measure7.setVisibility(View.VISIBLE);
-			measure7.append(MEASUREMENTS[msg.arg1] + result);
-		}
-		else if (msg.arg2==7){
-			if(msg.getData().getInt(Measurement.SOURCE)==1){
-				measure8.setText("CH1 ");
-				measure8.setTextColor(ch1Color);
-			}
-			else if (msg.getData().getInt(Measurement.SOURCE)==2){
-				measure8.setText("CH2 ");
-				measure8.setTextColor(ch2Color);
-			}
-			measure8.setVisibility(View.VISIBLE);
-			measure8.append(MEASUREMENTS[msg.arg1] + result);
-		}
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Filter")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					filterTypeDialog(channels[which].getFilter());
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
     }
     
     /**
-     * Handle Message containing new dataSamples
-     * @param msg
+     * Display dialog to select the histogram source, or reset the histogram
      */
-    private void handleNewAnalogueData(Message msg)
+    private void histogramDialog()
     {
-    	int trigAddress = msg.arg1;
-    	int[] data = msg.getData().getIntArray(ConnectionService.ANALOG_DATA);
+    	final AnalogChannel[] channels = {channel1,channel2,mathChannel};
+    	final CharSequence[] items = new CharSequence[channels.length+1];
+    	for(int i=0;i<channels.length;i++)
+    		items[i]=channels[i].getName() + (histogram.getChannel()==channels[i] ? 
+    				"  (" + HISTOGRAM_MODES[histogram.getMode()] + ")" : "");
+    	items[channels.length]="Reset histogram";
     	
-//    	Log.d(TAG,"Handling data, numSamples: " + data.length + " trigAddress: " + trigAddress);
-    	
-    	if(channel1.isEnabled() && channel2.isEnabled() && connectionService.getMode()!=2){ //2 channels, 1024 samples/channel
-    		int[] dataCh1 = new int[1024];
-    		int[] dataCh2 = new int[data.length-1024];
-    		System.arraycopy(data, 0, dataCh1, 0, 1024);
-    		System.arraycopy(data, 1024, dataCh2, 0, data.length-1024);
-    		
-    		channel1.setNewData(dataCh1, dataCh1.length,trigAddress);
-    		channel2.setNewData(dataCh2, dataCh2.length,trigAddress);    		
-    		
-    	} else  if(channel1.isEnabled() && !channel2.isEnabled()){ //Only channel 1 enabled, 2048 samples
-    		channel1.setNewData(data, data.length,trigAddress);
-    		
-    	} else if(!channel1.isEnabled() && channel2.isEnabled()){ //Only channel 2 enabled, 2048 samples
-    		channel2.setNewData(data, data.length,trigAddress);
-    	}    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Histogram")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					if(which==channels.length)
+						histogram.reset();
+					else
+						histogramModeDialog(channels[which]);
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
     }
     
+    /**
+     * Display dialog to select what to collect in the histogram
+     * @param channel channel to collect from
+     */
+    private void histogramModeDialog(final AnalogChannel channel)
+    {
+    	int selected= histogram.getChannel()==channel ? histogram.getMode() : WaveformHistogram.MODE_OFF;
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Histogram of " + channel.getName())
+    		.setCancelable(true)
+    		.setSingleChoiceItems(HISTOGRAM_MODES, selected, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					if(which==WaveformHistogram.MODE_OFF && histogram.getChannel()!=channel)
+						return;
+					histogram.setSource(channel, which);
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
     
     /**
-     * Handler to carry messages from other classes to this main activity.
-     * handleMessage implements the handling of the messages
+     * Display dialog to select the eye diagram source, its bit rate, or reset it
      */
-    private Handler mHandler=new Handler(){
+    private void eyeDiagramDialog()
+    {
+    	final AnalogChannel[] channels = {channel1,channel2,mathChannel};
+    	final CharSequence[] items = new CharSequence[channels.length+3];
+    	for(int i=0;i<channels.length;i++)
+    		items[i]=channels[i].getName() + (eyeDiagram.getChannel()==channels[i] ? "  (on)" : "");
+    	items[channels.length]="Off";
+    	items[channels.length+1]="Bit rate";
+    	items[channels.length+2]="Reset eye diagram";
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Eye diagram")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					if(which<channels.length){
+						eyeDiagram.setSource(channels[which]);
+						if(eyeDiagram.getBitRate()==0)
+							bitRateDialog();
+					}else if(which==channels.length)
+						eyeDiagram.setSource(null);
+					else if(which==channels.length+1)
+						bitRateDialog();
+					else
+						eyeDiagram.reset();
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to select the bit rate of the eye diagram, to recover it or to
+     * enter any other bit rate
+     */
+    private void bitRateDialog()
+    {
+    	double rate=eyeDiagram.getBitRate();
+    	final CharSequence[] items = Arrays.copyOf(BIT_RATES, BIT_RATES.length+1);
+    	items[BIT_RATES.length]="Other...";
+    	int selected = rate>0 ? BIT_RATES.length : -1;
+    	for(int i=1;i<BIT_RATE_VALUES.length;i++)
+    		if(BIT_RATE_VALUES[i]==rate)
+    			selected=i;
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Bit rate")
+    		.setCancelable(true)
+    		.setSingleChoiceItems(items, selected, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					if(which<BIT_RATE_VALUES.length)
+						eyeDiagram.setBitRate(BIT_RATE_VALUES[which]);
+					else
+						bitRateEntryDialog();
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to enter the bit rate of the eye diagram, in bit/s with an 
+     * optional k or M
+     */
+    private void bitRateEntryDialog()
+    {
+    	final EditText input = new EditText(this);
+    	double rate=eyeDiagram.getBitRate();
+    	if(rate>0)
+    		input.setText(rate==Math.rint(rate) ? String.valueOf((long)rate) : String.valueOf(rate));
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Bit rate in bit/s")
+    		.setCancelable(true)
+    		.setView(input)
+    		.setPositiveButton("Set", new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					String text=input.getText().toString().trim();
+					double multiplier=1;
+					if(text.endsWith("k") || text.endsWith("K"))
+						multiplier=1e3;
+					else if(text.endsWith("M"))
+						multiplier=1e6;
+					if(multiplier>1)
+						text=text.substring(0, text.length()-1).trim();
+					double value;
+					try{
+						value=Double.parseDouble(text)*multiplier;
+					}catch(NumberFormatException ex){
+						value=0;
+					}
+					if(!(value>0) || Double.isInfinite(value)){
+						Toast.makeText(OscDroidActivity.this, "Enter a bit rate like 2400, 250k or 1.5M", 
+								Toast.LENGTH_SHORT).show();
+						return;
+					}
+					eyeDiagram.setBitRate(value);
+				}
+			})
+    		.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to select the protocol decoder, or to list and search the decoded events
+     */
+    private void decodeDialog()
+    {
+    	final CharSequence[] items = {"UART on " + channel1.getName(),"UART on " + channel2.getName(),
+    			"I2C, SCL " + channel1.getName() + ", SDA " + channel2.getName(),
+    			"SPI, clock " + channel1.getName() + ", data " + channel2.getName(),
+    			"Off","Decoded list","Search"};
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle(decoding.getDecoder()!=null ? "Decoding " + decoding.getDecoder().getName() 
+    			: "Protocol decoding")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					switch(which){
+					case 0:
+						uartRateDialog(channel1);
+						break;
+					case 1:
+						uartRateDialog(channel2);
+						break;
+					case 2:
+						decoding.setDecoder(new I2cDecoder(), channel1, channel2);
+						break;
+					case 3:
+						spiModeDialog();
+						break;
+					case 4:
+						decoding.setDecoder(null, null, null);
+						break;
+					case 5:
+						decodedListDialog(null);
+						break;
+					case 6:
+						decodeSearchDialog();
+						break;
+					}
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to select the bit rate of the UART decoder
+     * @param channel channel to decode
+     */
+    private void uartRateDialog(final AnalogChannel channel)
+    {
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("UART bit rate")
+    		.setCancelable(true)
+    		.setItems(UART_RATES, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					uartFormatDialog(channel, UART_RATE_VALUES[which]);
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to select the data bits and parity of the UART decoder
+     * @param channel channel to decode
+     * @param rate bits per second
+     */
+    private void uartFormatDialog(final AnalogChannel channel, final int rate)
+    {
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("UART format")
+    		.setCancelable(true)
+    		.setItems(UART_FORMATS, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					decoding.setDecoder(new UartDecoder(rate, UART_DATA_BITS[which], UART_PARITY[which]), 
+							channel, null);
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to select the mode of the SPI decoder
+     */
+    private void spiModeDialog()
+    {
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("SPI mode")
+    		.setCancelable(true)
+    		.setItems(SPI_MODES, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					decoding.setDecoder(new SpiDecoder(which), channel1, channel2);
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display the decoded events with their time
+     * @param events event numbers to list, null for all events
+     */
+    private void decodedListDialog(int[] events)
+    {
+    	DecodeLog log=decoding.getLog();
+    	int count= events!=null ? events.length : log.getCount();
+    	if(count==0){
+    		Toast.makeText(this, "Nothing decoded", Toast.LENGTH_SHORT).show();
+    		return;
+    	}
+    	
+    	final CharSequence[] items = new CharSequence[count];
+    	StringBuilder text=new StringBuilder(64);
+    	for(int i=0;i<count;i++){
+    		int event= events!=null ? events[i] : i;
+    		text.setLength(0);
+    		text.append(String.format("%.3f", decoding.getTime(log.getStart(event))*1e6)).append(" us   ");
+    		log.appendText(event, text);
+    		items[i]=text.toString();
+    	}
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle(count + " decoded")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to search a value in the decoded events, as hexadecimal (0x41), 
+     * decimal (65) or a character (A)
+     */
+    private void decodeSearchDialog()
+    {
+    	final EditText input = new EditText(this);
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Search value")
+    		.setCancelable(true)
+    		.setView(input)
+    		.setPositiveButton("Search", new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					String text=input.getText().toString().trim();
+					int value;
+					try{
+						if(text.startsWith("0x") || text.startsWith("0X"))
+							value=Integer.parseInt(text.substring(2), 16);
+						else if(text.length()==1 && !Character.isDigit(text.charAt(0)))
+							value=text.charAt(0);
+						else
+							value=Integer.parseInt(text);
+					}catch(NumberFormatException ex){
+						Toast.makeText(OscDroidActivity.this, "Enter a value like 0x41, 65 or A", 
+								Toast.LENGTH_SHORT).show();
+						return;
+					}
+					
+					DecodeLog log=decoding.getLog();
+					int[] events=new int[log.getCount()];
+					int count=0;
+					for(int i=log.find(value, 0);i>=0 && count<events.length;i=log.find(value, i+1))
+						events[count++]=i;
+					if(count==0)
+						Toast.makeText(OscDroidActivity.this, text + " not found", Toast.LENGTH_SHORT).show();
+					else
+						decodedListDialog(Arrays.copyOf(events, count));
+				}
+			})
+    		.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to select the gate time of the reciprocal frequency counter
+     */
+    private void frequencyCounterDialog()
+    {
+    	int selected=0;
+    	if(channel1.isFrequencyCounter()){
+    		float gate=channel1.getFrequencyCounter().getGateTime();
+    		for(int i=1;i<GATE_SECONDS.length;i++)
+    			if(GATE_SECONDS[i]==gate)
+    				selected=i;
+    	}
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Frequency counter")
+    		.setCancelable(true)
+    		.setSingleChoiceItems(GATE_TIMES, selected, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					final AnalogChannel[] channels = {channel1,channel2};
+					for(AnalogChannel channel : channels){
+						if(which>0)
+							channel.getFrequencyCounter().setGateTime(GATE_SECONDS[which]);
+						channel.setFrequencyCounter(which>0);
+					}
+					if(which>0)
+						Toast.makeText(OscDroidActivity.this, "Frequency is counted in continuous mode", 
+								Toast.LENGTH_SHORT).show();
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to show, hide or reset the measurement statistics
+     */
+    private void statisticsDialog()
+    {
+    	final CharSequence[] items = {measure.isShowStatistics() ? "Hide statistics" : "Show statistics",
+    			"Reset statistics"};
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Statistics")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					if(which==0)
+						measure.setShowStatistics(!measure.isShowStatistics());
+					else{
+						measure.resetStatistics();
+						Toast.makeText(OscDroidActivity.this, "Statistics reset", Toast.LENGTH_SHORT).show();
+					}
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to select the filter type
+     * @param filter filter of the selected channel
+     */
+    private void filterTypeDialog(final ChannelFilter filter)
+    {
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Filter type")
+    		.setCancelable(true)
+    		.setSingleChoiceItems(FILTER_TYPES, filter.getType(), new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					if(which==ChannelFilter.TYPE_OFF)
+						filter.setFilter(ChannelFilter.TYPE_OFF, 0, 0);
+					else
+						filterFrequencyDialog(filter, which);
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to select the filter frequency, then set the filter
+     * @param filter filter of the selected channel
+     * @param type ChannelFilter type
+     */
+    private void filterFrequencyDialog(final ChannelFilter filter, final int type)
+    {
+    	final CharSequence[] items = {"50 Hz","60 Hz","100 Hz","1 kHz","10 kHz","100 kHz","1 MHz","10 MHz"};
+    	final float[] frequencies = {50,60,100,1000,10000,100000,1000000,10000000};
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle(FILTER_TYPES[type] + " frequency")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					// Q of 1 for band-pass, a narrow notch to remove mains hum
+					filter.setFilter(type, frequencies[which], type==ChannelFilter.TYPE_NOTCH ? 10 : 1);
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to select the math channel expression
+     */
+    private void mathChannelDialog()
+    {
+    	final CharSequence[] items = {"Off","CH1 + CH2","CH1 - CH2","CH2 - CH1","CH1 x CH2",
+    			"Invert CH1","Invert CH2","Integrate CH1","Integrate CH2",
+    			"Differentiate CH1","Differentiate CH2"};
+    	final int[] operations = {MathChannel.OP_OFF,MathChannel.OP_ADD,MathChannel.OP_SUBTRACT,
+    			MathChannel.OP_SUBTRACT,MathChannel.OP_MULTIPLY,MathChannel.OP_INVERT,MathChannel.OP_INVERT,
+    			MathChannel.OP_INTEGRATE,MathChannel.OP_INTEGRATE,MathChannel.OP_DIFFERENTIATE,
+    			MathChannel.OP_DIFFERENTIATE};
+    	final AnalogChannel[] sourcesA = {null,channel1,channel1,channel2,channel1,
+    			channel1,channel2,channel1,channel2,channel1,channel2};
+    	final AnalogChannel[] sourcesB = {null,channel2,channel2,channel1,channel2,
+    			null,null,null,null,null,null};
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Math: " + mathChannel.getDescription())
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					if((sourcesA[which]!=null && !sourcesA[which].isEnabled()) || 
+							(sourcesB[which]!=null && !sourcesB[which].isEnabled())){
+						Toast.makeText(OscDroidActivity.this, "Enable the source channels first", 
+								Toast.LENGTH_SHORT).show();
+						return;
+					}
+					mathChannel.setExpression(operations[which], sourcesA[which], sourcesB[which]);
+					mathChannel.setTriggerPos(mTrigger.getPos());
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to create a mask and control the mask test, 
+     * the title shows the results
+     */
+    private void maskTestDialog()
+    {
+    	final CharSequence[] items = {"Mask from CH1","Mask from CH2",
+    			maskTest.isTesting() && !maskTest.isHalted() ? "Stop testing" : "Start testing",
+    			maskTest.isStopOnFail() ? "Stop on fail: on" : "Stop on fail: off",
+    			"Reset counts","Clear mask"};
+    	
+    	String title = "Mask test";
+    	if(maskTest.getChannel()!=null){
+    		title += "  pass " + maskTest.getPassCount() + "  fail " + maskTest.getFailCount();
+    		int[] positions = maskTest.getLastViolations();
+    		if(positions.length>0)
+    			title += "  first at " + positions[0];
+    	}
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle(title)
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					switch(which){
+					case 0:
+					case 1:
+						AnalogChannel channel = which==0 ? channel1 : channel2;
+						if(!channel.isEnabled()){
+							Toast.makeText(OscDroidActivity.this, channel.getName() + " is disabled", 
+									Toast.LENGTH_SHORT).show();
+							break;
+						}
+						// Half a division around the acquisition, a tenth in time
+						if(!maskTest.createFromChannel(channel, 0.5f, 0.1f))
+							Toast.makeText(OscDroidActivity.this, R.string.peakDetectData, 
+									Toast.LENGTH_SHORT).show();
+						break;
+					case 2:
+						if(maskTest.getChannel()==null){
+							Toast.makeText(OscDroidActivity.this, "No mask", Toast.LENGTH_SHORT).show();
+							break;
+						}
+						boolean start = !maskTest.isTesting() || maskTest.isHalted();
+						maskTest.setTesting(start);
+						if(start && connectionService!=null){
+							CURRENT_MODE=0;
+							connectionService.setMode(0);
+							oscSurface.setRunningMode(0);
+						}
+						break;
+					case 3:
+						maskTest.setStopOnFail(!maskTest.isStopOnFail());
+						break;
+					case 4:
+						maskTest.resetCounts();
+						break;
+					case 5:
+						maskTest.clear();
+						break;
+					}
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to select what to export: the current acquisition or a capture file
+     */
+    private void exportSourceDialog()
+    {
+    	final File[] files = listCaptureFiles();
+    	
+    	final CharSequence[] items = new CharSequence[files.length+1];
+    	items[0]="Current acquisition";
+    	for(int i=0;i<files.length;i++)
+    		items[i+1]=files[i].getName();
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Export")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					exportFormatDialog(which==0 ? null : files[which-1]);
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to select the export format, then export
+     * @param source capture file to export, null for the current acquisition
+     */
+    private void exportFormatDialog(final File source)
+    {
+    	final CharSequence[] items = {"CSV","Float32 (V)","Int8 (raw)"};
+    	final int[] formats = {WaveformExporter.FORMAT_CSV,WaveformExporter.FORMAT_FLOAT32,
+    			WaveformExporter.FORMAT_INT8};
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Export format")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					export(source,formats[which]);
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Export in the background to a new file next to the capture files
+     * @param source capture file to export, null for the current acquisition
+     * @param format WaveformExporter format
+     */
+    private void export(final File source, final int format)
+    {
+    	final String[] extensions = {".csv",".f32",".s8"};
+    	final String name = source==null ? 
+    			"export_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) :
+    			source.getName().replaceFirst("\\.osc$", "");
+    	final File file = new File(getCaptureDir(), name + extensions[format]);
+    	
+    	// Copy the acquisition now, the channels keep receiving data. The dataset and
+    	// its oldest sample are taken together
+    	final int[][] data = new int[2][];
+    	final int[] starts = new int[2];
+    	final AnalogChannel[] channels = {channel1,channel2};
+    	int triggerSample=0;
+    	double sampleTime=0;
+    	if(source==null){
+    		for(int c=0;c<channels.length;c++){
+    			if(!channels[c].isEnabled())
+    				continue;
+    			synchronized(channels[c]){
+    				// The exporters write samples, min/max pairs are refused
+    				if(channels[c].isPeakDetect()){
+    					Toast.makeText(this, R.string.peakDetectData, Toast.LENGTH_SHORT).show();
+    					return;
+    				}
+    				data[c]=channels[c].getDataSet();
+    				starts[c]=channels[c].getOldestSample();
+    				triggerSample=channels[c].getTriggerSample();
+    				sampleTime=channels[c].getSampleTime();
+    			}
+    		}
+    	}
+    	final int[] voltDivs = {channel1.getVoltDiv(), channel2.getVoltDiv()};
+    	final int trigger = triggerSample;
+    	final double dt = sampleTime;
+    	
+    	new Thread(new Runnable(){
+    		public void run(){
+    			String text;
+    			WaveformExporter exporter=null;
+    			CaptureReader reader=null;
+    			try{
+    				exporter = new WaveformExporter(file, format);
+    				if(source==null)
+    					exporter.exportChannels(data, voltDivs, starts, trigger, dt);
+    				else{
+    					reader = new CaptureReader(source);
+    					exporter.exportCapture(reader);
+    				}
+    				exporter.close();
+    				text = exporter.getNumSamples() + " samples exported to " + file.getPath();
+    			}catch(IOException ex){
+    				Log.e(TAG,"Export to " + file + " failed: " + ex.getMessage());
+    				text = "Export failed: " + ex.getMessage();
+    				try{
+    					if(exporter!=null)
+    						exporter.close();
+    				}catch(IOException e){}
+    			}
+    			if(reader!=null)
+    				reader.close();
+    			
+    			final String result=text;
+    			runOnUiThread(new Runnable(){
+    				public void run(){
+    					Toast.makeText(OscDroidActivity.this, result, Toast.LENGTH_LONG).show();
+    				}
+    			});
+    		}
+    	},"OscDroid export").start();
+    }
+    
+    /**
+     * Start recording to a new file on external storage. Continuous mode records 
+     * the samples, the other modes record the raw frames.
+     */
+    private void startRecording()
+    {
+    	File file = newCaptureFile();
+    	boolean started = connectionService.getMode()==2 ? 
+    			connectionService.startRecording(file) : connectionService.startFrameRecording(file);
+    	if(started)
+    		Toast.makeText(this, "Recording to " + file.getPath(), Toast.LENGTH_SHORT).show();
+    	else
+    		Toast.makeText(this, R.string.recordFailed, Toast.LENGTH_SHORT).show();
+    }
+    
+    /** Stop recording, what was recorded is shown once the files are closed */
+    private void stopRecording()
+    {
+    	connectionService.stopRecordingInBackground(false);
+    }
+    
+    /**
+     * Show what was recorded
+     * @param rec stopped CaptureRecorder, null if none
+     * @param frameRec stopped FrameRecorder, null if none
+     * @param reason text to start with
+     */
+    private void showRecorded(CaptureRecorder rec, FrameRecorder frameRec, String reason)
+    {
+    	if(rec!=null){
+    		String text = reason + rec.getNumSamples() + " samples recorded to " + rec.getFile().getPath();
+    		if(rec.getDroppedSamples()>0)
+    			text += ", " + rec.getDroppedSamples() + " dropped";
+    		Toast.makeText(this, text, Toast.LENGTH_LONG).show();
+    	}
+    	
+    	if(frameRec!=null)
+    		Toast.makeText(this, reason + frameRec.getNumFrames() + " frames recorded to " + frameRec.getFile().getPath(), 
+    				Toast.LENGTH_LONG).show();
+    }
+    
+    /** Display dialog to select the number of segments and start segmented capture */
+    private void selectSegmentsDialog()
+    {
+    	final CharSequence[] items = {"10","50","100","500"};
+    	final int[] numSegments = {10,50,100,500};
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Number of segments")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+					if(connectionService==null || !connectionService.isConnected())
+						return;
+					
+					// Browsing segments only makes sense when nothing overwrites them
+					CURRENT_MODE=1;
+					connectionService.setMode(1);
+					oscSurface.setRunningMode(1);
+					
+					if(connectionService.isSegmentedCapture() || connectionService.isReplaying())
+						Toast.makeText(OscDroidActivity.this,R.string.acquisitionBusy,Toast.LENGTH_SHORT).show();
+					else if(connectionService.startSegmentedCapture(numSegments[which]))
+						Toast.makeText(OscDroidActivity.this,R.string.segmentedBusy,Toast.LENGTH_SHORT).show();
+					else
+						Toast.makeText(OscDroidActivity.this,R.string.segmentedNotPossible,Toast.LENGTH_SHORT).show();
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display dialog to browse the captured segments, or overlay them all
+     * @param count number of captured segments
+     */
+    private void browseSegmentsDialog(int count)
+    {
+    	final SegmentStore store = connectionService.getSegmentStore();
+    	if(store==null || count<1)
+    		return;
+    	
+    	final CharSequence[] items = new CharSequence[count+1];
+    	items[0]="Overlay all";
+    	for(int i=0;i<count;i++){
+    		long dt = i>0 ? store.getTimestamp(i)-store.getTimestamp(i-1) : 0;
+    		items[i+1] = "#" + (i+1) + "   t=" + String.format("%.3f", store.getTimestamp(i)/1e6) 
+    				+ " ms   dt=" + String.format("%.3f", dt/1e6) + " ms";
+    	}
+    	
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Segments")
+    		.setCancelable(true)
+    		.setItems(items, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					if(which==0)
+						overlaySegments(store);
+					else
+						showSegment(store,which-1);
+					dialog.dismiss();
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display a single segment on the enabled channels
+     * @param store SegmentStore containing the segments
+     * @param segment segment to display
+     */
+    private void showSegment(SegmentStore store, int segment)
+    {
+    	int trigAddress = store.getTrigAddress(segment);
+    	
+    	if(channel1.isEnabled() && channel2.isEnabled()){
+    		channel1.setNewData(store.getSamples(segment, 0, 1024, null), 1024, trigAddress);
+    		channel2.setNewData(store.getSamples(segment, 1024, SegmentStore.NUM_SAMPLES-1024, null), 
+    				SegmentStore.NUM_SAMPLES-1024, trigAddress);
+    	} else if(channel1.isEnabled())
+    		channel1.setNewData(store.getSamples(segment, 0, SegmentStore.NUM_SAMPLES, null), 
+    				SegmentStore.NUM_SAMPLES, trigAddress);
+    	else if(channel2.isEnabled())
+    		channel2.setNewData(store.getSamples(segment, 0, SegmentStore.NUM_SAMPLES, null), 
+    				SegmentStore.NUM_SAMPLES, trigAddress);
+    	decoding.decodeFrame(trigAddress);
+    }
+    
+    /**
+     * Display the first segment, overlay all other segments
+     * @param store SegmentStore containing the segments
+     */
+    private void overlaySegments(SegmentStore store)
+    {
+    	int count = store.getCount();
+    	boolean both = channel1.isEnabled() && channel2.isEnabled();
+    	int numSamples = both ? 1024 : SegmentStore.NUM_SAMPLES;
+    	
+    	showSegment(store,0);
+    	
+    	int[] triggers = new int[count-1];
+    	int[][] ch1Sets = new int[count-1][];
+    	int[][] ch2Sets = new int[count-1][];
+    	for(int i=1;i<count;i++){
+    		triggers[i-1]=store.getTrigAddress(i);
+    		ch1Sets[i-1]=store.getSamples(i, 0, numSamples, null);
+    		ch2Sets[i-1]= both ? store.getSamples(i, 1024, SegmentStore.NUM_SAMPLES-1024, null) : ch1Sets[i-1];
+    	}
+    	
+    	if(channel1.isEnabled())
+    		channel1.setOverlay(ch1Sets, triggers);
+    	if(channel2.isEnabled())
+    		channel2.setOverlay(ch2Sets, triggers);
+    }
+    
+    /** Display dialog to select Trigger Source */
+    private void selectTriggerSource()
+    {
+    	final CharSequence[] items={"Channel 1","Channel 2"};
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Trigger source")
+    		.setCancelable(true)
+    		.setSingleChoiceItems(items, TRIG_SOURCE, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					switch(which){
+					case CHANNEL1:
+						TRIG_SOURCE=CHANNEL1;
+						if(connectionService.isConnected()){
+							connectionService.setTriggerSource(1);
+							connectionService.getData();
+						}
+						mTrigger.setSource(1);
+						break;
+					case CHANNEL2:
+						TRIG_SOURCE=CHANNEL2;
+						if(connectionService.isConnected()){
+							connectionService.setTriggerSource(2);
+							connectionService.getData();
+						}
+						mTrigger.setSource(2);
+						break;
+					}
+					dialog.dismiss();
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /** Display dialog to select Trigger Mode */
+    private void selectTriggerMode()
+    {
+    	final CharSequence[] items={"Rising edge","Falling edge"};
+    	AlertDialog.Builder optionsBuilder = new AlertDialog.Builder(this,AlertDialog.THEME_HOLO_DARK);
+    	optionsBuilder.setTitle("Trigger mode")
+    		.setCancelable(true)
+    		.setSingleChoiceItems(items, TRIG_MODE, new DialogInterface.OnClickListener() {
+				
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					switch(which){
+					case RISING_EDGE:
+						TRIG_MODE=RISING_EDGE;
+						mTrigger.setRising(true);
+						if(connectionService.isConnected())
+							connectionService.setTriggerEdge(true);
+						break;
+					case FALLING_EDGE:
+						TRIG_MODE=FALLING_EDGE;
+						mTrigger.setRising(false);
+						if(connectionService.isConnected())
+							connectionService.setTriggerEdge(false);
+						break;
+					}
+					dialog.dismiss();
+				}
+			});
+    	optionsDialog=optionsBuilder.create();
+    	optionsDialog.show();
+    }
+    
+    /**
+     * Display the latest measurement results. Only results that changed are
+     * formatted, into the StringBuilder and char buffer of their TextView
+     */
+    private void showMeasurements()
+    {
+    	MeasurementResults results=measure.acquireResults();
+    	try{
+    		for(int i=0;i<measureViews.length;i++){
+    			TextView view=measureViews[i];
+    			if(i>=results.getCount()){
+    				view.setVisibility(View.INVISIBLE);
+    				continue;
+    			}
+    			if(results.isSame(i, shownResults))
+    				continue;
+    			shownResults.copy(i, results);
+    			
+    			int source=results.getSource(i);
+    			StringBuilder text=measureText[i];
+    			text.setLength(0);
+    			text.append(MEASUREMENT_SOURCES[source]).append(MEASUREMENTS[results.getType(i)]);
+    			results.appendValue(i, text);
+    			
+    			int length=text.length();
+    			if(measureChars[i].length<length)
+    				measureChars[i]=new char[length*2];
+    			text.getChars(0, length, measureChars[i], 0);
+    			
+    			view.setTextColor(source==2 ? ch2Color : source==3 ? MATH_COLOR : ch1Color);
+    			view.setText(measureChars[i], 0, length);
+    			view.setVisibility(View.VISIBLE);
+    		}
+    		// Removed results must be formatted again when they come back
+    		if(shownResults.getCount()>results.getCount())
+    			shownResults.clear();
+    	}finally{
+    		measure.releaseResults();
+    	}
+    }
+    
+    /**
+     * Receives new dataSamples and continuous blocks on the acquisition pipeline thread
+     */
+    private final ConnectionService.OnFrameListener frameListener = new ConnectionService.OnFrameListener(){
+    	public void onFrame(int[] ch1, int ch1Samples, int[] ch2, int ch2Samples, int trigAddress){
+    		// Keep the failed frame on the screen
+    		if(maskTest.isHalted())
+    			return;
+    		
+    		// Mask test and math work on the stored, filtered, samples
+    		if(ch1Samples>0 && channel1.isEnabled()){
+    			channel1.copyNewData(ch1, ch1Samples, trigAddress);
+    			ch1=channel1.getCurrentData();
+    			maskTest.test(channel1, ch1, ch1Samples, trigAddress);
+    		}
+    		if(ch2Samples>0 && channel2.isEnabled()){
+    			channel2.copyNewData(ch2, ch2Samples, trigAddress);
+    			ch2=channel2.getCurrentData();
+    			maskTest.test(channel2, ch2, ch2Samples, trigAddress);
+    		}
+    		mathChannel.compute(trigAddress);
+    		if(ch1Samples>0 && ch2Samples>0 && channel1.isEnabled() && channel2.isEnabled())
+    			channelPair.measure(channel1, channel2, trigAddress);
+    		decoding.decodeFrame(trigAddress);
+    	}
+    	
+    	public void onBlock(int[] samples, int numSamples, int decimation, boolean peakDetect){
+    		if(peakDetect){
+    			channel1.appendPeakData(samples, numSamples, decimation);
+    			return;
+    		}
+    		channel1.appendNewData(samples, numSamples, decimation);
+    		decoding.decodeStream(channel1, samples, numSamples, decimation);
+    	}
+    };
+    
+    
+    /**
+     * Handler to carry messages from other classes to this main activity.
+     * handleMessage implements the handling of the messages
+     */
+    private Handler mHandler=new Handler(){
     	@Override
     	public void handleMessage(Message msg){
     		
@@ -1200,7 +2598,7 @@ public class OscDroidActivity extends Activity{
     		
     		switch(msg.what){
     		case Measurement.MSG_MEASUREMENTS:
-    			handleMeasurementMsg(msg);
+    			showMeasurements();
     			break;
     			
     		case OscDroidSurfaceView.SET_VOLT_CH1:
@@ -1221,13 +2619,32 @@ public class OscDroidActivity extends Activity{
     			else if (msg.arg1==0x0B) //Disconnected
     				setTitle(getString(R.string.app_name) + "   Status: Disconnected");
     			break;
-    		case ConnectionService.NEW_DATA_ARRIVED:
-//    			Log.d(TAG,"Got new data in main");
-    			handleNewAnalogueData(msg);
+    		case ConnectionService.FRAME_STATUS:
+    			// Mean time per acquisition state over the last status interval
+    			AcquisitionState acqState=connectionService.getAcquisitionState();
+    			setTitle(getString(R.string.app_name) + "   Status: Connected   " + msg.arg1 + " wfm/s   " + acqState);
+    			acqState.resetMetrics();
+    			break;
+    		case ConnectionService.RECORDING_STOPPED:
+    			ConnectionService.StoppedRecorders stopped = (ConnectionService.StoppedRecorders)msg.obj;
+    			showRecorded(stopped.recorder, stopped.frameRecorder, 
+    					msg.arg1==1 ? "Settings changed, recording stopped. " : "");
+    			break;
+    		case ConnectionService.REPLAY_DONE:
+    			Toast.makeText(OscDroidActivity.this, "Replayed " + msg.arg1 + " blocks in " + msg.arg2 + " ms ("
+    					+ (msg.arg2>0 ? msg.arg1*1000/msg.arg2 : msg.arg1) + "/s)", Toast.LENGTH_LONG).show();
+    			break;
+    		case MaskTest.MASK_FAILED:
+    			CURRENT_MODE=1;
+    			connectionService.setMode(1);
+    			oscSurface.setRunningMode(1);
+    			Toast.makeText(OscDroidActivity.this, "Mask test failed, " + maskTest.getPassCount() + " passed, "
+    					+ msg.arg1 + " failed", Toast.LENGTH_LONG).show();
     			break;
-    		case ConnectionService.APPEND_NEW_DATA:
-    			channel1.appendNewData(msg.getData().getIntArray(ConnectionService.ANALOG_DATA));
-//    			Log.d(TAG,"Appending analog data");
+    		case ConnectionService.SEGMENTS_READY:
+    			if(msg.arg2==1)
+    				Toast.makeText(OscDroidActivity.this,R.string.segmentedTimeout,Toast.LENGTH_SHORT).show();
+    			browseSegmentsDialog(msg.arg1);
     			break;
     		case ConnectionService.CONNECTION_RESET:
     			Log.e(TAG,"Connection was reset!");
@@ -1240,6 +2657,7 @@ public class OscDroidActivity extends Activity{
     			connectionService.setTriggerPos(mTrigger.getPos());
     			channel1.setTriggerPos(mTrigger.getPos());
     			channel2.setTriggerPos(mTrigger.getPos());
+    			mathChannel.setTriggerPos(mTrigger.getPos());
     			break;
     		}
     		
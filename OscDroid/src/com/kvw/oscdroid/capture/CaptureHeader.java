@@ -0,0 +1,139 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Header of a capture file. The header occupies the first HEADER_SIZE bytes and is
+ * followed by chunks of unsigned 8-bit samples. The ChunkIndex at indexOffset tells
+ * where the chunks of every channel are. Recordings also store a MinMaxPyramid
+ * at pyramidOffset, 0 when there is none. All values are stored little endian.
+ * 
+ * VERSION changes with every change of the layout, files of other versions are
+ * rejected.
+ *
+ * @author K. van Wijk
+ *
+ */
+public class CaptureHeader {
+
+	/** "OSCD" */
+	public static final int MAGIC=0x4443534F;
+	public static final int VERSION=1;
+	
+	/** Header size, samples start aligned to the file system block size */
+	public static final int HEADER_SIZE=4096;
+	
+	public static final int CHANNEL_1=1;
+	public static final int CHANNEL_2=2;
+	
+	/** Continuous stream of samples of one channel */
+	public static final int LAYOUT_CONTINUOUS=0;
+	/** Single triggered acquisition, trigAddress is valid */
+	public static final int LAYOUT_FRAME=1;
+	/** 
+	 * Raw frames as read from the device, one per chunk. The first sample of a chunk
+	 * holds its capture time in ns, the channel holds the enabled channels.
+	 * numSamples is the number of frames.
+	 */
+	public static final int LAYOUT_FRAMES=2;
+	
+	public float sampleRate;
+	public int timeDiv;
+	public int ch1VoltDiv;
+	public int ch2VoltDiv;
+	public int channels=CHANNEL_1;
+	public int layout=LAYOUT_CONTINUOUS;
+	public int trigAddress=-1;
+	public long numSamples=0;
+	public long startTime;
+	public int chunkSize;
+	public int numChunks=0;
+	public long indexOffset=0;
+	public long pyramidOffset=0;
+	
+	/**
+	 * Write the header to the start of buffer
+	 * @param buffer ByteBuffer of at least HEADER_SIZE bytes
+	 */
+	public void write(ByteBuffer buffer)
+	{
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.clear();
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putFloat(sampleRate);
+		buffer.putInt(timeDiv);
+		buffer.putInt(ch1VoltDiv);
+		buffer.putInt(ch2VoltDiv);
+		buffer.putInt(channels);
+		buffer.putInt(layout);
+		buffer.putInt(trigAddress);
+		buffer.putInt(0); // reserved
+		buffer.putLong(numSamples);
+		buffer.putLong(startTime);
+		buffer.putInt(chunkSize);
+		buffer.putInt(numChunks);
+		buffer.putLong(indexOffset);
+		buffer.putLong(pyramidOffset);
+		while(buffer.position()<HEADER_SIZE)
+			buffer.put((byte)0);
+		buffer.flip();
+	}
+	
+	/**
+	 * Read the header from the start of buffer
+	 * @param buffer ByteBuffer containing the header
+	 * @return CaptureHeader
+	 * @throws IOException when buffer does not contain a capture header
+	 */
+	public static CaptureHeader read(ByteBuffer buffer) throws IOException
+	{
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if(buffer.remaining()<HEADER_SIZE || buffer.getInt()!=MAGIC)
+			throw new IOException("Not a capture file");
+		if(buffer.getInt()!=VERSION)
+			throw new IOException("Unsupported capture file version");
+		
+		CaptureHeader header = new CaptureHeader();
+		header.sampleRate=buffer.getFloat();
+		header.timeDiv=buffer.getInt();
+		header.ch1VoltDiv=buffer.getInt();
+		header.ch2VoltDiv=buffer.getInt();
+		header.channels=buffer.getInt();
+		header.layout=buffer.getInt();
+		header.trigAddress=buffer.getInt();
+		buffer.getInt();
+		header.numSamples=buffer.getLong();
+		header.startTime=buffer.getLong();
+		header.chunkSize=buffer.getInt();
+		header.numChunks=buffer.getInt();
+		header.indexOffset=buffer.getLong();
+		header.pyramidOffset=buffer.getLong();
+		
+		if(header.layout!=LAYOUT_CONTINUOUS && header.layout!=LAYOUT_FRAME && header.layout!=LAYOUT_FRAMES)
+			throw new IOException("Unsupported capture file layout");
+		return header;
+	}
+}
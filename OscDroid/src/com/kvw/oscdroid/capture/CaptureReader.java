@@ -0,0 +1,378 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to a capture file. The file is memory-mapped in windows of
+ * MAP_WINDOW bytes on demand, so opening a recording is instant whatever its size
+ * and only the parts that are displayed are paged in. At most MAX_WINDOWS windows
+ * are mapped at once to stay within the address space of the device. Zoomed out
+ * views are taken from the stored MinMaxPyramid when the recording has one.
+ *
+ * @author K. van Wijk
+ *
+ */
+public class CaptureReader {
+
+	private static final long MAP_WINDOW=16L*1024*1024;
+	private static final int MAX_WINDOWS=8;
+	
+	/** Value returned for samples that were dropped while recording */
+	public static final int GAP_VALUE=128;
+	
+	private final File mFile;
+	private final RandomAccessFile mRaf;
+	private final FileChannel mChannel;
+	private final long fileSize;
+	private final CaptureHeader mHeader;
+	private final ChunkIndex mIndex;
+	private MinMaxPyramid mPyramid=null;
+	
+	/** Chunks of every channel, in sample order */
+	private final int[][] channelChunks = new int[3][];
+	
+	private final MappedByteBuffer[] mWindows;
+	private final int[] mappedWindows = new int[MAX_WINDOWS];
+	private int nextMapped=0;
+	private final int[] mScratch = new int[4096];
+	
+	/**
+	 * Open a capture file, read header and chunk index
+	 * @param file capture file
+	 * @throws IOException when the file can not be opened or is not a capture file
+	 */
+	public CaptureReader(File file) throws IOException
+	{
+		mFile=file;
+		mRaf=new RandomAccessFile(file,"r");
+		try{
+			mChannel=mRaf.getChannel();
+			fileSize=mChannel.size();
+			
+			ByteBuffer tmp=ByteBuffer.allocate(CaptureHeader.HEADER_SIZE);
+			while(tmp.hasRemaining() && mChannel.read(tmp, tmp.position())>0)
+				;
+			tmp.flip();
+			mHeader=CaptureHeader.read(tmp);
+			
+			long indexSize=(long)mHeader.numChunks*ChunkIndex.ENTRY_SIZE;
+			if(mHeader.indexOffset<CaptureHeader.HEADER_SIZE || mHeader.indexOffset+indexSize>fileSize)
+				throw new IOException("Capture file is incomplete");
+			ByteBuffer indexBuffer=mChannel.map(FileChannel.MapMode.READ_ONLY, mHeader.indexOffset, indexSize);
+			mIndex=ChunkIndex.read(indexBuffer, mHeader.numChunks);
+			
+			if(mHeader.pyramidOffset>0 && mHeader.pyramidOffset<fileSize){
+				try{
+					ByteBuffer pyramidBuffer=mChannel.map(FileChannel.MapMode.READ_ONLY, 
+							mHeader.pyramidOffset, fileSize-mHeader.pyramidOffset);
+					mPyramid=MinMaxPyramid.read(pyramidBuffer);
+				}catch(IOException ex){
+					// Display from the samples
+					mPyramid=null;
+				}
+			}
+		}catch(IOException ex){
+			mRaf.close();
+			throw ex;
+		}
+		
+		for(int c=CaptureHeader.CHANNEL_1;c<=CaptureHeader.CHANNEL_2;c++){
+			int cnt=0;
+			for(int i=0;i<mIndex.getNumChunks();i++)
+				if(mIndex.getChannel(i)==c)
+					cnt++;
+			channelChunks[c]=new int[cnt];
+			cnt=0;
+			for(int i=0;i<mIndex.getNumChunks();i++)
+				if(mIndex.getChannel(i)==c)
+					channelChunks[c][cnt++]=i;
+		}
+		
+		mWindows=new MappedByteBuffer[(int)((fileSize+MAP_WINDOW-1)/MAP_WINDOW)];
+		for(int i=0;i<MAX_WINDOWS;i++)
+			mappedWindows[i]=-1;
+	}
+	
+	/**
+	 * 
+	 * @return header of the capture file
+	 */
+	public CaptureHeader getHeader()
+	{
+		return mHeader;
+	}
+	
+	/**
+	 * 
+	 * @return the capture file
+	 */
+	public File getFile()
+	{
+		return mFile;
+	}
+	
+	/**
+	 * 
+	 * @param channel CaptureHeader.CHANNEL_1 or CHANNEL_2
+	 * @return true if the capture contains samples of the channel
+	 */
+	public boolean hasChannel(int channel)
+	{
+		return channel>=CaptureHeader.CHANNEL_1 && channel<=CaptureHeader.CHANNEL_2
+				&& channelChunks[channel].length>0;
+	}
+	
+	/**
+	 * 
+	 * @param channel CaptureHeader.CHANNEL_1 or CHANNEL_2
+	 * @return number of samples of the channel, including gaps
+	 */
+	public long getNumSamples(int channel)
+	{
+		if(!hasChannel(channel))
+			return 0;
+		int last=channelChunks[channel][channelChunks[channel].length-1];
+		return mIndex.getFirstSample(last)+mIndex.getNumSamples(last);
+	}
+	
+	/**
+	 * Copy samples of a channel, converted to unsigned
+	 * @param channel CaptureHeader.CHANNEL_1 or CHANNEL_2
+	 * @param first first sample
+	 * @param count number of samples
+	 * @param out array to copy the samples to, at least count long
+	 * @return number of samples copied, less than count at the end of the capture
+	 */
+	public synchronized int getSamples(int channel, long first, int count, int[] out)
+	{
+		long numSamples=getNumSamples(channel);
+		if(first<0 || first>=numSamples)
+			return 0;
+		if(first+count>numSamples)
+			count=(int)(numSamples-first);
+		
+		int[] chunks=channelChunks[channel];
+		int n=findChunk(chunks, first);
+		int done=0;
+		
+		while(done<count){
+			long sample=first+done;
+			
+			// Skip to the chunk containing sample
+			while(n<chunks.length-1 && mIndex.getFirstSample(chunks[n+1])<=sample)
+				n++;
+			int chunk=chunks[n];
+			long chunkFirst=mIndex.getFirstSample(chunk);
+			long chunkEnd=chunkFirst+mIndex.getNumSamples(chunk);
+			
+			if(sample<chunkFirst || sample>=chunkEnd){
+				// Dropped while recording, fill up to the next chunk
+				long next;
+				if(sample<chunkFirst)
+					next=chunkFirst;
+				else
+					next = n<chunks.length-1 ? mIndex.getFirstSample(chunks[n+1]) : numSamples;
+				int gap = (int)Math.min(next-sample, count-done);
+				for(int i=0;i<gap;i++)
+					out[done++]=GAP_VALUE;
+				continue;
+			}
+			
+			int num=(int)Math.min(chunkEnd-sample, count-done);
+			done+=copy(mIndex.getOffset(chunk)+(sample-chunkFirst), num, out, done);
+		}
+		return count;
+	}
+	
+	/**
+	 * Min/max of every column when count samples are displayed in columns columns
+	 * @param channel CaptureHeader.CHANNEL_1 or CHANNEL_2
+	 * @param first first sample
+	 * @param count number of samples
+	 * @param columns number of columns
+	 * @param out array of at least 2*columns, receives min,max pairs
+	 * @return number of columns
+	 */
+	public synchronized int getMinMax(int channel, long first, long count, int columns, int[] out)
+	{
+		if(mPyramid!=null && channel==CaptureHeader.CHANNEL_1
+				&& mPyramid.getMinMax(first, count, columns, out))
+			return columns;
+		
+		int[] tmp=mScratch;
+		for(int c=0;c<columns;c++){
+			long start=first+count*c/columns;
+			long end=first+count*(c+1)/columns;
+			int min=255;
+			int max=0;
+			while(start<end){
+				int n=getSamples(channel, start, (int)Math.min(end-start, tmp.length), tmp);
+				if(n==0)
+					break;
+				for(int i=0;i<n;i++){
+					if(tmp[i]<min) min=tmp[i];
+					if(tmp[i]>max) max=tmp[i];
+				}
+				start+=n;
+			}
+			if(min>max){
+				min=GAP_VALUE;
+				max=GAP_VALUE;
+			}
+			out[2*c]=min;
+			out[2*c+1]=max;
+		}
+		return columns;
+	}
+	
+	/**
+	 * 
+	 * @return chunk index of the capture file
+	 */
+	public ChunkIndex getIndex()
+	{
+		return mIndex;
+	}
+	
+	/**
+	 * Copy the raw bytes of a chunk, e.g. a frame of a LAYOUT_FRAMES capture
+	 * @param chunk chunk number
+	 * @param out array of at least the number of samples of the chunk
+	 * @return number of bytes copied
+	 */
+	public synchronized int readChunk(int chunk, byte[] out)
+	{
+		long position=mIndex.getOffset(chunk);
+		int num=mIndex.getNumSamples(chunk);
+		if(num>out.length)
+			num=out.length;
+		
+		int done=0;
+		while(done<num){
+			int w=(int)(position/MAP_WINDOW);
+			MappedByteBuffer window=getWindow(w);
+			if(window==null)
+				break;
+			int start=(int)(position-w*MAP_WINDOW);
+			int n=Math.min(num-done, window.limit()-start);
+			ByteBuffer tmp=window.duplicate();
+			tmp.position(start);
+			tmp.get(out, done, n);
+			done+=n;
+			position+=n;
+		}
+		return done;
+	}
+	
+	/**
+	 * 
+	 * @return level-of-detail index of the recording, null if it has none
+	 */
+	public MinMaxPyramid getPyramid()
+	{
+		return mPyramid;
+	}
+	
+	/**
+	 * Unmap and close the file
+	 */
+	public synchronized void close()
+	{
+		for(int i=0;i<mWindows.length;i++)
+			mWindows[i]=null;
+		try{mRaf.close();}
+		catch(IOException ex){}
+	}
+	
+	/**
+	 * Binary search for the chunk containing sample, or the last chunk before it
+	 */
+	private int findChunk(int[] chunks, long sample)
+	{
+		int low=0;
+		int high=chunks.length-1;
+		while(low<high){
+			int mid=(low+high+1)>>>1;
+			if(mIndex.getFirstSample(chunks[mid])<=sample)
+				low=mid;
+			else
+				high=mid-1;
+		}
+		return low;
+	}
+	
+	/**
+	 * Copy num samples starting at file offset position, crossing map windows if needed
+	 * @return number of samples copied
+	 */
+	private int copy(long position, int num, int[] out, int outOffset) 
+	{
+		int done=0;
+		while(done<num){
+			int w=(int)(position/MAP_WINDOW);
+			MappedByteBuffer window=getWindow(w);
+			if(window==null)
+				break;
+			int start=(int)(position-w*MAP_WINDOW);
+			int n=Math.min(num-done, window.limit()-start);
+			for(int i=0;i<n;i++)
+				out[outOffset+done+i]=window.get(start+i) & 0xFF;
+			done+=n;
+			position+=n;
+		}
+		// Truncated file, rest counts as gap
+		for(int i=done;i<num;i++)
+			out[outOffset+i]=GAP_VALUE;
+		return num;
+	}
+	
+	/**
+	 * Map a window of the file, unmapping the least recently mapped one when MAX_WINDOWS are mapped
+	 */
+	private MappedByteBuffer getWindow(int w)
+	{
+		if(w>=mWindows.length)
+			return null;
+		if(mWindows[w]!=null)
+			return mWindows[w];
+		
+		long start=w*MAP_WINDOW;
+		long size=Math.min(MAP_WINDOW, fileSize-start);
+		try{
+			mWindows[w]=mChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		}catch(IOException ex){
+			return null;
+		}
+		
+		if(mappedWindows[nextMapped]>=0)
+			mWindows[mappedWindows[nextMapped]]=null;
+		mappedWindows[nextMapped]=w;
+		nextMapped=(nextMapped+1)%MAX_WINDOWS;
+		return mWindows[w];
+	}
+}
@@ -0,0 +1,325 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Streams raw samples to a capture file. The connection thread copies samples
+ * into preallocated blocks, full blocks are written by a dedicated writer thread
+ * through a FileChannel. All writes are whole blocks at block aligned offsets,
+ * except for the last one when recording stops. Every block is one chunk of the
+ * capture file. The writer thread also builds the MinMaxPyramid of the recording,
+ * chunk index and pyramid are written when recording stops.
+ *
+ * @author K. van Wijk
+ *
+ */
+public class CaptureRecorder {
+	
+	private static final String TAG="oscdroid.CaptureRecorder";
+	
+	public static final int BLOCK_SIZE=65536;
+	private static final int NUM_BLOCKS=16;
+	
+	private final File mFile;
+	private final RandomAccessFile mRaf;
+	private final FileChannel mChannel;
+	private final CaptureHeader mHeader;
+	
+	/**
+	 * Preallocated block, one chunk of the file
+	 */
+	private static class Block {
+		final ByteBuffer buffer=ByteBuffer.allocateDirect(BLOCK_SIZE);
+		long firstSample;
+	}
+	
+	private final BlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<Block>(NUM_BLOCKS);
+	private final BlockingQueue<Block> writeQueue = new ArrayBlockingQueue<Block>(NUM_BLOCKS);
+	private final ChunkIndex mIndex = new ChunkIndex(64);
+	private final MinMaxPyramid mPyramid = new MinMaxPyramid();
+	private long filePosition=CaptureHeader.HEADER_SIZE;
+	
+	private Block currentBlock=null;
+	private Thread writerThread;
+	private volatile boolean mRun=false;
+	private volatile boolean writeError=false;
+	
+	private volatile long numSamples=0;
+	private volatile long droppedSamples=0;
+	
+	/**
+	 * Create the capture file and write the header
+	 * @param file File to record to, overwritten if it exists
+	 * @param header CaptureHeader with the acquisition settings
+	 * @throws IOException when the file can not be created
+	 */
+	public CaptureRecorder(File file, CaptureHeader header) throws IOException
+	{
+		mFile=file;
+		mHeader=header;
+		mHeader.numSamples=0;
+		mHeader.startTime=System.currentTimeMillis();
+		mHeader.chunkSize=BLOCK_SIZE;
+		
+		mRaf=new RandomAccessFile(file,"rw");
+		mRaf.setLength(0);
+		mChannel=mRaf.getChannel();
+		
+		ByteBuffer tmp=ByteBuffer.allocate(CaptureHeader.HEADER_SIZE);
+		mHeader.write(tmp);
+		mChannel.write(tmp, 0);
+		
+		for(int i=0;i<NUM_BLOCKS;i++)
+			freeBlocks.add(new Block());
+	}
+	
+	/**
+	 * Start the writer thread
+	 */
+	public synchronized void start()
+	{
+		if(mRun)
+			return;
+		mRun=true;
+		
+		writerThread = new Thread(new Runnable(){
+			public void run(){
+				while(mRun || !writeQueue.isEmpty()){
+					try{
+						Block block=writeQueue.poll(100, TimeUnit.MILLISECONDS);
+						if(block!=null)
+							writeBlock(block);
+					}catch(InterruptedException ex){}
+				}
+			}
+		},"OscDroid recorder");
+		writerThread.setPriority(Thread.MIN_PRIORITY);
+		writerThread.start();
+	}
+	
+	/**
+	 * Append samples, called from the connection thread. Never blocks; when the
+	 * writer can not keep up the samples are dropped and counted.
+	 * @param data raw samples
+	 * @param offset first sample
+	 * @param count number of samples
+	 */
+	public synchronized void write(byte[] data, int offset, int count)
+	{
+		if(!mRun)
+			return;
+		
+		while(count>0){
+			if(currentBlock==null){
+				currentBlock=freeBlocks.poll();
+				if(currentBlock==null){
+					droppedSamples+=count;
+					return;
+				}
+				currentBlock.buffer.clear();
+				currentBlock.firstSample=numSamples+droppedSamples;
+			}
+			
+			ByteBuffer buffer=currentBlock.buffer;
+			int n = count<buffer.remaining() ? count : buffer.remaining();
+			buffer.put(data, offset, n);
+			offset+=n;
+			count-=n;
+			numSamples+=n;
+			
+			if(!buffer.hasRemaining()){
+				buffer.flip();
+				writeQueue.offer(currentBlock);
+				currentBlock=null;
+			}
+		}
+	}
+	
+	/**
+	 * Write a block to the file and add it to the index, return it to the pool
+	 */
+	private void writeBlock(Block block)
+	{
+		ByteBuffer buffer=block.buffer;
+		int length=buffer.remaining();
+		try{
+			long position=filePosition;
+			while(buffer.hasRemaining())
+				position+=mChannel.write(buffer, position);
+			mIndex.add(filePosition, block.firstSample, length, CaptureHeader.CHANNEL_1);
+			filePosition+=length;
+			
+			buffer.flip();
+			if(block.firstSample>mPyramid.getNumSamples())
+				mPyramid.addGap(block.firstSample-mPyramid.getNumSamples(), CaptureReader.GAP_VALUE);
+			mPyramid.add(buffer);
+		}catch(IOException ex){
+			if(!writeError)
+				Log.e(TAG,"Error writing " + mFile + ": " + ex.getMessage());
+			writeError=true;
+		}
+		freeBlocks.offer(block);
+	}
+	
+	/**
+	 * Stop recording. Write the remaining samples, update the header and close the file.
+	 * The lock is released before waiting for the writer thread, write() returns 
+	 * right away meanwhile.
+	 * @return true if all samples were written without errors
+	 */
+	public boolean stop()
+	{
+		synchronized(this){
+			if(!mRun)
+				return false;
+			mRun=false;
+			
+			if(currentBlock!=null && currentBlock.buffer.position()>0){
+				currentBlock.buffer.flip();
+				writeQueue.offer(currentBlock);
+			}
+			currentBlock=null;
+		}
+		
+		// Writer thread finishes the queue, FileChannel must not be interrupted
+		try{writerThread.join();}
+		catch(InterruptedException ex){}
+		
+		try{
+			mIndex.write(mChannel, filePosition);
+			mHeader.numSamples=numSamples;
+			mHeader.numChunks=mIndex.getNumChunks();
+			mHeader.indexOffset=filePosition;
+			
+			mPyramid.finish();
+			mHeader.pyramidOffset=filePosition+(long)mIndex.getNumChunks()*ChunkIndex.ENTRY_SIZE;
+			mPyramid.write(mChannel, mHeader.pyramidOffset);
+			ByteBuffer tmp=ByteBuffer.allocate(CaptureHeader.HEADER_SIZE);
+			mHeader.write(tmp);
+			mChannel.write(tmp, 0);
+			mChannel.force(true);
+			mRaf.close();
+		}catch(IOException ex){
+			Log.e(TAG,"Error closing " + mFile + ": " + ex.getMessage());
+			writeError=true;
+		}
+		
+		return !writeError && droppedSamples==0;
+	}
+	
+	/**
+	 * Save a single acquisition as a capture file, one chunk per channel
+	 * @param file File to save to, overwritten if it exists
+	 * @param header CaptureHeader with the acquisition settings and trigger address
+	 * @param ch1 channel 1 samples, null if not enabled
+	 * @param ch2 channel 2 samples, null if not enabled
+	 * @throws IOException when the file can not be written
+	 */
+	public static void saveFrame(File file, CaptureHeader header, int[] ch1, int[] ch2) throws IOException
+	{
+		int n1 = ch1!=null ? ch1.length : 0;
+		int n2 = ch2!=null ? ch2.length : 0;
+		
+		header.layout=CaptureHeader.LAYOUT_FRAME;
+		header.channels=(n1>0 ? CaptureHeader.CHANNEL_1 : 0) | (n2>0 ? CaptureHeader.CHANNEL_2 : 0);
+		header.numSamples=n1>n2 ? n1 : n2;
+		header.startTime=System.currentTimeMillis();
+		header.chunkSize=header.numSamples>0 ? (int)header.numSamples : 1;
+		
+		ChunkIndex index = new ChunkIndex(2);
+		ByteBuffer tmp=ByteBuffer.allocate(CaptureHeader.HEADER_SIZE+n1+n2);
+		tmp.position(CaptureHeader.HEADER_SIZE);
+		for(int i=0;i<n1;i++)
+			tmp.put((byte)ch1[i]);
+		for(int i=0;i<n2;i++)
+			tmp.put((byte)ch2[i]);
+		if(n1>0)
+			index.add(CaptureHeader.HEADER_SIZE, 0, n1, CaptureHeader.CHANNEL_1);
+		if(n2>0)
+			index.add(CaptureHeader.HEADER_SIZE+n1, 0, n2, CaptureHeader.CHANNEL_2);
+		header.numChunks=index.getNumChunks();
+		header.indexOffset=CaptureHeader.HEADER_SIZE+n1+n2;
+		
+		ByteBuffer headerBuffer=ByteBuffer.allocate(CaptureHeader.HEADER_SIZE);
+		header.write(headerBuffer);
+		tmp.position(0);
+		tmp.put(headerBuffer);
+		tmp.position(0);
+		
+		RandomAccessFile raf=new RandomAccessFile(file,"rw");
+		try{
+			raf.setLength(0);
+			FileChannel channel=raf.getChannel();
+			while(tmp.hasRemaining())
+				channel.write(tmp);
+			index.write(channel, header.indexOffset);
+		}finally{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return true while recording
+	 */
+	public boolean isRecording()
+	{
+		return mRun;
+	}
+	
+	/**
+	 * 
+	 * @return number of samples recorded
+	 */
+	public long getNumSamples()
+	{
+		return numSamples;
+	}
+	
+	/**
+	 * 
+	 * @return number of samples dropped because the writer could not keep up
+	 */
+	public long getDroppedSamples()
+	{
+		return droppedSamples;
+	}
+	
+	/**
+	 * 
+	 * @return File being recorded to
+	 */
+	public File getFile()
+	{
+		return mFile;
+	}
+}
@@ -0,0 +1,183 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Index of the sample chunks in a capture file. For every chunk the file offset,
+ * the channel, the number of the first sample in the stream of that channel and
+ * the number of samples are stored. Samples that were dropped while recording
+ * show up as a gap between the chunks of a channel.
+ *
+ * @author K. van Wijk
+ *
+ */
+public class ChunkIndex {
+
+	/** long offset, long first sample, int number of samples, int channel */
+	public static final int ENTRY_SIZE=24;
+	
+	private long[] mOffsets;
+	private long[] mFirstSamples;
+	private int[] mNumSamples;
+	private int[] mChannels;
+	private int numChunks=0;
+	
+	/**
+	 * Constructor
+	 * @param capacity initial number of chunks, grows when needed
+	 */
+	public ChunkIndex(int capacity)
+	{
+		if(capacity<1)
+			capacity=1;
+		mOffsets=new long[capacity];
+		mFirstSamples=new long[capacity];
+		mNumSamples=new int[capacity];
+		mChannels=new int[capacity];
+	}
+	
+	/**
+	 * Add a chunk
+	 * @param offset file offset of the first sample
+	 * @param firstSample number of the first sample in the stream of the channel
+	 * @param numSamples number of samples in the chunk
+	 * @param channel CaptureHeader.CHANNEL_1 or CHANNEL_2
+	 */
+	public void add(long offset, long firstSample, int numSamples, int channel)
+	{
+		if(numChunks==mOffsets.length){
+			int capacity=numChunks*2;
+			long[] tmpOffsets=new long[capacity];
+			long[] tmpFirst=new long[capacity];
+			int[] tmpNum=new int[capacity];
+			int[] tmpChannels=new int[capacity];
+			System.arraycopy(mOffsets, 0, tmpOffsets, 0, numChunks);
+			System.arraycopy(mFirstSamples, 0, tmpFirst, 0, numChunks);
+			System.arraycopy(mNumSamples, 0, tmpNum, 0, numChunks);
+			System.arraycopy(mChannels, 0, tmpChannels, 0, numChunks);
+			mOffsets=tmpOffsets;
+			mFirstSamples=tmpFirst;
+			mNumSamples=tmpNum;
+			mChannels=tmpChannels;
+		}
+		
+		mOffsets[numChunks]=offset;
+		mFirstSamples[numChunks]=firstSample;
+		mNumSamples[numChunks]=numSamples;
+		mChannels[numChunks]=channel;
+		numChunks++;
+	}
+	
+	/**
+	 * 
+	 * @return number of chunks
+	 */
+	public int getNumChunks()
+	{
+		return numChunks;
+	}
+	
+	/**
+	 * 
+	 * @param chunk chunk number
+	 * @return file offset of the first sample of the chunk
+	 */
+	public long getOffset(int chunk)
+	{
+		return mOffsets[chunk];
+	}
+	
+	/**
+	 * 
+	 * @param chunk chunk number
+	 * @return number of the first sample of the chunk, in the stream of its channel
+	 */
+	public long getFirstSample(int chunk)
+	{
+		return mFirstSamples[chunk];
+	}
+	
+	/**
+	 * 
+	 * @param chunk chunk number
+	 * @return number of samples in the chunk
+	 */
+	public int getNumSamples(int chunk)
+	{
+		return mNumSamples[chunk];
+	}
+	
+	/**
+	 * 
+	 * @param chunk chunk number
+	 * @return channel of the chunk
+	 */
+	public int getChannel(int chunk)
+	{
+		return mChannels[chunk];
+	}
+	
+	/**
+	 * Write the index to a file
+	 * @param channel FileChannel to write to
+	 * @param position file offset of the index
+	 * @throws IOException
+	 */
+	public void write(FileChannel channel, long position) throws IOException
+	{
+		ByteBuffer tmp=ByteBuffer.allocate(numChunks*ENTRY_SIZE);
+		tmp.order(ByteOrder.LITTLE_ENDIAN);
+		for(int i=0;i<numChunks;i++){
+			tmp.putLong(mOffsets[i]);
+			tmp.putLong(mFirstSamples[i]);
+			tmp.putInt(mNumSamples[i]);
+			tmp.putInt(mChannels[i]);
+		}
+		tmp.flip();
+		while(tmp.hasRemaining())
+			position+=channel.write(tmp, position);
+	}
+	
+	/**
+	 * Read an index
+	 * @param buffer ByteBuffer positioned at the start of the index
+	 * @param numChunks number of chunks in the index
+	 * @return ChunkIndex
+	 */
+	public static ChunkIndex read(ByteBuffer buffer, int numChunks)
+	{
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		ChunkIndex index = new ChunkIndex(numChunks);
+		for(int i=0;i<numChunks;i++){
+			long offset=buffer.getLong();
+			long first=buffer.getLong();
+			int num=buffer.getInt();
+			int channel=buffer.getInt();
+			index.add(offset, first, num, channel);
+		}
+		return index;
+	}
+}
@@ -0,0 +1,150 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * Records raw frames, as read from the device, to a capture file with
+ * LAYOUT_FRAMES. Called from the decode stage of the acquisition pipeline,
+ * so writing never delays the connection thread.
+ *
+ * @author K. van Wijk
+ *
+ */
+public class FrameRecorder {
+	
+	private static final String TAG="oscdroid.FrameRecorder";
+	
+	private final File mFile;
+	private final RandomAccessFile mRaf;
+	private final FileChannel mChannel;
+	private final CaptureHeader mHeader;
+	private final ChunkIndex mIndex = new ChunkIndex(256);
+	
+	private long filePosition=CaptureHeader.HEADER_SIZE;
+	private long startTime=-1;
+	private boolean mRun=true;
+	private boolean writeError=false;
+	
+	/**
+	 * Create the capture file and write the header
+	 * @param file File to record to, overwritten if it exists
+	 * @param header CaptureHeader with the acquisition settings
+	 * @throws IOException when the file can not be created
+	 */
+	public FrameRecorder(File file, CaptureHeader header) throws IOException
+	{
+		mFile=file;
+		mHeader=header;
+		mHeader.layout=CaptureHeader.LAYOUT_FRAMES;
+		mHeader.numSamples=0;
+		mHeader.startTime=System.currentTimeMillis();
+		
+		mRaf=new RandomAccessFile(file,"rw");
+		mRaf.setLength(0);
+		mChannel=mRaf.getChannel();
+		
+		ByteBuffer tmp=ByteBuffer.allocate(CaptureHeader.HEADER_SIZE);
+		mHeader.write(tmp);
+		mChannel.write(tmp, 0);
+	}
+	
+	/**
+	 * Append a frame
+	 * @param raw raw frame, including the header
+	 * @param length frame length
+	 * @param channels enabled channels, CaptureHeader.CHANNEL_1 | CHANNEL_2
+	 * @param timestamp System.nanoTime() at which the frame was read
+	 */
+	public synchronized void write(byte[] raw, int length, int channels, long timestamp)
+	{
+		if(!mRun || writeError)
+			return;
+		if(startTime<0)
+			startTime=timestamp;
+		
+		ByteBuffer tmp=ByteBuffer.wrap(raw, 0, length);
+		try{
+			long position=filePosition;
+			while(tmp.hasRemaining())
+				position+=mChannel.write(tmp, position);
+		}catch(IOException ex){
+			Log.e(TAG,"Error writing " + mFile + ": " + ex.getMessage());
+			writeError=true;
+			return;
+		}
+		
+		mIndex.add(filePosition, timestamp-startTime, length, channels);
+		filePosition+=length;
+	}
+	
+	/**
+	 * Stop recording, write the index and close the file
+	 * @return true if all frames were written
+	 */
+	public synchronized boolean stop()
+	{
+		if(!mRun)
+			return false;
+		mRun=false;
+		
+		try{
+			mIndex.write(mChannel, filePosition);
+			mHeader.numSamples=mIndex.getNumChunks();
+			mHeader.numChunks=mIndex.getNumChunks();
+			mHeader.indexOffset=filePosition;
+			ByteBuffer tmp=ByteBuffer.allocate(CaptureHeader.HEADER_SIZE);
+			mHeader.write(tmp);
+			mChannel.write(tmp, 0);
+			mChannel.force(true);
+			mRaf.close();
+		}catch(IOException ex){
+			Log.e(TAG,"Error closing " + mFile + ": " + ex.getMessage());
+			writeError=true;
+		}
+		return !writeError;
+	}
+	
+	/**
+	 * 
+	 * @return number of frames recorded
+	 */
+	public synchronized int getNumFrames()
+	{
+		return mIndex.getNumChunks();
+	}
+	
+	/**
+	 * 
+	 * @return File being recorded to
+	 */
+	public File getFile()
+	{
+		return mFile;
+	}
+}
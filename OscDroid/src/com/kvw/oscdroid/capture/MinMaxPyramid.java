@@ -0,0 +1,261 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Level-of-detail index of a recording. Level k holds a min/max pair for every
+ * 2^k samples, from BASE_LEVEL up to a single pair for the whole recording.
+ * The pyramid is built while recording and stored behind the chunk index, so
+ * displaying any part of a recording at any zoom takes one or a few pairs
+ * per screen column instead of every sample.
+ *
+ * @author K. van Wijk
+ *
+ */
+public class MinMaxPyramid {
+
+	/** Finest level, 16 samples per pair. Finer zoom reads the samples themselves */
+	public static final int BASE_LEVEL=4;
+	private static final int MAX_LEVELS=48;
+	
+	private final ByteBuffer[] mLevels = new ByteBuffer[MAX_LEVELS];
+	private final long[] mCounts = new long[MAX_LEVELS];
+	private int numLevels=0;
+	private long numSamples=0;
+	
+	private int groupMin=255;
+	private int groupMax=0;
+	private int groupCount=0;
+	
+	/**
+	 * Add samples of the recording
+	 * @param data buffer containing the samples between position and limit, position is not changed
+	 */
+	public synchronized void add(ByteBuffer data)
+	{
+		int end=data.limit();
+		for(int i=data.position();i<end;i++)
+			addSample(data.get(i) & 0xFF);
+	}
+	
+	/**
+	 * Add samples that were dropped while recording
+	 * @param count number of samples
+	 * @param value value to use for the samples
+	 */
+	public synchronized void addGap(long count, int value)
+	{
+		for(long i=0;i<count;i++)
+			addSample(value);
+	}
+	
+	private void addSample(int sample)
+	{
+		if(sample<groupMin) groupMin=sample;
+		if(sample>groupMax) groupMax=sample;
+		numSamples++;
+		if(++groupCount==1<<BASE_LEVEL)
+			flushGroup();
+	}
+	
+	private void flushGroup()
+	{
+		append(0,groupMin,groupMax);
+		groupMin=255;
+		groupMax=0;
+		groupCount=0;
+	}
+	
+	/**
+	 * Append a pair to a level, combine every two pairs into the next level
+	 */
+	private void append(int level, int min, int max)
+	{
+		if(level>=MAX_LEVELS)
+			return;
+		if(level>=numLevels)
+			numLevels=level+1;
+		
+		ByteBuffer buffer=mLevels[level];
+		if(buffer==null){
+			buffer=ByteBuffer.allocate(256);
+			mLevels[level]=buffer;
+		} else if(!buffer.hasRemaining()){
+			ByteBuffer tmp=ByteBuffer.allocate(buffer.capacity()*2);
+			buffer.flip();
+			tmp.put(buffer);
+			buffer=tmp;
+			mLevels[level]=buffer;
+		}
+		buffer.put((byte)min);
+		buffer.put((byte)max);
+		mCounts[level]++;
+		
+		if((mCounts[level] & 1)==0){
+			int p=buffer.position();
+			int min0=buffer.get(p-4) & 0xFF;
+			int max0=buffer.get(p-3) & 0xFF;
+			append(level+1, min0<min ? min0 : min, max0>max ? max0 : max);
+		}
+	}
+	
+	/**
+	 * Add the last incomplete group and the unpaired last pair of every level,
+	 * so every level covers all samples. No samples can be added afterwards.
+	 */
+	public synchronized void finish()
+	{
+		if(groupCount>0)
+			flushGroup();
+		for(int level=0;level<numLevels;level++){
+			if(mCounts[level]>1 && (mCounts[level] & 1)==1){
+				ByteBuffer buffer=mLevels[level];
+				int p=buffer.position();
+				append(level+1, buffer.get(p-2) & 0xFF, buffer.get(p-1) & 0xFF);
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @return number of samples covered
+	 */
+	public synchronized long getNumSamples()
+	{
+		return numSamples;
+	}
+	
+	/**
+	 * Write the pyramid: int levels, long samples, then per level a long count
+	 * followed by count min,max pairs
+	 * @param channel FileChannel to write to
+	 * @param position file offset
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	public synchronized long write(FileChannel channel, long position) throws IOException
+	{
+		long start=position;
+		ByteBuffer tmp=ByteBuffer.allocate(12);
+		tmp.order(ByteOrder.LITTLE_ENDIAN);
+		tmp.putInt(numLevels);
+		tmp.putLong(numSamples);
+		tmp.flip();
+		while(tmp.hasRemaining())
+			position+=channel.write(tmp, position);
+		
+		for(int level=0;level<numLevels;level++){
+			tmp.clear();
+			tmp.putLong(mCounts[level]);
+			tmp.flip();
+			while(tmp.hasRemaining())
+				position+=channel.write(tmp, position);
+			
+			ByteBuffer data=mLevels[level].duplicate();
+			data.flip();
+			while(data.hasRemaining())
+				position+=channel.write(data, position);
+		}
+		return position-start;
+	}
+	
+	/**
+	 * Read a stored pyramid, the levels refer to buffer so it can be a mapped file
+	 * @param buffer ByteBuffer positioned at the start of the pyramid
+	 * @return MinMaxPyramid
+	 * @throws IOException when the pyramid is incomplete
+	 */
+	public static MinMaxPyramid read(ByteBuffer buffer) throws IOException
+	{
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		MinMaxPyramid pyramid = new MinMaxPyramid();
+		if(buffer.remaining()<12)
+			throw new IOException("Level-of-detail index is incomplete");
+		pyramid.numLevels=buffer.getInt();
+		pyramid.numSamples=buffer.getLong();
+		if(pyramid.numLevels<0 || pyramid.numLevels>MAX_LEVELS)
+			throw new IOException("Level-of-detail index is corrupt");
+		
+		for(int level=0;level<pyramid.numLevels;level++){
+			long count = buffer.remaining()>=8 ? buffer.getLong() : -1;
+			if(count<0 || count*2>buffer.remaining())
+				throw new IOException("Level-of-detail index is incomplete");
+			ByteBuffer data=buffer.slice();
+			data.limit((int)(count*2));
+			data.position(data.limit());
+			pyramid.mLevels[level]=data;
+			pyramid.mCounts[level]=count;
+			buffer.position(buffer.position()+(int)(count*2));
+		}
+		return pyramid;
+	}
+	
+	/**
+	 * Min/max of every column when count samples are displayed in columns columns.
+	 * Uses the coarsest level whose pairs are no wider than a column, columns are
+	 * widened to whole pairs of that level.
+	 * @param first first sample
+	 * @param count number of samples
+	 * @param columns number of columns
+	 * @param out array of at least 2*columns, receives min,max pairs
+	 * @return false when a column has fewer samples than the finest level holds
+	 */
+	public synchronized boolean getMinMax(long first, long count, int columns, int[] out)
+	{
+		long perColumn=count/columns;
+		if(perColumn < 1<<BASE_LEVEL || numLevels==0)
+			return false;
+		
+		int level=0;
+		while(level<numLevels-1 && 1L<<(BASE_LEVEL+level+1)<=perColumn)
+			level++;
+		int shift=BASE_LEVEL+level;
+		ByteBuffer data=mLevels[level];
+		long numPairs=mCounts[level];
+		
+		for(int c=0;c<columns;c++){
+			long start=(first+count*c/columns)>>shift;
+			long end=(first+count*(c+1)/columns+(1L<<shift)-1)>>shift;
+			if(end>numPairs)
+				end=numPairs;
+			int min=255;
+			int max=0;
+			for(long i=start;i<end;i++){
+				int pairMin=data.get((int)(2*i)) & 0xFF;
+				int pairMax=data.get((int)(2*i+1)) & 0xFF;
+				if(pairMin<min) min=pairMin;
+				if(pairMax>max) max=pairMax;
+			}
+			if(min>max){
+				min=CaptureReader.GAP_VALUE;
+				max=CaptureReader.GAP_VALUE;
+			}
+			out[2*c]=min;
+			out[2*c+1]=max;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,345 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.kvw.oscdroid.channels.AnalogChannel;
+import com.kvw.oscdroid.channels.Measurement;
+import com.kvw.oscdroid.connection.SegmentStore;
+
+/**
+ * Exports acquisitions and capture files, scaled to volts like the measurement
+ * readouts. Streams through a direct buffer and a FileChannel, numbers are
+ * formatted straight into the buffer so nothing is built per sample.
+ *
+ * CSV: a time column in seconds followed by a column in volts per channel. The time
+ * of acquisitions is relative to the trigger.
+ * FORMAT_FLOAT32: volts as little endian float32, channels interleaved.
+ * FORMAT_INT8: raw samples minus 128 as signed bytes, channels interleaved.
+ *
+ * @author K. van Wijk
+ *
+ */
+public class WaveformExporter {
+	
+	public static final int FORMAT_CSV=0;
+	public static final int FORMAT_FLOAT32=1;
+	public static final int FORMAT_INT8=2;
+	
+	private static final int BUFFER_SIZE=65536;
+	private static final int BLOCK=4096;
+	/** Sample level of 0 V */
+	private static final int CENTER=128;
+	
+	/** Decimals of time in seconds and of volts in CSV */
+	private static final int TIME_DECIMALS=9;
+	private static final int VOLT_DECIMALS=6;
+	private static final long[] POW10 = {1L,10L,100L,1000L,10000L,100000L,1000000L,
+		10000000L,100000000L,1000000000L};
+	
+	private final int mFormat;
+	private final RandomAccessFile mRaf;
+	private final FileChannel mChannel;
+	private final ByteBuffer mBuffer;
+	private final byte[] mDigits = new byte[20];
+	private final int[] mIndex = new int[2];
+	private long numSamples=0;
+	
+	/**
+	 * Create the export file
+	 * @param file File to export to, overwritten if it exists
+	 * @param format FORMAT_CSV, FORMAT_FLOAT32 or FORMAT_INT8
+	 * @throws IOException when the file can not be created
+	 */
+	public WaveformExporter(File file, int format) throws IOException
+	{
+		mFormat=format;
+		mRaf=new RandomAccessFile(file,"rw");
+		mRaf.setLength(0);
+		mChannel=mRaf.getChannel();
+		mBuffer=ByteBuffer.allocateDirect(BUFFER_SIZE);
+		mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * Export an acquisition in time order
+	 * @param channels samples per channel, null for disabled channels. Wrapping 
+	 * around at the end, as acquired
+	 * @param voltDivs volt division per channel
+	 * @param starts index of the oldest sample per channel
+	 * @param triggerSample position of the trigger in time order, time 0
+	 * @param sampleTime time between samples in s
+	 * @throws IOException
+	 */
+	public void exportChannels(int[][] channels, int[] voltDivs, int[] starts, int triggerSample, 
+			double sampleTime) throws IOException
+	{
+		int numChannels=0;
+		int length=0;
+		for(int c=0;c<channels.length;c++){
+			if(channels[c]!=null){
+				numChannels++;
+				if(length==0 || channels[c].length<length)
+					length=channels[c].length;
+			}
+		}
+		if(numChannels==0)
+			return;
+		
+		int[][] data = new int[numChannels][];
+		float[] scale = new float[numChannels];
+		int[] first = new int[numChannels];
+		String[] names = new String[numChannels];
+		numChannels=0;
+		for(int c=0;c<channels.length;c++){
+			if(channels[c]!=null){
+				data[numChannels]=channels[c];
+				scale[numChannels]=Measurement.toVolts(1, voltDivs[c]);
+				first[numChannels]=starts[c]<channels[c].length ? starts[c] : 0;
+				names[numChannels]="CH" + (c+1);
+				numChannels++;
+			}
+		}
+		
+		writeCsvHeader(names);
+		writeSamples(data, scale, first, length, -triggerSample, sampleTime, 0);
+	}
+	
+	/**
+	 * Export a capture file, all channels and all samples
+	 * @param reader opened capture file
+	 * @throws IOException
+	 */
+	public void exportCapture(CaptureReader reader) throws IOException
+	{
+		CaptureHeader header=reader.getHeader();
+		double dt = 1.0/(header.sampleRate>0 ? header.sampleRate : AnalogChannel.getSampleRate(header.timeDiv));
+		
+		if(header.layout==CaptureHeader.LAYOUT_FRAMES){
+			exportFrames(reader, dt);
+			return;
+		}
+		
+		int numChannels=0;
+		for(int c=CaptureHeader.CHANNEL_1;c<=CaptureHeader.CHANNEL_2;c++)
+			if(reader.hasChannel(c))
+				numChannels++;
+		if(numChannels==0)
+			return;
+		
+		int[][] data = new int[numChannels][BLOCK];
+		float[] scale = new float[numChannels];
+		int[] starts = new int[numChannels];
+		int[] chans = new int[numChannels];
+		String[] names = new String[numChannels];
+		long length=Long.MAX_VALUE;
+		numChannels=0;
+		for(int c=CaptureHeader.CHANNEL_1;c<=CaptureHeader.CHANNEL_2;c++){
+			if(reader.hasChannel(c)){
+				chans[numChannels]=c;
+				scale[numChannels] = Measurement.toVolts(1, 
+						c==CaptureHeader.CHANNEL_1 ? header.ch1VoltDiv : header.ch2VoltDiv);
+				names[numChannels]="CH" + c;
+				length=Math.min(length, reader.getNumSamples(c));
+				numChannels++;
+			}
+		}
+		
+		writeCsvHeader(names);
+		for(long pos=0;pos<length;pos+=BLOCK){
+			int n=(int)Math.min(BLOCK, length-pos);
+			for(int c=0;c<numChannels;c++)
+				reader.getSamples(chans[c], pos, n, data[c]);
+			writeSamples(data, scale, starts, n, pos, dt, 0);
+		}
+	}
+	
+	/**
+	 * Export the frames of a frame recording one after the other, 
+	 * time relative to the start of the recording
+	 */
+	private void exportFrames(CaptureReader reader, double dt) throws IOException
+	{
+		CaptureHeader header=reader.getHeader();
+		ChunkIndex index=reader.getIndex();
+		byte[] raw = new byte[SegmentStore.FRAME_SIZE];
+		int[][] both = new int[][]{new int[1024], new int[SegmentStore.NUM_SAMPLES-1024]};
+		int[][] single = new int[][]{new int[SegmentStore.NUM_SAMPLES]};
+		float[] bothScale = new float[]{Measurement.toVolts(1, header.ch1VoltDiv), 
+				Measurement.toVolts(1, header.ch2VoltDiv)};
+		float[] ch1Scale = new float[]{bothScale[0]};
+		float[] ch2Scale = new float[]{bothScale[1]};
+		int[] starts = new int[2];
+		
+		if((header.channels & CaptureHeader.CHANNEL_1)!=0 && (header.channels & CaptureHeader.CHANNEL_2)!=0)
+			writeCsvHeader(new String[]{"CH1","CH2"});
+		else
+			writeCsvHeader(new String[]{(header.channels & CaptureHeader.CHANNEL_2)!=0 ? "CH2" : "CH1"});
+		
+		for(int i=0;i<index.getNumChunks();i++){
+			if(reader.readChunk(i, raw)!=SegmentStore.FRAME_SIZE)
+				continue;
+			double frameTime=index.getFirstSample(i)*1e-9;
+			int channels=index.getChannel(i);
+			int offset=SegmentStore.HEADER_SIZE;
+			
+			if(channels==(CaptureHeader.CHANNEL_1 | CaptureHeader.CHANNEL_2)){
+				for(int n=0;n<1024;n++){
+					both[0][n]=raw[offset+n] & 0xFF;
+					both[1][n]=raw[offset+1024+n] & 0xFF;
+				}
+				writeSamples(both, bothScale, starts, 1024, 0, dt, frameTime);
+			} else {
+				for(int n=0;n<SegmentStore.NUM_SAMPLES;n++)
+					single[0][n]=raw[offset+n] & 0xFF;
+				writeSamples(single, channels==CaptureHeader.CHANNEL_2 ? ch2Scale : ch1Scale, starts, 
+						SegmentStore.NUM_SAMPLES, 0, dt, frameTime);
+			}
+		}
+	}
+	
+	/**
+	 * Write the flushed buffer, close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		try{
+			flush();
+		}finally{
+			mRaf.close();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return number of samples exported, per channel
+	 */
+	public long getNumSamples()
+	{
+		return numSamples;
+	}
+	
+	private void writeCsvHeader(String[] names) throws IOException
+	{
+		if(mFormat!=FORMAT_CSV)
+			return;
+		StringBuilder sb = new StringBuilder("time (s)");
+		for(int c=0;c<names.length;c++)
+			sb.append(',').append(names[c]).append(" (V)");
+		sb.append('\n');
+		byte[] tmp=sb.toString().getBytes("US-ASCII");
+		ensure(tmp.length);
+		mBuffer.put(tmp);
+	}
+	
+	/**
+	 * Write count samples of every channel, in volts relative to the center level
+	 * @param scale Volts of one sample level per channel
+	 * @param starts first sample per channel, the samples wrap around at the end of data
+	 * @param first number of the first sample, for the time column
+	 * @param offset time added to the time column
+	 */
+	private void writeSamples(int[][] data, float[] scale, int[] starts, int count, long first, double dt, 
+			double offset) throws IOException
+	{
+		int numChannels=data.length;
+		int[] index = mIndex;
+		for(int c=0;c<numChannels;c++)
+			index[c]=starts[c];
+		
+		for(int i=0;i<count;i++){
+			switch(mFormat){
+			case FORMAT_CSV:
+				ensure(24+numChannels*16);
+				putFixed(offset+(first+i)*dt, TIME_DECIMALS);
+				for(int c=0;c<numChannels;c++){
+					mBuffer.put((byte)',');
+					putFixed((data[c][index[c]]-CENTER)*scale[c], VOLT_DECIMALS);
+				}
+				mBuffer.put((byte)'\n');
+				break;
+			case FORMAT_FLOAT32:
+				ensure(numChannels*4);
+				for(int c=0;c<numChannels;c++)
+					mBuffer.putFloat((data[c][index[c]]-CENTER)*scale[c]);
+				break;
+			case FORMAT_INT8:
+				ensure(numChannels);
+				for(int c=0;c<numChannels;c++)
+					mBuffer.put((byte)(data[c][index[c]]-CENTER));
+				break;
+			}
+			for(int c=0;c<numChannels;c++)
+				if(++index[c]==data[c].length)
+					index[c]=0;
+		}
+		numSamples+=count;
+	}
+	
+	/**
+	 * Write a number with a fixed number of decimals as ASCII
+	 */
+	private void putFixed(double value, int decimals)
+	{
+		long scaled=Math.round(value*POW10[decimals]);
+		if(scaled<0){
+			mBuffer.put((byte)'-');
+			scaled=-scaled;
+		}
+		
+		// Digits in reverse order, at least one before the point
+		int n=0;
+		do{
+			mDigits[n++]=(byte)('0'+scaled%10);
+			scaled/=10;
+		}while(scaled>0 || n<=decimals);
+		
+		while(n>decimals)
+			mBuffer.put(mDigits[--n]);
+		mBuffer.put((byte)'.');
+		while(n>0)
+			mBuffer.put(mDigits[--n]);
+	}
+	
+	/**
+	 * Make room in the buffer for numBytes, writing it out when full
+	 */
+	private void ensure(int numBytes) throws IOException
+	{
+		if(mBuffer.remaining()<numBytes)
+			flush();
+	}
+	
+	private void flush() throws IOException
+	{
+		mBuffer.flip();
+		while(mBuffer.hasRemaining())
+			mChannel.write(mBuffer);
+		mBuffer.clear();
+	}
+}
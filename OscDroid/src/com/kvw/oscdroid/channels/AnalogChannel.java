@@ -22,6 +22,11 @@
 
 package com.kvw.oscdroid.channels;
 
+import java.util.Arrays;
+
+import com.kvw.oscdroid.capture.CaptureHeader;
+import com.kvw.oscdroid.capture.CaptureReader;
+
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -30,7 +35,6 @@ import android.graphics.Path;
 import android.os.Handler;
 import android.util.Log;
 
-import com.badlogic.gdx.audio.analysis.FFT;
 
 /**
  * 
@@ -45,13 +49,15 @@ public class AnalogChannel {
 	private int NUM_SAMPLES=1024;
 	private int RUNNING_MODE=1;
 	
+	/** Capture files: up to this many samples are displayed as is, more as min/max pairs */
+	private static final int MAX_CAPTURE_SAMPLES=2048;
+	private static final int CAPTURE_COLUMNS=1024;
+	
 	private int chColor;
 	private int chVoltDiv;
 	private int chTimeDiv;
-	private float chMaximum;
-	private float chMinimum;
-	private float chPeakpeak;
-	private float chAverage;
+	/** Acquired samples averaged into one sample, or one min/max pair, of the current dataset */
+	private int chDecimation=1;
 	
 	private float screenWidth;
 	private float screenHeight;
@@ -64,12 +70,12 @@ public class AnalogChannel {
 	private float chVoltZoomOld=1;
 	private float chTimeZoomOld=0;
 	
-	private float chFrequency;
-	
 	private boolean chEnabled=false;
 	private boolean chNewDataAvailable;
+	private boolean chPeakDetect=false;
 	
 	private Paint chPaint;
+	private Paint overlayPaint;
 	
 	final Handler mHandler;
 	
@@ -84,9 +90,41 @@ public class AnalogChannel {
 //		50000000,100000000,100000000,100000000,100000000,100000000};
 	
 	private volatile int[] mDataSet;
+	/** Buffers owned by the channel for new data, see nextFrameBuffer() */
+	private final int[][] mFrameBuffers = new int[3][];
+	/** Dataset drawn by drawChannel() outside the lock */
+	private int[] mDrawing=null;
+	/** Buffer filled by copyNewData() outside the lock */
+	private int[] mFilling=null;
+	/** Middle of every min/max pair, used by appendPeakData() only */
+	private final int[] mPairMiddles = new int[1024];
+	/** Used by drawChannel() only, rewound for every dataset drawn */
+	private final Path drawPath = new Path();
+	private int[] drawData = new int[0];
+	private final int[] drawRange = new int[2];
+	private volatile int[][] mOverlaySets=null;
+	private volatile int[] mOverlayTriggers=null;
 	private int triggerAddress = NUM_SAMPLES/2-3;
+	
+	private CaptureReader mCapture=null;
+	private int mCaptureChannel;
+	private long captureFirst;
+	private long captureCount;
+	private long captureCountOld;
 	private int triggerPos=1;
 	
+	/** Incremented whenever the mapping of samples to the screen changes */
+	private volatile int viewVersion=0;
+	
+	private final ChannelFilter chFilter = new ChannelFilter();
+	private final WaveformMeasurements chMeasurements = new WaveformMeasurements();
+	private final FrequencyCounter chCounter = new FrequencyCounter();
+	private volatile boolean chCounting=false;
+	private final HarmonicAnalysis chHarmonics = new HarmonicAnalysis();
+	private volatile boolean chAnalysing=false;
+	private volatile EyeDiagram chEye=null;
+	private final int[] vertexRange = new int[2];
+	
 	static {System.loadLibrary("analog");}
 	
 	private native float calcDisplayX(int num, int numSamples, float scrnWidth, float zoomX, float offsetX);
@@ -214,6 +252,18 @@ public class AnalogChannel {
 		chPaint.setStyle(Style.STROKE);
 		chPaint.setColor(chColor);
 		chPaint.setDither(false);
+		
+		overlayPaint=new Paint(chPaint);
+		overlayPaint.setAlpha(80);
+	}
+	
+	/**
+	 * 
+	 * @return Color the channel is drawn with
+	 */
+	public int getColor()
+	{
+		return chColor;
 	}
 	
 	/**
@@ -229,54 +279,191 @@ public class AnalogChannel {
 		if(!chEnabled)
 			return;
 		
-		Path chPath=new Path();
-		float max = 0;
-		float min = 255;
+		// Take the dataset and how to display it together, new data may arrive while drawing
+		int[] dataSet;
+		int trigger;
+		int numSamples;
+		int mode;
+		boolean peakDetect;
+		int[][] overlaySets;
+		int[] overlayTriggers;
+		synchronized(this){
+			dataSet=mDataSet;
+			trigger=triggerAddress;
+			numSamples=NUM_SAMPLES<dataSet.length ? NUM_SAMPLES : dataSet.length;
+			mode=RUNNING_MODE;
+			peakDetect=chPeakDetect;
+			overlaySets=mOverlaySets;
+			overlayTriggers=mOverlayTriggers;
+			mDrawing=dataSet;
+		}
+		
+		try{
+			// Overlays first, so the current dataset is drawn on top
+			if(overlaySets!=null){
+				for(int n=0;n<overlaySets.length;n++){
+					if(overlaySets[n].length<numSamples)
+						continue;
+					drawPath.rewind();
+					buildPath(drawPath,overlaySets[n],overlayTriggers[n],numSamples,mode,false);
+					canvas.drawPath(drawPath, overlayPaint);
+				}
+			}
+			
+			drawPath.rewind();
+			buildPath(drawPath,dataSet,trigger,numSamples,mode,peakDetect);
+			canvas.drawPath(drawPath, chPaint);
+		}finally{
+			synchronized(this){
+				mDrawing=null;
+			}
+		}
+	}
+	
+	/**
+	 * Create the path of a dataset, as displayed with the current zoom, offset and trigger settings
+	 * 
+	 * @param chPath Path to add the samples to
+	 * @param dataSet samples to display
+	 * @param trigAddress trigger address of the dataset
+	 * @param numSamples number of samples of the dataset
+	 * @param mode running mode of the dataset
+	 * @param peakDetect true when the dataset contains min/max pairs
+	 */
+	private void buildPath(Path chPath, int[] dataSet, int trigAddress, int numSamples, int mode,
+			boolean peakDetect)
+	{
+		if(drawData.length<numSamples)
+			drawData=new int[numSamples];
+		int[] dispData=drawData;
+		int NUM_DISPLAY_SAMPLES=prepareDisplay(dataSet,trigAddress,numSamples,mode,dispData,drawRange);
+		int start=drawRange[0];
+		int stop=drawRange[1];
+		
+		// Create path to draw on screen
+		if(mode==2 && peakDetect){
+			// Peak detect, draw every min/max pair as a vertical line on one x position.
+			// Pairs are displayed like the samples of averaged data, zoomed the same way
+			int numDisplayPairs=calcDisplayRange(numSamples/2,mode,drawRange);
+			for(int i=drawRange[0];i<drawRange[1];i++){
+				float x = calcDisplayX(i-drawRange[0],numDisplayPairs,screenWidth,0,chTimeOffset);
+				float yMin = calcDisplayY(dispData[2*i],screenHeight,chVoltZoom,chVoltOffset);
+				float yMax = calcDisplayY(dispData[2*i+1],screenHeight,chVoltZoom,chVoltOffset);
+				
+				if(i==drawRange[0])
+					chPath.moveTo(x,yMin);
+				
+				chPath.lineTo(x,yMin);
+				chPath.lineTo(x,yMax);
+			}
+		} else {
+			int dataNumber=0;
+			for(int i=start; i<stop;i++){
+				
+				float x = calcDisplayX(dataNumber,NUM_DISPLAY_SAMPLES,screenWidth,0,chTimeOffset);
+				float y = calcDisplayY(dispData[i],screenHeight,chVoltZoom,chVoltOffset);
+				
+				if(i==start)
+					chPath.moveTo(x,y);
+				
+				chPath.lineTo(x,y);
+				dataNumber++;
+			}
+		}
+		
+//		Log.d(TAG,"Start: " + start + " stop: " + stop + " TrigAddress: " + trigAddress  
+//				+" Split: " + split + " NUM_SAMPLES: " + NUM_SAMPLES);
+	}
+	
+	/**
+	 * Put the samples of a dataset in display order and determine the displayed samples,
+	 * with the current zoom, offset and trigger settings
+	 * 
+	 * @param dataSet samples to display
+	 * @param trigAddress trigger address of the dataset
+	 * @param numSamples number of samples of the dataset
+	 * @param mode running mode of the dataset
+	 * @param dispData array of numSamples to put the ordered samples in
+	 * @param range array to put the first and last+1 displayed sample in
+	 * @return number of samples across the screen
+	 */
+	private int prepareDisplay(int[] dataSet, int trigAddress, int numSamples, int mode,
+			int[] dispData, int[] range)
+	{
+		int NUM_DISPLAY_SAMPLES=calcDisplayRange(numSamples,mode,range);
+		
+		if(mode==1){
+			int split=0;
+			switch(triggerPos){
+			case 0:
+				split= trigAddress-numSamples/5 > 0 ? trigAddress-numSamples/5 : trigAddress+numSamples*4/5;
+				break;
+			case 1:
+				split= trigAddress-numSamples/2 > 0 ? trigAddress-numSamples/2 : trigAddress+numSamples/2;
+				break;
+			case  2:
+				split= trigAddress-numSamples*4/5 > 0 ? trigAddress-numSamples*4/5 : trigAddress+numSamples/5;
+				break;		
+			}
+			
+			// Create array containing datasamples in correct order: 0-numSamples
+			System.arraycopy(dataSet, split, dispData, 0, numSamples-split);
+			System.arraycopy(dataSet, 0, dispData, numSamples-split, split);
+		}
+		
+		// Continuous mode, display from 0-end, never shift
+		if(mode==2)
+			System.arraycopy(dataSet, 0, dispData, 0, numSamples);
+		
+		return NUM_DISPLAY_SAMPLES;
+	}
+	
+	/**
+	 * Determine the displayed samples in display order, with the current zoom, 
+	 * offset and trigger settings
+	 * 
+	 * @param numSamples number of samples of the dataset
+	 * @param mode running mode of the dataset
+	 * @param range array to put the first and last+1 displayed sample in
+	 * @return number of samples across the screen
+	 */
+	private int calcDisplayRange(int numSamples, int mode, int[] range)
+	{
 		int NUM_DISPLAY_SAMPLES=mTimeDivSwitchTable[chTimeDiv];
 		
-		if(NUM_DISPLAY_SAMPLES>=NUM_SAMPLES)
-			NUM_DISPLAY_SAMPLES = NUM_SAMPLES;
+		if(NUM_DISPLAY_SAMPLES>=numSamples)
+			NUM_DISPLAY_SAMPLES = numSamples;
 		
 		NUM_DISPLAY_SAMPLES = NUM_DISPLAY_SAMPLES -(int)chTimeZoom;
 		
-		if(NUM_DISPLAY_SAMPLES>=NUM_SAMPLES)
-			NUM_DISPLAY_SAMPLES = NUM_SAMPLES;
+		if(NUM_DISPLAY_SAMPLES>=numSamples)
+			NUM_DISPLAY_SAMPLES = numSamples;
 				
 		if(NUM_DISPLAY_SAMPLES<50)
 			NUM_DISPLAY_SAMPLES=50;
-		int start=NUM_SAMPLES/2;
-		int stop=NUM_SAMPLES;
-		int split=0;
-		int[] dispData = new int[NUM_SAMPLES];		
+		int start=numSamples/2;
+		int stop=numSamples;
 		
-		//Determine split, start and stop position
-		if(RUNNING_MODE==1){
+		//Determine start and stop position
+		if(mode==1){
 			switch(triggerPos){
 			case 0:
-				split= triggerAddress-NUM_SAMPLES/5 > 0 ? triggerAddress-NUM_SAMPLES/5 : triggerAddress+NUM_SAMPLES*4/5;
-				start=NUM_SAMPLES/5-NUM_DISPLAY_SAMPLES/5;
-				stop=NUM_SAMPLES/5+NUM_DISPLAY_SAMPLES*4/5;
+				start=numSamples/5-NUM_DISPLAY_SAMPLES/5;
+				stop=numSamples/5+NUM_DISPLAY_SAMPLES*4/5;
 				break;
 			case 1:
-				split= triggerAddress-NUM_SAMPLES/2 > 0 ? triggerAddress-NUM_SAMPLES/2 : triggerAddress+NUM_SAMPLES/2;
-				start=NUM_SAMPLES/2-NUM_DISPLAY_SAMPLES/2;
-				stop=NUM_SAMPLES/2+NUM_DISPLAY_SAMPLES/2;
+				start=numSamples/2-NUM_DISPLAY_SAMPLES/2;
+				stop=numSamples/2+NUM_DISPLAY_SAMPLES/2;
 				break;
 			case  2:
-				split= triggerAddress-NUM_SAMPLES*4/5 > 0 ? triggerAddress-NUM_SAMPLES*4/5 : triggerAddress+NUM_SAMPLES/5;
-				start=NUM_SAMPLES*4/5-NUM_DISPLAY_SAMPLES*4/5;
-				stop=NUM_SAMPLES*4/5+NUM_DISPLAY_SAMPLES/5;
+				start=numSamples*4/5-NUM_DISPLAY_SAMPLES*4/5;
+				stop=numSamples*4/5+NUM_DISPLAY_SAMPLES/5;
 				break;		
 			}
-			
-			// Create array containing datasamples in correct order: 0-NUM_SAMPLES
-			System.arraycopy(mDataSet, split, dispData, 0, NUM_SAMPLES-split);
-			System.arraycopy(mDataSet, 0, dispData, NUM_SAMPLES-split, split);
-		
 		}
 		
 		// Add horizontal offset, if offset not bigger than Number of samples
-		if(!((int)chTimeOffset>NUM_SAMPLES) || !(-(int)chTimeOffset > NUM_SAMPLES)){
+		if(!((int)chTimeOffset>numSamples) || !(-(int)chTimeOffset > numSamples)){
 		
 			start=start - (int)chTimeOffset;
 			if(start<0)
@@ -284,45 +471,160 @@ public class AnalogChannel {
 			else 
 				stop=stop-(int)chTimeOffset;
 			
-			if(stop>=NUM_SAMPLES){
-				stop=NUM_SAMPLES-1;
+			if(stop>=numSamples){
+				stop=numSamples-1;
 				start=stop-NUM_DISPLAY_SAMPLES+1;
 			}
 		}		
 
 		// Continuous mode, display from 0-end, never shift
-		if(RUNNING_MODE==2){
+		if(mode==2){
 			start=0;
-			stop=NUM_SAMPLES;
-			System.arraycopy(mDataSet, 0, dispData, 0, NUM_SAMPLES);
+			stop=numSamples;
 		}
 		
-		// Create path to draw on screen
-		int dataNumber=0;
-		for(int i=start; i<stop;i++){
-			
-			float x = calcDisplayX(dataNumber,NUM_DISPLAY_SAMPLES,screenWidth,0,chTimeOffset);
-			float y = calcDisplayY(dispData[i],screenHeight,chVoltZoom,chVoltOffset);
-			if (dispData[i] > max) max = dispData[i];
-			if (dispData[i]<min) min = dispData[i];
-			
-			if(i==start)
-				chPath.moveTo(x,y);
-			
-			chPath.lineTo(x,y);
-			dataNumber++;
-		}				
+		range[0]=start;
+		range[1]=stop;
+		return NUM_DISPLAY_SAMPLES;
+	}
+	
+	/**
+	 * Sample displayed at a horizontal screen position, the inverse of the x 
+	 * transform used to draw the channel
+	 * @param x position on the screen
+	 * @return sample position in time order, 0 is the oldest sample
+	 */
+	public synchronized float getSampleAtX(float x)
+	{
+		if(screenWidth<=0)
+			return 0;
+		if(RUNNING_MODE==2 && chPeakDetect){
+			int numDisplayPairs=calcDisplayRange(NUM_SAMPLES/2,RUNNING_MODE,vertexRange);
+			return 2*(vertexRange[0]+x*numDisplayPairs/screenWidth);
+		}
 		
-		chMaximum=max;
-		chMinimum=min;
-		chPeakpeak=max-min;
+		int numDisplay=calcDisplayRange(NUM_SAMPLES,RUNNING_MODE,vertexRange);
+		return vertexRange[0]+x*numDisplay/screenWidth;
+	}
+	
+	/**
+	 * Horizontal screen position of a sample, the inverse of getSampleAtX()
+	 * @param sample sample position in time order, 0 is the oldest sample
+	 * @return x coordinate on the screen
+	 */
+	public synchronized float getXOfSample(float sample)
+	{
+		if(RUNNING_MODE==2 && chPeakDetect){
+			int numDisplayPairs=calcDisplayRange(NUM_SAMPLES/2,RUNNING_MODE,vertexRange);
+			return (sample/2-vertexRange[0])*screenWidth/numDisplayPairs;
+		}
 		
-		canvas.drawPath(chPath, chPaint);
-		chPath=null;
-		dispData=null;
+		int numDisplay=calcDisplayRange(NUM_SAMPLES,RUNNING_MODE,vertexRange);
+		return (sample-vertexRange[0])*screenWidth/numDisplay;
+	}
+	
+	/**
+	 * 
+	 * @param numSamples number of samples of the dataset
+	 * @param triggerPos trigger position, 0/1/2
+	 * @return sample position of the trigger in display order, as placed by prepareDisplay()
+	 */
+	public static int getTriggerColumn(int numSamples, int triggerPos)
+	{
+		switch(triggerPos){
+		case 0:
+			return numSamples/5;
+		case 2:
+			return numSamples*4/5;
+		default:
+			return numSamples/2;
+		}
+	}
+	
+	/**
+	 * Calculate the display coordinates of a dataset as line segments for 
+	 * Canvas.drawLines(), with the current zoom, offset and trigger settings
+	 * 
+	 * @param dataSet samples to display, the same length as the current dataset
+	 * @param trigAddress trigger address of the dataset
+	 * @param dispData scratch array of at least NUM_SAMPLES
+	 * @param pts array of at least 4*NUM_SAMPLES to put the segments in
+	 * @return number of floats put in pts, 0 when the dataset can not be displayed
+	 */
+	synchronized int calcVertices(int[] dataSet, int trigAddress, int[] dispData, float[] pts)
+	{
+		if(chPeakDetect || dataSet.length!=NUM_SAMPLES || dispData.length<NUM_SAMPLES 
+				|| pts.length<4*NUM_SAMPLES)
+			return 0;
 		
-//		Log.d(TAG,"Start: " + start + " stop: " + stop + " TrigAddress: " + triggerAddress  
-//				+" Split: " + split + " NUM_SAMPLES: " + NUM_SAMPLES);
+		int numDisplay=prepareDisplay(dataSet,trigAddress,NUM_SAMPLES,RUNNING_MODE,dispData,vertexRange);
+		int n=0;
+		float lastX=0;
+		float lastY=0;
+		for(int i=vertexRange[0];i<vertexRange[1];i++){
+			float x = calcDisplayX(i-vertexRange[0],numDisplay,screenWidth,0,chTimeOffset);
+			float y = calcDisplayY(dispData[i],screenHeight,chVoltZoom,chVoltOffset);
+			if(i>vertexRange[0]){
+				pts[n++]=lastX;
+				pts[n++]=lastY;
+				pts[n++]=x;
+				pts[n++]=y;
+			}
+			lastX=x;
+			lastY=y;
+		}
+		return n;
+	}
+	
+	/**
+	 * Set number of samples and running mode of the current dataset
+	 */
+	private void setDisplayMode(int numSamples, int mode)
+	{
+		if(numSamples!=NUM_SAMPLES || mode!=RUNNING_MODE)
+			viewVersion++;
+		NUM_SAMPLES=numSamples;
+		RUNNING_MODE=mode;
+	}
+	
+	/**
+	 * 
+	 * @return number that changes whenever zoom, offset, time division, 
+	 * trigger position, screen size or the number of samples change
+	 */
+	int getViewVersion()
+	{
+		return viewVersion;
+	}
+	
+	/**
+	 * 
+	 * @param level sample level, 0..255
+	 * @return y coordinate of the level on the screen
+	 */
+	synchronized float getLevelY(int level)
+	{
+		return calcDisplayY(level,screenHeight,chVoltZoom,chVoltOffset);
+	}
+	
+	/**
+	 * 
+	 * @return number of samples in the current dataset
+	 */
+	synchronized int getNumSamples()
+	{
+		return NUM_SAMPLES;
+	}
+	
+	/**
+	 * The current dataset itself, not a copy. Only read it, the dataset is replaced
+	 * as a whole when new data arrives. The buffer may be reused for later data, read
+	 * it while holding the channel lock or on the thread that sets the data
+	 * @return current dataset
+	 */
+	public synchronized int[] getCurrentData()
+	{
+		return mDataSet;
 	}
 	
 	/**
@@ -333,6 +635,8 @@ public class AnalogChannel {
 	{
 		chColor=color;
 		chPaint.setColor(color);
+		overlayPaint.setColor(color);
+		overlayPaint.setAlpha(80);
 	}
 	
 	/**
@@ -349,6 +653,7 @@ public class AnalogChannel {
 			chVoltZoom=1f;
 			chVoltZoomOld=1f;
 		}
+		viewVersion++;
 	}
 	
 	/**
@@ -358,6 +663,7 @@ public class AnalogChannel {
 	public synchronized void setTimeDivs(int divs)
 	{
 		chTimeDiv=divs;
+		viewVersion++;
 	}
 	
 	/**
@@ -376,13 +682,29 @@ public class AnalogChannel {
 	 */
 	public void setOffset(float xOffset,float yOffset)
 	{
+		if(mCapture!=null){
+			scrollCapture(xOffset);
+			chVoltOffset+=yOffset/2;
+			viewVersion++;
+			return;
+		}
 		chTimeOffset+=xOffset/2;
 		chVoltOffset+=yOffset/2;
+		viewVersion++;
 	}
 	
 	/** Reset zoom to 0 zoom, 0 offset */
 	public void resetZoom()
 	{
+		if(mCapture!=null){
+			synchronized(this){
+				captureFirst=0;
+				captureCount=mCapture.getNumSamples(mCaptureChannel);
+				captureCountOld=captureCount;
+				loadCapture();
+			}
+		}
+		
 		chTimeZoom=0;
 		chTimeOffset=0;
 		chVoltOffset=0;
@@ -394,6 +716,7 @@ public class AnalogChannel {
 			chVoltZoom=2.5f;
 			chVoltZoomOld=2.5f;
 		}
+		viewVersion++;
 	}
 	
 	/**
@@ -403,13 +726,18 @@ public class AnalogChannel {
 	 */
 	public void setZoom(float xZoom, float yZoom)
 	{
-		chTimeZoom=xZoom + chTimeZoomOld;
 		chVoltZoom=yZoom/200 + chVoltZoomOld;
+		if(mCapture!=null){
+			zoomCapture(xZoom);
+			xZoom=0;
+		}
+		chTimeZoom=xZoom + chTimeZoomOld;
 		
 //		if(chTimeZoom < 0-screenWidth)
 //			chTimeZoom=0-screenWidth;
 		if(chVoltZoom < 0)
 			chVoltZoom=0.01f;
+		viewVersion++;
 	}
 	
 	/**
@@ -419,6 +747,7 @@ public class AnalogChannel {
 	{
 		chTimeZoomOld=chTimeZoom;
 		chVoltZoomOld=chVoltZoom;
+		captureCountOld=captureCount;
 	}
 	
 	/**
@@ -431,6 +760,7 @@ public class AnalogChannel {
 	{
 		screenWidth=width;
 		screenHeight=height;
+		viewVersion++;
 	}
 	
 	/**
@@ -451,6 +781,33 @@ public class AnalogChannel {
 		return screenHeight;
 	}
 	
+	/**
+	 * 
+	 * @return automatic measurements of the current dataset
+	 */
+	public WaveformMeasurements getMeasurements()
+	{
+		return chMeasurements;
+	}
+	
+	/**
+	 * 
+	 * @return filter applied to new data
+	 */
+	public ChannelFilter getFilter()
+	{
+		return chFilter;
+	}
+	
+	/**
+	 * 
+	 * @return Channel name
+	 */
+	public String getName()
+	{
+		return chName;
+	}
+	
 	/**
 	 * 
 	 * @return Boolean, true when enabled, false when disabled
@@ -468,29 +825,424 @@ public class AnalogChannel {
 	 */
 	public synchronized void setNewData(int[] data, int numSamples, int trigger)
 	{		
-		NUM_SAMPLES=numSamples;	
-		RUNNING_MODE=1;
+		chDecimation=1;
+		mCapture=null;
+		setDisplayMode(numSamples,1);
+		chPeakDetect=false;
+		mOverlaySets=null;
+		mOverlayTriggers=null;
 //		Log.d(TAG,"Setting new data: " + numSamples + " bytes;");
 		synchronized(mDataSet){
 			mDataSet=new int[numSamples];		
 			mDataSet=data;
 		}
 		triggerAddress=trigger;
+		
+		int start=trigger-getTriggerColumn(numSamples, triggerPos);
+		chMeasurements.measure(data, numSamples, start<0 ? start+numSamples : start, 
+				Measurement.toVolts(1, chVoltDiv), 1/mSampleRates[chTimeDiv]);
+		if(chAnalysing)
+			chHarmonics.analyse(data, numSamples, start<0 ? start+numSamples : start, 
+					Measurement.toVolts(1, chVoltDiv), 1/mSampleRates[chTimeDiv]);
+		EyeDiagram eye=chEye;
+		if(eye!=null)
+			eye.addFrame(data, numSamples, start<0 ? start+numSamples : start, 
+					Measurement.toVolts(1, chVoltDiv), 1/mSampleRates[chTimeDiv]);
 	}
 
-	public synchronized void appendNewData(int[] data)
+	/**
+	 * Set new dataset from a buffer that is reused by the caller. The samples are
+	 * copied into a buffer owned by this channel, see nextFrameBuffer(). Filtering
+	 * and analysis are done outside the lock, before the dataset is replaced.
+	 * @param data int[] containing samples, only valid during this call
+	 * @param numSamples number of samples
+	 * @param trigger triggerAddress
+	 */
+	public void copyNewData(int[] data, int numSamples, int trigger)
 	{
-		NUM_SAMPLES=1024; //ensure 1024 samples to display
-		RUNNING_MODE=2;
+		int[] buffer;
+		int start;
+		float sampleRate;
+		float voltsPerLevel;
+		synchronized(this){
+			buffer=nextFrameBuffer(numSamples);
+			mFilling=buffer;
+			start=trigger-getTriggerColumn(numSamples, triggerPos);
+			sampleRate=mSampleRates[chTimeDiv];
+			voltsPerLevel=Measurement.toVolts(1, chVoltDiv);
+		}
+		if(start<0)
+			start+=numSamples;
 		
-		int[] tmpArray = new int[NUM_SAMPLES+data.length];
+		System.arraycopy(data, 0, buffer, 0, numSamples);
+		if(chFilter.isActive())
+			chFilter.filterFrame(buffer, numSamples, start, sampleRate);
+		chMeasurements.measure(buffer, numSamples, start, voltsPerLevel, 1/sampleRate);
+		if(chAnalysing)
+			chHarmonics.analyse(buffer, numSamples, start, voltsPerLevel, 1/sampleRate);
+		EyeDiagram eye=chEye;
+		if(eye!=null)
+			eye.addFrame(buffer, numSamples, start, voltsPerLevel, 1/sampleRate);
+		
+		synchronized(this){
+			mFilling=null;
+			chDecimation=1;
+			mCapture=null;
+			setDisplayMode(numSamples,1);
+			chPeakDetect=false;
+			mOverlaySets=null;
+			mOverlayTriggers=null;
+			triggerAddress=trigger;
+			mDataSet=buffer;
+		}
+	}
+
+	public void appendNewData(int[] data)
+	{
+		appendNewData(data, data.length, 1);
+	}
+	
+	/**
+	 * Append new data in continuous mode. The new dataset is built in a buffer owned
+	 * by this channel, analysis is done outside the lock.
+	 * @param data int[] containing samples, filtered in place
+	 * @param numData number of samples in data
+	 * @param decimation number of acquired samples averaged into one sample
+	 */
+	public void appendNewData(int[] data, int numData, int decimation)
+	{
+		float sampleRate;
+		float voltsPerLevel;
+		synchronized(this){
+			sampleRate=mSampleRates[chTimeDiv]/decimation;
+			voltsPerLevel=Measurement.toVolts(1, chVoltDiv);
+		}
+		if(chFilter.isActive())
+			chFilter.filterStream(data, numData, sampleRate);
+		
+		final int numSamples=1024; //ensure 1024 samples to display
+		int[] buffer;
+		synchronized(this){
+			buffer=nextFrameBuffer(numSamples);
+			
+			// Shift old samples out, new samples in at the end
+			int numNew = numData<numSamples ? numData : numSamples;
+			if(chPeakDetect || mDataSet.length<numSamples) //previous data was min/max pairs, start over
+				Arrays.fill(buffer, 0, numSamples-numNew, 128);
+			else
+				System.arraycopy(mDataSet, numNew, buffer, 0, numSamples-numNew);
+			System.arraycopy(data, numData-numNew, buffer, numSamples-numNew, numNew);
+			
+			chDecimation=decimation;
+			mCapture=null;
+			setDisplayMode(numSamples,2);
+			chPeakDetect=false;
+			mDataSet=buffer;
+		}
 		
 //		Log.d(TAG,"Appending new data to: " + chName);
 		
-		System.arraycopy(mDataSet, 0, tmpArray, 0, NUM_SAMPLES);
-		System.arraycopy(data, 0, tmpArray, NUM_SAMPLES, data.length);
-		System.arraycopy(tmpArray, tmpArray.length-NUM_SAMPLES, mDataSet, 0, NUM_SAMPLES);
+		chMeasurements.measure(buffer, numSamples, 0, voltsPerLevel, 1/sampleRate);
+		if(chAnalysing)
+			chHarmonics.analyse(buffer, numSamples, 0, voltsPerLevel, 1/sampleRate);
+		if(chCounting)
+			chCounter.count(data, numData, 1/(double)sampleRate);
+		EyeDiagram eye=chEye;
+		if(eye!=null)
+			eye.addStream(data, numData, voltsPerLevel, 1/sampleRate);
+	}
+	
+	/**
+	 * Buffer for new data, of the buffers owned by the channel one that is not the
+	 * current dataset, drawn or filled. A buffer is only reused once it is neither.
+	 * @param numSamples length of the buffer
+	 * @return buffer of numSamples
+	 */
+	private int[] nextFrameBuffer(int numSamples)
+	{
+		for(int i=0;i<mFrameBuffers.length;i++){
+			int[] buffer=mFrameBuffers[i];
+			if(buffer!=null && (buffer==mDataSet || buffer==mDrawing || buffer==mFilling))
+				continue;
+			if(buffer==null || buffer.length!=numSamples){
+				buffer=new int[numSamples];
+				mFrameBuffers[i]=buffer;
+			}
+			return buffer;
+		}
+		// All in use, only when data is set from two threads at once
+		return new int[numSamples];
+	}
+	
+	/**
+	 * Display a channel of a capture file instead of live data. Captures of a single
+	 * acquisition are displayed like new data, recordings can be scrolled and zoomed
+	 * through setOffset and setZoom. Live data ends displaying the capture.
+	 * @param reader opened capture file
+	 * @param channel CaptureHeader.CHANNEL_1 or CHANNEL_2
+	 */
+	public synchronized void showCapture(CaptureReader reader, int channel)
+	{
+		long numSamples=reader.getNumSamples(channel);
+		if(numSamples<=0)
+			return;
+		
+		if(reader.getHeader().layout==CaptureHeader.LAYOUT_FRAME){
+			int[] data = new int[(int)numSamples];
+			reader.getSamples(channel, 0, data.length, data);
+			setNewData(data, data.length, reader.getHeader().trigAddress);
+			return;
+		}
+		
+		mCapture=reader;
+		mCaptureChannel=channel;
+		captureFirst=0;
+		captureCount = numSamples<MAX_CAPTURE_SAMPLES ? numSamples : MAX_CAPTURE_SAMPLES;
+		captureCountOld=captureCount;
+		chTimeOffset=0;
+		chTimeZoom=0;
+		chTimeZoomOld=0;
+		mOverlaySets=null;
+		mOverlayTriggers=null;
+		loadCapture();
+	}
+	
+	/**
+	 * 
+	 * @return true while a recording is displayed
+	 */
+	public boolean isCapture()
+	{
+		return mCapture!=null;
+	}
+	
+	/**
+	 * 
+	 * @return number of the first displayed sample of the recording
+	 */
+	public long getCaptureFirst()
+	{
+		return captureFirst;
+	}
+	
+	/**
+	 * 
+	 * @return number of displayed samples of the recording
+	 */
+	public long getCaptureCount()
+	{
+		return captureCount;
+	}
+	
+	/**
+	 * Scroll through the recording
+	 * @param xOffset distance in pixels
+	 */
+	private synchronized void scrollCapture(float xOffset)
+	{
+		if(mCapture==null || screenWidth<=0)
+			return;
+		captureFirst-=(long)(xOffset/screenWidth*captureCount);
+		loadCapture();
+	}
+	
+	/**
+	 * Zoom in or out on the recording, 200 pixels halve or double the displayed samples
+	 * @param xZoom distance in pixels
+	 */
+	private synchronized void zoomCapture(float xZoom)
+	{
+		if(mCapture==null)
+			return;
+		long center=captureFirst+captureCount/2;
+		captureCount=(long)(captureCountOld*Math.pow(2, -xZoom/200));
+		captureFirst=center-captureCount/2;
+		loadCapture();
+	}
+	
+	/**
+	 * Read the displayed part of the recording from the capture file
+	 */
+	private void loadCapture()
+	{
+		long numSamples=mCapture.getNumSamples(mCaptureChannel);
+		if(captureCount>numSamples)
+			captureCount=numSamples;
+		if(captureCount<50)
+			captureCount = numSamples<50 ? numSamples : 50;
+		if(captureFirst>numSamples-captureCount)
+			captureFirst=numSamples-captureCount;
+		if(captureFirst<0)
+			captureFirst=0;
+		
+		int[] data;
+		if(captureCount<=MAX_CAPTURE_SAMPLES){
+			data = new int[(int)captureCount];
+			mCapture.getSamples(mCaptureChannel, captureFirst, data.length, data);
+			chPeakDetect=false;
+		} else {
+			data = new int[2*CAPTURE_COLUMNS];
+			mCapture.getMinMax(mCaptureChannel, captureFirst, captureCount, CAPTURE_COLUMNS, data);
+			chPeakDetect=true;
+		}
+		
+		setDisplayMode(data.length,2);
+		mDataSet=data;
+	}
+	
+	/**
+	 * 
+	 * @return copy of the current dataset
+	 */
+	public synchronized int[] getDataSet()
+	{
+		int[] data = new int[NUM_SAMPLES<mDataSet.length ? NUM_SAMPLES : mDataSet.length];
+		System.arraycopy(mDataSet, 0, data, 0, data.length);
+		return data;
+	}
+	
+	/**
+	 * 
+	 * @return trigger address of the current dataset
+	 */
+	public synchronized int getTriggerAddress()
+	{
+		return triggerAddress;
+	}
+	
+	/**
+	 * In single shot mode the dataset wraps around, the trigger is at triggerAddress.
+	 * Continuous datasets are in time order
+	 * @return index in the current dataset of the oldest sample
+	 */
+	public synchronized int getOldestSample()
+	{
+		if(RUNNING_MODE!=1 || NUM_SAMPLES<=0)
+			return 0;
+		int start=(triggerAddress-getTriggerColumn(NUM_SAMPLES, triggerPos))%NUM_SAMPLES;
+		return start<0 ? start+NUM_SAMPLES : start;
+	}
+	
+	/**
+	 * 
+	 * @return position of the trigger in time order, from the oldest sample. 0 in 
+	 * continuous mode, which has no trigger
+	 */
+	public synchronized int getTriggerSample()
+	{
+		return RUNNING_MODE==1 ? getTriggerColumn(NUM_SAMPLES, triggerPos) : 0;
+	}
+	
+	/**
+	 * 
+	 * @return time between the samples of the current dataset in s, including the
+	 * decimation of continuous mode. Time of one pair when the dataset contains
+	 * min/max pairs, see isPeakDetect()
+	 */
+	public synchronized double getSampleTime()
+	{
+		return chDecimation/(double)mSampleRates[chTimeDiv];
+	}
+	
+	/**
+	 * Draw extra datasets translucent behind the current dataset, e.g. the 
+	 * segments of a segmented acquisition. Cleared when new data is set.
+	 * 
+	 * @param dataSets datasets, each the same length as the current dataset
+	 * @param triggers trigger address of every dataset
+	 */
+	public synchronized void setOverlay(int[][] dataSets, int[] triggers)
+	{
+		mOverlayTriggers=triggers;
+		mOverlaySets=dataSets;
+	}
+	
+	/**
+	 * Remove all overlay datasets
+	 */
+	public synchronized void clearOverlay()
+	{
+		mOverlaySets=null;
+		mOverlayTriggers=null;
+	}
+	
+	/**
+	 * Append peak detected data in continuous mode. The filter, counter and eye 
+	 * diagram get the middle of every pair, the filter moves the pairs with their
+	 * filtered middle. Called from one thread only, like appendNewData().
+	 * @param data int[] containing min/max pairs, min first, filtered in place
+	 * @param numData number of values in data, twice the number of pairs
+	 * @param decimation number of acquired samples in one pair
+	 */
+	public void appendPeakData(int[] data, int numData, int decimation)
+	{
+		float pairTime;
+		float voltsPerLevel;
+		synchronized(this){
+			pairTime=decimation/mSampleRates[chTimeDiv];
+			voltsPerLevel=Measurement.toVolts(1, chVoltDiv);
+		}
+		
+		final int[] middles=mPairMiddles;
+		final int numDisplay=2*middles.length; //ensure 1024 min/max pairs to display
+		numData&=~1;
+		int first = numData>numDisplay ? numData-numDisplay : 0;
+		int numPairs=(numData-first)/2;
+		for(int i=0;i<numPairs;i++)
+			middles[i]=(data[first+2*i]+data[first+2*i+1])/2;
+		if(chFilter.isActive()){
+			chFilter.filterStream(middles, numPairs, 1/pairTime);
+			for(int i=first;i<numData;i+=2){
+				int shift=middles[(i-first)/2]-(data[i]+data[i+1])/2;
+				data[i]=clampLevel(data[i]+shift);
+				data[i+1]=clampLevel(data[i+1]+shift);
+			}
+		}
 		
+		int[] buffer;
+		synchronized(this){
+			buffer=nextFrameBuffer(numDisplay);
+			
+			// Shift old pairs out, new pairs in at the end
+			int numNew=2*numPairs;
+			if(!chPeakDetect || mDataSet.length!=numDisplay) //previous data was averaged, start over
+				Arrays.fill(buffer, 0, numDisplay-numNew, 128);
+			else
+				System.arraycopy(mDataSet, numNew, buffer, 0, numDisplay-numNew);
+			System.arraycopy(data, first, buffer, numDisplay-numNew, numNew);
+			
+			chDecimation=decimation;
+			mCapture=null;
+			setDisplayMode(numDisplay,2);
+			chPeakDetect=true;
+			mDataSet=buffer;
+		}
+		
+		chMeasurements.measurePeaks(buffer, numDisplay, voltsPerLevel, pairTime);
+		if(chCounting)
+			chCounter.count(middles, numPairs, pairTime);
+		EyeDiagram eye=chEye;
+		if(eye!=null)
+			eye.addStream(middles, numPairs, voltsPerLevel, pairTime);
+		if(chAnalysing){
+			for(int i=0;i<middles.length;i++)
+				middles[i]=(buffer[2*i]+buffer[2*i+1])/2;
+			chHarmonics.analyse(middles, middles.length, 0, voltsPerLevel, pairTime);
+		}
+	}
+	
+	private static int clampLevel(int level)
+	{
+		return level<0 ? 0 : (level>255 ? 255 : level);
+	}
+	
+	/**
+	 * 
+	 * @return true when the current dataset contains min/max pairs
+	 */
+	public synchronized boolean isPeakDetect()
+	{
+		return chPeakDetect;
 	}
 	
 	
@@ -501,6 +1253,16 @@ public class AnalogChannel {
 	public synchronized void setTriggerPos(int pos)
 	{
 		triggerPos=pos;
+		viewVersion++;
+	}
+	
+	/**
+	 * 
+	 * @return position of the trigger, 0/1/2
+	 */
+	public synchronized int getTriggerPos()
+	{
+		return triggerPos;
 	}
 	
 	/**
@@ -522,100 +1284,107 @@ public class AnalogChannel {
 	}
 	
 	/**
-	 * 
-	 * @return Minimum value of the current samples in Volts
+	 * Frequency from the interpolated edges of the current samples, or from the
+	 * reciprocal counter when it is enabled and has counted a gate
+	 * @return Frequency of the signal in Hz, NaN when no full cycle was found
 	 */
-	public float getMinimum()
+	public float getFreq()
 	{
-		return chMinimum-128;		
+		if(chCounting){
+			float freq=chCounter.getFrequency();
+			if(!Float.isNaN(freq))
+				return freq;
+		}
+		return chMeasurements.getValue(WaveformMeasurements.FREQUENCY);
+	}
+	
+	/**
+	 * Enable reciprocal counting of the frequency over the continuous stream
+	 * @param enable true to count
+	 */
+	public void setFrequencyCounter(boolean enable)
+	{
+		if(enable && !chCounting)
+			chCounter.reset();
+		chCounting=enable;
 	}
 	
 	/**
 	 * 
-	 * @return Maximum value of the current samples in Volts
+	 * @return true when the frequency is counted over the continuous stream
 	 */
-	public float getMaximum()
+	public boolean isFrequencyCounter()
 	{
-		return chMaximum-128;	
+		return chCounting;
 	}
 	
 	/**
 	 * 
-	 * @return Peak-Peak value of the current samples in Volts
+	 * @return reciprocal frequency counter of the continuous stream
 	 */
-	public float getPkPk()
+	public FrequencyCounter getFrequencyCounter()
 	{
-		return chPeakpeak;
+		return chCounter;
 	}
 	
 	/**
 	 * 
-	 * @return Frequency of the signal in the current samples
+	 * @param eye eye diagram to add every new dataset to, null to stop
 	 */
-	public float getFreq()
+	void setEyeDiagram(EyeDiagram eye)
 	{
-		//float freq=calcFreq();
-		calcFreq();
-		return chFrequency;
+		chEye=eye;
 	}
 	
 	/**
-	 * Get average
-	 * @return Average of the current dataSet
+	 * Enable harmonic analysis of every new dataset
+	 * @param enable true to analyse
 	 */
-	public float getAverage()
+	public void setHarmonicAnalysis(boolean enable)
 	{
-		calcAverage();
-		return chAverage;
+		chAnalysing=enable;
 	}
 	
 	/**
-	 * Perform FFT, determine largest frequency component and set as frequency
+	 * 
+	 * @return true when every new dataset is analysed
 	 */
-	private void  calcFreq()
+	public boolean isHarmonicAnalysis()
 	{
-		float fIndex=-1;
-		float maxMag=-1;
-		float[] mags;
-		
-		float[] fft_array=new float[NUM_SAMPLES];
-		
-		FFT fft = new FFT(NUM_SAMPLES,mSampleRates[chTimeDiv]);
-		
-		for(int i=0; i<NUM_SAMPLES;i++)
-			fft_array[i] = (float)mDataSet[i];
-		
-		fft.forward(fft_array);
-		mags=fft.getSpectrum();		
-		
-		for(int i=1;i<mags.length;i++){	
-			if(mags[i] > maxMag){
-				maxMag=mags[i];
-			fIndex=i;
-			}
-		}	
-		
-		//Somehow the calculated frequency differs a factor 2. Compensate by dividing by 2
-		chFrequency=(float)mSampleRates[chTimeDiv]*fIndex/mags.length/2;		
-
-		//		Log.d(TAG,"Mag: " + maxMag + " Index: " + fIndex + " Freq: " + chFrequency + " SR: " + mSampleRates[chTimeDiv]);
-		
-		fft=null;
-		fft_array=null;
-		mags=null;	
+		return chAnalysing;
 	}
-
+	
 	/**
-	 * Calculate the average of the signal
+	 * 
+	 * @return harmonic analysis of the current dataset
 	 */
-	private void calcAverage()
+	public HarmonicAnalysis getHarmonicAnalysis()
 	{
-		int total=0;
-		
-		for(int i=0;i<mDataSet.length;i++)
-			total+=mDataSet[i]-127;
-		
-		chAverage=total/mDataSet.length;
+		return chHarmonics;
 	}
 	
+	/**
+	 * 
+	 * @param timeDiv time division
+	 * @return number of samples across the screen
+	 */
+	public static int getScreenSamples(int timeDiv)
+	{
+		if(timeDiv<0 || timeDiv>=mTimeDivSwitchTable.length)
+			return 0;
+		return mTimeDivSwitchTable[timeDiv];
+	}
+	
+	/**
+	 * Sample rate of a timebase
+	 * @param timeDiv time/div setting
+	 * @return samples per second
+	 */
+	public static float getSampleRate(int timeDiv)
+	{
+		if(timeDiv<0 || timeDiv>=mSampleRates.length)
+			return 0;
+		return mSampleRates[timeDiv];
+	}
+
 }
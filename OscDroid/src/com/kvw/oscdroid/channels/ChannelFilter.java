@@ -0,0 +1,270 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+/**
+ * Digital filter applied to the samples of a channel before they are stored.
+ * 
+ * Low-pass and high-pass are 4th order Butterworth, two cascaded biquads. Band-pass
+ * and notch are a single biquad. The moving average is a boxcar FIR of one period
+ * of the filter frequency, its first zero. Coefficients are designed once for the 
+ * sample rate and only designed again when the rate or the settings change.
+ * 
+ * Frames are filtered in time order from the oldest sample, with the state 
+ * started as if the first sample was there forever, so frames do not start with 
+ * a transient. Continuous data keeps its state between blocks.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class ChannelFilter {
+	
+	public static final int TYPE_OFF=0;
+	public static final int TYPE_LOWPASS=1;
+	public static final int TYPE_HIGHPASS=2;
+	public static final int TYPE_BANDPASS=3;
+	public static final int TYPE_NOTCH=4;
+	public static final int TYPE_MOVING_AVERAGE=5;
+	
+	private static final int CENTER=128;
+	private static final int MAX_LEVEL=255;
+	private static final int MAX_TAPS=1024;
+	private static final int MAX_SECTIONS=2;
+	
+	/** Q of the two sections of a 4th order Butterworth */
+	private static final double[] BUTTERWORTH_Q = {0.54119610, 1.3065630};
+	
+	private int mType=TYPE_OFF;
+	private float mFrequency=1000;
+	private float mQ=2;
+	
+	/** Designed filter */
+	private float designedRate=0;
+	private boolean designed=false;
+	private int numSections=0;
+	private final float[] b0 = new float[MAX_SECTIONS];
+	private final float[] b1 = new float[MAX_SECTIONS];
+	private final float[] b2 = new float[MAX_SECTIONS];
+	private final float[] a1 = new float[MAX_SECTIONS];
+	private final float[] a2 = new float[MAX_SECTIONS];
+	private int numTaps=1;
+	
+	/** Filter state, transposed direct form II per section */
+	private final float[] z1 = new float[MAX_SECTIONS];
+	private final float[] z2 = new float[MAX_SECTIONS];
+	private final int[] taps = new int[MAX_TAPS];
+	private int tapIndex=0;
+	private int tapSum=0;
+	private boolean streamStarted=false;
+	
+	/**
+	 * Set the filter
+	 * @param type TYPE_ constant
+	 * @param frequency cut-off frequency, center frequency for band-pass and notch,
+	 * first zero for the moving average, in Hz
+	 * @param q quality factor of band-pass and notch
+	 */
+	public synchronized void setFilter(int type, float frequency, float q)
+	{
+		mType=type;
+		mFrequency=frequency;
+		mQ= q>0 ? q : 1;
+		designed=false;
+	}
+	
+	/**
+	 * 
+	 * @return true when a filter is set
+	 */
+	public synchronized boolean isActive()
+	{
+		return mType!=TYPE_OFF;
+	}
+	
+	/**
+	 * 
+	 * @return filter type, TYPE_ constant
+	 */
+	public synchronized int getType()
+	{
+		return mType;
+	}
+	
+	/**
+	 * 
+	 * @return filter frequency in Hz
+	 */
+	public synchronized float getFrequency()
+	{
+		return mFrequency;
+	}
+	
+	/**
+	 * Filter a frame in place
+	 * @param data samples, wrapping around at numSamples
+	 * @param numSamples number of samples
+	 * @param start oldest sample
+	 * @param sampleRate sample rate in Hz
+	 */
+	public synchronized void filterFrame(int[] data, int numSamples, int start, float sampleRate)
+	{
+		if(mType==TYPE_OFF || numSamples==0)
+			return;
+		if(!designed || sampleRate!=designedRate)
+			design(sampleRate);
+		
+		reset(data[start]);
+		int index=start;
+		for(int i=0;i<numSamples;i++){
+			data[index]=filterSample(data[index]);
+			if(++index==numSamples)
+				index=0;
+		}
+	}
+	
+	/**
+	 * Filter a block of continuous data in place, the state is kept for the next block
+	 * @param data samples in time order
+	 * @param numSamples number of samples in data
+	 * @param sampleRate sample rate in Hz
+	 */
+	public synchronized void filterStream(int[] data, int numSamples, float sampleRate)
+	{
+		if(mType==TYPE_OFF || numSamples==0)
+			return;
+		if(!designed || sampleRate!=designedRate){
+			design(sampleRate);
+			streamStarted=false;
+		}
+		
+		if(!streamStarted){
+			reset(data[0]);
+			streamStarted=true;
+		}
+		for(int i=0;i<numSamples;i++)
+			data[i]=filterSample(data[i]);
+	}
+	
+	private int filterSample(int sample)
+	{
+		float y;
+		if(mType==TYPE_MOVING_AVERAGE){
+			int x=sample-CENTER;
+			tapSum+=x-taps[tapIndex];
+			taps[tapIndex]=x;
+			if(++tapIndex==numTaps)
+				tapIndex=0;
+			y=(float)tapSum/numTaps;
+		}else{
+			y=sample-CENTER;
+			for(int s=0;s<numSections;s++){
+				float x=y;
+				y=b0[s]*x+z1[s];
+				z1[s]=b1[s]*x-a1[s]*y+z2[s];
+				z2[s]=b2[s]*x-a2[s]*y;
+			}
+		}
+		
+		int out=(int)(y+CENTER+(y>=0 ? 0.5f : -0.5f));
+		return out<0 ? 0 : (out>MAX_LEVEL ? MAX_LEVEL : out);
+	}
+	
+	/**
+	 * Set the state as if the input was constant at sample forever
+	 */
+	private void reset(int sample)
+	{
+		int x0=sample-CENTER;
+		if(mType==TYPE_MOVING_AVERAGE){
+			for(int i=0;i<numTaps;i++)
+				taps[i]=x0;
+			tapSum=x0*numTaps;
+			tapIndex=0;
+			return;
+		}
+		
+		float x=x0;
+		for(int s=0;s<numSections;s++){
+			float gain=(b0[s]+b1[s]+b2[s])/(1+a1[s]+a2[s]);
+			float y=gain*x;
+			z2[s]=b2[s]*x-a2[s]*y;
+			z1[s]=b1[s]*x-a1[s]*y+z2[s];
+			x=y;
+		}
+	}
+	
+	/**
+	 * Design the coefficients for the sample rate, biquads after the Audio EQ Cookbook
+	 */
+	private void design(float sampleRate)
+	{
+		designedRate=sampleRate;
+		designed=true;
+		
+		if(mType==TYPE_MOVING_AVERAGE){
+			int n=Math.round(sampleRate/mFrequency);
+			numTaps= n<1 ? 1 : (n>MAX_TAPS ? MAX_TAPS : n);
+			return;
+		}
+		
+		// Keep the frequency below Nyquist, and high enough for float coefficients
+		double f=Math.max(Math.min(mFrequency, sampleRate*0.45), sampleRate*1e-4);
+		double w0=2*Math.PI*f/sampleRate;
+		double cos=Math.cos(w0);
+		double sin=Math.sin(w0);
+		
+		numSections= mType==TYPE_LOWPASS || mType==TYPE_HIGHPASS ? 2 : 1;
+		for(int s=0;s<numSections;s++){
+			double q = numSections==2 ? BUTTERWORTH_Q[s] : mQ;
+			double alpha=sin/(2*q);
+			double nb0, nb1, nb2;
+			switch(mType){
+			case TYPE_LOWPASS:
+				nb0=(1-cos)/2;
+				nb1=1-cos;
+				nb2=(1-cos)/2;
+				break;
+			case TYPE_HIGHPASS:
+				nb0=(1+cos)/2;
+				nb1=-(1+cos);
+				nb2=(1+cos)/2;
+				break;
+			case TYPE_BANDPASS:
+				// 0 dB peak gain
+				nb0=alpha;
+				nb1=0;
+				nb2=-alpha;
+				break;
+			default: // TYPE_NOTCH
+				nb0=1;
+				nb1=-2*cos;
+				nb2=1;
+				break;
+			}
+			double na0=1+alpha;
+			b0[s]=(float)(nb0/na0);
+			b1[s]=(float)(nb1/na0);
+			b2[s]=(float)(nb2/na0);
+			a1[s]=(float)(-2*cos/na0);
+			a2[s]=(float)((1-alpha)/na0);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+/**
+ * Measurements between two channels acquired on the same trigger, done on the 
+ * acquisition thread for every frame.
+ * 
+ * Delay is the average time from every rising edge of the first channel to the 
+ * nearest rising edge of the second channel, both at the middle level with 
+ * hysteresis and interpolated between samples, positive when the second channel is 
+ * later. Phase is the delay in degrees of the period of the first channel, the ratio
+ * is the AC RMS of the second channel divided by that of the first.
+ * 
+ * For noisy signals the delay can also be estimated from the peak of the cross
+ * correlation. Both channels are transformed with one complex FFT, zero padded to
+ * avoid wrap around, the peak is interpolated with a parabola.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class ChannelPairMeasurements {
+	
+	public static final int DELAY=0;
+	public static final int PHASE=1;
+	public static final int RATIO=2;
+	public static final int CORRELATION_DELAY=3;
+	public static final int NUM_VALUES=4;
+	
+	private static final int CENTER=128;
+	/** Hysteresis around the middle level, part of the amplitude */
+	private static final float HYSTERESIS=0.1f;
+	private static final int MIN_AMPLITUDE=4;
+	
+	private float[] mRisesA = new float[0];
+	private float[] mRisesB = new float[0];
+	
+	private volatile boolean correlating=false;
+	private float[] mRe = new float[0];
+	private float[] mIm = new float[0];
+	private float[] mCorrRe = new float[0];
+	private float[] mCorrIm = new float[0];
+	
+	private final float[] mWork = new float[NUM_VALUES];
+	private final float[] mValues = new float[NUM_VALUES];
+	
+	public ChannelPairMeasurements()
+	{
+		for(int i=0;i<NUM_VALUES;i++)
+			mValues[i]=Float.NaN;
+	}
+	
+	/**
+	 * 
+	 * @param enable true to estimate the delay by cross correlation as well
+	 */
+	public void setCorrelation(boolean enable)
+	{
+		correlating=enable;
+	}
+	
+	/**
+	 * 
+	 * @return true when the delay is also estimated by cross correlation
+	 */
+	public boolean isCorrelation()
+	{
+		return correlating;
+	}
+	
+	/**
+	 * Measure the current frames of two channels, called after both got their new data
+	 * @param a first channel
+	 * @param b second channel
+	 * @param trigger trigger address of the frames
+	 */
+	public void measure(AnalogChannel a, AnalogChannel b, int trigger)
+	{
+		int[] dataA=a.getCurrentData();
+		int[] dataB=b.getCurrentData();
+		int numSamples=dataA.length;
+		if(dataB.length!=numSamples || numSamples<2)
+			return;
+		
+		int start=trigger-AnalogChannel.getTriggerColumn(numSamples, a.getTriggerPos());
+		if(start<0)
+			start+=numSamples;
+		if(start>=numSamples)
+			start=0;
+		measure(dataA, Measurement.toVolts(1, a.getVoltDiv()), dataB, Measurement.toVolts(1, b.getVoltDiv()),
+				numSamples, start, 1/AnalogChannel.getSampleRate(a.getTimeDiv()));
+	}
+	
+	/**
+	 * Measure two frames
+	 * @param a samples of the first channel, wrapping around at numSamples
+	 * @param voltsA Volts of one sample level of the first channel
+	 * @param b samples of the second channel, taken at the same times
+	 * @param voltsB Volts of one sample level of the second channel
+	 * @param numSamples number of samples of each channel
+	 * @param start oldest sample
+	 * @param sampleTime time between samples in seconds
+	 */
+	void measure(int[] a, float voltsA, int[] b, float voltsB, int numSamples, int start, float sampleTime)
+	{
+		final float[] v=mWork;
+		for(int i=0;i<NUM_VALUES;i++)
+			v[i]=Float.NaN;
+		
+		if(mRisesA.length<numSamples/2+1){
+			mRisesA=new float[numSamples/2+1];
+			mRisesB=new float[numSamples/2+1];
+		}
+		
+		float rmsA=acRms(a, numSamples)*voltsA;
+		float rmsB=acRms(b, numSamples)*voltsB;
+		if(rmsA>0)
+			v[RATIO]=rmsB/rmsA;
+		
+		int risesA=findRises(a, numSamples, start, mRisesA);
+		int risesB=findRises(b, numSamples, start, mRisesB);
+		if(risesA>0 && risesB>0){
+			float period= risesA>1 ? (mRisesA[risesA-1]-mRisesA[0])/(risesA-1) : Float.NaN;
+			
+			// Nearest edge of b for every edge of a, both lists are in time order
+			double sum=0;
+			int j=0;
+			for(int i=0;i<risesA;i++){
+				float t=mRisesA[i];
+				while(j<risesB-1 && Math.abs(mRisesB[j+1]-t)<=Math.abs(mRisesB[j]-t))
+					j++;
+				float delay=mRisesB[j]-t;
+				if(!Float.isNaN(period))
+					delay-=period*Math.round(delay/period);
+				sum+=delay;
+			}
+			float delay=(float)(sum/risesA);
+			v[DELAY]=delay*sampleTime;
+			if(!Float.isNaN(period))
+				v[PHASE]=360*delay/period;
+		}
+		
+		if(correlating)
+			v[CORRELATION_DELAY]=correlate(a, b, numSamples, start)*sampleTime;
+		
+		synchronized(this){
+			System.arraycopy(mWork, 0, mValues, 0, NUM_VALUES);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return RMS without the mean, in sample levels
+	 */
+	private static float acRms(int[] data, int numSamples)
+	{
+		long sum=0;
+		long sumSquares=0;
+		for(int i=0;i<numSamples;i++){
+			int x=(data[i] & 0xFF)-CENTER;
+			sum+=x;
+			sumSquares+=x*x;
+		}
+		double mean=(double)sum/numSamples;
+		return (float)Math.sqrt(Math.max((double)sumSquares/numSamples-mean*mean, 0));
+	}
+	
+	/**
+	 * Interpolated times of the rising edges through the middle level
+	 * @return number of rising edges
+	 */
+	private static int findRises(int[] data, int numSamples, int start, float[] rises)
+	{
+		int max=0;
+		int min=255;
+		for(int i=0;i<numSamples;i++){
+			int s=data[i] & 0xFF;
+			if(s>max) max=s;
+			if(s<min) min=s;
+		}
+		int amplitude=max-min;
+		if(amplitude<MIN_AMPLITUDE)
+			return 0;
+		
+		float mid=min+0.5f*amplitude;
+		float low=mid-HYSTERESIS*amplitude;
+		float high=mid+HYSTERESIS*amplitude;
+		
+		int index=start;
+		int prev=data[index] & 0xFF;
+		boolean isHigh= prev>=mid;
+		float midCross=Float.NaN;
+		int count=0;
+		for(int i=1;i<numSamples;i++){
+			if(++index==numSamples)
+				index=0;
+			int s=data[index] & 0xFF;
+			if(!isHigh){
+				if(prev<mid && s>=mid)
+					midCross=i-1+(mid-prev)/(s-prev);
+				if(s>=high){
+					isHigh=true;
+					if(!Float.isNaN(midCross) && count<rises.length)
+						rises[count++]=midCross;
+				}
+			}else if(s<=low)
+				isHigh=false;
+			prev=s;
+		}
+		return count;
+	}
+	
+	/**
+	 * Lag of b with respect to a at the peak of the cross correlation
+	 * @return lag in samples, positive when b is later
+	 */
+	private float correlate(int[] a, int[] b, int numSamples, int start)
+	{
+		Fft fft=Fft.getPlan(Integer.highestOneBit(2*numSamples-1)<<1);
+		int size=fft.getSize();
+		if(mRe.length!=size){
+			mRe=new float[size];
+			mIm=new float[size];
+			mCorrRe=new float[size];
+			mCorrIm=new float[size];
+		}
+		
+		// a in the real part, b in the imaginary part, in time order without the mean
+		float meanA=0;
+		float meanB=0;
+		for(int i=0;i<numSamples;i++){
+			meanA+=a[i] & 0xFF;
+			meanB+=b[i] & 0xFF;
+		}
+		meanA/=numSamples;
+		meanB/=numSamples;
+		int index=start;
+		for(int i=0;i<numSamples;i++){
+			mRe[i]=(a[index] & 0xFF)-meanA;
+			mIm[i]=(b[index] & 0xFF)-meanB;
+			if(++index==numSamples)
+				index=0;
+		}
+		for(int i=numSamples;i<size;i++){
+			mRe[i]=0;
+			mIm[i]=0;
+		}
+		fft.transform(mRe, mIm, false);
+		
+		// Split the spectra of a and b, multiply conj(A) by B
+		for(int k=0;k<size;k++){
+			int m= k==0 ? 0 : size-k;
+			float ar=(mRe[k]+mRe[m])/2;
+			float ai=(mIm[k]-mIm[m])/2;
+			float br=(mIm[k]+mIm[m])/2;
+			float bi=-(mRe[k]-mRe[m])/2;
+			mCorrRe[k]=ar*br+ai*bi;
+			mCorrIm[k]=ar*bi-ai*br;
+		}
+		fft.transform(mCorrRe, mCorrIm, true);
+		
+		// Peak over the lags -(numSamples-1)..numSamples-1
+		int peak=0;
+		for(int lag=-(numSamples-1);lag<numSamples;lag++){
+			if(mCorrRe[lag<0 ? lag+size : lag]>mCorrRe[peak<0 ? peak+size : peak])
+				peak=lag;
+		}
+		if(peak<=-(numSamples-1) || peak>=numSamples-1)
+			return peak;
+		
+		float y0=mCorrRe[peak-1<0 ? peak-1+size : peak-1];
+		float y1=mCorrRe[peak<0 ? peak+size : peak];
+		float y2=mCorrRe[peak+1<0 ? peak+1+size : peak+1];
+		float denominator=y0-2*y1+y2;
+		return denominator<0 ? peak+0.5f*(y0-y2)/denominator : peak;
+	}
+	
+	/**
+	 * 
+	 * @param id DELAY..CORRELATION_DELAY
+	 * @return value of the last measured frames: seconds, degrees or ratio. NaN when
+	 * not available
+	 */
+	public synchronized float getValue(int id)
+	{
+		return mValues[id];
+	}
+}
@@ -0,0 +1,627 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+
+/**
+ * Eye diagram of serial data on one channel, accumulated over all acquisitions or the 
+ * continuous stream since the last reset.
+ * 
+ * The bit clock is recovered from the threshold crossings: their phase relative to the
+ * unit interval is averaged on the unit circle. Every sample is then folded into the 
+ * unit interval and counted in a 2D histogram of 2 unit intervals wide and 256 ADC 
+ * codes high, with the crossings at 1/4 and 3/4 of the width. Triggered or segmented
+ * acquisitions each get their own clock phase, the continuous stream keeps its clock 
+ * phase and the level state across blocks.
+ * 
+ * The eye height is the distance between the 3 sigma limits of the high and low levels
+ * in the center tenth of the unit interval. The jitter is the deviation of the crossings
+ * from the recovered clock, the eye width is the unit interval minus 6 sigma of jitter.
+ * 
+ * The bit rate is set, or recovered from the shortest interval between crossings of the
+ * next acquisition. Everything is allocated up front, accumulation runs on the 
+ * acquisition thread.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class EyeDiagram {
+	
+	/** Columns of the histogram, 2 unit intervals */
+	public static final int COLUMNS=128;
+	public static final int NUM_LEVELS=256;
+	
+	/** Least difference between the high and low level to find crossings */
+	private static final int MIN_SWING=8;
+	/** Part of the swing between the threshold and the hysteresis levels */
+	private static final int HYSTERESIS_PART=8;
+	/** Part of the unit interval around the center in which the levels are measured */
+	private static final double CENTER_PART=0.1;
+	/** Weight of the clock phase of the previous blocks of the continuous stream */
+	private static final double PHASE_DECAY=0.5;
+	/** Crossings needed to recover the bit rate */
+	private static final int MIN_RECOVER_CROSSINGS=8;
+	/** Longest run of equal bits used to refine the recovered bit rate */
+	private static final int MAX_RUN=16;
+	private static final int MAX_CROSSINGS=2048;
+	
+	private static final int NUM_SHADES=4;
+	private static final int[] SHADE_ALPHA = {60,110,170,255};
+	
+	private final long[] mBins = new long[COLUMNS*NUM_LEVELS];
+	private long maxBin=0;
+	private long numAcquisitions=0;
+	
+	private volatile AnalogChannel mChannel=null;
+	private double bitRate=0;
+	private boolean recover=false;
+	private float voltsPerLevel=0;
+	private float sampleTime=0;
+	
+	/** Crossings of the current block, in samples */
+	private final double[] mCrossings = new double[MAX_CROSSINGS];
+	
+	// Continuous stream state
+	private boolean streamHigh=false;
+	private int streamPrevious=-1;
+	private double streamTime=0;
+	private double phaseCos=0;
+	private double phaseSin=0;
+	private int streamMin=0;
+	private int streamMax=0;
+	
+	// Levels in the center of the eye, in ADC codes
+	private long highCount=0;
+	private double highSum=0;
+	private double highSumSquares=0;
+	private long lowCount=0;
+	private double lowSum=0;
+	private double lowSumSquares=0;
+	
+	// Deviation of the crossings from the clock, in unit intervals
+	private long jitterCount=0;
+	private double jitterSum=0;
+	private double jitterSumSquares=0;
+	private double jitterMin=0;
+	private double jitterMax=0;
+	
+	private final Paint cellPaint;
+	private final Paint textPaint;
+	private final float[] mVertices = new float[4*COLUMNS*NUM_LEVELS];
+	private final float[] levelY = new float[NUM_LEVELS];
+	private int levelVersion=-1;
+	private long textAcquisitions=-1;
+	private String mText="";
+	
+	public EyeDiagram()
+	{
+		cellPaint=new Paint();
+		cellPaint.setStyle(Style.STROKE);
+		cellPaint.setDither(false);
+		
+		textPaint=new Paint(Paint.ANTI_ALIAS_FLAG);
+		textPaint.setTextSize(16f);
+	}
+	
+	/**
+	 * Select the channel to collect from, the eye diagram starts again
+	 * @param channel channel, null to stop
+	 */
+	public synchronized void setSource(AnalogChannel channel)
+	{
+		if(mChannel!=null)
+			mChannel.setEyeDiagram(null);
+		mChannel=channel;
+		levelVersion=-1;
+		reset();
+		if(mChannel!=null){
+			cellPaint.setColor(mChannel.getColor());
+			textPaint.setColor(mChannel.getColor());
+			mChannel.setEyeDiagram(this);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return channel collected from, null when off
+	 */
+	public synchronized AnalogChannel getChannel()
+	{
+		return mChannel;
+	}
+	
+	/**
+	 * Set the bit rate, the eye diagram starts again
+	 * @param rate bits per second, 0 to recover it from the next acquisition
+	 */
+	public synchronized void setBitRate(double rate)
+	{
+		bitRate=rate;
+		recover= rate<=0;
+		reset();
+	}
+	
+	/**
+	 * 
+	 * @return bits per second, 0 while it is being recovered
+	 */
+	public synchronized double getBitRate()
+	{
+		return recover ? 0 : bitRate;
+	}
+	
+	/**
+	 * Clear the histogram and the measurements
+	 */
+	public synchronized void reset()
+	{
+		for(int i=0;i<mBins.length;i++)
+			mBins[i]=0;
+		maxBin=0;
+		numAcquisitions=0;
+		streamPrevious=-1;
+		streamTime=0;
+		phaseCos=0;
+		phaseSin=0;
+		highCount=0;
+		highSum=0;
+		highSumSquares=0;
+		lowCount=0;
+		lowSum=0;
+		lowSumSquares=0;
+		jitterCount=0;
+		jitterSum=0;
+		jitterSumSquares=0;
+		jitterMin=0;
+		jitterMax=0;
+		textAcquisitions=-1;
+	}
+	
+	/**
+	 * Add a triggered or segmented acquisition, with its own clock phase
+	 * @param data samples, wrapping around at numSamples
+	 * @param numSamples number of samples
+	 * @param start oldest sample
+	 * @param levelVolts Volts of one sample level
+	 * @param time time between samples in seconds
+	 */
+	synchronized void addFrame(int[] data, int numSamples, int start, float levelVolts, float time)
+	{
+		if(mChannel==null)
+			return;
+		setScale(levelVolts, time);
+		streamPrevious=-1;
+		
+		int min=255;
+		int max=0;
+		for(int i=0;i<numSamples;i++){
+			int s=data[i] & 0xFF;
+			if(s<min) min=s;
+			if(s>max) max=s;
+		}
+		if(max-min<MIN_SWING)
+			return;
+		
+		int threshold=(min+max)/2;
+		int first=data[start] & 0xFF;
+		int crossings=findCrossings(data, numSamples, start, threshold, (max-min)/HYSTERESIS_PART, 
+				first>threshold, first, 0);
+		if(recover)
+			recoverBitRate(crossings);
+		if(recover || bitRate<=0)
+			return;
+		
+		double ui=1/(bitRate*sampleTime);
+		phaseCos=0;
+		phaseSin=0;
+		addPhase(crossings, ui);
+		if(phaseCos==0 && phaseSin==0)
+			return;
+		double phase=getPhase(ui);
+		addJitter(crossings, ui, phase);
+		addSamples(data, numSamples, start, threshold, ui, -phase);
+		numAcquisitions++;
+	}
+	
+	/**
+	 * Add a block of the continuous stream, the clock phase and level state continue
+	 * from the previous block
+	 * @param data new samples, in time order
+	 * @param numSamples number of samples
+	 * @param levelVolts Volts of one sample level
+	 * @param time time between samples in seconds
+	 */
+	synchronized void addStream(int[] data, int numSamples, float levelVolts, float time)
+	{
+		if(mChannel==null || numSamples==0)
+			return;
+		setScale(levelVolts, time);
+		
+		int min=255;
+		int max=0;
+		for(int i=0;i<numSamples;i++){
+			int s=data[i] & 0xFF;
+			if(s<min) min=s;
+			if(s>max) max=s;
+		}
+		if(streamPrevious<0){
+			streamMin=min;
+			streamMax=max;
+			streamHigh= (data[0] & 0xFF)>(min+max)/2;
+			streamPrevious=data[0] & 0xFF;
+			streamTime=0;
+		}else{
+			// Levels follow the signal, widened at once and narrowed slowly
+			streamMin= min<streamMin ? min : (streamMin*3+min)/4;
+			streamMax= max>streamMax ? max : (streamMax*3+max+3)/4;
+		}
+		if(streamMax-streamMin<MIN_SWING){
+			streamPrevious=data[numSamples-1] & 0xFF;
+			return;
+		}
+		
+		int threshold=(streamMin+streamMax)/2;
+		int crossings=findCrossings(data, numSamples, 0, threshold, (streamMax-streamMin)/HYSTERESIS_PART, 
+				streamHigh, streamPrevious, streamTime);
+		streamPrevious=data[numSamples-1] & 0xFF;
+		if(recover)
+			recoverBitRate(crossings);
+		if(recover || bitRate<=0)
+			return;
+		
+		double ui=1/(bitRate*sampleTime);
+		phaseCos*=PHASE_DECAY;
+		phaseSin*=PHASE_DECAY;
+		addPhase(crossings, ui);
+		if(phaseCos!=0 || phaseSin!=0){
+			double phase=getPhase(ui);
+			addJitter(crossings, ui, phase);
+			addSamples(data, numSamples, 0, threshold, ui, streamTime-phase);
+			numAcquisitions++;
+		}
+		
+		// Keep the time small, whole unit intervals do not change the phase
+		streamTime+=numSamples;
+		streamTime-=Math.floor(streamTime/ui)*ui;
+	}
+	
+	/**
+	 * The histogram starts again when the vertical or horizontal scale changes
+	 */
+	private void setScale(float levelVolts, float time)
+	{
+		if(levelVolts==voltsPerLevel && time==sampleTime)
+			return;
+		reset();
+		voltsPerLevel=levelVolts;
+		sampleTime=time;
+	}
+	
+	/**
+	 * Find the crossings of the threshold, confirmed by crossing the hysteresis level,
+	 * interpolated between the samples around the threshold
+	 * @param high level state before the first sample, updated for the stream
+	 * @param previous sample before the first sample
+	 * @param offset time of the first sample
+	 * @return number of crossings in mCrossings
+	 */
+	private int findCrossings(int[] data, int numSamples, int start, int threshold, int hysteresis,
+			boolean high, int previous, double offset)
+	{
+		final double[] crossings=mCrossings;
+		int count=0;
+		double crossing=offset;
+		int index=start;
+		for(int i=0;i<numSamples;i++){
+			int s=data[index] & 0xFF;
+			if((previous<=threshold)!=(s<=threshold))
+				crossing=offset+i-1+(threshold+0.5-previous)/(double)(s-previous);
+			if(high ? s<threshold-hysteresis : s>threshold+hysteresis){
+				high=!high;
+				if(count<MAX_CROSSINGS)
+					crossings[count++]=crossing;
+			}
+			previous=s;
+			if(++index==numSamples)
+				index=0;
+		}
+		streamHigh=high;
+		return count;
+	}
+	
+	/**
+	 * Recover the bit rate: the shortest interval between crossings is taken as a unit
+	 * interval and refined over all intervals of up to MAX_RUN bits
+	 */
+	private void recoverBitRate(int crossings)
+	{
+		if(crossings<MIN_RECOVER_CROSSINGS)
+			return;
+		double shortest=Double.MAX_VALUE;
+		for(int i=1;i<crossings;i++){
+			double interval=mCrossings[i]-mCrossings[i-1];
+			if(interval>=1 && interval<shortest)
+				shortest=interval;
+		}
+		if(shortest==Double.MAX_VALUE)
+			return;
+		
+		double time=0;
+		long bits=0;
+		for(int i=1;i<crossings;i++){
+			double interval=mCrossings[i]-mCrossings[i-1];
+			long run=Math.round(interval/shortest);
+			if(run>=1 && run<=MAX_RUN){
+				time+=interval;
+				bits+=run;
+			}
+		}
+		bitRate=bits/(time*sampleTime);
+		recover=false;
+		phaseCos=0;
+		phaseSin=0;
+	}
+	
+	/**
+	 * Add the phase of the crossings relative to the unit interval
+	 */
+	private void addPhase(int crossings, double ui)
+	{
+		double radPerSample=2*Math.PI/ui;
+		for(int i=0;i<crossings;i++){
+			phaseCos+=Math.cos(mCrossings[i]*radPerSample);
+			phaseSin+=Math.sin(mCrossings[i]*radPerSample);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return time of a clock edge, in samples, 0..ui
+	 */
+	private double getPhase(double ui)
+	{
+		double phase=Math.atan2(phaseSin, phaseCos)/(2*Math.PI)*ui;
+		return phase<0 ? phase+ui : phase;
+	}
+	
+	/**
+	 * Add the deviation of the crossings from the clock edges
+	 */
+	private void addJitter(int crossings, double ui, double phase)
+	{
+		for(int i=0;i<crossings;i++){
+			double deviation=(mCrossings[i]-phase)/ui;
+			deviation-=Math.floor(deviation+0.5);
+			if(jitterCount==0 || deviation<jitterMin)
+				jitterMin=deviation;
+			if(jitterCount==0 || deviation>jitterMax)
+				jitterMax=deviation;
+			jitterSum+=deviation;
+			jitterSumSquares+=deviation*deviation;
+			jitterCount++;
+		}
+	}
+	
+	/**
+	 * Fold the samples into the unit interval and count them, twice over the 2 unit
+	 * intervals of the histogram
+	 * @param offset time of the first sample relative to a clock edge, in samples
+	 */
+	private void addSamples(int[] data, int numSamples, int start, int threshold, double ui, double offset)
+	{
+		final long[] bins=mBins;
+		final double columnsPerUi=COLUMNS/2;
+		final double centerLow=0.5-CENTER_PART/2;
+		final double centerHigh=0.5+CENTER_PART/2;
+		long max=maxBin;
+		int index=start;
+		for(int i=0;i<numSamples;i++){
+			int s=data[index] & 0xFF;
+			if(++index==numSamples)
+				index=0;
+			
+			double u=(offset+i)/ui;
+			u-=Math.floor(u);
+			// Crossings at a quarter and three quarters of the columns
+			int column=(int)((u+0.5)*columnsPerUi);
+			int other= u<0.5 ? column+COLUMNS/2 : column-COLUMNS/2;
+			if(++bins[column*NUM_LEVELS+s]>max)
+				max=bins[column*NUM_LEVELS+s];
+			if(++bins[other*NUM_LEVELS+s]>max)
+				max=bins[other*NUM_LEVELS+s];
+			
+			if(u>=centerLow && u<centerHigh){
+				if(s>threshold){
+					highCount++;
+					highSum+=s;
+					highSumSquares+=s*s;
+				}else{
+					lowCount++;
+					lowSum+=s;
+					lowSumSquares+=s*s;
+				}
+			}
+		}
+		maxBin=max;
+	}
+	
+	/**
+	 * 
+	 * @return number of acquisitions or stream blocks added
+	 */
+	public synchronized long getAcquisitions()
+	{
+		return numAcquisitions;
+	}
+	
+	/**
+	 * 
+	 * @return eye height in Volts, between the 3 sigma limits of the levels, 0 when 
+	 * closed, NaN when not measured
+	 */
+	public synchronized double getEyeHeight()
+	{
+		if(highCount<2 || lowCount<2)
+			return Double.NaN;
+		double highMean=highSum/highCount;
+		double lowMean=lowSum/lowCount;
+		double highSigma=Math.sqrt(Math.max(highSumSquares/highCount-highMean*highMean, 0));
+		double lowSigma=Math.sqrt(Math.max(lowSumSquares/lowCount-lowMean*lowMean, 0));
+		double height=(highMean-3*highSigma)-(lowMean+3*lowSigma);
+		return Math.max(height, 0)*voltsPerLevel;
+	}
+	
+	/**
+	 * 
+	 * @return eye width in seconds, the unit interval minus 6 sigma of jitter, 0 when 
+	 * closed, NaN when not measured
+	 */
+	public synchronized double getEyeWidth()
+	{
+		if(jitterCount<2 || bitRate<=0)
+			return Double.NaN;
+		return Math.max(1-6*getJitterSigma(), 0)/bitRate;
+	}
+	
+	/**
+	 * 
+	 * @return RMS jitter of the crossings in seconds, NaN when not measured
+	 */
+	public synchronized double getJitterRms()
+	{
+		if(jitterCount<2 || bitRate<=0)
+			return Double.NaN;
+		return getJitterSigma()/bitRate;
+	}
+	
+	/**
+	 * 
+	 * @return peak to peak jitter of the crossings in seconds, NaN when not measured
+	 */
+	public synchronized double getJitterPkPk()
+	{
+		if(jitterCount<2 || bitRate<=0)
+			return Double.NaN;
+		return (jitterMax-jitterMin)/bitRate;
+	}
+	
+	/**
+	 * Standard deviation of the crossings in unit intervals
+	 */
+	private double getJitterSigma()
+	{
+		double mean=jitterSum/jitterCount;
+		return Math.sqrt(Math.max(jitterSumSquares/jitterCount-mean*mean, 0));
+	}
+	
+	/**
+	 * Draw the eye diagram over the screen, the histogram in NUM_SHADES intensities 
+	 * on a logarithmic scale. Cells of the same shade next to each other are drawn as
+	 * one line
+	 * @param canvas Canvas to draw on
+	 */
+	public void drawEyeDiagram(Canvas canvas)
+	{
+		AnalogChannel channel=mChannel;
+		if(channel==null)
+			return;
+		
+		// Level positions are read outside the lock, the acquisition thread holds the 
+		// channel while it adds to the eye diagram
+		int version=channel.getViewVersion();
+		if(version!=levelVersion){
+			for(int i=0;i<NUM_LEVELS;i++)
+				levelY[i]=channel.getLevelY(i);
+			levelVersion=version;
+		}
+		
+		synchronized(this){
+			if(channel!=mChannel || maxBin==0)
+				return;
+			
+			float width=channel.getWidth();
+			float height=channel.getHeight();
+			float step=width/COLUMNS;
+			double logMax=Math.log(1+maxBin);
+			
+			long low=1;
+			for(int shade=0;shade<NUM_SHADES;shade++){
+				long high= shade==NUM_SHADES-1 ? maxBin+1 : 
+						(long)Math.exp((shade+1)*logMax/NUM_SHADES);
+				if(high<=low)
+					continue;
+				
+				int n=0;
+				for(int level=0;level<NUM_LEVELS;level++){
+					float y=levelY[level];
+					int first=-1;
+					for(int column=0;column<=COLUMNS;column++){
+						boolean in= column<COLUMNS && mBins[column*NUM_LEVELS+level]>=low 
+								&& mBins[column*NUM_LEVELS+level]<high;
+						if(in && first<0)
+							first=column;
+						else if(!in && first>=0){
+							mVertices[n++]=first*step;
+							mVertices[n++]=y;
+							mVertices[n++]=column*step;
+							mVertices[n++]=y;
+							first=-1;
+						}
+					}
+				}
+				cellPaint.setStrokeWidth(Math.abs(levelY[1]-levelY[0])+1);
+				cellPaint.setAlpha(SHADE_ALPHA[shade]);
+				canvas.drawLines(mVertices, 0, n, cellPaint);
+				low=high;
+			}
+			
+			if(textAcquisitions!=numAcquisitions){
+				mText=buildText();
+				textAcquisitions=numAcquisitions;
+			}
+			canvas.drawText(mText, 10, height-10, textPaint);
+		}
+	}
+	
+	/**
+	 * Measurement line drawn with the eye diagram, rebuilt only when acquisitions were added
+	 */
+	private String buildText()
+	{
+		StringBuilder text=new StringBuilder(128);
+		appendValue(text, "", recover || bitRate<=0 ? Double.NaN : bitRate, MeasurementResults.UNIT_BIT_RATE);
+		appendValue(text, "  height ", getEyeHeight(), MeasurementResults.UNIT_VOLT);
+		appendValue(text, "  width ", getEyeWidth(), MeasurementResults.UNIT_SECOND);
+		appendValue(text, "  jitter rms ", getJitterRms(), MeasurementResults.UNIT_SECOND);
+		appendValue(text, "  pk-pk ", getJitterPkPk(), MeasurementResults.UNIT_SECOND);
+		text.append("  n ").append(numAcquisitions);
+		return text.toString();
+	}
+	
+	private static void appendValue(StringBuilder text, String label, double value, int unit)
+	{
+		text.append(label);
+		MeasurementResults.appendNumber(text, value, unit, MeasurementResults.getExponent(value), 2);
+	}
+}
@@ -0,0 +1,123 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+/**
+ * In-place radix-2 complex FFT. A plan holds the bit reversal permutation and the
+ * twiddle factors of one size, plans are created once per size and shared.
+ * 
+ * @author K. van Wijk
+ *
+ */
+class Fft {
+	
+	private static final Fft[] mPlans = new Fft[31];
+	
+	private final int size;
+	private final int[] mReverse;
+	private final float[] mCos;
+	private final float[] mSin;
+	
+	/**
+	 * Get the plan of a size, created on first use
+	 * @param size number of points, power of two
+	 * @return plan
+	 */
+	static synchronized Fft getPlan(int size)
+	{
+		if(size<2 || Integer.bitCount(size)!=1)
+			throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+		int log=31-Integer.numberOfLeadingZeros(size);
+		if(mPlans[log]==null)
+			mPlans[log]=new Fft(size);
+		return mPlans[log];
+	}
+	
+	private Fft(int n)
+	{
+		size=n;
+		int bits=31-Integer.numberOfLeadingZeros(n);
+		mReverse=new int[n];
+		for(int i=0;i<n;i++)
+			mReverse[i]=Integer.reverse(i)>>>(32-bits);
+		mCos=new float[n/2];
+		mSin=new float[n/2];
+		for(int i=0;i<n/2;i++){
+			mCos[i]=(float)Math.cos(2*Math.PI*i/n);
+			mSin[i]=(float)Math.sin(2*Math.PI*i/n);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return number of points
+	 */
+	int getSize()
+	{
+		return size;
+	}
+	
+	/**
+	 * Transform in place
+	 * @param re real parts, size points
+	 * @param im imaginary parts, size points
+	 * @param inverse true for the inverse transform, scaled by 1/size
+	 */
+	void transform(float[] re, float[] im, boolean inverse)
+	{
+		final int n=size;
+		for(int i=0;i<n;i++){
+			int j=mReverse[i];
+			if(j>i){
+				float t=re[i]; re[i]=re[j]; re[j]=t;
+				t=im[i]; im[i]=im[j]; im[j]=t;
+			}
+		}
+		
+		final float sign= inverse ? 1 : -1;
+		for(int len=2;len<=n;len<<=1){
+			int half=len>>1;
+			int step=n/len;
+			for(int i=0;i<n;i+=len){
+				for(int k=0;k<half;k++){
+					float wr=mCos[k*step];
+					float wi=sign*mSin[k*step];
+					int a=i+k;
+					int b=a+half;
+					float xr=re[b]*wr-im[b]*wi;
+					float xi=re[b]*wi+im[b]*wr;
+					re[b]=re[a]-xr;
+					im[b]=im[a]-xi;
+					re[a]+=xr;
+					im[a]+=xi;
+				}
+			}
+		}
+		
+		if(inverse){
+			float scale=1f/n;
+			for(int i=0;i<n;i++){
+				re[i]*=scale;
+				im[i]*=scale;
+			}
+		}
+	}
+}
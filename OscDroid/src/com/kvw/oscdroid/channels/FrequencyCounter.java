@@ -0,0 +1,188 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+/**
+ * Reciprocal frequency counter on the continuous sample stream. 
+ * 
+ * Rising edges are detected with hysteresis around the middle level, the time of
+ * every edge is interpolated between the two samples around the middle level. At 
+ * the end of each gate the frequency is the number of whole cycles divided by the 
+ * time between the first and the last edge in the gate, so the resolution does not
+ * depend on the sample rate and gets better with a longer gate. The next gate starts
+ * at the last edge, no cycles are lost between gates.
+ * 
+ * The levels are taken from the minimum and maximum of the previous gate, the first
+ * gate only learns the levels.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class FrequencyCounter {
+	
+	/** Hysteresis around the middle level, part of the amplitude */
+	private static final float HYSTERESIS=0.1f;
+	/** Smallest amplitude in sample levels that is counted */
+	private static final int MIN_AMPLITUDE=4;
+	/** Gate times without a new edge after which the signal is considered lost */
+	private static final int TIMEOUT_GATES=4;
+	
+	private float gateTime=1;
+	private double sampleTime=0;
+	
+	private long sampleIndex=0;
+	private long gateStart=0;
+	private int prev;
+	private boolean isHigh;
+	private boolean armed=false;
+	private float low, mid, high;
+	private double midCross;
+	
+	private int gateMax;
+	private int gateMin;
+	private double firstEdge;
+	private double lastEdge;
+	private long cycles;
+	
+	private volatile float mFrequency=Float.NaN;
+	
+	/**
+	 * Set the gate time, the counter starts again
+	 * @param seconds gate time
+	 */
+	public synchronized void setGateTime(float seconds)
+	{
+		gateTime=seconds;
+		reset();
+	}
+	
+	/**
+	 * 
+	 * @return gate time in seconds
+	 */
+	public synchronized float getGateTime()
+	{
+		return gateTime;
+	}
+	
+	/**
+	 * Forget the levels and the current gate
+	 */
+	public synchronized void reset()
+	{
+		sampleIndex=0;
+		gateStart=0;
+		armed=false;
+		cycles=0;
+		firstEdge=Double.NaN;
+		gateMax=0;
+		gateMin=255;
+		mFrequency=Float.NaN;
+	}
+	
+	/**
+	 * Count the edges in the next block of the stream
+	 * @param data samples
+	 * @param numSamples number of samples in data
+	 * @param time time between samples in seconds, the counter starts again when 
+	 * it changes
+	 */
+	public synchronized void count(int[] data, int numSamples, double time)
+	{
+		if(time!=sampleTime){
+			sampleTime=time;
+			reset();
+		}
+		
+		for(int i=0;i<numSamples;i++,sampleIndex++){
+			int s=data[i] & 0xFF;
+			if(s>gateMax) gateMax=s;
+			if(s<gateMin) gateMin=s;
+			
+			if(armed){
+				if(!isHigh){
+					if(prev<mid && s>=mid)
+						midCross=sampleIndex-1+(mid-prev)/(s-prev);
+					if(s>=high){
+						isHigh=true;
+						edge(midCross);
+					}
+				}else if(s<=low)
+					isHigh=false;
+			}
+			prev=s;
+		}
+		
+		double elapsed=(sampleIndex-gateStart)*sampleTime;
+		if((Double.isNaN(firstEdge) && elapsed>=gateTime) || elapsed>=TIMEOUT_GATES*gateTime)
+			endGate();
+	}
+	
+	/**
+	 * Rising edge at time t, in samples since the start
+	 */
+	private void edge(double t)
+	{
+		if(Double.isNaN(firstEdge)){
+			firstEdge=t;
+			cycles=0;
+		}else{
+			lastEdge=t;
+			cycles++;
+			if((lastEdge-firstEdge)*sampleTime>=gateTime)
+				endGate();
+		}
+	}
+	
+	/**
+	 * Publish the frequency of the gate, take the levels for the next gate
+	 */
+	private void endGate()
+	{
+		mFrequency= cycles>0 ? (float)(cycles/((lastEdge-firstEdge)*sampleTime)) : Float.NaN;
+		
+		int amplitude=gateMax-gateMin;
+		if(amplitude>=MIN_AMPLITUDE){
+			mid=gateMin+0.5f*amplitude;
+			low=mid-HYSTERESIS*amplitude;
+			high=mid+HYSTERESIS*amplitude;
+			if(!armed)
+				isHigh= prev>=mid;
+			armed=true;
+		}else
+			armed=false;
+		
+		firstEdge= cycles>0 ? lastEdge : Double.NaN;
+		cycles=0;
+		gateMax=0;
+		gateMin=255;
+		gateStart=sampleIndex;
+	}
+	
+	/**
+	 * 
+	 * @return frequency of the last complete gate in Hz, NaN when not available
+	 */
+	public float getFrequency()
+	{
+		return mFrequency;
+	}
+}
@@ -0,0 +1,254 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+/**
+ * Harmonic analysis of an acquisition: fundamental, THD, SNR, SINAD, SFDR and ENOB.
+ * 
+ * The samples, without the mean, are windowed with a 4-term Blackman-Harris window
+ * and transformed. The fundamental is the largest component, its frequency is 
+ * interpolated between the bins around the peak. Harmonics 2..MAX_HARMONIC are searched around 
+ * their nominal bins, folded back when they alias. Powers are summed over the main 
+ * lobe of each component, the noise is the average of the remaining bins times the
+ * number of bins. The amplitude of the fundamental is corrected for the gain of the
+ * window.
+ * 
+ * Plans, window and buffers are kept between frames, nothing is allocated unless the
+ * number of samples changes.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class HarmonicAnalysis {
+	
+	public static final int FREQUENCY=0;
+	public static final int RMS=1;
+	public static final int THD=2;
+	public static final int THD_PERCENT=3;
+	public static final int SNR=4;
+	public static final int SINAD=5;
+	public static final int SFDR=6;
+	public static final int ENOB=7;
+	public static final int NUM_VALUES=8;
+	
+	private static final int MAX_HARMONIC=10;
+	/** Half width of the main lobe of the window, in bins */
+	private static final int LOBE=4;
+	private static final double[] WINDOW_TERMS = {0.35875,0.48829,0.14128,0.01168};
+	
+	private int size=0;
+	private Fft mFft;
+	private float[] mWindow;
+	private double windowPower;
+	private float[] mRe;
+	private float[] mIm;
+	private double[] mPower;
+	private boolean[] mUsed;
+	
+	private final float[] mWork = new float[NUM_VALUES];
+	private final float[] mValues = new float[NUM_VALUES];
+	
+	public HarmonicAnalysis()
+	{
+		for(int i=0;i<NUM_VALUES;i++)
+			mValues[i]=Float.NaN;
+	}
+	
+	/**
+	 * Prepare plan, window and buffers for a transform size
+	 */
+	private void setSize(int n)
+	{
+		mFft=Fft.getPlan(n);
+		mWindow=new float[n];
+		windowPower=0;
+		for(int i=0;i<n;i++){
+			double phase=2*Math.PI*i/n;
+			double w=WINDOW_TERMS[0]-WINDOW_TERMS[1]*Math.cos(phase)
+					+WINDOW_TERMS[2]*Math.cos(2*phase)-WINDOW_TERMS[3]*Math.cos(3*phase);
+			mWindow[i]=(float)w;
+			windowPower+=w*w;
+		}
+		mRe=new float[n];
+		mIm=new float[n];
+		mPower=new double[n/2+1];
+		mUsed=new boolean[n/2+1];
+		size=n;
+	}
+	
+	/**
+	 * Analyse an acquisition. Only the newest power of two samples are used
+	 * @param data samples, wrapping around at numSamples
+	 * @param numSamples number of samples
+	 * @param start oldest sample
+	 * @param voltsPerLevel Volts of one sample level
+	 * @param sampleTime time between samples in seconds
+	 */
+	public void analyse(int[] data, int numSamples, int start, float voltsPerLevel, float sampleTime)
+	{
+		if(numSamples<4*LOBE*2)
+			return;
+		int n=Integer.highestOneBit(numSamples);
+		if(n!=size)
+			setSize(n);
+		final float[] v=mWork;
+		final float[] re=mRe;
+		final float[] im=mIm;
+		final double[] power=mPower;
+		final int bins=n/2;
+		
+		// Newest n samples in time order, without the mean, windowed
+		int index=start+numSamples-n;
+		if(index>=numSamples)
+			index-=numSamples;
+		int first=index;
+		long sum=0;
+		for(int i=0;i<n;i++){
+			sum+=data[index] & 0xFF;
+			if(++index==numSamples)
+				index=0;
+		}
+		float mean=(float)sum/n;
+		index=first;
+		for(int i=0;i<n;i++){
+			re[i]=((data[index] & 0xFF)-mean)*mWindow[i];
+			im[i]=0;
+			if(++index==numSamples)
+				index=0;
+		}
+		mFft.transform(re, im, false);
+		
+		// One-sided power spectrum
+		for(int k=0;k<=bins;k++){
+			double p=(double)re[k]*re[k]+(double)im[k]*im[k];
+			power[k]= k==0 || k==bins ? p : 2*p;
+			mUsed[k]= k<=LOBE;		// DC and the lobe of the mean
+		}
+		
+		// Fundamental
+		int peak=-1;
+		for(int k=LOBE+1;k<=bins;k++)
+			if(peak<0 || power[k]>power[peak])
+				peak=k;
+		if(peak<0 || power[peak]<=0){
+			for(int i=0;i<NUM_VALUES;i++)
+				v[i]=Float.NaN;
+			publish();
+			return;
+		}
+		double fundamental=interpolate(peak, bins);
+		double signal=sumLobe(fundamental, bins);
+		double signalPeak=power[peak];
+		
+		// Harmonics, folded back into the first Nyquist zone
+		double harmonics=0;
+		for(int h=2;h<=MAX_HARMONIC;h++){
+			double bin=(h*fundamental)%n;
+			if(bin>bins)
+				bin=n-bin;
+			int nominal=(int)Math.round(bin);
+			int harmonicPeak=-1;
+			for(int k=Math.max(nominal-1, 0);k<=Math.min(nominal+1, bins);k++)
+				if(!mUsed[k] && (harmonicPeak<0 || power[k]>power[harmonicPeak]))
+					harmonicPeak=k;
+			if(harmonicPeak>=0)
+				harmonics+=sumLobe(interpolate(harmonicPeak, bins), bins);
+		}
+		
+		// Noise: the average of the remaining bins over all bins but DC, and the largest spur
+		double noise=0;
+		int noiseBins=0;
+		double spur=0;
+		for(int k=LOBE+1;k<=bins;k++){
+			if(Math.abs(k-fundamental)>LOBE+0.5 && power[k]>spur)
+				spur=power[k];
+			if(!mUsed[k]){
+				noise+=power[k];
+				noiseBins++;
+			}
+		}
+		if(noiseBins>0)
+			noise=noise/noiseBins*(bins-LOBE);
+		
+		// Power of the signal in the sum of the bins: n*windowPower*rms^2
+		double rms=Math.sqrt(signal/(n*windowPower));
+		v[FREQUENCY]=(float)(fundamental/(n*sampleTime));
+		v[RMS]=(float)(rms*voltsPerLevel);
+		v[THD]= harmonics>0 ? (float)(10*Math.log10(harmonics/signal)) : Float.NEGATIVE_INFINITY;
+		v[THD_PERCENT]=(float)(100*Math.sqrt(harmonics/signal));
+		v[SNR]= noise>0 ? (float)(10*Math.log10(signal/noise)) : Float.POSITIVE_INFINITY;
+		v[SINAD]= noise+harmonics>0 ? (float)(10*Math.log10(signal/(noise+harmonics))) : Float.POSITIVE_INFINITY;
+		v[SFDR]= spur>0 ? (float)(10*Math.log10(signalPeak/spur)) : Float.POSITIVE_INFINITY;
+		v[ENOB]=(float)((v[SINAD]-1.76)/6.02);
+		publish();
+	}
+	
+	/**
+	 * Fractional bin of a component, from a parabola through the logarithm of the
+	 * power of the peak and its neighbours
+	 */
+	private double interpolate(int peak, int bins)
+	{
+		if(peak<=0 || peak>=bins || mPower[peak-1]<=0 || mPower[peak+1]<=0)
+			return peak;
+		double left=Math.log(mPower[peak-1]);
+		double center=Math.log(mPower[peak]);
+		double right=Math.log(mPower[peak+1]);
+		double curvature=left-2*center+right;
+		if(curvature>=0)
+			return peak;
+		return peak+0.5*(left-right)/curvature;
+	}
+	
+	/**
+	 * Sum the power of the main lobe of a component, the bins are marked as used
+	 * @param center fractional bin of the component
+	 */
+	private double sumLobe(double center, int bins)
+	{
+		double sum=0;
+		int first=Math.max((int)Math.ceil(center-LOBE-0.5), 0);
+		int last=Math.min((int)Math.floor(center+LOBE+0.5), bins);
+		for(int k=first;k<=last;k++){
+			if(mUsed[k])
+				continue;
+			sum+=mPower[k];
+			mUsed[k]=true;
+		}
+		return sum;
+	}
+	
+	private synchronized void publish()
+	{
+		System.arraycopy(mWork, 0, mValues, 0, NUM_VALUES);
+	}
+	
+	/**
+	 * 
+	 * @param id FREQUENCY..ENOB
+	 * @return value of the last analysed acquisition: Hz, Volts RMS, dB, percent or
+	 * bits. NaN when not available
+	 */
+	public synchronized float getValue(int id)
+	{
+		return mValues[id];
+	}
+}
@@ -0,0 +1,539 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+import java.util.ArrayList;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.os.Handler;
+import android.os.Message;
+
+/**
+ * Mask (pass/fail) test on the acquisitions of one channel.
+ * 
+ * The mask is a set of polygons marking forbidden areas, in screen space or in 
+ * time/volt space. The polygons are compiled once into an allowed minimum and maximum
+ * sample value per sample position, relative to the trigger. Every frame is then
+ * checked in one pass over the samples. A polygon that does not touch the top or the
+ * bottom of the screen forbids everything above or below it, depending on the side 
+ * of the center it is on. The mask is compiled again when time division, volt 
+ * division, trigger position or number of samples of the channel change.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class MaskTest {
+	
+	public static final int MASK_FAILED=0x7F;
+	
+	/** x: 0..1 from left to right, y: 0..1 from bottom to top, unzoomed */
+	public static final int SPACE_SCREEN=0;
+	/** x: time in s relative to the trigger, y: Volts */
+	public static final int SPACE_TIME_VOLT=1;
+	
+	private static final int MAX_POSITIONS=32;
+	private static final int LEVELS=255;
+	private static final int CENTER=128;
+	
+	private final Handler mHandler;
+	private final Paint maskPaint;
+	
+	private static class Polygon {
+		final int space;
+		final float[] xs;
+		final float[] ys;
+		Polygon(int space, float[] xs, float[] ys){
+			this.space=space;
+			this.xs=xs;
+			this.ys=ys;
+		}
+	}
+	private final ArrayList<Polygon> mPolygons = new ArrayList<Polygon>();
+	
+	private AnalogChannel mChannel=null;
+	
+	/** Compiled mask, allowed range per sample position, trigger at triggerColumn */
+	private int[] mLow = new int[0];
+	private int[] mHigh = new int[0];
+	private int numColumns=0;
+	private int triggerColumn=0;
+	private int compiledTimeDiv=-1;
+	private int compiledVoltDiv=-1;
+	private int compiledTriggerPos=-1;
+	private boolean compiled=false;
+	
+	private volatile boolean testing=false;
+	private volatile boolean stopOnFail=false;
+	private volatile boolean halted=false;
+	
+	private long passCount=0;
+	private long failCount=0;
+	private long violationCount=0;
+	private int[] columnViolations = new int[0];
+	private final int[] lastPositions = new int[MAX_POSITIONS];
+	private int numLastPositions=0;
+	
+	private float[] lowVertices;
+	private float[] highVertices;
+	private int numVertices=0;
+	private int verticesVersion=-1;
+	private boolean verticesValid=false;
+	private int[] dispData;
+	
+	/**
+	 * Constructor
+	 * @param handler Handler to send MASK_FAILED to when stopping on a failure
+	 */
+	public MaskTest(Handler handler)
+	{
+		mHandler=handler;
+		
+		maskPaint=new Paint();
+		maskPaint.setStrokeWidth(1f);
+		maskPaint.setStyle(Style.STROKE);
+		maskPaint.setColor(Color.RED);
+		maskPaint.setAlpha(160);
+		maskPaint.setDither(false);
+	}
+	
+	/**
+	 * 
+	 * @param channel channel to test the acquisitions of
+	 */
+	public synchronized void setChannel(AnalogChannel channel)
+	{
+		mChannel=channel;
+		compiled=false;
+		resetCounts();
+	}
+	
+	/**
+	 * 
+	 * @return channel the mask applies to, null when no mask was set
+	 */
+	public synchronized AnalogChannel getChannel()
+	{
+		return mChannel;
+	}
+	
+	/**
+	 * Add a forbidden area
+	 * @param space SPACE_SCREEN or SPACE_TIME_VOLT
+	 * @param xs x coordinates of the corners
+	 * @param ys y coordinates of the corners
+	 */
+	public synchronized void addPolygon(int space, float[] xs, float[] ys)
+	{
+		if(xs.length<3 || xs.length!=ys.length)
+			return;
+		mPolygons.add(new Polygon(space, xs.clone(), ys.clone()));
+		compiled=false;
+	}
+	
+	/**
+	 * Remove all polygons, stop testing
+	 */
+	public synchronized void clear()
+	{
+		mPolygons.clear();
+		mChannel=null;
+		compiled=false;
+		testing=false;
+		halted=false;
+		numColumns=0;
+		resetCounts();
+	}
+	
+	/**
+	 * Create a mask around the current acquisition of a channel, every sample may 
+	 * deviate the given tolerances. Replaces the current mask.
+	 * @param channel channel to take the acquisition from
+	 * @param voltTolerance allowed deviation in divisions
+	 * @param timeTolerance allowed deviation in divisions
+	 * @return false when the acquisition contains min/max pairs, the mask is kept
+	 */
+	public synchronized boolean createFromChannel(AnalogChannel channel, float voltTolerance, float timeTolerance)
+	{
+		int[] data;
+		synchronized(channel){
+			if(channel.isPeakDetect())
+				return false;
+			data=channel.getDataSet();
+		}
+		clear();
+		setChannel(channel);
+		
+		int n=data.length;
+		int trigCol=AnalogChannel.getTriggerColumn(n, channel.getTriggerPos());
+		int split=channel.getTriggerAddress()-trigCol;
+		int timeDiv=channel.getTimeDiv();
+		int voltDiv=channel.getVoltDiv();
+		
+		int screenSamples=Math.min(AnalogChannel.getScreenSamples(timeDiv), n);
+		int window=(int)(timeTolerance*screenSamples/10);
+		float tolerance=voltTolerance*LEVELS/8;
+		float dt=1/AnalogChannel.getSampleRate(timeDiv);
+		float voltsPerLevel=Measurement.toVolts(1, voltDiv);
+		
+		// Envelope of the acquisition in display order, widened by the time tolerance
+		float[] xs = new float[n+2];
+		float[] upper = new float[n+2];
+		float[] lower = new float[n+2];
+		for(int c=0;c<n;c++){
+			int max=0;
+			int min=LEVELS;
+			for(int k=c-window;k<=c+window;k++){
+				if(k<0 || k>=n)
+					continue;
+				int value=data[((split+k)%n+n)%n];
+				if(value>max) max=value;
+				if(value<min) min=value;
+			}
+			xs[c]=(c-trigCol)*dt;
+			upper[c]=(max+tolerance-CENTER)*voltsPerLevel;
+			lower[c]=(min-tolerance-CENTER)*voltsPerLevel;
+		}
+		
+		// Close both polygons along the top and bottom of the screen
+		xs[n]=xs[n-1];
+		xs[n+1]=xs[0];
+		upper[n]=upper[n+1]=(2*LEVELS-CENTER)*voltsPerLevel;
+		lower[n]=lower[n+1]=(-LEVELS-CENTER)*voltsPerLevel;
+		
+		mPolygons.add(new Polygon(SPACE_TIME_VOLT, xs, upper));
+		mPolygons.add(new Polygon(SPACE_TIME_VOLT, xs.clone(), lower));
+		compiled=false;
+		return true;
+	}
+	
+	/**
+	 * Compile the polygons into the allowed range per column for the current
+	 * settings of the channel
+	 */
+	private void compile(int n, int timeDiv, int voltDiv, int triggerPos)
+	{
+		if(mLow.length!=n){
+			mLow=new int[n];
+			mHigh=new int[n];
+			columnViolations=new int[n];
+		}
+		numColumns=n;
+		triggerColumn=AnalogChannel.getTriggerColumn(n, triggerPos);
+		
+		for(int c=0;c<n;c++){
+			mLow[c]=0;
+			mHigh[c]=LEVELS;
+		}
+		
+		int screenSamples=Math.min(AnalogChannel.getScreenSamples(timeDiv), n);
+		int screenStart;
+		switch(triggerPos){
+		case 0:
+			screenStart=triggerColumn-screenSamples/5;
+			break;
+		case 2:
+			screenStart=triggerColumn-screenSamples*4/5;
+			break;
+		default:
+			screenStart=triggerColumn-screenSamples/2;
+		}
+		float samplesPerSecond=AnalogChannel.getSampleRate(timeDiv);
+		float levelsPerVolt=1/Measurement.toVolts(1, voltDiv);
+		
+		float[] colMin = new float[n];
+		float[] colMax = new float[n];
+		for(int p=0;p<mPolygons.size();p++){
+			Polygon polygon=mPolygons.get(p);
+			int corners=polygon.xs.length;
+			float[] cx = new float[corners];
+			float[] cy = new float[corners];
+			for(int i=0;i<corners;i++){
+				if(polygon.space==SPACE_SCREEN){
+					cx[i]=screenStart+polygon.xs[i]*screenSamples;
+					cy[i]=polygon.ys[i]*LEVELS;
+				}else{
+					cx[i]=triggerColumn+polygon.xs[i]*samplesPerSecond;
+					cy[i]=CENTER+polygon.ys[i]*levelsPerVolt;
+				}
+			}
+			
+			// Vertical extent of the polygon in every column its edges cross
+			for(int c=0;c<n;c++){
+				colMin[c]=Float.MAX_VALUE;
+				colMax[c]=-Float.MAX_VALUE;
+			}
+			for(int i=0;i<corners;i++){
+				float x1=cx[i], y1=cy[i];
+				float x2=cx[(i+1)%corners], y2=cy[(i+1)%corners];
+				if(x1>x2){
+					float t=x1; x1=x2; x2=t;
+					t=y1; y1=y2; y2=t;
+				}
+				int first=Math.max((int)Math.ceil(x1), 0);
+				int last=Math.min((int)Math.floor(x2), n-1);
+				for(int c=first;c<=last;c++){
+					// A vertical edge covers its whole length
+					float yLow = x2==x1 ? Math.min(y1, y2) : y1+(c-x1)*(y2-y1)/(x2-x1);
+					float yHigh = x2==x1 ? Math.max(y1, y2) : yLow;
+					if(yLow<colMin[c]) colMin[c]=yLow;
+					if(yHigh>colMax[c]) colMax[c]=yHigh;
+				}
+			}
+			
+			for(int c=0;c<n;c++){
+				if(colMin[c]>colMax[c])
+					continue;
+				boolean upper;
+				if(colMax[c]>=LEVELS)
+					upper=true;
+				else if(colMin[c]<=0)
+					upper=false;
+				else
+					upper=colMin[c]+colMax[c]>=2*CENTER;
+				
+				if(upper)
+					mHigh[c]=Math.min(mHigh[c], (int)Math.ceil(colMin[c])-1);
+				else
+					mLow[c]=Math.max(mLow[c], (int)Math.floor(colMax[c])+1);
+			}
+		}
+		
+		compiledTimeDiv=timeDiv;
+		compiledVoltDiv=voltDiv;
+		compiledTriggerPos=triggerPos;
+		compiled=true;
+		verticesValid=false;
+	}
+	
+	/**
+	 * Check a frame of the mask channel against the mask. Frames of other channels are ignored.
+	 * @param channel channel the frame belongs to
+	 * @param data samples
+	 * @param numSamples number of samples
+	 * @param trigAddress trigger address of the frame
+	 * @return false when the frame failed
+	 */
+	public boolean test(AnalogChannel channel, int[] data, int numSamples, int trigAddress)
+	{
+		if(!testing || halted || channel!=mChannel)
+			return true;
+		
+		int timeDiv=channel.getTimeDiv();
+		int voltDiv=channel.getVoltDiv();
+		int triggerPos=channel.getTriggerPos();
+		
+		boolean failed;
+		synchronized(this){
+			if(!compiled || numSamples!=numColumns || timeDiv!=compiledTimeDiv 
+					|| voltDiv!=compiledVoltDiv || triggerPos!=compiledTriggerPos)
+				compile(numSamples, timeDiv, voltDiv, triggerPos);
+			
+			final int[] low=mLow;
+			final int[] high=mHigh;
+			int index=trigAddress-triggerColumn;
+			if(index<0)
+				index+=numSamples;
+			
+			int violations=0;
+			for(int c=0;c<numSamples;c++){
+				int value=data[index];
+				if(value<low[c] || value>high[c]){
+					if(violations<MAX_POSITIONS)
+						lastPositions[violations]=c-triggerColumn;
+					columnViolations[c]++;
+					violations++;
+				}
+				if(++index==numSamples)
+					index=0;
+			}
+			
+			failed=violations>0;
+			if(failed){
+				failCount++;
+				violationCount+=violations;
+				numLastPositions=Math.min(violations, MAX_POSITIONS);
+			}else
+				passCount++;
+			
+			if(failed && stopOnFail)
+				halted=true;
+		}
+		
+		if(failed && stopOnFail){
+			Message msg = mHandler.obtainMessage(MASK_FAILED);
+			msg.arg1=(int)failCount;
+			mHandler.sendMessage(msg);
+		}
+		return !failed;
+	}
+	
+	/**
+	 * Draw the compiled mask boundaries on the mask channel
+	 * @param canvas Canvas to draw on
+	 */
+	public synchronized void drawMask(Canvas canvas)
+	{
+		AnalogChannel channel=mChannel;
+		if(channel==null || !compiled || !channel.isEnabled())
+			return;
+		
+		int version=channel.getViewVersion();
+		if(!verticesValid || version!=verticesVersion){
+			if(lowVertices==null || lowVertices.length<4*numColumns){
+				lowVertices=new float[4*numColumns];
+				highVertices=new float[4*numColumns];
+				dispData=new int[numColumns];
+			}
+			numVertices=channel.calcVertices(mLow, triggerColumn, dispData, lowVertices);
+			if(numVertices>0)
+				numVertices=channel.calcVertices(mHigh, triggerColumn, dispData, highVertices);
+			verticesVersion=version;
+			verticesValid=true;
+		}
+		if(numVertices>0){
+			canvas.drawLines(lowVertices, 0, numVertices, maskPaint);
+			canvas.drawLines(highVertices, 0, numVertices, maskPaint);
+		}
+	}
+	
+	/**
+	 * Start or stop testing, starting clears a stop on failure
+	 * @param enabled true to test every frame
+	 */
+	public synchronized void setTesting(boolean enabled)
+	{
+		if(enabled && mChannel!=null && mChannel.getNumSamples()!=numColumns){
+			compile(mChannel.getNumSamples(), mChannel.getTimeDiv(), mChannel.getVoltDiv(), 
+					mChannel.getTriggerPos());
+		}
+		testing=enabled && mChannel!=null;
+		halted=false;
+	}
+	
+	/**
+	 * 
+	 * @return true while testing
+	 */
+	public boolean isTesting()
+	{
+		return testing;
+	}
+	
+	/**
+	 * 
+	 * @param stop true to stop testing on the first failed frame
+	 */
+	public void setStopOnFail(boolean stop)
+	{
+		stopOnFail=stop;
+	}
+	
+	/**
+	 * 
+	 * @return true when testing stops on the first failed frame
+	 */
+	public boolean isStopOnFail()
+	{
+		return stopOnFail;
+	}
+	
+	/**
+	 * 
+	 * @return true when testing stopped on a failed frame, the failed frame should
+	 * stay on the screen
+	 */
+	public boolean isHalted()
+	{
+		return halted;
+	}
+	
+	/**
+	 * Reset pass, fail and violation counts
+	 */
+	public synchronized void resetCounts()
+	{
+		passCount=0;
+		failCount=0;
+		violationCount=0;
+		numLastPositions=0;
+		for(int c=0;c<columnViolations.length;c++)
+			columnViolations[c]=0;
+	}
+	
+	/**
+	 * 
+	 * @return number of frames that passed
+	 */
+	public synchronized long getPassCount()
+	{
+		return passCount;
+	}
+	
+	/**
+	 * 
+	 * @return number of frames that failed
+	 */
+	public synchronized long getFailCount()
+	{
+		return failCount;
+	}
+	
+	/**
+	 * 
+	 * @return number of samples outside the mask, over all frames
+	 */
+	public synchronized long getViolationCount()
+	{
+		return violationCount;
+	}
+	
+	/**
+	 * Positions of the first violations in the last failed frame
+	 * @return sample positions relative to the trigger
+	 */
+	public synchronized int[] getLastViolations()
+	{
+		int[] positions = new int[numLastPositions];
+		System.arraycopy(lastPositions, 0, positions, 0, numLastPositions);
+		return positions;
+	}
+	
+	/**
+	 * Number of violations per sample position over all frames
+	 * @return array with the trigger at getTriggerColumn()
+	 */
+	public synchronized int[] getColumnViolations()
+	{
+		return columnViolations.clone();
+	}
+	
+	/**
+	 * 
+	 * @return sample position of the trigger in getColumnViolations()
+	 */
+	public synchronized int getTriggerColumn()
+	{
+		return triggerColumn;
+	}
+}
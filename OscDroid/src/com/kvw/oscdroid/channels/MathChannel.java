@@ -0,0 +1,288 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+import android.os.Handler;
+
+/**
+ * Math channel, computed from CH1 and CH2 for every frame and drawn and measured 
+ * like an AnalogChannel.
+ * 
+ * The expression is compiled into an Evaluator once, when it is set or when the
+ * volt or time division of a source changes. Every frame is then computed in one 
+ * loop into a buffer owned by the channel, without allocating. The result has the
+ * volt division of source A. Integrate gives V times the time division, differentiate
+ * gives V per time division.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class MathChannel extends AnalogChannel {
+	
+	public static final int OP_OFF=0;
+	public static final int OP_ADD=1;
+	public static final int OP_SUBTRACT=2;
+	public static final int OP_MULTIPLY=3;
+	public static final int OP_INVERT=4;
+	public static final int OP_INTEGRATE=5;
+	public static final int OP_DIFFERENTIATE=6;
+	
+	private static final int CENTER=128;
+	private static final int MAX_LEVEL=255;
+	
+	private int mOperation=OP_OFF;
+	private AnalogChannel sourceA;
+	private AnalogChannel sourceB;
+	
+	private Evaluator mEvaluator=null;
+	private int compiledDivA=-1;
+	private int compiledDivB=-1;
+	private int compiledTimeDiv=-1;
+	
+	private int[] mResult = new int[0];
+	
+	/**
+	 * Computes a frame. a and b are the source samples, start is the oldest sample,
+	 * the samples wrap around at n.
+	 */
+	private static abstract class Evaluator {
+		abstract void evaluate(int[] a, int[] b, int[] out, int n, int start);
+	}
+	
+	/**
+	 * Constructor
+	 * @param handler Handler to send messages back to the main activity
+	 */
+	public MathChannel(Handler handler)
+	{
+		super(handler, "MATH");
+	}
+	
+	/**
+	 * Set the expression to compute
+	 * @param operation OP_ constant, OP_OFF to disable the channel
+	 * @param a source A, the only source of the single source operations
+	 * @param b source B, null for single source operations
+	 */
+	public synchronized void setExpression(int operation, AnalogChannel a, AnalogChannel b)
+	{
+		mOperation=operation;
+		sourceA=a;
+		sourceB= operation<=OP_MULTIPLY ? b : null;
+		mEvaluator=null;
+		setEnabled(operation!=OP_OFF && a!=null && (operation>OP_MULTIPLY || b!=null));
+	}
+	
+	/**
+	 * 
+	 * @return current operation, OP_ constant
+	 */
+	public synchronized int getOperation()
+	{
+		return mOperation;
+	}
+	
+	/**
+	 * 
+	 * @return description of the expression, e.g. CH1 + CH2
+	 */
+	public synchronized String getDescription()
+	{
+		String a = sourceA!=null ? sourceA.getName() : "";
+		String b = sourceB!=null ? sourceB.getName() : "";
+		switch(mOperation){
+		case OP_ADD:
+			return a + " + " + b;
+		case OP_SUBTRACT:
+			return a + " - " + b;
+		case OP_MULTIPLY:
+			return a + " x " + b;
+		case OP_INVERT:
+			return "-" + a;
+		case OP_INTEGRATE:
+			return "integrate " + a;
+		case OP_DIFFERENTIATE:
+			return "d/dt " + a;
+		default:
+			return "off";
+		}
+	}
+	
+	/**
+	 * Compute the math channel from the current datasets of source A and source B
+	 * and set it as the new dataset. Nothing is computed while a source is disabled,
+	 * its dataset is not updated then.
+	 * @param trigAddress trigger address of the frame
+	 */
+	public void compute(int trigAddress)
+	{
+		if(!isEnabled())
+			return;
+		
+		AnalogChannel channelA;
+		AnalogChannel channelB;
+		synchronized(this){
+			channelA=sourceA;
+			channelB=sourceB;
+		}
+		if(channelA==null || !channelA.isEnabled() || (channelB!=null && !channelB.isEnabled()))
+			return;
+		
+		int[] a;
+		int aSamples;
+		synchronized(channelA){
+			a=channelA.getCurrentData();
+			aSamples=channelA.getNumSamples();
+		}
+		int[] b=null;
+		int bSamples=0;
+		if(channelB!=null){
+			synchronized(channelB){
+				b=channelB.getCurrentData();
+				bSamples=channelB.getNumSamples();
+			}
+		}
+		if(aSamples==0 || (channelB!=null && bSamples!=aSamples))
+			return;
+		
+		synchronized(this){
+			// The expression changed meanwhile
+			if(channelA!=sourceA || channelB!=sourceB)
+				return;
+			
+			int divA=channelA.getVoltDiv();
+			int divB= channelB!=null ? channelB.getVoltDiv() : -1;
+			int timeDiv=channelA.getTimeDiv();
+			if(mEvaluator==null || divA!=compiledDivA || divB!=compiledDivB || timeDiv!=compiledTimeDiv){
+				mEvaluator=compile(divA, divB, timeDiv);
+				compiledDivA=divA;
+				compiledDivB=divB;
+				compiledTimeDiv=timeDiv;
+				if(getVoltDiv()!=divA)
+					setVoltDivs(divA);
+			}
+			
+			if(mResult.length!=aSamples)
+				mResult=new int[aSamples];
+			
+			int start=trigAddress-getTriggerColumn(aSamples, channelA.getTriggerPos());
+			if(start<0)
+				start+=aSamples;
+			mEvaluator.evaluate(a, b, mResult, aSamples, start);
+		}
+		copyNewData(mResult, aSamples, trigAddress);
+	}
+	
+	/**
+	 * Create the evaluator for the current operation and scales
+	 */
+	private Evaluator compile(int divA, int divB, int timeDiv)
+	{
+		// Everything is expressed in levels of source A
+		final float scaleB = divB>=0 ? Measurement.toVolts(1, divB)/Measurement.toVolts(1, divA) : 0;
+		final float voltsA = Measurement.toVolts(1, divA);
+		final float samplesPerDiv = Math.max(getScreenSamples(timeDiv)/10f, 1);
+		
+		switch(mOperation){
+		case OP_ADD:
+			return new Evaluator(){
+				void evaluate(int[] a, int[] b, int[] out, int n, int start){
+					for(int i=0;i<n;i++)
+						out[i]=clip(a[i]+(b[i]-CENTER)*scaleB);
+				}
+			};
+		case OP_SUBTRACT:
+			return new Evaluator(){
+				void evaluate(int[] a, int[] b, int[] out, int n, int start){
+					for(int i=0;i<n;i++)
+						out[i]=clip(a[i]-(b[i]-CENTER)*scaleB);
+				}
+			};
+		case OP_MULTIPLY:
+			// Product in V^2, displayed as V on the volt division of A
+			final float scaleProduct = voltsA*scaleB;
+			return new Evaluator(){
+				void evaluate(int[] a, int[] b, int[] out, int n, int start){
+					for(int i=0;i<n;i++)
+						out[i]=clip(CENTER+(a[i]-CENTER)*(b[i]-CENTER)*scaleProduct);
+				}
+			};
+		case OP_INVERT:
+			return new Evaluator(){
+				void evaluate(int[] a, int[] b, int[] out, int n, int start){
+					for(int i=0;i<n;i++){
+						int value=2*CENTER-a[i];
+						out[i] = value>MAX_LEVEL ? MAX_LEVEL : value;
+					}
+				}
+			};
+		case OP_INTEGRATE:
+			final float scaleIntegral = 1/samplesPerDiv;
+			return new Evaluator(){
+				void evaluate(int[] a, int[] b, int[] out, int n, int start){
+					float sum=0;
+					int index=start;
+					for(int i=0;i<n;i++){
+						sum+=a[index]-CENTER;
+						out[index]=clip(CENTER+sum*scaleIntegral);
+						if(++index==n)
+							index=0;
+					}
+				}
+			};
+		case OP_DIFFERENTIATE:
+			// Central difference over a tenth of a division, to keep the noise down
+			final int width = Math.max((int)(samplesPerDiv/10), 1);
+			final float scaleDiff = samplesPerDiv/(2*width);
+			return new Evaluator(){
+				void evaluate(int[] a, int[] b, int[] out, int n, int start){
+					int index=start;
+					for(int i=0;i<n;i++){
+						int prev = i>=width ? index-width : start;
+						int next = i<n-width ? index+width : start-1;
+						if(prev<0) prev+=n;
+						if(next>=n) next-=n;
+						if(next<0) next+=n;
+						out[index]=clip(CENTER+(a[next]-a[prev])*scaleDiff);
+						if(++index==n)
+							index=0;
+					}
+				}
+			};
+		default:
+			return new Evaluator(){
+				void evaluate(int[] a, int[] b, int[] out, int n, int start){
+					for(int i=0;i<n;i++)
+						out[i]=CENTER;
+				}
+			};
+		}
+	}
+	
+	private static int clip(float value)
+	{
+		if(value<0)
+			return 0;
+		if(value>MAX_LEVEL)
+			return MAX_LEVEL;
+		return (int)(value+0.5f);
+	}
+}
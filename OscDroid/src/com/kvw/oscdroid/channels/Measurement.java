@@ -21,12 +21,17 @@
 
 package com.kvw.oscdroid.channels;
 
-import android.os.Bundle;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
 /**
+ * Measures every 500 ms into one of two preallocated MeasurementResults. A finished
+ * snapshot is published by switching the published index, the UI holds the published
+ * snapshot while formatting it and the measurement thread never writes a snapshot
+ * the UI holds. MSG_MEASUREMENTS is only sent when the results changed.
+ * 
  * @author K. van Wijk
  */
 public class Measurement extends Thread{
@@ -37,9 +42,11 @@ public class Measurement extends Thread{
 	private static final String TAG = "oscdroid.channels.measurement";
 	
 	public static final int MSG_MEASUREMENTS=10;
-	public static final String MEASUREMENT_RESULT = "result";
-
-	public static final String SOURCE="chSource";
+	
+	/** mState bits: index of the published snapshot, UI holds a snapshot, index it holds */
+	private static final int PUBLISHED=1;
+	private static final int HOLDING=2;
+	private static final int HELD=4;
 	
 	private AnalogMeasurement[] measurementArray;
 	private Cursor curv1;
@@ -53,13 +60,36 @@ public class Measurement extends Thread{
 	private int numMeasurements=0;
 	
 	// First 2 in ns, then 9x in us, then 9x in ms, then 4x in s
-	private float[] mTimeConversion=new float[]{500,1000,2.5f,5,10,25,50,100,250,
+	private static final float[] mTimeConversion=new float[]{500,1000,2.5f,5,10,25,50,100,250,
 			500,1000,2.5f,5,10,25,50,100,250,500,1000,2.5f,5,10,25};
 	
 	// 6 in mV, 5 in V
-	private float[] mVoltConversion = new float[]{16,40,80,160,400,800,1.6f,4,8,16,40};
+	private static final float[] mVoltConversion = new float[]{16,40,80,160,400,800,1.6f,4,8,16,40};
+	
+	/** WaveformMeasurements value of the measurement types, -1 for the others */
+	private static final int[] KERNEL_VALUES = new int[]{-1,-1,
+		WaveformMeasurements.MAX,WaveformMeasurements.MIN,WaveformMeasurements.PKPK,WaveformMeasurements.FREQUENCY,
+		WaveformMeasurements.MEAN,WaveformMeasurements.RMS,WaveformMeasurements.AC_RMS,
+		WaveformMeasurements.AMPLITUDE,WaveformMeasurements.TOP,WaveformMeasurements.BASE,
+		WaveformMeasurements.OVERSHOOT,WaveformMeasurements.RISE_TIME,WaveformMeasurements.FALL_TIME,
+		WaveformMeasurements.PERIOD,WaveformMeasurements.POS_WIDTH,WaveformMeasurements.NEG_WIDTH,
+		WaveformMeasurements.DUTY,WaveformMeasurements.EDGES};
 	
 	private boolean mRun=false;
+	private volatile boolean showStatistics=false;
+	private volatile boolean gated=false;
+	private ChannelPairMeasurements mPair;
+	
+	/** First measurement type between channel 1 and 2, DELAY..CORRELATION_DELAY */
+	public static final int PAIR_TYPES=20;
+	/** First measurement type of the harmonic analysis, THD..ENOB */
+	public static final int HARMONIC_TYPES=24;
+	
+	/** HarmonicAnalysis value of the harmonic measurement types */
+	private static final int[] HARMONIC_VALUES = new int[]{HarmonicAnalysis.THD,HarmonicAnalysis.THD_PERCENT,
+		HarmonicAnalysis.SNR,HarmonicAnalysis.SINAD,HarmonicAnalysis.SFDR,HarmonicAnalysis.ENOB};
+	private final MeasurementResults[] mResults = {new MeasurementResults(), new MeasurementResults()};
+	private final AtomicInteger mState = new AtomicInteger(0);
 	
 	/**
 	 * Constructor for Measurement class. Implements doing the measurements
@@ -71,6 +101,153 @@ public class Measurement extends Thread{
 		measurementArray = new AnalogMeasurement[MAX_MEASUREMENTS];
 	}
 	
+	/**
+	 * Convert an 8-bit sample to volts, scaled like the measurement readouts
+	 * @param value sample value
+	 * @param voltDiv volt division the sample was acquired with
+	 * @return value in volts
+	 */
+	public static float toVolts(float value, int voltDiv)
+	{
+		float val=value/255*mVoltConversion[voltDiv];
+		return voltDiv<6 ? val/1000 : val;
+	}
+	
+	/**
+	 * 
+	 * @param timeDiv time division
+	 * @return time across the screen in seconds
+	 */
+	public static float getScreenTime(int timeDiv)
+	{
+		float val=mTimeConversion[timeDiv];
+		if(timeDiv<2)
+			return val*1e-9f;
+		if(timeDiv<=10)
+			return val*1e-6f;
+		if(timeDiv<=19)
+			return val*1e-3f;
+		return val;
+	}
+	
+	/**
+	 * 
+	 * @param id WaveformMeasurements value
+	 * @return MeasurementResults unit of the value
+	 */
+	private static int getUnit(int id)
+	{
+		switch(id){
+		case WaveformMeasurements.OVERSHOOT:
+		case WaveformMeasurements.DUTY:
+			return MeasurementResults.UNIT_PERCENT;
+		case WaveformMeasurements.EDGES:
+			return MeasurementResults.UNIT_NONE;
+		case WaveformMeasurements.RISE_TIME:
+		case WaveformMeasurements.FALL_TIME:
+		case WaveformMeasurements.PERIOD:
+		case WaveformMeasurements.POS_WIDTH:
+		case WaveformMeasurements.NEG_WIDTH:
+			return MeasurementResults.UNIT_SECOND;
+		case WaveformMeasurements.FREQUENCY:
+			return MeasurementResults.UNIT_HERTZ;
+		default:
+			return MeasurementResults.UNIT_VOLT;
+		}
+	}
+	
+	/**
+	 * 
+	 * @param show true to display mean, standard deviation, minimum and maximum
+	 * of the automatic measurements
+	 */
+	public void setShowStatistics(boolean show)
+	{
+		showStatistics=show;
+	}
+	
+	/**
+	 * 
+	 * @return true when the statistics are displayed
+	 */
+	public boolean isShowStatistics()
+	{
+		return showStatistics;
+	}
+	
+	/**
+	 * Restrict the automatic measurements that allow it to the samples between the
+	 * time cursors, see WaveformMeasurements.isGatable()
+	 * @param gate true to measure between the time cursors
+	 */
+	public synchronized void setGated(boolean gate)
+	{
+		gated=gate;
+		boolean cursors=gate;
+		synchronized(measurementArray){
+			for(int i=0;i<numMeasurements;i++)
+				if(measurementArray[i].mType==0)
+					cursors=true;
+		}
+		curt1.setEnabled(cursors);
+		curt2.setEnabled(cursors);
+	}
+	
+	/**
+	 * 
+	 * @return true when measuring between the time cursors
+	 */
+	public boolean isGated()
+	{
+		return gated;
+	}
+	
+	/**
+	 * Restart the statistics of all measured sources
+	 */
+	public void resetStatistics()
+	{
+		synchronized(measurementArray){
+			for(int i=0;i<numMeasurements;i++)
+				measurementArray[i].mSource.getMeasurements().getStatistics().reset();
+		}
+	}
+	
+	/**
+	 * Add reference to the measurements between channel 1 and 2
+	 * @param pair
+	 */
+	public void setChannelPair(ChannelPairMeasurements pair)
+	{
+		mPair=pair;
+	}
+	
+	/**
+	 * Cross correlation is only done while a measurement needs it
+	 */
+	private void updateCorrelation()
+	{
+		boolean correlation=false;
+		for(int i=0;i<numMeasurements;i++)
+			if(measurementArray[i].mType==PAIR_TYPES+ChannelPairMeasurements.CORRELATION_DELAY)
+				correlation=true;
+		if(mPair!=null)
+			mPair.setCorrelation(correlation);
+	}
+	
+	/**
+	 * Harmonic analysis of a source is only done while a measurement needs it
+	 * @param source source of an added or removed measurement
+	 */
+	private void updateHarmonics(AnalogChannel source)
+	{
+		boolean analyse=false;
+		for(int i=0;i<numMeasurements;i++)
+			if(measurementArray[i].mSource==source && measurementArray[i].mType>=HARMONIC_TYPES)
+				analyse=true;
+		source.setHarmonicAnalysis(analyse);
+	}
+	
 	/**
 	 * Add measurement to be calculated and displayed
 	 * 
@@ -93,8 +270,12 @@ public class Measurement extends Thread{
 			curv2.setEnabled(true);
 		}
 		
-		measurementArray[numMeasurements] = new AnalogMeasurement(channel, chan, type);
-		numMeasurements++;
+		synchronized(measurementArray){
+			measurementArray[numMeasurements] = new AnalogMeasurement(channel, chan, type);
+			numMeasurements++;
+			updateCorrelation();
+			updateHarmonics(channel);
+		}
 	}
 	
 	/**
@@ -120,7 +301,7 @@ public class Measurement extends Thread{
 	{
 		synchronized(measurementArray){
 			
-			if(measurementArray[which].mType==0){
+			if(measurementArray[which].mType==0 && !gated){
 				curt1.setEnabled(false);
 				curt2.setEnabled(false);
 			}
@@ -129,12 +310,14 @@ public class Measurement extends Thread{
 				curv2.setEnabled(false);
 			}
 			
+			AnalogChannel source=measurementArray[which].mSource;
 			for(int i=which;i<numMeasurements;i++)
 				measurementArray[i]= i<numMeasurements-1 ? measurementArray[i+1] : null;
 
+			numMeasurements = numMeasurements>0 ? numMeasurements-1 : 0 ;
+			updateCorrelation();
+			updateHarmonics(source);
 		}
-		
-		numMeasurements = numMeasurements>0 ? numMeasurements-1 : 0 ;
 	}
 		
 	/**
@@ -147,6 +330,33 @@ public class Measurement extends Thread{
 		mRun=run;
 	}
 	
+	/**
+	 * Get the latest results, they stay valid until releaseResults() is called.
+	 * Only called from the UI thread
+	 * @return published results
+	 */
+	public MeasurementResults acquireResults()
+	{
+		int state;
+		int published;
+		do{
+			state=mState.get();
+			published=state & PUBLISHED;
+		}while(!mState.compareAndSet(state, published | HOLDING | (published!=0 ? HELD : 0)));
+		return mResults[published];
+	}
+	
+	/**
+	 * Done with the results returned by acquireResults()
+	 */
+	public void releaseResults()
+	{
+		int state;
+		do{
+			state=mState.get();
+		}while(!mState.compareAndSet(state, state & PUBLISHED));
+	}
+	
 	/**
 	 * Main loop of the thread
 	 */
@@ -158,128 +368,135 @@ public class Measurement extends Thread{
             try {            	
             	synchronized(this){wait(500);}
             	
-    			for(int i=0;i<numMeasurements;i++){
-    				float val=0;
-    				float diff=0;
-    				int timeDiv = measurementArray[i].mSource.getTimeDiv();
-    				int voltDiv = measurementArray[i].mSource.getVoltDiv();
-    				String result=null;
-    				Message msg = new Message();
-                	msg.what=MSG_MEASUREMENTS;
-                	msg.arg1=-1;
-                	msg.arg2=-1;
-                	Bundle msgData = new Bundle();
-    				
-                	// Check measurement type, set correct result
-    				switch(measurementArray[i].mType){
-    				case 0: 	//delta-T measurement
-    					diff = curt2.getPos()-curt1.getPos();//reversed, because of coordinate system on tablet
-    					val = diff/scrnWidth*mTimeConversion[timeDiv];   
-    					
-    					if(timeDiv<2)
-    						result=String.format("%.2f",val) + " ns";
-    					if(timeDiv>=2 && timeDiv<=10)
-    						result=String.format("%.2f",val) + " us";
-    					if(timeDiv>=11 && timeDiv<=19)
-    						result=String.format("%.2f",val) + " ms";
-    					if(timeDiv>19)
-    						result=String.format("%.2f", val) + " s";
-    					
-    					break;
-    				case 1: 	//delta-V measurement
-    					diff = curv2.getPos()-curv1.getPos(); //reversed, because of coordinate system on tablet 
-    					val = diff/scrnHeight*mVoltConversion[voltDiv];
-    					
-    					if(voltDiv<6)
-    						result = String.format("%.2f", val) + " mV";
-    					if(voltDiv>=6)
-    						result=String.format("%.2f", val) + " V";
-    					
-    					break;
-    				case 2: 	//maximum	
-    					synchronized(measurementArray[i].mSource){
-    						val = measurementArray[i].mSource.getMaximum();
-	    					}
-    					val = val/255*mVoltConversion[voltDiv];
-    					if(voltDiv<6)
-    						result = String.format("%.2f", val) + " mV";
-    					if(voltDiv>=6)
-    						result=String.format("%.2f", val) + " V";
-    					
-    					break;
-    				case 3: 	//minimum
-    					synchronized(measurementArray[i].mSource){
-    						val = measurementArray[i].mSource.getMinimum();
-	    					}
-    					val = val/255*mVoltConversion[voltDiv];
-    					if(voltDiv<6)
-    						result = String.format("%.2f", val) + " mV";
-    					if(voltDiv>=6)
-    						result=String.format("%.2f", val) + " V";
-    					break;
-    				case 4:		//Pk-Pk
-    					synchronized(measurementArray[i].mSource){
-    						val = measurementArray[i].mSource.getPkPk();
-	    					}
-    					val = val/255*mVoltConversion[voltDiv];
-    					if(voltDiv<6)
-    						result = String.format("%.2f", val) + " mV";
-    					if(voltDiv>=6)
-    						result=String.format("%.2f", val) + " V";
-    					break;
-    				case 5:		//Frequency				
-    					val = measurementArray[i].mSource.getFreq();
-    					String append =" Hz";
-    					if(val/1000<1){
-    						append = " Hz";
-    						result=String.format("%.2f",val) + append;
-    					} else if (val/1000000<1){
-    						val=val/1000;
-    						append = " kHz";
-    						result=String.format("%.2f",val) + append;
-    					} else if(val/1000000>1){
-    						val=val/1000000;
-    						append = " MHz";
-    						result=String.format("%.2f",val) + append;
-    					} else {
-    						append=" Hz";
-    						result=String.format("%.2f", val)+append;
-    					}
-    					break;
-    				case 6:		//Average
-    					val = measurementArray[i].mSource.getAverage();
-    					val = val/255*mVoltConversion[voltDiv];
-    					if(voltDiv<6)
-						result = String.format("%.2f", val) + " mV";
-    					if(voltDiv>=6)
-						result=String.format("%.2f", val) + " V";
-    					break;
-    				default:
-    					result="...";
-    					break;
-    				}
-    				
-    				synchronized(measurementArray[i].mSource){
-						msg.arg1= measurementArray[i].mType;
-						msg.arg2=i;
-						
-    					msgData.putString(MEASUREMENT_RESULT, result);
-    					msgData.putInt(SOURCE, measurementArray[i].mChan);
-    				}
-    				msg.setData(msgData);
-        			if(msg.arg1!=-1)
-        				mHandler.sendMessage(msg);
-    			}            	
+            	// Fill the snapshot that is not published, unless the UI still holds it
+            	int state=mState.get();
+            	int back=(state & PUBLISHED)^1;
+            	if((state & HOLDING)!=0 && ((state & HELD)!=0 ? 1 : 0)==back)
+            		continue;
+            	
+            	MeasurementResults results=mResults[back];
+            	synchronized(measurementArray){
+            		for(int i=0;i<numMeasurements;i++)
+            			measure(measurementArray[i], results, i);
+            		results.setCount(numMeasurements);
+            	}
+            	if(results.isSame(mResults[back^1]))
+            		continue;
+            	
+            	do{
+            		state=mState.get();
+            	}while(!mState.compareAndSet(state, (state & ~PUBLISHED) | back));
+            	mHandler.sendEmptyMessage(MSG_MEASUREMENTS);
             }catch(Exception e){Log.e(TAG,e.toString());}
 		}
 	}
 	
+	/**
+	 * Measure one measurement into the results
+	 * @param measurement measurement to do
+	 * @param results results to fill
+	 * @param i index of the result
+	 */
+	private void measure(AnalogMeasurement measurement, MeasurementResults results, int i)
+	{
+		int timeDiv = measurement.mSource.getTimeDiv();
+		int voltDiv = measurement.mSource.getVoltDiv();
+		int voltExponent = voltDiv<6 ? -3 : 0;
+		float diff;
+		
+		switch(measurement.mType){
+		case 0: 	//delta-T measurement
+			diff = curt2.getPos()-curt1.getPos();//reversed, because of coordinate system on tablet
+			int timeExponent = timeDiv<2 ? -9 : timeDiv<=10 ? -6 : timeDiv<=19 ? -3 : 0;
+			results.set(i, measurement.mType, measurement.mChan, diff/scrnWidth*getScreenTime(timeDiv), 
+					MeasurementResults.UNIT_SECOND, timeExponent);
+			break;
+		case 1: 	//delta-V measurement
+			diff = curv2.getPos()-curv1.getPos(); //reversed, because of coordinate system on tablet 
+			float val = diff/scrnHeight*mVoltConversion[voltDiv];
+			results.set(i, measurement.mType, measurement.mChan, voltDiv<6 ? val/1000 : val, 
+					MeasurementResults.UNIT_VOLT, voltExponent);
+			break;
+		case PAIR_TYPES+ChannelPairMeasurements.DELAY:
+		case PAIR_TYPES+ChannelPairMeasurements.CORRELATION_DELAY:
+			double delay = mPair!=null ? mPair.getValue(measurement.mType-PAIR_TYPES) : Double.NaN;
+			results.set(i, measurement.mType, measurement.mChan, delay, MeasurementResults.UNIT_SECOND, 
+					MeasurementResults.getExponent(delay));
+			break;
+		case PAIR_TYPES+ChannelPairMeasurements.PHASE:
+			results.set(i, measurement.mType, measurement.mChan, 
+					mPair!=null ? mPair.getValue(ChannelPairMeasurements.PHASE) : Double.NaN, 
+					MeasurementResults.UNIT_DEGREE, 0);
+			break;
+		case PAIR_TYPES+ChannelPairMeasurements.RATIO:
+			results.set(i, measurement.mType, measurement.mChan, 
+					mPair!=null ? mPair.getValue(ChannelPairMeasurements.RATIO) : Double.NaN, 
+					MeasurementResults.UNIT_RATIO, 0);
+			break;
+		case HARMONIC_TYPES:
+		case HARMONIC_TYPES+2:
+		case HARMONIC_TYPES+3:
+		case HARMONIC_TYPES+4:
+			results.set(i, measurement.mType, measurement.mChan, 
+					measurement.mSource.getHarmonicAnalysis().getValue(HARMONIC_VALUES[measurement.mType-HARMONIC_TYPES]), 
+					MeasurementResults.UNIT_DB, 0);
+			break;
+		case HARMONIC_TYPES+1:
+			results.set(i, measurement.mType, measurement.mChan, 
+					measurement.mSource.getHarmonicAnalysis().getValue(HarmonicAnalysis.THD_PERCENT), 
+					MeasurementResults.UNIT_PERCENT, 0);
+			break;
+		case HARMONIC_TYPES+5:
+			results.set(i, measurement.mType, measurement.mChan, 
+					measurement.mSource.getHarmonicAnalysis().getValue(HarmonicAnalysis.ENOB), 
+					MeasurementResults.UNIT_BITS, 0);
+			break;
+		default:	//Automatic measurements of the acquisition
+			int id = measurement.mType<KERNEL_VALUES.length ? KERNEL_VALUES[measurement.mType] : -1;
+			if(id<0){
+				results.set(i, measurement.mType, measurement.mChan, Double.NaN, MeasurementResults.UNIT_NONE, 0);
+				break;
+			}
+			
+			double value;
+			boolean gate=gated && WaveformMeasurements.isGatable(id);
+			if(gate)
+				value = measurement.mSource.getMeasurements().getGatedValue(id, 
+						measurement.mSource.getSampleAtX(curt1.getPos()), 
+						measurement.mSource.getSampleAtX(curt2.getPos()));
+			else if(id==WaveformMeasurements.FREQUENCY)
+				value = measurement.mSource.getFreq();
+			else
+				value = measurement.mSource.getMeasurements().getValue(id);
+			
+			int unit=getUnit(id);
+			int exponent;
+			if(unit==MeasurementResults.UNIT_VOLT)
+				exponent=voltExponent;
+			else if(unit==MeasurementResults.UNIT_SECOND || unit==MeasurementResults.UNIT_HERTZ)
+				exponent=MeasurementResults.getExponent(value);
+			else
+				exponent=0;
+			
+			results.set(i, measurement.mType, measurement.mChan, value, unit, exponent);
+			if(gate)
+				results.setGated(i);
+			else if(showStatistics)
+				measurement.mSource.getMeasurements().getStatistics().getStatistics(id, results.setStatistics(i));
+			break;
+		}
+	}
+
 }
 
 
 /**
- * Types, enumerated 0-6:
- * 		delta-T, delta-V, max, min, Pk-Pk, frequency, Average
+ * Types, enumerated 0-29:
+ * 		delta-T, delta-V, max, min, Pk-Pk, frequency, Average, RMS, AC RMS,
+ * 		amplitude, top, base, overshoot, rise time, fall time, period,
+ * 		+width, -width, duty cycle, edge count, between channel 1 and 2:
+ * 		delay, phase, ratio, cross correlation delay, and harmonic analysis:
+ * 		THD, THD %, SNR, SINAD, SFDR, ENOB
  * 
  * @author K. van Wijk
  *
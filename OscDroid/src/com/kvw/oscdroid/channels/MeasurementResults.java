@@ -0,0 +1,308 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+/**
+ * Snapshot of the measurement readouts, preallocated and reused. Values are kept as 
+ * numbers in SI units with the exponent they are displayed with, e.g. -3 for mV. 
+ * The measurement thread fills one snapshot while the UI reads the other, they are 
+ * only formatted on the UI thread, without allocating, when they changed.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class MeasurementResults {
+	
+	public static final int MAX_RESULTS=8;
+	
+	public static final int UNIT_NONE=0;
+	public static final int UNIT_VOLT=1;
+	public static final int UNIT_SECOND=2;
+	public static final int UNIT_HERTZ=3;
+	public static final int UNIT_PERCENT=4;
+	public static final int UNIT_DEGREE=5;
+	public static final int UNIT_RATIO=6;
+	public static final int UNIT_DB=7;
+	public static final int UNIT_BITS=8;
+	public static final int UNIT_BIT_RATE=9;
+	
+	private static final String[] UNITS = {"","V","s","Hz","%","deg","","dB","bits","bit/s"};
+	private static final int RATIO_DECIMALS=3;
+	private static final int DECIMALS=2;
+	
+	private int numResults=0;
+	private final int[] mType = new int[MAX_RESULTS];
+	private final int[] mSource = new int[MAX_RESULTS];
+	private final int[] mUnit = new int[MAX_RESULTS];
+	private final int[] mExponent = new int[MAX_RESULTS];
+	private final double[] mValue = new double[MAX_RESULTS];
+	private final boolean[] hasStatistics = new boolean[MAX_RESULTS];
+	private final boolean[] isGated = new boolean[MAX_RESULTS];
+	private final double[][] mStatistics = new double[MAX_RESULTS][MeasurementStatistics.NUM_STATISTICS];
+	
+	/**
+	 * 
+	 * @return number of results
+	 */
+	public int getCount()
+	{
+		return numResults;
+	}
+	
+	/**
+	 * 
+	 * @param i result
+	 * @return measurement type, see AnalogMeasurement
+	 */
+	public int getType(int i)
+	{
+		return mType[i];
+	}
+	
+	/**
+	 * 
+	 * @param i result
+	 * @return source: 1 for channel 1, 2 for channel 2, 3 for the math channel
+	 */
+	public int getSource(int i)
+	{
+		return mSource[i];
+	}
+	
+	/**
+	 * 
+	 * @param i result
+	 * @return value in SI units, NaN when not available
+	 */
+	public double getValue(int i)
+	{
+		return mValue[i];
+	}
+	
+	/**
+	 * Forget all results
+	 */
+	public void clear()
+	{
+		numResults=0;
+	}
+	
+	void setCount(int count)
+	{
+		numResults=count;
+	}
+	
+	/**
+	 * Set a result
+	 * @param i result
+	 * @param type measurement type
+	 * @param source measurement source
+	 * @param value value in SI units
+	 * @param unit UNIT_NONE..UNIT_PERCENT
+	 * @param exponent power of ten the value is displayed in, multiple of 3
+	 */
+	void set(int i, int type, int source, double value, int unit, int exponent)
+	{
+		mType[i]=type;
+		mSource[i]=source;
+		mValue[i]=value;
+		mUnit[i]=unit;
+		mExponent[i]=exponent;
+		hasStatistics[i]=false;
+		isGated[i]=false;
+	}
+	
+	/**
+	 * Mark a result as measured between the time cursors only
+	 * @param i result
+	 */
+	void setGated(int i)
+	{
+		isGated[i]=true;
+	}
+	
+	/**
+	 * Get the statistics array of a result to fill, the result then shows statistics
+	 * @param i result
+	 * @return array of MeasurementStatistics.NUM_STATISTICS
+	 */
+	double[] setStatistics(int i)
+	{
+		hasStatistics[i]=true;
+		return mStatistics[i];
+	}
+	
+	/**
+	 * 
+	 * @param i result
+	 * @param other other snapshot
+	 * @return true when result i is the same in both snapshots
+	 */
+	public boolean isSame(int i, MeasurementResults other)
+	{
+		if(i>=numResults || i>=other.numResults)
+			return false;
+		if(mType[i]!=other.mType[i] || mSource[i]!=other.mSource[i] || mUnit[i]!=other.mUnit[i] 
+				|| mExponent[i]!=other.mExponent[i] || hasStatistics[i]!=other.hasStatistics[i]
+				|| isGated[i]!=other.isGated[i]
+				|| Double.doubleToLongBits(mValue[i])!=Double.doubleToLongBits(other.mValue[i]))
+			return false;
+		if(hasStatistics[i])
+			for(int s=0;s<MeasurementStatistics.NUM_STATISTICS;s++)
+				if(Double.doubleToLongBits(mStatistics[i][s])!=Double.doubleToLongBits(other.mStatistics[i][s]))
+					return false;
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @param other other snapshot
+	 * @return true when all results are the same in both snapshots
+	 */
+	public boolean isSame(MeasurementResults other)
+	{
+		if(numResults!=other.numResults)
+			return false;
+		for(int i=0;i<numResults;i++)
+			if(!isSame(i, other))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Copy one result from another snapshot
+	 * @param i result
+	 * @param from snapshot to copy from
+	 */
+	public void copy(int i, MeasurementResults from)
+	{
+		if(numResults<=i)
+			numResults=i+1;
+		mType[i]=from.mType[i];
+		mSource[i]=from.mSource[i];
+		mValue[i]=from.mValue[i];
+		mUnit[i]=from.mUnit[i];
+		mExponent[i]=from.mExponent[i];
+		hasStatistics[i]=from.hasStatistics[i];
+		isGated[i]=from.isGated[i];
+		System.arraycopy(from.mStatistics[i], 0, mStatistics[i], 0, MeasurementStatistics.NUM_STATISTICS);
+	}
+	
+	/**
+	 * Append the value of a result with its unit, and the statistics on a new line
+	 * @param i result
+	 * @param text StringBuilder to append to
+	 */
+	public void appendValue(int i, StringBuilder text)
+	{
+		appendNumber(text, mValue[i], mUnit[i], mExponent[i], 
+				mUnit[i]==UNIT_NONE ? 0 : mUnit[i]==UNIT_RATIO ? RATIO_DECIMALS : DECIMALS);
+		if(isGated[i])
+			text.append(" (t1-t2)");
+		if(!hasStatistics[i])
+			return;
+		
+		final double[] statistics=mStatistics[i];
+		final int decimals= mUnit[i]==UNIT_NONE ? 1 : DECIMALS;
+		text.append("\n  mean ");
+		appendNumber(text, statistics[MeasurementStatistics.MEAN], mUnit[i], mExponent[i], decimals);
+		text.append("  sd ");
+		appendNumber(text, statistics[MeasurementStatistics.STDDEV], mUnit[i], mExponent[i], decimals);
+		text.append("  min ");
+		appendNumber(text, statistics[MeasurementStatistics.MIN], mUnit[i], mExponent[i], decimals);
+		text.append("  max ");
+		appendNumber(text, statistics[MeasurementStatistics.MAX], mUnit[i], mExponent[i], decimals);
+		text.append("  n ");
+		appendFixed(text, statistics[MeasurementStatistics.COUNT], 0);
+	}
+	
+	/**
+	 * Append a number with its SI prefix and unit, without allocating. "---" when 
+	 * there is no value
+	 * @param text StringBuilder to append to
+	 * @param value value in SI units
+	 * @param unit UNIT_NONE..UNIT_BIT_RATE
+	 * @param exponent exponent of the prefix, see getExponent()
+	 * @param decimals number of decimals
+	 */
+	static void appendNumber(StringBuilder text, double value, int unit, int exponent, int decimals)
+	{
+		if(Double.isNaN(value) || Double.isInfinite(value)){
+			text.append("---");
+			return;
+		}
+		appendFixed(text, value*Math.pow(10, -exponent), decimals);
+		if(UNITS[unit].length()==0 && exponent==0)
+			return;
+		text.append(' ');
+		switch(exponent){
+		case -9: text.append('n'); break;
+		case -6: text.append('u'); break;
+		case -3: text.append('m'); break;
+		case 3: text.append('k'); break;
+		case 6: text.append('M'); break;
+		}
+		text.append(UNITS[unit]);
+	}
+	
+	/**
+	 * Append a number with a fixed number of decimals, without allocating
+	 */
+	private static void appendFixed(StringBuilder text, double value, int decimals)
+	{
+		long scaled=Math.round(value*Math.pow(10, decimals));
+		if(scaled<0){
+			text.append('-');
+			scaled=-scaled;
+		}
+		
+		// Digits in reverse order, at least one before the point, then turned around
+		int start=text.length();
+		int n=0;
+		do{
+			if(n==decimals && decimals>0)
+				text.append('.');
+			text.append((char)('0'+scaled%10));
+			scaled/=10;
+			n++;
+		}while(scaled>0 || n<=decimals);
+		
+		for(int i=start, j=text.length()-1;i<j;i++,j--){
+			char c=text.charAt(i);
+			text.setCharAt(i, text.charAt(j));
+			text.setCharAt(j, c);
+		}
+	}
+	
+	/**
+	 * Engineering exponent to display a value with
+	 * @param value value in SI units
+	 * @return -9..6, multiple of 3
+	 */
+	static int getExponent(double value)
+	{
+		double abs=Math.abs(value);
+		if(Double.isNaN(abs) || abs==0)
+			return 0;
+		int exponent=(int)Math.floor(Math.log10(abs)/3)*3;
+		return exponent<-9 ? -9 : exponent>6 ? 6 : exponent;
+	}
+}
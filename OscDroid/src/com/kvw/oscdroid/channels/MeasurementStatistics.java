@@ -0,0 +1,180 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running statistics of every automatic measurement over all acquisitions since the 
+ * last reset: count, mean, standard deviation, minimum and maximum. Mean and variance
+ * are updated with Welford's method, so memory is constant and there is no loss of 
+ * precision after many acquisitions.
+ * 
+ * One thread at a time calls update(), WaveformMeasurements serializes its measurements.
+ * The accumulators are published through
+ * a sequence counter: the sequence is odd while the values are written, readers retry
+ * until they read the same even sequence before and after. reset() only sets a flag, 
+ * the writer clears the accumulators on its next update, so readers never block.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class MeasurementStatistics {
+
+	public static final int COUNT=0;
+	public static final int MEAN=1;
+	public static final int STDDEV=2;
+	public static final int MIN=3;
+	public static final int MAX=4;
+	public static final int NUM_STATISTICS=5;
+	
+	/** Published values per measurement: count, mean, M2, min, max */
+	private static final int STRIDE=5;
+	
+	private final int numValues;
+	
+	// Accumulators, only used by the acquisition thread
+	private final long[] mCount;
+	private final double[] mMean;
+	private final double[] mM2;
+	private final double[] mMin;
+	private final double[] mMax;
+	
+	private final AtomicLongArray mPublished;
+	private volatile int mSequence=0;
+	private volatile boolean resetPending=false;
+	
+	/**
+	 * Constructor
+	 * @param values number of measurements to keep statistics of
+	 */
+	public MeasurementStatistics(int values)
+	{
+		numValues=values;
+		mCount=new long[values];
+		mMean=new double[values];
+		mM2=new double[values];
+		mMin=new double[values];
+		mMax=new double[values];
+		mPublished=new AtomicLongArray(values*STRIDE);
+		clear();
+	}
+	
+	/**
+	 * Add the measurements of one acquisition. Called by the acquisition thread only
+	 * @param values measured values, NaN values are skipped
+	 */
+	void update(float[] values)
+	{
+		if(resetPending){
+			resetPending=false;
+			clear();
+		}
+		
+		for(int i=0;i<numValues;i++){
+			double x=values[i];
+			if(Double.isNaN(x))
+				continue;
+			long n=++mCount[i];
+			double delta=x-mMean[i];
+			mMean[i]+=delta/n;
+			mM2[i]+=delta*(x-mMean[i]);
+			if(x<mMin[i]) mMin[i]=x;
+			if(x>mMax[i]) mMax[i]=x;
+		}
+		
+		publish();
+	}
+	
+	/**
+	 * Start again, the accumulators are cleared with the next acquisition
+	 */
+	public void reset()
+	{
+		resetPending=true;
+	}
+	
+	/**
+	 * Read the statistics of one measurement
+	 * @param id measurement, WaveformMeasurements.MEAN..EDGES
+	 * @param out array of at least NUM_STATISTICS, receives count, mean, standard
+	 * deviation, minimum and maximum
+	 * @return number of acquisitions in the statistics
+	 */
+	public long getStatistics(int id, double[] out)
+	{
+		if(resetPending){
+			out[COUNT]=0;
+			out[MEAN]=out[STDDEV]=out[MIN]=out[MAX]=Double.NaN;
+			return 0;
+		}
+		
+		final int offset=id*STRIDE;
+		long count;
+		double mean, m2, min, max;
+		int sequence;
+		do{
+			sequence=mSequence;
+			count=mPublished.get(offset);
+			mean=Double.longBitsToDouble(mPublished.get(offset+1));
+			m2=Double.longBitsToDouble(mPublished.get(offset+2));
+			min=Double.longBitsToDouble(mPublished.get(offset+3));
+			max=Double.longBitsToDouble(mPublished.get(offset+4));
+		}while((sequence & 1)!=0 || sequence!=mSequence);
+		
+		out[COUNT]=count;
+		if(count==0){
+			out[MEAN]=out[STDDEV]=out[MIN]=out[MAX]=Double.NaN;
+			return 0;
+		}
+		out[MEAN]=mean;
+		out[STDDEV]= count>1 ? Math.sqrt(m2/(count-1)) : 0;
+		out[MIN]=min;
+		out[MAX]=max;
+		return count;
+	}
+	
+	private void clear()
+	{
+		for(int i=0;i<numValues;i++){
+			mCount[i]=0;
+			mMean[i]=0;
+			mM2[i]=0;
+			mMin[i]=Double.POSITIVE_INFINITY;
+			mMax[i]=Double.NEGATIVE_INFINITY;
+		}
+		publish();
+	}
+	
+	private void publish()
+	{
+		mSequence++;
+		for(int i=0;i<numValues;i++){
+			final int offset=i*STRIDE;
+			mPublished.set(offset, mCount[i]);
+			mPublished.set(offset+1, Double.doubleToRawLongBits(mMean[i]));
+			mPublished.set(offset+2, Double.doubleToRawLongBits(mM2[i]));
+			mPublished.set(offset+3, Double.doubleToRawLongBits(mMin[i]));
+			mPublished.set(offset+4, Double.doubleToRawLongBits(mMax[i]));
+		}
+		mSequence++;
+	}
+}
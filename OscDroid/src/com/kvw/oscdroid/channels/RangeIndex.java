@@ -0,0 +1,208 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+/**
+ * Indices over one acquisition in time order to measure any span of samples in
+ * constant time: prefix sums of the samples and of their squares for the mean and 
+ * RMS, sparse tables of the minimum and maximum, and the interpolated times of the
+ * rising edges for the frequency.
+ * 
+ * @author K. van Wijk
+ *
+ */
+class RangeIndex {
+	
+	private static final int CENTER=128;
+	
+	private int numSamples=0;
+	private long[] mSum = new long[1];
+	private long[] mSumSquares = new long[1];
+	/** mMin[k][i]: minimum of the 2^k samples from i */
+	private byte[][] mMin = new byte[0][];
+	private byte[][] mMax = new byte[0][];
+	private float[] mRises = new float[0];
+	private int numRises=0;
+	
+	float voltsPerLevel;
+	float sampleTime;
+	
+	/**
+	 * Build the indices of an acquisition
+	 * @param data samples, wrapping around at count
+	 * @param count number of samples
+	 * @param start oldest sample
+	 */
+	void build(int[] data, int count, int start)
+	{
+		if(count!=numSamples){
+			int levels=32-Integer.numberOfLeadingZeros(count);
+			mSum=new long[count+1];
+			mSumSquares=new long[count+1];
+			mMin=new byte[levels][count];
+			mMax=new byte[levels][count];
+			mRises=new float[count/2+1];
+			numSamples=count;
+		}
+		numRises=0;
+		
+		final byte[] min=mMin[0];
+		final byte[] max=mMax[0];
+		int index=start;
+		for(int i=0;i<count;i++){
+			int s=data[index] & 0xFF;
+			if(++index==count)
+				index=0;
+			int x=s-CENTER;
+			mSum[i+1]=mSum[i]+x;
+			mSumSquares[i+1]=mSumSquares[i]+x*x;
+			min[i]=(byte)s;
+			max[i]=(byte)s;
+		}
+		
+		for(int k=1;k<mMin.length;k++){
+			final byte[] minPrev=mMin[k-1];
+			final byte[] maxPrev=mMax[k-1];
+			final byte[] minK=mMin[k];
+			final byte[] maxK=mMax[k];
+			final int half=1<<(k-1);
+			final int last=count-(1<<k);
+			for(int i=0;i<=last;i++){
+				int a=minPrev[i] & 0xFF;
+				int b=minPrev[i+half] & 0xFF;
+				minK[i]=(byte)(a<b ? a : b);
+				a=maxPrev[i] & 0xFF;
+				b=maxPrev[i+half] & 0xFF;
+				maxK[i]=(byte)(a>b ? a : b);
+			}
+		}
+	}
+	
+	/**
+	 * Add the time of a rising edge, in increasing order
+	 * @param time time in samples from the oldest sample
+	 */
+	void addRise(float time)
+	{
+		if(numRises<mRises.length)
+			mRises[numRises++]=time;
+	}
+	
+	/**
+	 * 
+	 * @return number of samples indexed
+	 */
+	int getNumSamples()
+	{
+		return numSamples;
+	}
+	
+	/**
+	 * @param from first sample
+	 * @param to last sample, inclusive
+	 * @return mean in Volts
+	 */
+	float getMean(int from, int to)
+	{
+		return (float)(mSum[to+1]-mSum[from])/(to-from+1)*voltsPerLevel;
+	}
+	
+	/**
+	 * @param from first sample
+	 * @param to last sample, inclusive
+	 * @return RMS in Volts
+	 */
+	float getRms(int from, int to)
+	{
+		return (float)Math.sqrt((double)(mSumSquares[to+1]-mSumSquares[from])/(to-from+1))*voltsPerLevel;
+	}
+	
+	/**
+	 * @param from first sample
+	 * @param to last sample, inclusive
+	 * @return RMS without the mean in Volts
+	 */
+	float getAcRms(int from, int to)
+	{
+		int n=to-from+1;
+		double mean=(double)(mSum[to+1]-mSum[from])/n;
+		double meanSquare=(double)(mSumSquares[to+1]-mSumSquares[from])/n;
+		return (float)Math.sqrt(Math.max(meanSquare-mean*mean, 0))*voltsPerLevel;
+	}
+	
+	/**
+	 * @param from first sample
+	 * @param to last sample, inclusive
+	 * @return minimum sample level
+	 */
+	int getMinLevel(int from, int to)
+	{
+		int k=31-Integer.numberOfLeadingZeros(to-from+1);
+		int a=mMin[k][from] & 0xFF;
+		int b=mMin[k][to-(1<<k)+1] & 0xFF;
+		return a<b ? a : b;
+	}
+	
+	/**
+	 * @param from first sample
+	 * @param to last sample, inclusive
+	 * @return maximum sample level
+	 */
+	int getMaxLevel(int from, int to)
+	{
+		int k=31-Integer.numberOfLeadingZeros(to-from+1);
+		int a=mMax[k][from] & 0xFF;
+		int b=mMax[k][to-(1<<k)+1] & 0xFF;
+		return a>b ? a : b;
+	}
+	
+	/**
+	 * Average period of the rising edges within a span
+	 * @param from first sample
+	 * @param to last sample, inclusive
+	 * @return period in seconds, NaN when there are less than two rising edges
+	 */
+	float getPeriod(int from, int to)
+	{
+		int first=lowerBound(from);
+		int last=lowerBound(to+1)-1;
+		if(last-first<1)
+			return Float.NaN;
+		return (mRises[last]-mRises[first])/(last-first)*sampleTime;
+	}
+	
+	/**
+	 * First rising edge at or after a time
+	 */
+	private int lowerBound(float time)
+	{
+		int low=0;
+		int high=numRises;
+		while(low<high){
+			int mid=(low+high)>>>1;
+			if(mRises[mid]<time)
+				low=mid+1;
+			else
+				high=mid;
+		}
+		return low;
+	}
+}
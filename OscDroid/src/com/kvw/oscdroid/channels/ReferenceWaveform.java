@@ -0,0 +1,300 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+
+/**
+ * Reference waveform memory, REF1..REF4. Stores a copy of a channel acquisition
+ * as one byte per sample and draws it on top of that channel. The display coordinates
+ * are cached and only recalculated when zoom, offset, time division or screen 
+ * size of the channel change.
+ * 
+ * Optionally draws the difference between the live channel and the reference, 
+ * aligned on the trigger, around the center of the screen.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class ReferenceWaveform {
+	
+	public static final int NUM_REFERENCES=4;
+	
+	private final String refName;
+	private final Paint refPaint;
+	private final Paint diffPaint;
+	
+	private AnalogChannel mChannel=null;
+	private byte[] mSamples=null;
+	private int triggerAddress;
+	private int refVoltDiv;
+	private int refTimeDiv;
+	
+	private boolean visible=true;
+	private boolean diffEnabled=false;
+	private volatile int maxDeviation=0;
+	
+	/** Cached display coordinates and the channel view they were calculated for */
+	private float[] mVertices;
+	private int numVertices=0;
+	private int verticesVersion=-1;
+	private boolean verticesValid=false;
+	
+	private int[] mDiff;
+	private float[] mDiffVertices;
+	
+	/** Samples of the reference or difference as int, shared, only used on the draw thread */
+	private static int[] sExpanded = new int[0];
+	private static int[] sDispData = new int[0];
+	
+	/**
+	 * Constructor
+	 * @param name name to display, e.g. REF1
+	 * @param color color of the reference
+	 */
+	public ReferenceWaveform(String name, int color)
+	{
+		refName=name;
+		
+		refPaint=new Paint();
+		refPaint.setStrokeWidth(1f);
+		refPaint.setStyle(Style.STROKE);
+		refPaint.setColor(color);
+		refPaint.setAlpha(160);
+		refPaint.setDither(false);
+		
+		diffPaint=new Paint(refPaint);
+		diffPaint.setAlpha(255);
+	}
+	
+	/**
+	 * Store the current acquisition of a channel, replaces the previous reference.
+	 * The reference is drawn on that channel.
+	 * @param channel channel to copy the acquisition from
+	 * @return false when the acquisition contains min/max pairs, nothing is stored
+	 */
+	public synchronized boolean store(AnalogChannel channel)
+	{
+		int[] data;
+		synchronized(channel){
+			if(channel.isPeakDetect())
+				return false;
+			data=channel.getDataSet();
+		}
+		byte[] samples = mSamples!=null && mSamples.length==data.length ? mSamples : new byte[data.length];
+		for(int i=0;i<data.length;i++)
+			samples[i]=(byte)data[i];
+		
+		mChannel=channel;
+		mSamples=samples;
+		triggerAddress=channel.getTriggerAddress();
+		refVoltDiv=channel.getVoltDiv();
+		refTimeDiv=channel.getTimeDiv();
+		
+		mVertices=new float[4*data.length];
+		mDiff=new int[data.length];
+		mDiffVertices=new float[4*data.length];
+		verticesValid=false;
+		maxDeviation=0;
+		return true;
+	}
+	
+	/**
+	 * Forget the stored reference
+	 */
+	public synchronized void clear()
+	{
+		mChannel=null;
+		mSamples=null;
+		mVertices=null;
+		mDiff=null;
+		mDiffVertices=null;
+		verticesValid=false;
+		maxDeviation=0;
+	}
+	
+	/**
+	 * Draw the reference and the difference trace on the channel it was stored from
+	 * @param canvas Canvas to draw on
+	 */
+	public synchronized void drawReference(Canvas canvas)
+	{
+		AnalogChannel channel=mChannel;
+		if(channel==null || !visible || !channel.isEnabled())
+			return;
+		
+		int version=channel.getViewVersion();
+		if(!verticesValid || version!=verticesVersion){
+			expand(mSamples, mSamples.length);
+			numVertices=channel.calcVertices(sExpanded, triggerAddress, sDispData, mVertices);
+			verticesVersion=version;
+			verticesValid=true;
+		}
+		if(numVertices>0)
+			canvas.drawLines(mVertices, 0, numVertices, refPaint);
+		
+		if(diffEnabled){
+			int num=0;
+			// The live dataset is only stable while holding the channel lock
+			synchronized(channel){
+				int[] live=channel.getCurrentData();
+				int liveTrigger=channel.getTriggerAddress();
+				if(live.length==mSamples.length){
+					calcDiff(live, liveTrigger);
+					num=channel.calcVertices(mDiff, liveTrigger, sDispData, mDiffVertices);
+				}
+			}
+			if(num>0)
+				canvas.drawLines(mDiffVertices, 0, num, diffPaint);
+		}
+	}
+	
+	/**
+	 * Live minus reference around the center value 128, aligned on the trigger
+	 * of both, clipped to the sample range
+	 */
+	private void calcDiff(int[] live, int liveTrigger)
+	{
+		final byte[] ref=mSamples;
+		final int[] diff=mDiff;
+		final int n=ref.length;
+		int j=triggerAddress-liveTrigger;
+		if(j<0)
+			j+=n;
+		
+		int maxDev=0;
+		for(int i=0;i<n;i++){
+			int d=live[i]-(ref[j] & 0xFF);
+			if(d>maxDev)
+				maxDev=d;
+			else if(-d>maxDev)
+				maxDev=-d;
+			
+			d+=128;
+			diff[i] = d<0 ? 0 : (d>255 ? 255 : d);
+			if(++j==n)
+				j=0;
+		}
+		maxDeviation=maxDev;
+	}
+	
+	/**
+	 * Put the samples as int in the shared scratch arrays
+	 */
+	private static void expand(byte[] samples, int count)
+	{
+		if(sExpanded.length!=count){
+			sExpanded=new int[count];
+			sDispData=new int[count];
+		}
+		for(int i=0;i<count;i++)
+			sExpanded[i]=samples[i] & 0xFF;
+	}
+	
+	/**
+	 * 
+	 * @param show true to draw the reference
+	 */
+	public synchronized void setVisible(boolean show)
+	{
+		visible=show;
+	}
+	
+	/**
+	 * 
+	 * @return true when the reference is drawn
+	 */
+	public boolean isVisible()
+	{
+		return visible;
+	}
+	
+	/**
+	 * 
+	 * @param enabled true to draw the difference between live channel and reference
+	 */
+	public synchronized void setDiffEnabled(boolean enabled)
+	{
+		diffEnabled=enabled;
+		maxDeviation=0;
+	}
+	
+	/**
+	 * 
+	 * @return true when the difference is drawn
+	 */
+	public boolean isDiffEnabled()
+	{
+		return diffEnabled;
+	}
+	
+	/**
+	 * 
+	 * @return largest difference between live channel and reference in the last drawn frame, in Volts
+	 */
+	public synchronized float getMaxDeviation()
+	{
+		return Measurement.toVolts(maxDeviation, refVoltDiv);
+	}
+	
+	/**
+	 * 
+	 * @return true when a reference is stored
+	 */
+	public synchronized boolean isStored()
+	{
+		return mSamples!=null;
+	}
+	
+	/**
+	 * 
+	 * @return true when the reference was stored with other volt or time divisions 
+	 * than the channel uses now
+	 */
+	public synchronized boolean isSettingsChanged()
+	{
+		return mChannel!=null && 
+				(mChannel.getVoltDiv()!=refVoltDiv || mChannel.getTimeDiv()!=refTimeDiv);
+	}
+	
+	/**
+	 * 
+	 * @return name and state of the reference, e.g. REF1 (CH1)
+	 */
+	public synchronized String getDescription()
+	{
+		if(mChannel==null)
+			return refName + " (empty)";
+		return refName + " (" + mChannel.getName() + (visible ? "" : ", hidden") + 
+				(diffEnabled ? ", diff" : "") + ")";
+	}
+	
+	/**
+	 * 
+	 * @return name of the reference
+	 */
+	public String getName()
+	{
+		return refName;
+	}
+}
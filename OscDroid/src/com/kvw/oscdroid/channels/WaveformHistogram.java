@@ -0,0 +1,414 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+
+/**
+ * Histogram of the sample levels or of the cycle timing of one channel, accumulated
+ * over all acquisitions since the last reset.
+ * 
+ * The bins are filled by the automatic measurement kernel of the channel while it 
+ * measures an acquisition, on the acquisition thread: the level histogram it already
+ * builds is added bin by bin, the period or width of every single cycle is added to 
+ * the timing histogram. Drawing and the statistics only read the bins, so the update
+ * cost does not depend on the display rate.
+ * 
+ * The 256 level bins are the ADC codes. The timing bins span the first acquisition 
+ * with cycles, widened to show jitter, values outside the span are counted as under
+ * and overflow.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class WaveformHistogram {
+	
+	public static final int MODE_OFF=0;
+	public static final int MODE_LEVEL=1;
+	public static final int MODE_PERIOD=2;
+	public static final int MODE_POS_WIDTH=3;
+	public static final int MODE_NEG_WIDTH=4;
+	
+	public static final int NUM_BINS=256;
+	private static final int CENTER=128;
+	/** Timing span: this many times the spread of the first acquisition, at least MIN_SPAN */
+	private static final double SPAN_SPREAD=4;
+	private static final double MIN_SPAN=0.02;
+	/** Part of the screen the longest bar takes */
+	private static final float BAR_LENGTH=0.25f;
+	
+	private final long[] mBins = new long[NUM_BINS];
+	private long underflow=0;
+	private long overflow=0;
+	private long numValues=0;
+	private long numAcquisitions=0;
+	
+	private volatile int mode=MODE_OFF;
+	private volatile AnalogChannel mChannel=null;
+	
+	/** Value of the lower edge of bin 0, and the width of a bin */
+	private double low;
+	private double binWidth;
+	private boolean scaled=false;
+	
+	private final Paint barPaint;
+	private final Paint textPaint;
+	private final float[] mVertices = new float[4*NUM_BINS];
+	private final float[] levelY = new float[NUM_BINS];
+	private int levelVersion=-1;
+	private long textAcquisitions=-1;
+	private String mText="";
+	
+	public WaveformHistogram()
+	{
+		barPaint=new Paint();
+		barPaint.setStrokeWidth(1f);
+		barPaint.setStyle(Style.STROKE);
+		barPaint.setDither(false);
+		
+		textPaint=new Paint(Paint.ANTI_ALIAS_FLAG);
+		textPaint.setTextSize(16f);
+	}
+	
+	/**
+	 * Select what to collect, the histogram starts again
+	 * @param channel channel to collect from, null to stop
+	 * @param newMode MODE_OFF..MODE_NEG_WIDTH
+	 */
+	public synchronized void setSource(AnalogChannel channel, int newMode)
+	{
+		if(mChannel!=null)
+			mChannel.getMeasurements().setHistogram(null);
+		mChannel= newMode==MODE_OFF ? null : channel;
+		mode= mChannel==null ? MODE_OFF : newMode;
+		levelVersion=-1;
+		reset();
+		if(mChannel!=null){
+			barPaint.setColor(mChannel.getColor());
+			barPaint.setAlpha(160);
+			textPaint.setColor(mChannel.getColor());
+			mChannel.getMeasurements().setHistogram(this);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return MODE_OFF..MODE_NEG_WIDTH
+	 */
+	public int getMode()
+	{
+		return mode;
+	}
+	
+	/**
+	 * 
+	 * @return channel collected from, null when off
+	 */
+	public synchronized AnalogChannel getChannel()
+	{
+		return mChannel;
+	}
+	
+	/**
+	 * Clear all bins
+	 */
+	public synchronized void reset()
+	{
+		for(int i=0;i<NUM_BINS;i++)
+			mBins[i]=0;
+		underflow=0;
+		overflow=0;
+		numValues=0;
+		numAcquisitions=0;
+		scaled=false;
+		textAcquisitions=-1;
+	}
+	
+	/**
+	 * Add the level histogram of an acquisition
+	 * @param histogram 256 bins with the number of samples of each level
+	 * @param voltsPerLevel Volts of one level, the histogram starts again when it changes
+	 */
+	synchronized void addLevels(int[] histogram, float voltsPerLevel)
+	{
+		if(mode!=MODE_LEVEL)
+			return;
+		if(!scaled || binWidth!=voltsPerLevel){
+			reset();
+			binWidth=voltsPerLevel;
+			low=(-CENTER-0.5)*voltsPerLevel;
+			scaled=true;
+		}
+		
+		for(int i=0;i<NUM_BINS;i++){
+			mBins[i]+=histogram[i];
+			numValues+=histogram[i];
+		}
+		numAcquisitions++;
+	}
+	
+	/**
+	 * Add the timing of the cycles in an acquisition
+	 * @param values period or width of every cycle, in samples
+	 * @param count number of values
+	 * @param sampleTime time between samples in seconds
+	 */
+	synchronized void addTimes(float[] values, int count, float sampleTime)
+	{
+		if(mode<MODE_PERIOD || count==0)
+			return;
+		
+		if(!scaled){
+			float min=values[0];
+			float max=values[0];
+			double sum=0;
+			for(int i=0;i<count;i++){
+				if(values[i]<min) min=values[i];
+				if(values[i]>max) max=values[i];
+				sum+=values[i];
+			}
+			double center=sum/count*sampleTime;
+			double span=Math.max(SPAN_SPREAD*(max-min)*sampleTime, MIN_SPAN*center);
+			low=center-span/2;
+			binWidth=span/NUM_BINS;
+			scaled=true;
+		}
+		
+		for(int i=0;i<count;i++){
+			int bin=(int)Math.floor((values[i]*sampleTime-low)/binWidth);
+			if(bin<0)
+				underflow++;
+			else if(bin>=NUM_BINS)
+				overflow++;
+			else
+				mBins[bin]++;
+		}
+		numValues+=count;
+		numAcquisitions++;
+	}
+	
+	/**
+	 * 
+	 * @return number of values in the histogram, including under and overflow
+	 */
+	public synchronized long getCount()
+	{
+		return numValues;
+	}
+	
+	/**
+	 * 
+	 * @return number of acquisitions added
+	 */
+	public synchronized long getAcquisitions()
+	{
+		return numAcquisitions;
+	}
+	
+	/**
+	 * 
+	 * @return values below the first bin
+	 */
+	public synchronized long getUnderflow()
+	{
+		return underflow;
+	}
+	
+	/**
+	 * 
+	 * @return values above the last bin
+	 */
+	public synchronized long getOverflow()
+	{
+		return overflow;
+	}
+	
+	/**
+	 * 
+	 * @param bin bin number
+	 * @return value at the center of the bin, Volts or seconds
+	 */
+	public synchronized double getBinValue(int bin)
+	{
+		return low+(bin+0.5)*binWidth;
+	}
+	
+	/**
+	 * 
+	 * @return mean of the binned values, NaN when empty
+	 */
+	public synchronized double getMean()
+	{
+		long count=0;
+		double sum=0;
+		for(int i=0;i<NUM_BINS;i++){
+			count+=mBins[i];
+			sum+=mBins[i]*(i+0.5);
+		}
+		return count>0 ? low+sum/count*binWidth : Double.NaN;
+	}
+	
+	/**
+	 * 
+	 * @return standard deviation of the binned values, NaN when empty
+	 */
+	public synchronized double getSigma()
+	{
+		long count=0;
+		double sum=0;
+		double sumSquares=0;
+		for(int i=0;i<NUM_BINS;i++){
+			count+=mBins[i];
+			sum+=mBins[i]*(i+0.5);
+			sumSquares+=mBins[i]*(i+0.5)*(i+0.5);
+		}
+		if(count==0)
+			return Double.NaN;
+		double mean=sum/count;
+		return Math.sqrt(Math.max(sumSquares/count-mean*mean, 0))*binWidth;
+	}
+	
+	/**
+	 * Value below which a part of the binned values lies, interpolated in the bin
+	 * @param percent 0..100, 50 for the median
+	 * @return value, NaN when empty
+	 */
+	public synchronized double getPercentile(double percent)
+	{
+		long count=0;
+		for(int i=0;i<NUM_BINS;i++)
+			count+=mBins[i];
+		if(count==0)
+			return Double.NaN;
+		
+		double target=percent/100*count;
+		long below=0;
+		for(int i=0;i<NUM_BINS;i++){
+			if(mBins[i]>0 && below+mBins[i]>=target)
+				return low+(i+(target-below)/mBins[i])*binWidth;
+			below+=mBins[i];
+		}
+		return low+NUM_BINS*binWidth;
+	}
+	
+	/**
+	 * 
+	 * @return median of the binned values, NaN when empty
+	 */
+	public double getMedian()
+	{
+		return getPercentile(50);
+	}
+	
+	/**
+	 * Draw the histogram over the screen. Level histograms are drawn from the left
+	 * at the height of the levels, timing histograms from the bottom
+	 * @param canvas Canvas to draw on
+	 */
+	public void drawHistogram(Canvas canvas)
+	{
+		AnalogChannel channel=mChannel;
+		if(channel==null)
+			return;
+		
+		// Level positions are read outside the lock, the acquisition thread holds the 
+		// channel while it adds to the histogram
+		if(mode==MODE_LEVEL){
+			int version=channel.getViewVersion();
+			if(version!=levelVersion){
+				for(int i=0;i<NUM_BINS;i++)
+					levelY[i]=channel.getLevelY(i);
+				levelVersion=version;
+			}
+		}
+		
+		synchronized(this){
+			if(channel!=mChannel || numValues==0)
+				return;
+			
+			float width=channel.getWidth();
+			float height=channel.getHeight();
+			long max=1;
+			for(int i=0;i<NUM_BINS;i++)
+				if(mBins[i]>max)
+					max=mBins[i];
+			
+			int n=0;
+			if(mode==MODE_LEVEL){
+				float scale=BAR_LENGTH*width/max;
+				for(int i=0;i<NUM_BINS;i++){
+					if(mBins[i]==0)
+						continue;
+					mVertices[n++]=0;
+					mVertices[n++]=levelY[i];
+					mVertices[n++]=mBins[i]*scale;
+					mVertices[n++]=levelY[i];
+				}
+			}else{
+				float scale=BAR_LENGTH*height/max;
+				float step=width/NUM_BINS;
+				for(int i=0;i<NUM_BINS;i++){
+					if(mBins[i]==0)
+						continue;
+					float x=(i+0.5f)*step;
+					mVertices[n++]=x;
+					mVertices[n++]=height;
+					mVertices[n++]=x;
+					mVertices[n++]=height-mBins[i]*scale;
+				}
+			}
+			canvas.drawLines(mVertices, 0, n, barPaint);
+			
+			if(textAcquisitions!=numAcquisitions){
+				mText=buildText();
+				textAcquisitions=numAcquisitions;
+			}
+			canvas.drawText(mText, 10, height-BAR_LENGTH*height-10, textPaint);
+		}
+	}
+	
+	/**
+	 * Statistics line drawn with the histogram, rebuilt only when acquisitions were added
+	 */
+	private String buildText()
+	{
+		StringBuilder text=new StringBuilder(96);
+		text.append("n ").append(numValues);
+		appendValue(text, "  mean ", getMean());
+		appendValue(text, "  sigma ", getSigma());
+		appendValue(text, "  median ", getMedian());
+		appendValue(text, "  5% ", getPercentile(5));
+		appendValue(text, "  95% ", getPercentile(95));
+		if(underflow+overflow>0)
+			text.append("  outside ").append(underflow+overflow);
+		return text.toString();
+	}
+	
+	private void appendValue(StringBuilder text, String label, double value)
+	{
+		text.append(label);
+		MeasurementResults.appendNumber(text, value, 
+				mode==MODE_LEVEL ? MeasurementResults.UNIT_VOLT : MeasurementResults.UNIT_SECOND,
+				MeasurementResults.getExponent(Math.abs(value)>0 ? value : binWidth), 3);
+	}
+}
@@ -0,0 +1,476 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.channels;
+
+/**
+ * Automatic measurements of one acquisition, all computed together.
+ * 
+ * The first pass over the samples collects the histogram, sum, sum of squares, 
+ * maximum and minimum. Top and base are the histogram modes of the upper and lower
+ * half, which give the 10/50/90% levels. The second pass runs one edge state machine
+ * on those levels for rise and fall time, period, widths, duty cycle and edge count.
+ * Crossing times are interpolated between samples. Total cost is two passes, 
+ * whatever the number of measurements. Every acquisition is also added to the
+ * running statistics, see MeasurementStatistics. When gating is enabled prefix sums,
+ * sparse tables and the edge times are kept as well, so the span between the time 
+ * cursors can be measured without going over the samples again.
+ * 
+ * Peak detected data of min/max pairs is measured with measurePeaks(): maximum from
+ * the max entries, minimum from the min entries, the edges on the middle of every pair.
+ * 
+ * Values are in Volts, seconds, percent or counts. NaN when the acquisition does not
+ * contain what is needed, e.g. no two rising edges for the period.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class WaveformMeasurements {
+	
+	public static final int MEAN=0;
+	public static final int RMS=1;
+	public static final int AC_RMS=2;
+	public static final int MAX=3;
+	public static final int MIN=4;
+	public static final int PKPK=5;
+	public static final int AMPLITUDE=6;
+	public static final int TOP=7;
+	public static final int BASE=8;
+	public static final int OVERSHOOT=9;
+	public static final int RISE_TIME=10;
+	public static final int FALL_TIME=11;
+	public static final int PERIOD=12;
+	public static final int FREQUENCY=13;
+	public static final int POS_WIDTH=14;
+	public static final int NEG_WIDTH=15;
+	public static final int DUTY=16;
+	public static final int EDGES=17;
+	public static final int NUM_VALUES=18;
+	
+	private static final int CENTER=128;
+	private static final int NUM_LEVELS=256;
+	/** A histogram mode needs this part of the samples, else the extreme is used */
+	private static final int MODE_FRACTION=20;
+	
+	/** 
+	 * Held while measuring. Acquisitions come from the pipeline thread and from the
+	 * main thread (segments, captures), the work arrays and the statistics take one 
+	 * writer at a time. Readers only take the lock on this.
+	 */
+	private final Object mMeasuring = new Object();
+	private final int[] mHistogram = new int[NUM_LEVELS];
+	private final float[] mWork = new float[NUM_VALUES];
+	private final float[] mValues = new float[NUM_VALUES];
+	private final MeasurementStatistics mStatistics = new MeasurementStatistics(NUM_VALUES);
+	private volatile WaveformHistogram mHistogramTarget=null;
+	/** Range queries between the time cursors, the index being built and the published one */
+	private volatile boolean indexing=false;
+	private RangeIndex mIndexBuild = new RangeIndex();
+	private RangeIndex mIndex = new RangeIndex();
+	private boolean indexValid=false;
+	/** Period or width of every cycle in the acquisition, for the timing histogram */
+	private final float[] mCycles = new float[1024];
+	private long numMeasured=0;
+	
+	public WaveformMeasurements()
+	{
+		for(int i=0;i<NUM_VALUES;i++)
+			mValues[i]=Float.NaN;
+	}
+	
+	/**
+	 * Measure an acquisition
+	 * @param data samples, wrapping around at numSamples
+	 * @param numSamples number of samples
+	 * @param start oldest sample
+	 * @param voltsPerLevel Volts of one sample level, 128 is 0 V
+	 * @param sampleTime time between samples in seconds
+	 */
+	public void measure(int[] data, int numSamples, int start, float voltsPerLevel, float sampleTime)
+	{
+		if(numSamples<2)
+			return;
+		synchronized(mMeasuring){
+			measureAcquisition(data, numSamples, start, voltsPerLevel, sampleTime, false);
+		}
+	}
+	
+	/**
+	 * Measure peak detected data. Mean, RMS and the histogram are of all entries, the
+	 * envelope of the signal. Gated values are not available for these acquisitions.
+	 * @param data min/max pairs in time order, min first
+	 * @param numData number of values in data, twice the number of pairs
+	 * @param voltsPerLevel Volts of one sample level, 128 is 0 V
+	 * @param pairTime time covered by one pair in seconds
+	 */
+	public void measurePeaks(int[] data, int numData, float voltsPerLevel, float pairTime)
+	{
+		if(numData<4)
+			return;
+		synchronized(mMeasuring){
+			measureAcquisition(data, numData & ~1, 0, voltsPerLevel, pairTime, true);
+		}
+	}
+	
+	/**
+	 * @param peaks true when data contains min/max pairs, start is 0 and sampleTime 
+	 * the time of a pair
+	 */
+	private void measureAcquisition(int[] data, int numSamples, int start, float voltsPerLevel, 
+			float sampleTime, boolean peaks)
+	{
+		final float[] v=mWork;
+		final int[] histogram=mHistogram;
+		
+		// Pass 1: histogram and moments
+		for(int i=0;i<NUM_LEVELS;i++)
+			histogram[i]=0;
+		long sum=0;
+		long sumSquares=0;
+		int max=0;
+		int min=NUM_LEVELS-1;
+		for(int i=0;i<numSamples;i++){
+			int s=data[i] & 0xFF;
+			histogram[s]++;
+			int x=s-CENTER;
+			sum+=x;
+			sumSquares+=x*x;
+			if(peaks){
+				if((i&1)==0){
+					if(s<min) min=s;
+				}else if(s>max) max=s;
+				continue;
+			}
+			if(s>max) max=s;
+			if(s<min) min=s;
+		}
+		
+		double mean=(double)sum/numSamples;
+		double meanSquare=(double)sumSquares/numSamples;
+		v[MEAN]=(float)(mean*voltsPerLevel);
+		v[RMS]=(float)(Math.sqrt(meanSquare)*voltsPerLevel);
+		v[AC_RMS]=(float)(Math.sqrt(Math.max(meanSquare-mean*mean, 0))*voltsPerLevel);
+		v[MAX]=(max-CENTER)*voltsPerLevel;
+		v[MIN]=(min-CENTER)*voltsPerLevel;
+		v[PKPK]=(max-min)*voltsPerLevel;
+		
+		// Top and base: modes of the upper and lower half of the histogram
+		int middle=(max+min)/2;
+		int top=max;
+		int base=min;
+		int topCount=0;
+		int baseCount=0;
+		for(int s=middle+1;s<=max;s++){
+			if(histogram[s]>topCount){
+				topCount=histogram[s];
+				top=s;
+			}
+		}
+		for(int s=min;s<=middle;s++){
+			if(histogram[s]>baseCount){
+				baseCount=histogram[s];
+				base=s;
+			}
+		}
+		if(topCount*MODE_FRACTION<numSamples)
+			top=max;
+		if(baseCount*MODE_FRACTION<numSamples)
+			base=min;
+		
+		int index=start<0 || start>=numSamples ? 0 : start;
+		RangeIndex rangeIndex=null;
+		if(indexing && !peaks){
+			rangeIndex=mIndexBuild;
+			rangeIndex.build(data, numSamples, index);
+			rangeIndex.voltsPerLevel=voltsPerLevel;
+			rangeIndex.sampleTime=sampleTime;
+		}
+		
+		WaveformHistogram target=mHistogramTarget;
+		int timing=WaveformHistogram.MODE_OFF;
+		if(target!=null){
+			timing=target.getMode();
+			if(timing==WaveformHistogram.MODE_LEVEL)
+				target.addLevels(histogram, voltsPerLevel);
+		}
+		int numCycles=0;
+		
+		int amplitude=top-base;
+		v[TOP]=(top-CENTER)*voltsPerLevel;
+		v[BASE]=(base-CENTER)*voltsPerLevel;
+		v[AMPLITUDE]=amplitude*voltsPerLevel;
+		v[OVERSHOOT]= amplitude>0 ? 100f*(max-top)/amplitude : Float.NaN;
+		
+		// Pass 2: edges between the 10% and 90% levels, timed at 50%
+		for(int i=RISE_TIME;i<=DUTY;i++)
+			v[i]=Float.NaN;
+		v[EDGES]=0;
+		if(amplitude<=0){
+			publish(rangeIndex!=null);
+			return;
+		}
+		
+		float low=base+0.1f*amplitude;
+		float mid=base+0.5f*amplitude;
+		float high=base+0.9f*amplitude;
+		
+		// Peak detected data: middle of every pair
+		int numPoints = peaks ? numSamples/2 : numSamples;
+		int prev = peaks ? ((data[0] & 0xFF)+(data[1] & 0xFF))/2 : data[index] & 0xFF;
+		boolean isHigh= prev>=mid;
+		float lowCross=Float.NaN;	// last 10% crossing upward, 90% crossing downward
+		float midCross=Float.NaN;	// last 50% crossing in the direction of the coming edge
+		
+		int rising=0;
+		int falling=0;
+		float riseSum=0;
+		float fallSum=0;
+		int riseTimes=0;
+		int fallTimes=0;
+		float firstRise=Float.NaN;
+		float lastRise=Float.NaN;
+		float lastEdge=Float.NaN;
+		float posSum=0;
+		float negSum=0;
+		int posWidths=0;
+		int negWidths=0;
+		
+		for(int i=1;i<numPoints;i++){
+			int s;
+			if(peaks)
+				s=((data[2*i] & 0xFF)+(data[2*i+1] & 0xFF))/2;
+			else{
+				if(++index==numSamples)
+					index=0;
+				s=data[index] & 0xFF;
+			}
+			
+			if(!isHigh){
+				if(prev<low && s>=low)
+					lowCross=cross(i, prev, s, low);
+				if(prev<mid && s>=mid)
+					midCross=cross(i, prev, s, mid);
+				if(s>=high){
+					// Rising edge complete
+					float highCross=cross(i, prev, s, high);
+					if(!Float.isNaN(lowCross)){
+						riseSum+=highCross-lowCross;
+						riseTimes++;
+					}
+					if(!Float.isNaN(lastEdge)){
+						negSum+=midCross-lastEdge;
+						negWidths++;
+						if(timing==WaveformHistogram.MODE_NEG_WIDTH && numCycles<mCycles.length)
+							mCycles[numCycles++]=midCross-lastEdge;
+					}
+					if(rising>0 && timing==WaveformHistogram.MODE_PERIOD && numCycles<mCycles.length)
+						mCycles[numCycles++]=midCross-lastRise;
+					if(rising==0)
+						firstRise=midCross;
+					lastRise=midCross;
+					if(rangeIndex!=null)
+						rangeIndex.addRise(midCross);
+					lastEdge=midCross;
+					rising++;
+					isHigh=true;
+					lowCross=Float.NaN;
+				}
+			}else{
+				if(prev>high && s<=high)
+					lowCross=cross(i, prev, s, high);
+				if(prev>mid && s<=mid)
+					midCross=cross(i, prev, s, mid);
+				if(s<=low){
+					// Falling edge complete
+					float lowEnd=cross(i, prev, s, low);
+					if(!Float.isNaN(lowCross)){
+						fallSum+=lowEnd-lowCross;
+						fallTimes++;
+					}
+					if(!Float.isNaN(lastEdge) && rising>0){
+						posSum+=midCross-lastEdge;
+						posWidths++;
+						if(timing==WaveformHistogram.MODE_POS_WIDTH && numCycles<mCycles.length)
+							mCycles[numCycles++]=midCross-lastEdge;
+					}
+					lastEdge=midCross;
+					falling++;
+					isHigh=false;
+					lowCross=Float.NaN;
+				}
+			}
+			prev=s;
+		}
+		
+		v[EDGES]=rising+falling;
+		if(numCycles>0)
+			target.addTimes(mCycles, numCycles, sampleTime);
+		if(riseTimes>0)
+			v[RISE_TIME]=riseSum/riseTimes*sampleTime;
+		if(fallTimes>0)
+			v[FALL_TIME]=fallSum/fallTimes*sampleTime;
+		if(rising>1){
+			v[PERIOD]=(lastRise-firstRise)/(rising-1)*sampleTime;
+			v[FREQUENCY]=1/v[PERIOD];
+		}
+		if(posWidths>0)
+			v[POS_WIDTH]=posSum/posWidths*sampleTime;
+		if(negWidths>0)
+			v[NEG_WIDTH]=negSum/negWidths*sampleTime;
+		if(!Float.isNaN(v[PERIOD]) && !Float.isNaN(v[POS_WIDTH]))
+			v[DUTY]=100*v[POS_WIDTH]/v[PERIOD];
+		
+		publish(rangeIndex!=null);
+	}
+	
+	/**
+	 * Time at which the line between two samples crosses a level, in samples
+	 * @param i index of the second sample
+	 */
+	private static float cross(int i, int prev, int s, float level)
+	{
+		return i-1+(level-prev)/(s-prev);
+	}
+	
+	private void publish(boolean indexed)
+	{
+		mStatistics.update(mWork);
+		synchronized(this){
+			System.arraycopy(mWork, 0, mValues, 0, NUM_VALUES);
+			numMeasured++;
+			if(indexed){
+				RangeIndex published=mIndex;
+				mIndex=mIndexBuild;
+				mIndexBuild=published;
+			}
+			indexValid=indexed;
+		}
+	}
+	
+	/**
+	 * Build the indices for getGatedValue() with every acquisition
+	 * @param enable true to build the indices
+	 */
+	public void setGating(boolean enable)
+	{
+		indexing=enable;
+	}
+	
+	/**
+	 * 
+	 * @param id measurement, MEAN..EDGES
+	 * @return true when getGatedValue() can measure it
+	 */
+	public static boolean isGatable(int id)
+	{
+		switch(id){
+		case MEAN:
+		case RMS:
+		case AC_RMS:
+		case MAX:
+		case MIN:
+		case PKPK:
+		case PERIOD:
+		case FREQUENCY:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Measure a span of the last acquisition, in constant time for the levels and
+	 * logarithmic in the number of edges for period and frequency
+	 * @param id measurement, see isGatable()
+	 * @param from sample position in time order, 0 is the oldest sample
+	 * @param to sample position in time order
+	 * @return value of the samples between from and to, NaN when not available
+	 */
+	public synchronized float getGatedValue(int id, float from, float to)
+	{
+		if(!indexValid)
+			return Float.NaN;
+		
+		int last=mIndex.getNumSamples()-1;
+		int first=(int)Math.ceil(Math.max(Math.min(from, to), 0));
+		int end=(int)Math.floor(Math.min(Math.max(from, to), last));
+		if(end<=first)
+			return Float.NaN;
+		
+		switch(id){
+		case MEAN:
+			return mIndex.getMean(first, end);
+		case RMS:
+			return mIndex.getRms(first, end);
+		case AC_RMS:
+			return mIndex.getAcRms(first, end);
+		case MAX:
+			return (mIndex.getMaxLevel(first, end)-CENTER)*mIndex.voltsPerLevel;
+		case MIN:
+			return (mIndex.getMinLevel(first, end)-CENTER)*mIndex.voltsPerLevel;
+		case PKPK:
+			return (mIndex.getMaxLevel(first, end)-mIndex.getMinLevel(first, end))*mIndex.voltsPerLevel;
+		case PERIOD:
+			return mIndex.getPeriod(first, end);
+		case FREQUENCY:
+			return 1/mIndex.getPeriod(first, end);
+		default:
+			return Float.NaN;
+		}
+	}
+	
+	/**
+	 * 
+	 * @param id measurement, MEAN..EDGES
+	 * @return value of the last measured acquisition, NaN when not available
+	 */
+	public synchronized float getValue(int id)
+	{
+		return mValues[id];
+	}
+	
+	/**
+	 * 
+	 * @return statistics of the measurements over the acquisitions since the last reset
+	 */
+	public MeasurementStatistics getStatistics()
+	{
+		return mStatistics;
+	}
+	
+	/**
+	 * 
+	 * @param histogram histogram to add the levels or cycle timing of every 
+	 * acquisition to, null for none
+	 */
+	void setHistogram(WaveformHistogram histogram)
+	{
+		mHistogramTarget=histogram;
+	}
+	
+	/**
+	 * 
+	 * @return number of acquisitions measured
+	 */
+	public synchronized long getCount()
+	{
+		return numMeasured;
+	}
+}
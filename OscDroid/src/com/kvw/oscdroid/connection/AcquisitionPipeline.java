@@ -0,0 +1,305 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.connection;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.os.Handler;
+import android.os.Message;
+
+import com.kvw.oscdroid.capture.CaptureHeader;
+import com.kvw.oscdroid.capture.FrameRecorder;
+
+/**
+ * Processing stages behind the connection thread. The connection thread only reads
+ * raw frames into pooled buffers and re-arms the trigger, decoding and splitting
+ * into channels runs on the decode stage, the dispatch stage hands the frame to the
+ * frame listener. Blocks of continuous mode samples travel the same way, already
+ * decimated by the connection thread. The main activity only gets a FRAME_STATUS
+ * message once per STATUS_INTERVAL. Frames travel between the stages through
+ * bounded queues.
+ *
+ * @author K. van Wijk
+ *
+ */
+class AcquisitionPipeline {
+
+	private static final int NUM_FRAMES=4;
+	private static final long STATUS_INTERVAL=1000000000L; // 1 s
+
+	/**
+	 * Frame buffer, allocated once and reused
+	 */
+	static class Frame {
+		final byte[] raw = new byte[SegmentStore.FRAME_SIZE];
+		final int[] ch1 = new int[SegmentStore.NUM_SAMPLES];
+		final int[] ch2 = new int[SegmentStore.NUM_SAMPLES];
+		int ch1Samples;
+		int ch2Samples;
+		int trigAddress;
+		boolean ch1Enabled;
+		boolean ch2Enabled;
+		long timestamp;
+		/** Block of continuous mode samples in ch1 instead of a raw frame */
+		boolean continuous;
+		/** Continuous block: acquired samples per sample or per min/max pair */
+		int decimation;
+		/** Continuous block: ch1 holds min/max pairs */
+		boolean peakDetect;
+	}
+
+	private final Handler mHandler;
+
+	private final BlockingQueue<Frame> freeFrames = new ArrayBlockingQueue<Frame>(NUM_FRAMES);
+	private final BlockingQueue<Frame> decodeQueue = new ArrayBlockingQueue<Frame>(NUM_FRAMES);
+	private final BlockingQueue<Frame> dispatchQueue = new ArrayBlockingQueue<Frame>(NUM_FRAMES);
+
+	private Thread decodeThread;
+	private Thread dispatchThread;
+	private volatile boolean mRun=false;
+	private volatile ConnectionService.OnFrameListener mListener=null;
+	private volatile FrameRecorder mFrameTap=null;
+	
+	private long statusStart=0;
+	private int statusFrames=0;
+
+	/**
+	 * Constructor
+	 * @param handler Handler to send the frames to the main activity
+	 */
+	AcquisitionPipeline(Handler handler)
+	{
+		mHandler=handler;
+		for(int i=0;i<NUM_FRAMES;i++)
+			freeFrames.add(new Frame());
+	}
+
+	/**
+	 * Start the processing stages
+	 */
+	synchronized void start()
+	{
+		if(mRun)
+			return;
+		mRun=true;
+
+		decodeThread = new Thread(new Runnable(){
+			public void run(){
+				while(mRun){
+					Frame frame=null;
+					try{
+						frame = decodeQueue.take();
+						if(!frame.continuous)
+							decode(frame);
+						
+						FrameRecorder tap=mFrameTap;
+						if(tap!=null && !frame.continuous)
+							tap.write(frame.raw, SegmentStore.FRAME_SIZE, 
+									(frame.ch1Enabled ? CaptureHeader.CHANNEL_1 : 0) 
+									| (frame.ch2Enabled ? CaptureHeader.CHANNEL_2 : 0), 
+									frame.timestamp);
+						
+						dispatchQueue.put(frame);
+						frame=null;
+					}catch(InterruptedException ex){
+					}finally{
+						// Interrupted before the dispatch stage got the frame
+						if(frame!=null)
+							recycle(frame);
+					}
+				}
+			}
+		},"OscDroid decode");
+
+		dispatchThread = new Thread(new Runnable(){
+			public void run(){
+				while(mRun){
+					Frame frame=null;
+					try{
+						frame = dispatchQueue.take();
+						dispatch(frame);
+					}catch(InterruptedException ex){
+					}finally{
+						if(frame!=null)
+							recycle(frame);
+					}
+				}
+			}
+		},"OscDroid dispatch");
+
+		decodeThread.start();
+		dispatchThread.start();
+	}
+
+	/**
+	 * Stop the processing stages, frames in the queues are dropped and returned
+	 * to the pool, like the frames the stages were working on
+	 */
+	synchronized void stop()
+	{
+		if(!mRun)
+			return;
+		mRun=false;
+
+		decodeThread.interrupt();
+		dispatchThread.interrupt();
+		try{
+			decodeThread.join();
+			dispatchThread.join();
+		}catch(InterruptedException ex){}
+
+		Frame frame;
+		while((frame=decodeQueue.poll())!=null)
+			freeFrames.offer(frame);
+		while((frame=dispatchQueue.poll())!=null)
+			freeFrames.offer(frame);
+	}
+
+	/**
+	 * 
+	 * @param listener listener receiving the decoded frames, null to drop them
+	 */
+	void setOnFrameListener(ConnectionService.OnFrameListener listener)
+	{
+		mListener=listener;
+	}
+	
+	/**
+	 * 
+	 * @param tap FrameRecorder to record the raw frames to, null to stop
+	 */
+	void setFrameTap(FrameRecorder tap)
+	{
+		mFrameTap=tap;
+	}
+	
+	/**
+	 * 
+	 * @return true while the stages are running
+	 */
+	boolean isRunning()
+	{
+		return mRun;
+	}
+	
+	/**
+	 * Get a free frame to read into, set up for a raw frame
+	 * @return Frame, null when all frames are still being processed
+	 */
+	Frame obtain()
+	{
+		Frame frame=freeFrames.poll();
+		if(frame!=null)
+			frame.continuous=false;
+		return frame;
+	}
+
+	/**
+	 * 
+	 * @return true when every frame is back in the pool, nothing is being processed
+	 */
+	boolean isIdle()
+	{
+		return freeFrames.size()==NUM_FRAMES;
+	}
+	
+	/**
+	 * Hand a frame read by the connection thread to the decode stage
+	 * @param frame Frame containing a complete raw frame
+	 */
+	void submit(Frame frame)
+	{
+		if(!mRun || !decodeQueue.offer(frame))
+			recycle(frame);
+	}
+
+	/**
+	 * Return a frame to the pool
+	 * @param frame Frame that is no longer used
+	 */
+	void recycle(Frame frame)
+	{
+		freeFrames.offer(frame);
+	}
+
+	/**
+	 * Convert the raw frame to unsigned samples, split over the enabled channels.
+	 * With both channels enabled the first 1024 samples are channel 1.
+	 */
+	private void decode(Frame frame)
+	{
+		final byte[] raw=frame.raw;
+		final int header=SegmentStore.HEADER_SIZE;
+		final int numSamples=SegmentStore.NUM_SAMPLES;
+
+		frame.trigAddress = (raw[3] & 0xFF) + ((raw[2] & 0xFF) << 8);
+		frame.ch1Samples=0;
+		frame.ch2Samples=0;
+
+		if(frame.ch1Enabled && frame.ch2Enabled){
+			for(int i=0;i<1024;i++)
+				frame.ch1[i]=raw[header+i] & 0xFF;
+			for(int i=1024;i<numSamples;i++)
+				frame.ch2[i-1024]=raw[header+i] & 0xFF;
+			frame.ch1Samples=1024;
+			frame.ch2Samples=numSamples-1024;
+		} else if(frame.ch1Enabled){
+			for(int i=0;i<numSamples;i++)
+				frame.ch1[i]=raw[header+i] & 0xFF;
+			frame.ch1Samples=numSamples;
+		} else if(frame.ch2Enabled){
+			for(int i=0;i<numSamples;i++)
+				frame.ch2[i]=raw[header+i] & 0xFF;
+			frame.ch2Samples=numSamples;
+		}
+	}
+
+	/**
+	 * Hand the decoded channels to the listener, report the number of frames
+	 * per second to the main activity
+	 */
+	private void dispatch(Frame frame)
+	{
+		ConnectionService.OnFrameListener listener=mListener;
+		if(frame.continuous){
+			if(listener!=null)
+				listener.onBlock(frame.ch1, frame.ch1Samples, frame.decimation, frame.peakDetect);
+			return;
+		}
+		
+		if(frame.ch1Samples==0 && frame.ch2Samples==0)
+			return;
+
+		if(listener!=null)
+			listener.onFrame(frame.ch1, frame.ch1Samples, frame.ch2, frame.ch2Samples, frame.trigAddress);
+
+		statusFrames++;
+		if(frame.timestamp-statusStart>=STATUS_INTERVAL){
+			Message msg = mHandler.obtainMessage(ConnectionService.FRAME_STATUS);
+			msg.arg1=(int)(statusFrames*1e9f/(frame.timestamp-statusStart)+0.5f);
+			msg.arg2=frame.trigAddress;
+			mHandler.sendMessage(msg);
+			statusStart=frame.timestamp;
+			statusFrames=0;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+
+package com.kvw.oscdroid.connection;
+
+/**
+ * State of the acquisition on the connection thread, with the time spent in
+ * every state.
+ *
+ * IDLE: trigger not armed. ARMED: trigger armed, sample memory is filling.
+ * WAITING: polling the data ready bit. READING: reading the frame from the device.
+ *
+ * @author K. van Wijk
+ *
+ */
+public class AcquisitionState {
+
+	public static final int IDLE=0;
+	public static final int ARMED=1;
+	public static final int WAITING=2;
+	public static final int READING=3;
+	public static final int NUM_STATES=4;
+
+	private static final String[] NAMES = {"idle","armed","waiting","reading"};
+
+	private int state=IDLE;
+	private long stateStart=System.nanoTime();
+
+	private final long[] totalTime = new long[NUM_STATES];
+	private final long[] lastTime = new long[NUM_STATES];
+	private final long[] maxTime = new long[NUM_STATES];
+	private final int[] count = new int[NUM_STATES];
+
+	/**
+	 * Switch to a new state, the time spent in the current state is added to its metrics
+	 * @param newState IDLE, ARMED, WAITING or READING
+	 * @param now System.nanoTime()
+	 */
+	synchronized void enter(int newState, long now)
+	{
+		if(newState==state)
+			return;
+
+		long time=now-stateStart;
+		totalTime[state]+=time;
+		lastTime[state]=time;
+		if(time>maxTime[state])
+			maxTime[state]=time;
+		count[state]++;
+
+		state=newState;
+		stateStart=now;
+	}
+
+	/**
+	 *
+	 * @return current state
+	 */
+	public synchronized int getState()
+	{
+		return state;
+	}
+
+	/**
+	 *
+	 * @param state state
+	 * @return name of the state
+	 */
+	public static String getName(int state)
+	{
+		return NAMES[state];
+	}
+
+	/**
+	 *
+	 * @param state state
+	 * @return number of times the state was left
+	 */
+	public synchronized int getCount(int state)
+	{
+		return count[state];
+	}
+
+	/**
+	 *
+	 * @param state state
+	 * @return total time spent in the state in ns
+	 */
+	public synchronized long getTotalTime(int state)
+	{
+		return totalTime[state];
+	}
+
+	/**
+	 *
+	 * @param state state
+	 * @return time spent in the state the last time, in ns
+	 */
+	public synchronized long getLastTime(int state)
+	{
+		return lastTime[state];
+	}
+
+	/**
+	 *
+	 * @param state state
+	 * @return longest time spent in the state in ns
+	 */
+	public synchronized long getMaxTime(int state)
+	{
+		return maxTime[state];
+	}
+
+	/**
+	 *
+	 * @param state state
+	 * @return mean time spent in the state in ns, 0 if it was never left
+	 */
+	public synchronized long getMeanTime(int state)
+	{
+		if(count[state]==0)
+			return 0;
+		return totalTime[state]/count[state];
+	}
+
+	/**
+	 * Clear all metrics, the current state is kept
+	 */
+	public synchronized void resetMetrics()
+	{
+		for(int i=0;i<NUM_STATES;i++){
+			totalTime[i]=0;
+			lastTime[i]=0;
+			maxTime[i]=0;
+			count[i]=0;
+		}
+		stateStart=System.nanoTime();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<NUM_STATES;i++){
+			if(i>0)
+				sb.append(", ");
+			sb.append(NAMES[i]).append(": ").append(getMeanTime(i)/1000).append(" us");
+		}
+		return sb.toString();
+	}
+}
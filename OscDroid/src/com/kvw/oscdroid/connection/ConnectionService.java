@@ -22,6 +22,7 @@ package com.kvw.oscdroid.connection;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
@@ -38,11 +39,16 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import com.kvw.oscdroid.capture.CaptureHeader;
+import com.kvw.oscdroid.capture.CaptureReader;
+import com.kvw.oscdroid.capture.CaptureRecorder;
+import com.kvw.oscdroid.capture.FrameRecorder;
+import com.kvw.oscdroid.channels.AnalogChannel;
+
 /**
  * 
  * @author K. van Wijk
@@ -58,11 +64,15 @@ public class ConnectionService {
 	public static final int CH2_DATA_START	= 0x42;
 	public static final int CONN_STATUS_CHANGED = 0xFF;
 	public static final int NEW_DATA_ARRIVED = 0xAF;
-	public static final int APPEND_NEW_DATA	 = 0xBF;
-	public static final int CONNECTION_RESET = 0xFFFF;
+	public static final int FRAME_STATUS = 0x9F;
+	public static final int REPLAY_DONE = 0x8F;
+	public static final int RECORDING_STOPPED = 0x6F;
 	
+	/** Replay speed without pacing */
+	public static final float REPLAY_MAX_SPEED = 0;
+	public static final int SEGMENTS_READY = 0xDF;
+	public static final int CONNECTION_RESET = 0xFFFF;
 	
-	public static final String ANALOG_DATA = "analog_data";
 	
 	/** private statics, commands and values */ 
 	private static final byte CH1CON_ADDR			= 0x00;
@@ -74,6 +84,10 @@ public class ConnectionService {
 	private static final byte LOGTIMECON_ADDR		= 0x06;
 	private static final byte DEVICEREV_ADDR			= 0x07;
 	
+	/** Commands sent with every acquisition, never modified */
+	private static final byte[] POLL_CMD = {'/','?',ANATRIGCON_ADDR};
+	private static final byte[] READ_CMD = {'/','&'};
+	
 	private static final int CONNTYPE_WIFI=1;
 	private static final int CONNTYPE_USB=2;
 	
@@ -82,6 +96,12 @@ public class ConnectionService {
 	private static final int STATUS_CONNECTED=5;
 	private static final int STATUS_DISCONNECTED=6;
 	
+	/** 
+	 * Continuous mode samples per pipeline frame. A multiple of every decimation,
+	 * the min/max pairs of a block fit in a frame
+	 */
+	static final int CONTINUOUS_BLOCK=1000;
+	
 	public static final int LEFT=0;
 	public static final int RIGHT=2;
 	public static final int CENTRE=1;
@@ -103,6 +123,11 @@ public class ConnectionService {
 	private boolean newDataReadyRequested=false;
 	private boolean requestingAllRegisters=false;
 	private boolean firstConnect=true;
+	private volatile boolean peakDetect=false;
+	private volatile boolean segmentedRequested=false;
+	private volatile boolean armRequested=false;
+	/** Set while a replay feeds the pipeline, the connection thread does not acquire */
+	volatile boolean replaying=false;
 	
 	private int connectionStatus = STATUS_NC;
 	/**@deprecated*/
@@ -111,6 +136,8 @@ public class ConnectionService {
 	private volatile int RUNNING_MODE=1; //0=auto, 1=single. 2=continous
 	private int usbReadErrorCnt = 0;
 	private int chTimeDiv;
+	private int ch1VoltDiv;
+	private int ch2VoltDiv;
 	
 	/**	FPGA Register values */
 	private int CH1CON=0;
@@ -126,9 +153,58 @@ public class ConnectionService {
 	private UsbDevice usbDevice=null;
 	private PendingIntent mPermissionIntent;
 	private UsbOscilloscopeConnection connectionThread;
+	private SegmentStore segmentStore=null;
+	private volatile CaptureRecorder recorder=null;
+	private FrameRecorder frameRecorder=null;
+	private ReplaySource replaySource=null;
+	private final PollScheduler pollScheduler=new PollScheduler();
+	private final AcquisitionPipeline pipeline;
+	private final AcquisitionState acqState=new AcquisitionState();
 	
 	private final Context parentContext;
 	
+	/**
+	 * Recorders stopped together, sent with RECORDING_STOPPED
+	 */
+	public static class StoppedRecorders {
+		/** Stopped CaptureRecorder, null if none */
+		public final CaptureRecorder recorder;
+		/** Stopped FrameRecorder, null if none */
+		public final FrameRecorder frameRecorder;
+		
+		StoppedRecorders(CaptureRecorder rec, FrameRecorder frameRec)
+		{
+			recorder=rec;
+			frameRecorder=frameRec;
+		}
+	}
+	
+	/**
+	 * Receives every acquired frame, on the pipeline thread
+	 */
+	public interface OnFrameListener {
+		/**
+		 * Called for every decoded frame. The arrays are reused as soon as this returns,
+		 * copy the samples that have to be kept.
+		 * @param ch1 channel 1 samples
+		 * @param ch1Samples number of channel 1 samples, 0 if disabled
+		 * @param ch2 channel 2 samples
+		 * @param ch2Samples number of channel 2 samples, 0 if disabled
+		 * @param trigAddress trigger address of the frame
+		 */
+		void onFrame(int[] ch1, int ch1Samples, int[] ch2, int ch2Samples, int trigAddress);
+		
+		/**
+		 * Called for every block of continuous mode samples of channel 1. The array is 
+		 * reused as soon as this returns.
+		 * @param samples averaged samples, or min/max pairs with the minimum first
+		 * @param numSamples number of values in samples
+		 * @param decimation acquired samples per sample or per min/max pair
+		 * @param peakDetect true when samples holds min/max pairs
+		 */
+		void onBlock(int[] samples, int numSamples, int decimation, boolean peakDetect);
+	}
+	
 	/**
 	 * Constructor for ConnectionService class
 	 * 
@@ -138,6 +214,7 @@ public class ConnectionService {
 	public ConnectionService(Context context, Handler handler)
 	{
 		mHandler=handler;
+		pipeline=new AcquisitionPipeline(handler);
 		usbManager= (UsbManager) context.getSystemService(Context.USB_SERVICE);
 		parentContext=context;		
 		
@@ -367,6 +444,9 @@ public class ConnectionService {
 	 */
 	public void setCh1Div(int div)
 	{
+		if(div!=ch1VoltDiv)
+			stopRecordingOnChange();
+		ch1VoltDiv=div;
 		if(connectionThread==null)
 			return;
 
@@ -385,6 +465,9 @@ public class ConnectionService {
 	 */
 	public void setCh2Div(int div)
 	{
+		if(div!=ch2VoltDiv)
+			stopRecordingOnChange();
+		ch2VoltDiv=div;
 		if(connectionThread==null)
 			return;
 		
@@ -421,7 +504,10 @@ public class ConnectionService {
 	 */
 	public void setTimeDiv(int div)
 	{	
+		if(div!=chTimeDiv)
+			stopRecordingOnChange();
 		chTimeDiv=div;
+		pollScheduler.setSampleRate(AnalogChannel.getSampleRate(div));
 		
 		if(connectionThread==null)
 			return;
@@ -664,57 +750,278 @@ public class ConnectionService {
 	}
 	
 	/**
-	 * Enable trigger, wait for data
+	 * Request a singleshot data package. The trigger is armed by the connection thread
 	 */
-	public synchronized void getSingleShot()
-	{	
-		if(usbBusy || usbDevice==null || !connectionThread.isAlive()
-				|| !connectionThread.isRunning)
+	public void getData()
+	{
+		if(usbDevice==null || connectionThread==null || !connectionThread.isRunning || replaying)
 			return;
 		
-//		Log.d(TAG,"singleSHOT");
-		usbBusy=true;
-		setTriggerEnabled(true);
-		isDataReady();
-		while(connectionThread.newReadData);		
-	}	
+		armRequested=true;
+	}
 	
 	/**
-	 * Get data from FPGA
+	 * Start segmented acquisition. The connection thread captures numSegments
+	 * triggered frames back-to-back and sends SEGMENTS_READY when done, arg1 the 
+	 * number of segments, arg2 1 when stopped because no trigger was found within
+	 * SEGMENT_TIMEOUT. Only possible on the singleshot timebases.
+	 * 
+	 * @param numSegments number of frames to capture
+	 * @return true when the capture was started, false when not possible or already running
 	 */
-	private void requestData()
+	public synchronized boolean startSegmentedCapture(int numSegments)
 	{
-		if(connectionThread==null)
-			return;
+		if(connectionThread==null || !connectionThread.isRunning || chTimeDiv>18 || numSegments<1
+				|| replaying || segmentedRequested)
+			return false;
 		
-//		Log.d(TAG,"Requesting data");
-		newDataReady=false;
+		if(segmentStore==null || segmentStore.getCapacity()!=numSegments)
+			segmentStore=new SegmentStore(numSegments);
 		
-		connectionThread.dataToWrite=new byte[]{'/','&'};
-		connectionThread.numBytesToRead=2053;
-		connectionThread.newWriteData=true;
-		connectionThread.newReadData=true;
+		segmentedRequested=true;
+		return true;
 	}
 	
 	/**
-	 * Start sequence to request singleShot data package
+	 * Stop a running segmented acquisition, segments captured so far are kept
 	 */
-	public void getData()
+	public void stopSegmentedCapture()
+	{
+		segmentedRequested=false;
+	}
+	
+	/**
+	 * Set the listener that receives acquired frames on the pipeline thread.
+	 * The main activity only receives FRAME_STATUS messages.
+	 * @param listener OnFrameListener, null to drop frames
+	 */
+	public void setOnFrameListener(OnFrameListener listener)
+	{
+		pipeline.setOnFrameListener(listener);
+	}
+	
+	/**
+	 * Start streaming the raw samples of continuous mode to a capture file
+	 * @param file File to record to
+	 * @return true if recording was started
+	 */
+	public synchronized boolean startRecording(File file)
+	{
+		if(recorder!=null)
+			return false;
+		
+		CaptureHeader header = new CaptureHeader();
+		header.sampleRate=AnalogChannel.getSampleRate(chTimeDiv);
+		header.timeDiv=chTimeDiv;
+		header.ch1VoltDiv=ch1VoltDiv;
+		header.ch2VoltDiv=ch2VoltDiv;
+		header.channels=CaptureHeader.CHANNEL_1;
+		header.layout=CaptureHeader.LAYOUT_CONTINUOUS;
+		
+		try{
+			CaptureRecorder tmp = new CaptureRecorder(file,header);
+			tmp.start();
+			recorder=tmp;
+		}catch(IOException ex){
+			Log.e(TAG,"Can't record to " + file + ": " + ex.getMessage());
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Start recording the raw frames of auto and singleshot mode, tapped
+	 * from the acquisition pipeline, to a capture file
+	 * @param file File to record to
+	 * @return true if recording was started
+	 */
+	public synchronized boolean startFrameRecording(File file)
+	{
+		if(frameRecorder!=null)
+			return false;
+		
+		CaptureHeader header = new CaptureHeader();
+		header.sampleRate=AnalogChannel.getSampleRate(chTimeDiv);
+		header.timeDiv=chTimeDiv;
+		header.ch1VoltDiv=ch1VoltDiv;
+		header.ch2VoltDiv=ch2VoltDiv;
+		header.channels=((CH1CON & 1 << 0)!=0 ? CaptureHeader.CHANNEL_1 : 0) 
+				| ((CH2CON & 1 << 0)!=0 ? CaptureHeader.CHANNEL_2 : 0);
+		
+		try{
+			frameRecorder = new FrameRecorder(file,header);
+		}catch(IOException ex){
+			Log.e(TAG,"Can't record to " + file + ": " + ex.getMessage());
+			return false;
+		}
+		pipeline.setFrameTap(frameRecorder);
+		return true;
+	}
+	
+	/**
+	 * Stop recording frames, close the capture file
+	 * @return FrameRecorder that was stopped, null if not recording
+	 */
+	public FrameRecorder stopFrameRecording()
+	{
+		FrameRecorder tmp;
+		synchronized(this){
+			tmp=frameRecorder;
+			frameRecorder=null;
+			pipeline.setFrameTap(null);
+		}
+		if(tmp!=null)
+			tmp.stop();
+		return tmp;
+	}
+	
+	/**
+	 * Replay a capture file through the acquisition pipeline, continuous recordings
+	 * in blocks like continuous mode. Live acquisition is suspended until the replay
+	 * ends, settings are still written. Sends REPLAY_DONE when done.
+	 * @param reader opened capture file, closed when the replay ends
+	 * @param speed 1 for real time, higher to accelerate, REPLAY_MAX_SPEED for no pacing
+	 * @return true if the replay was started
+	 */
+	public synchronized boolean startReplay(CaptureReader reader, float speed)
 	{
-		if(usbDevice==null || connectionThread.newReadData || 
-				newDataReady || newDataReadyRequested || !connectionThread.isRunning)
+		if(replaySource!=null && replaySource.isAlive())
+			return false;
+		
+		replaying=true;
+		armRequested=false;
+		pipeline.start();
+		replaySource = new ReplaySource(this,pipeline,reader,speed,mHandler);
+		replaySource.start();
+		return true;
+	}
+	
+	/**
+	 * Stop a running replay
+	 */
+	public synchronized void stopReplay()
+	{
+		if(replaySource==null)
 			return;
 		
-//		Log.w(TAG,"Getting data now!!!!");
+		replaySource.mRun=false;
+		try{replaySource.join();}
+		catch(InterruptedException ex){}
+		replaySource=null;
+		replaying=false;
+		
+		if(connectionThread==null || !connectionThread.isRunning)
+			pipeline.stop();
+	}
+	
+	/**
+	 * 
+	 * @return true while replaying a capture file
+	 */
+	public synchronized boolean isReplaying()
+	{
+		return replaySource!=null && replaySource.isAlive();
+	}
+	
+	/**
+	 * Stop recording, close the capture file
+	 * @return CaptureRecorder that was stopped, null if not recording
+	 */
+	public CaptureRecorder stopRecording()
+	{
+		CaptureRecorder tmp;
+		synchronized(this){
+			tmp=recorder;
+			recorder=null;
+		}
+		if(tmp!=null)
+			tmp.stop();
+		return tmp;
+	}
+	
+	/**
+	 * Stop recording without blocking the calling thread. Nothing is recorded from
+	 * now on, the writers are drained and the files closed on a separate thread.
+	 * Sends RECORDING_STOPPED once closed, obj the StoppedRecorders, arg1 1 when 
+	 * stopped because the settings changed.
+	 * @param settingsChanged true when stopped because the settings changed
+	 * @return false when not recording, nothing is sent
+	 */
+	public boolean stopRecordingInBackground(final boolean settingsChanged)
+	{
+		final CaptureRecorder rec;
+		final FrameRecorder frameRec;
+		synchronized(this){
+			rec=recorder;
+			frameRec=frameRecorder;
+			recorder=null;
+			frameRecorder=null;
+			pipeline.setFrameTap(null);
+		}
+		if(rec==null && frameRec==null)
+			return false;
 		
-		Thread t = new Thread(new Runnable(){
+		new Thread(new Runnable(){
 			public void run(){
-				getSingleShot();
+				if(rec!=null)
+					rec.stop();
+				if(frameRec!=null)
+					frameRec.stop();
+				
+				Message msg = new Message();
+				msg.what=RECORDING_STOPPED;
+				msg.arg1=settingsChanged ? 1 : 0;
+				msg.obj=new StoppedRecorders(rec, frameRec);
+				mHandler.sendMessage(msg);
 			}
-		});
-		t.start();
-		//getSingleShot();
-		
+		},"OscDroid recorder stop").start();
+		return true;
+	}
+	
+	/**
+	 * The time or volt division changes, the header of a running recording would no 
+	 * longer match the samples. Stop recording, see stopRecordingInBackground()
+	 */
+	private void stopRecordingOnChange()
+	{
+		stopRecordingInBackground(true);
+	}
+	
+	/**
+	 * 
+	 * @return true while recording to a capture file
+	 */
+	public synchronized boolean isRecording()
+	{
+		return recorder!=null || frameRecorder!=null;
+	}
+	
+	/**
+	 * 
+	 * @return acquisition state of the connection thread, with per-state timing.
+	 * Shown with every FRAME_STATUS
+	 */
+	public AcquisitionState getAcquisitionState()
+	{
+		return acqState;
+	}
+	
+	/**
+	 * 
+	 * @return true while a segmented acquisition is running
+	 */
+	public boolean isSegmentedCapture()
+	{
+		return segmentedRequested;
+	}
+	
+	/**
+	 * 
+	 * @return SegmentStore containing the last segmented acquisition, null if there was none
+	 */
+	public SegmentStore getSegmentStore()
+	{
+		return segmentStore;
 	}
 	
 	/** check if there was a trigger event. If yes: data ready */
@@ -724,10 +1031,11 @@ public class ConnectionService {
 			return;
 		
 //		Log.d(TAG,"Data ready???");
-		connectionThread.dataToWrite=new byte[] {'/','?',ANATRIGCON_ADDR};
+		connectionThread.dataToWrite=POLL_CMD;
 		connectionThread.numBytesToRead=3; 
 		connectionThread.newWriteData=true;
 		
+		acqState.enter(AcquisitionState.WAITING, System.nanoTime());
 		newDataReadyRequested=true;	
 		connectionThread.newReadData=true;
 		
@@ -802,6 +1110,9 @@ public class ConnectionService {
 	 */
 	public void closeConnection()
 	{
+		stopRecording();
+		stopFrameRecording();
+		stopReplay();
 
 		if(connectionThread!=null){
 			//Close connection
@@ -858,32 +1169,6 @@ public class ConnectionService {
 		usbBusy=false;
 	}
 	
-	/**
-	 * Send data to main activity through handler
-	 * 
-	 * @param data array containing datasamples
-	 */
-	private void sendAnalogueData(int[] data)
-	{
-		int trigAddress = data[3] + (data[2] << 8);
-		
-		if(data.length<2000)
-			return;
-		
-		int[] mData = new int[data.length-5];
-		for(int i=0; i<mData.length; i++){
-			mData[i]=data[i+5];
-		}
-		
-		Message msg = new Message();
-		msg.what=NEW_DATA_ARRIVED;
-		msg.arg1=trigAddress;
-		Bundle bundle = new Bundle();
-		bundle.putIntArray(ANALOG_DATA, mData);
-		msg.setData(bundle);
-		mHandler.sendMessage(msg);
-	}
-	
 	/**
 	 * check if dataReady bit was set
 	 * 
@@ -903,7 +1188,9 @@ public class ConnectionService {
 				return;
 			}if((data[2] & 1 << 1) == 0){
 				newDataReadyRequested=false;
+				acqState.enter(AcquisitionState.IDLE, System.nanoTime());
 			}
+			pollScheduler.notReady(System.nanoTime());
 		}
 	}
 	
@@ -924,64 +1211,113 @@ public class ConnectionService {
 			
 		else if(newDataReadyRequested){ //poll data ready bit
 			pollDataReady(data);
-
-			 // Analogue data, 2048 bytes
-		}else if(data[0]=='+' && data[1]=='+')
-				sendAnalogueData(data);
 		
-		else if(RUNNING_MODE==2){ //continuous mode
+		}else if(RUNNING_MODE==2){ //continuous mode
 			Log.d(TAG,"Handling continuous mode data: " + numRead + " bytes;");
-
-			int cnt=-1;
-			int avg = 1;
-			int tmp=0;
 			
-			switch (chTimeDiv){
-			case 19:
-				avg=1;
-				break;
-			case 20:
-				avg=2;
-				break;
-			case 21:
-				avg=5;
-				break;
-			case 22:
-				avg=10;
-				break;
-			case 23:
-				avg=25;
-				break;
-			}
-			int[] newSamples = new int[numRead/avg];
+			CaptureRecorder rec=recorder;
+			if(rec!=null)
+				rec.write(tmpdata, 0, numRead);
 			
-			int i=0;
+			handleContinuousData(data, numRead, chTimeDiv);
+		}
+		usbBusy=false;
+	}
+	
+	/**
+	 * Average or peak detect continuous mode samples for display. Blocks go through
+	 * the acquisition pipeline to the frame listener, like triggered frames. When the
+	 * display stages can not keep up the samples are not displayed.
+	 * @param data samples
+	 * @param numRead number of samples
+	 * @param timeDiv time division the samples were acquired with
+	 */
+	private void handleContinuousData(int[] data, int numRead, int timeDiv)
+	{
+		for(int first=0;first<numRead;first+=CONTINUOUS_BLOCK){
+			AcquisitionPipeline.Frame frame=pipeline.obtain();
+			if(frame==null)
+				return;
+			int n = numRead-first<CONTINUOUS_BLOCK ? numRead-first : CONTINUOUS_BLOCK;
+			decimate(data, first, n, timeDiv, frame);
+			pipeline.submit(frame);
+		}
+	}
+	
+	/**
+	 * Average or peak detect a block of continuous mode samples into ch1 of a frame
+	 * @param data samples
+	 * @param first first sample of the block
+	 * @param numRead number of samples, at most CONTINUOUS_BLOCK
+	 * @param timeDiv time division the samples were acquired with
+	 * @param frame Frame to fill
+	 */
+	void decimate(int[] data, int first, int numRead, int timeDiv, AcquisitionPipeline.Frame frame)
+	{
+		int avg = 1;
+		
+		switch (timeDiv){
+		case 19:
+			avg=1;
+			break;
+		case 20:
+			avg=2;
+			break;
+		case 21:
+			avg=5;
+			break;
+		case 22:
+			avg=10;
+			break;
+		case 23:
+			avg=25;
+			break;
+		}
+		
+		frame.continuous=true;
+		frame.decimation=avg;
+		frame.peakDetect=peakDetect;
+		frame.ch2Samples=0;
+		
+		final int[] newSamples=frame.ch1;
+		final int end=first+numRead;
+		int cnt=0;
+		
+		if(peakDetect){
+			// Keep minimum and maximum of every group of avg samples, as min/max pairs, 
+			// so narrow glitches stay visible on slow timebases
+			int min=255;
+			int max=0;
+			int groupCnt=0;
+			for(int i=first;i<end;i++){
+				if(data[i]<min) min=data[i];
+				if(data[i]>max) max=data[i];
+				groupCnt++;
+				if(groupCnt==avg || i==end-1){
+					newSamples[cnt++]=min;
+					newSamples[cnt++]=max;
+					min=255;
+					max=0;
+					groupCnt=0;
+				}
+			}
+		} else {
+			// Average over avg samples
+			int tmp=0;
 			int avgCnt=0;
-			
-			// Average over avg samples; create tmpArray, send to channel
-			for (i=0;i<numRead;i++){
+			for(int i=first;i<end;i++){
 				tmp+=data[i];
 				avgCnt++;
 				if(avgCnt==avg){
-					cnt++;
-					newSamples[cnt]=(int)(tmp/avg);
+					newSamples[cnt++]=tmp/avg;
 					tmp=0;
 					avgCnt=0;
 				}
 			}
-			cnt++;
-			if(avgCnt!=0 && newSamples.length>0 && cnt>=0)
-				newSamples[cnt]=tmp/avgCnt;
-			
-			//Send data back to main
-			Message msg = new Message();
-			msg.what=APPEND_NEW_DATA;
-			Bundle dat = new Bundle();
-			dat.putIntArray(ANALOG_DATA, newSamples);
-			msg.setData(dat);
-			mHandler.sendMessage(msg);		
+			if(avgCnt!=0)
+				newSamples[cnt++]=tmp/avgCnt;
 		}
-		usbBusy=false;
+		frame.ch1Samples=cnt;
 	}
 	
 	/**
@@ -1001,6 +1337,24 @@ public class ConnectionService {
 		return connectionStatus;
 	}
 	
+	/**
+	 * Enable or disable peak detection on the decimated (continuous) timebases
+	 * @param enable true to keep min/max of every decimation group, false to average
+	 */
+	public void setPeakDetect(boolean enable)
+	{
+		peakDetect=enable;
+	}
+	
+	/**
+	 * 
+	 * @return true when peak detection is enabled
+	 */
+	public boolean isPeakDetect()
+	{
+		return peakDetect;
+	}
+	
 	/**
 	 * Get current running mode
 	 * @return current running mode
@@ -1103,6 +1457,10 @@ public class ConnectionService {
 	 *
 	 */
 	class UsbOscilloscopeConnection extends Thread{
+		private static final long MAX_IDLE=2000000L; // 2 ms
+		/** Segmented capture stops when a segment takes longer */
+		private static final long SEGMENT_TIMEOUT=10000000000L; // 10 s
+		
 		private boolean connectionOk=false;
 
 		private UsbDeviceConnection usbConnection=null;
@@ -1121,6 +1479,11 @@ public class ConnectionService {
 		private boolean reset=false;
 		
 		private volatile char[] buffer = new char[4096];
+		/** Used by the acquisition on this thread only, ANATRIGCON is set before every arm */
+		private final byte[] armCmd = {'/','\\',ANATRIGCON_ADDR,0,'\\'};
+		private final byte[] response = new byte[8];
+		/** Frame read when the pipeline has no free frame in auto mode, then dropped */
+		private final byte[] scratchFrame = new byte[SegmentStore.FRAME_SIZE];
 		
 		public boolean mRun = true;
 		public boolean isRunning=false;
@@ -1196,8 +1559,6 @@ public class ConnectionService {
 				Log.d(TAG,"reset sent");
 			
 			usbConnection.releaseInterface(usbIntf);
-			try{sleep(1);}
-			catch(InterruptedException ex){}
 			writing=false;
 			if(reset)
 				mRun=false;
@@ -1232,6 +1593,7 @@ public class ConnectionService {
 					newReadData=false;
 					newDataReadyRequested=false;
 					newDataReady=false;
+					acqState.enter(AcquisitionState.IDLE, System.nanoTime());
 					usbReadErrorCnt=0;
 					//usbConnection.claimInterface(usbIntf, true);
 					
@@ -1261,8 +1623,214 @@ public class ConnectionService {
 			data=null;
 			reading=false;
 			usbConnection.releaseInterface(usbIntf);
+		}
+		
+		/**
+		 * Write a command and read the response directly from the endpoints,
+		 * bypassing the reader/writer and handleData
+		 * 
+		 * @param cmd command to write
+		 * @param response buffer for the response
+		 * @param numBytes number of bytes expected
+		 * @return number of bytes read, negative on error
+		 */
+		private int transfer(byte[] cmd, byte[] response, int numBytes)
+		{
+			if(usbConnection.bulkTransfer(usbEndOut, cmd, cmd.length, 10)<0)
+				return -1;
+			return usbConnection.bulkTransfer(usbEndIn, response, numBytes, 70);
+		}
+		
+		/**
+		 * Segmented acquisition. Arm, poll and read back-to-back until all segments
+		 * are captured, stopped or a segment does not trigger within SEGMENT_TIMEOUT.
+		 * Polls follow the PollScheduler. Pending register writes are handled
+		 * between polls so settings can still be changed.
+		 */
+		private void captureSegments()
+		{
+			int errorCnt=0;
+			boolean timedOut=false;
 			
-			try{sleep(50);}
+			newDataReady=false;
+			newDataReadyRequested=false;
+			segmentStore.reset();
+			flushReader();
+			
+			Log.d(TAG,"Segmented capture of " + segmentStore.getCapacity() + " segments");
+			usbConnection.claimInterface(usbIntf, true);
+			
+			while(mRun && segmentedRequested && !segmentStore.isFull() && errorCnt<5){
+				// Arm trigger
+				ANATRIGCON = ANATRIGCON | (1 << 1);
+				armCmd[3]=(byte)ANATRIGCON;
+				if(transfer(armCmd,response,5)<0){
+					errorCnt++;
+					continue;
+				}
+				long armed=System.nanoTime();
+				acqState.enter(AcquisitionState.WAITING, armed);
+				pollScheduler.armed(armed);
+				
+				// Poll data ready bit
+				boolean ready=false;
+				while(mRun && segmentedRequested && !ready && errorCnt<5){
+					if(newWriteData && dataToWrite!=null){
+						writeCmd(dataToWrite);
+						dataToWrite=null;
+						newWriteData=false;
+						if(newReadData && numBytesToRead>0)
+							readNumBytes(numBytesToRead);
+						usbConnection.claimInterface(usbIntf, true);
+					}
+					
+					// Only when the trigger could have fired, give up without a trigger
+					long now=System.nanoTime();
+					if(now-armed>SEGMENT_TIMEOUT){
+						timedOut=true;
+						break;
+					}
+					long delay=pollScheduler.getDelay(now);
+					if(delay>0){
+						idle(delay);
+						continue;
+					}
+					
+					int tmp=transfer(POLL_CMD,response,3);
+					if(tmp==3 && response[0]=='\\' && response[1]==ANATRIGCON_ADDR)
+						ready = (response[2] & 1 << 0) == 1;
+					else if(tmp<0)
+						errorCnt++;
+					if(!ready)
+						pollScheduler.notReady(System.nanoTime());
+				}
+				if(!ready)
+					break;
+				
+				// Read frame straight into the segment store
+				acqState.enter(AcquisitionState.READING, System.nanoTime());
+				byte[] frame=segmentStore.nextFrame();
+				int tmp=transfer(READ_CMD,frame,SegmentStore.FRAME_SIZE);
+				if(tmp==SegmentStore.FRAME_SIZE && frame[0]=='+' && frame[1]=='+'){
+					segmentStore.commit(System.nanoTime());
+					errorCnt=0;
+				} else 
+					errorCnt++;
+			}
+			
+			usbConnection.releaseInterface(usbIntf);
+			acqState.enter(AcquisitionState.IDLE, System.nanoTime());
+			segmentedRequested=false;
+			usbBusy=false;
+			
+			Message msg = new Message();
+			msg.what=SEGMENTS_READY;
+			msg.arg1=segmentStore.getCount();
+			msg.arg2=timedOut ? 1 : 0;
+			mHandler.sendMessage(msg);
+		}
+		
+		/**
+		 * Arm the trigger. Interface must be claimed
+		 * @return true if the trigger was armed
+		 */
+		private boolean armTrigger()
+		{
+			armRequested=false;
+			ANATRIGCON = ANATRIGCON | (1 << 1);
+			armCmd[3]=(byte)ANATRIGCON;
+			if(transfer(armCmd,response,5)<0){
+				acqState.enter(AcquisitionState.IDLE, System.nanoTime());
+				return false;
+			}
+			
+			long now=System.nanoTime();
+			acqState.enter(AcquisitionState.ARMED, now);
+			pollScheduler.armed(now);
+			newDataReadyRequested=true;
+			usbBusy=true;
+			return true;
+		}
+		
+		/**
+		 * Start a singleshot acquisition from the connection thread
+		 */
+		private void startAcquisition()
+		{
+			usbConnection.claimInterface(usbIntf, true);
+			armTrigger();
+			usbConnection.releaseInterface(usbIntf);
+		}
+		
+		/**
+		 * Read a frame into a pooled buffer and hand it to the pipeline. In auto mode
+		 * the trigger is re-armed right away, so the next acquisition runs while this
+		 * frame is being decoded and displayed. A single shot waits for a free frame, 
+		 * in auto mode the frame is dropped when the pipeline is still busy.
+		 */
+		private void readFrame()
+		{
+			newDataReady=false;
+			acqState.enter(AcquisitionState.READING, System.nanoTime());
+			
+			AcquisitionPipeline.Frame frame=pipeline.obtain();
+			while(frame==null && RUNNING_MODE!=0 && mRun){
+				try{sleep(1);}
+				catch(InterruptedException ex){}
+				frame=pipeline.obtain();
+			}
+			byte[] raw = frame!=null ? frame.raw : scratchFrame;
+			
+			usbConnection.claimInterface(usbIntf, true);
+			int tmp=transfer(READ_CMD,raw,SegmentStore.FRAME_SIZE);
+			
+			if(RUNNING_MODE==0 && mRun)
+				armTrigger();
+			else
+				acqState.enter(AcquisitionState.IDLE, System.nanoTime());
+			usbConnection.releaseInterface(usbIntf);
+			
+			if(frame!=null){
+				if(tmp==SegmentStore.FRAME_SIZE && raw[0]=='+' && raw[1]=='+'){
+					frame.ch1Enabled=(CH1CON & 1 << 0) != 0;
+					frame.ch2Enabled=(CH2CON & 1 << 0) != 0;
+					frame.timestamp=System.nanoTime();
+					pipeline.submit(frame);
+				} else
+					pipeline.recycle(frame);
+			}
+			usbBusy=newDataReadyRequested;
+		}
+		
+		/**
+		 * Write pending command, read pending response
+		 */
+		private void writeAndRead()
+		{
+			// Write data
+			if(newWriteData && dataToWrite!=null && usbDevice!=null){
+				writeCmd(dataToWrite);
+				dataToWrite=null;
+				newWriteData=false;
+			}
+			
+			// Read data
+			if(newReadData && numBytesToRead>0 && usbDevice!=null){
+				readNumBytes(numBytesToRead);
+			}
+		}
+		
+		/**
+		 * Sleep until the next poll is due, at most MAX_IDLE to stay responsive to new commands
+		 * @param delay time in ns until the next poll
+		 */
+		private void idle(long delay)
+		{
+			if(delay<=0)
+				return;
+			if(delay>MAX_IDLE)
+				delay=MAX_IDLE;
+			try{sleep(delay/1000000, (int)(delay%1000000));}
 			catch(InterruptedException ex){}
 		}
 		
@@ -1296,6 +1864,7 @@ public class ConnectionService {
 			
 			
 			/** Infinite loop for reading and writing from/to usb */
+			pipeline.start();
 			isRunning=true;
 			while(mRun){
 				
@@ -1307,59 +1876,41 @@ public class ConnectionService {
 				if(reset)
 					resetConnection();
 				
-				if(RUNNING_MODE==0){ //Normal mode, continuous singleshot
-					try {
-						sleep(33);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
+				// A replay feeds the pipeline, only write the settings
+				if(replaying){
+					writeAndRead();
+					if(!newWriteData && !newReadData)
+						idle(MAX_IDLE);
+					continue;
+				}
+				
+				if(segmentedRequested && segmentStore!=null){
+					captureSegments();
+					continue;
+				}
+				
+				if(RUNNING_MODE==0 || RUNNING_MODE==1){ //Normal mode (continuous singleshot) or SINGLESHOT
 					oscDroidReader.setTimeout(70);
 					
-					// Check for new data
-					if(newDataReadyRequested)
+					// Check for new data, when the trigger could have fired
+					if(newDataReadyRequested && !newReadData 
+							&& pollScheduler.getDelay(System.nanoTime())<=0)
 						isDataReady();
 					
-					// Get new data
-					else if(newDataReady)
-						requestData();
+					writeAndRead();
 					
-					// Start singleshot process
-					if(!newDataReadyRequested && !newDataReady)
-						getData();		
+					// Start singleshot process, in auto mode as soon as the previous one is done
+					if((armRequested || RUNNING_MODE==0) && !newDataReadyRequested && !newDataReady
+							&& !newWriteData && !newReadData)
+						startAcquisition();
 					
-					// Write data
-					if(newWriteData && dataToWrite!=null && usbDevice!=null){
-						writeCmd(dataToWrite);
-						dataToWrite=null;
-						newWriteData=false;						
-					}
-					
-					// Read data
-					if(newReadData && numBytesToRead>0 && usbDevice!=null){
-						readNumBytes(numBytesToRead);
-					}
-				}else if(RUNNING_MODE==1){ //SINGLESHOT
-					oscDroidReader.setTimeout(70);
-					
-					// Check for new data
-					if(newDataReadyRequested)
-						isDataReady();
-					
-					// Get new data
-					else if(newDataReady)
-						requestData();
-					
-					// Write data
-					if(newWriteData && dataToWrite!=null && usbDevice!=null){
-						writeCmd(dataToWrite);
-						dataToWrite=null;
-						newWriteData=false;
-					}
+					// Data ready, read the frame right away
+					if(newDataReady && !newReadData)
+						readFrame();
 					
-					// Read data
-					if(newReadData && numBytesToRead>0 && usbDevice!=null){
-						readNumBytes(numBytesToRead);
-					}					
+					// Nothing to send, wait for the next poll or for new commands
+					if(!newWriteData && !newReadData)
+						idle(newDataReadyRequested ? pollScheduler.getDelay(System.nanoTime()) : MAX_IDLE);
 				}
 				else if(RUNNING_MODE==2){ //Pure continuous mode 
 					
@@ -1379,6 +1930,7 @@ public class ConnectionService {
 			}
 			
 			// close usb, nicely close thread
+			pipeline.stop();
 			
 			try{usbConnection.releaseInterface(usbIntf); 
 				usbConnection.close();}
@@ -0,0 +1,89 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.connection;
+
+/**
+ * Decides when to poll the data ready bit after the trigger was armed.
+ *
+ * The first poll is done when the sample memory can be full at the earliest,
+ * derived from the sample rate of the current timebase. When no trigger was found
+ * the poll interval backs off exponentially, up to MAX_POLL_DELAY or one frame time
+ * for slow timebases.
+ *
+ * @author K. van Wijk
+ *
+ */
+class PollScheduler {
+
+	/** Samples in the FPGA sample memory, filled before a frame is ready */
+	private static final int NUM_SAMPLES=2048;
+
+	private static final long MIN_POLL_DELAY=250000L; 	// 250 us
+	private static final long MAX_POLL_DELAY=32000000L;	// 32 ms
+
+	private long frameTime=MIN_POLL_DELAY;
+	private long maxDelay=MAX_POLL_DELAY;
+	private long currentDelay=MIN_POLL_DELAY;
+	private long nextPoll=0;
+
+	/**
+	 * Set sample rate of the current timebase
+	 * @param sampleRate samples per second
+	 */
+	public synchronized void setSampleRate(float sampleRate)
+	{
+		if(sampleRate<=0)
+			return;
+
+		frameTime=(long)(NUM_SAMPLES/sampleRate*1e9);
+		maxDelay= frameTime>MAX_POLL_DELAY ? frameTime : MAX_POLL_DELAY;
+	}
+
+	/**
+	 * Trigger was armed, first poll after one frame time
+	 * @param now System.nanoTime()
+	 */
+	public synchronized void armed(long now)
+	{
+		currentDelay = frameTime/4>MIN_POLL_DELAY ? frameTime/4 : MIN_POLL_DELAY;
+		nextPoll=now+frameTime;
+	}
+
+	/**
+	 * Polled, but no data ready yet. Back off
+	 * @param now System.nanoTime()
+	 */
+	public synchronized void notReady(long now)
+	{
+		nextPoll=now+currentDelay;
+		currentDelay = currentDelay*2<maxDelay ? currentDelay*2 : maxDelay;
+	}
+
+	/**
+	 *
+	 * @param now System.nanoTime()
+	 * @return time in ns until the next poll is due, 0 or less when due
+	 */
+	public synchronized long getDelay(long now)
+	{
+		return nextPoll-now;
+	}
+}
@@ -0,0 +1,190 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.connection;
+
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import com.kvw.oscdroid.capture.CaptureHeader;
+import com.kvw.oscdroid.capture.CaptureReader;
+import com.kvw.oscdroid.capture.ChunkIndex;
+
+/**
+ * Feeds a capture file through the same path as live data. Recorded frames go
+ * into the acquisition pipeline like frames read by the connection thread,
+ * continuous recordings are decimated into blocks like continuous mode. Replays 
+ * in real time, accelerated or as fast as the pipeline takes the frames, waiting
+ * for a free frame instead of dropping one, which makes it a repeatable load for
+ * profiling display and measurements. Sends REPLAY_DONE once the pipeline has 
+ * processed everything, arg1 the number of frames or blocks, arg2 the time it 
+ * took in ms.
+ *
+ * @author K. van Wijk
+ *
+ */
+class ReplaySource extends Thread {
+	
+	private static final String TAG="oscdroid.ReplaySource";
+	
+	private final ConnectionService mService;
+	private final AcquisitionPipeline mPipeline;
+	private final CaptureReader mReader;
+	private final Handler mHandler;
+	private final float mSpeed;
+	
+	public volatile boolean mRun=true;
+	private long startTime;
+	private int numDelivered=0;
+	
+	/**
+	 * Constructor
+	 * @param service ConnectionService processing continuous data
+	 * @param pipeline pipeline processing frames
+	 * @param reader opened capture file, closed when the replay ends
+	 * @param speed 1 for real time, higher to accelerate, ConnectionService.REPLAY_MAX_SPEED for no pacing
+	 * @param handler Handler to send REPLAY_DONE to
+	 */
+	ReplaySource(ConnectionService service, AcquisitionPipeline pipeline, CaptureReader reader, 
+			float speed, Handler handler)
+	{
+		super("OscDroid replay");
+		mService=service;
+		mPipeline=pipeline;
+		mReader=reader;
+		mSpeed=speed;
+		mHandler=handler;
+	}
+	
+	public void run()
+	{
+		startTime=System.nanoTime();
+		
+		int layout=mReader.getHeader().layout;
+		if(layout==CaptureHeader.LAYOUT_FRAMES)
+			replayFrames();
+		else if(layout==CaptureHeader.LAYOUT_CONTINUOUS)
+			replayContinuous();
+		else
+			Log.w(TAG,"Nothing to replay in " + mReader.getFile());
+		
+		// Done when the last frame has been displayed
+		while(mRun && mPipeline.isRunning() && !mPipeline.isIdle()){
+			try{sleep(1);}
+			catch(InterruptedException ex){}
+		}
+		mService.replaying=false;
+		
+		long elapsed=(System.nanoTime()-startTime)/1000000;
+		mReader.close();
+		
+		Message msg = new Message();
+		msg.what=ConnectionService.REPLAY_DONE;
+		msg.arg1=numDelivered;
+		msg.arg2=(int)elapsed;
+		mHandler.sendMessage(msg);
+	}
+	
+	/**
+	 * Submit every recorded frame to the pipeline, waiting for a free frame
+	 * instead of dropping one, so every replay delivers the same frames
+	 */
+	private void replayFrames()
+	{
+		ChunkIndex index=mReader.getIndex();
+		
+		for(int i=0;i<index.getNumChunks() && mRun;i++){
+			pace(index.getFirstSample(i));
+			
+			AcquisitionPipeline.Frame frame=obtainFrame();
+			if(frame==null)
+				break;
+			
+			int n=mReader.readChunk(i, frame.raw);
+			if(n==SegmentStore.FRAME_SIZE && frame.raw[0]=='+' && frame.raw[1]=='+'){
+				frame.ch1Enabled=(index.getChannel(i) & CaptureHeader.CHANNEL_1)!=0;
+				frame.ch2Enabled=(index.getChannel(i) & CaptureHeader.CHANNEL_2)!=0;
+				frame.timestamp=System.nanoTime();
+				mPipeline.submit(frame);
+				numDelivered++;
+			} else
+				mPipeline.recycle(frame);
+		}
+	}
+	
+	/**
+	 * Decimate the recording in blocks as read from the device and submit them to
+	 * the pipeline, like continuous mode
+	 */
+	private void replayContinuous()
+	{
+		CaptureHeader header=mReader.getHeader();
+		long numSamples=mReader.getNumSamples(CaptureHeader.CHANNEL_1);
+		final int block=ConnectionService.CONTINUOUS_BLOCK;
+		int[] data = new int[block];
+		
+		for(long pos=0;pos<numSamples && mRun;pos+=block){
+			if(header.sampleRate>0)
+				pace((long)(pos*1e9/header.sampleRate));
+			
+			int n=mReader.getSamples(CaptureHeader.CHANNEL_1, pos, block, data);
+			if(n==0)
+				break;
+			AcquisitionPipeline.Frame frame=obtainFrame();
+			if(frame==null)
+				break;
+			mService.decimate(data, 0, n, header.timeDiv, frame);
+			mPipeline.submit(frame);
+			numDelivered++;
+		}
+	}
+	
+	/**
+	 * Wait for a free frame
+	 * @return Frame, null when the replay was stopped
+	 */
+	private AcquisitionPipeline.Frame obtainFrame()
+	{
+		AcquisitionPipeline.Frame frame=mPipeline.obtain();
+		while(frame==null && mRun){
+			try{sleep(1);}
+			catch(InterruptedException ex){}
+			frame=mPipeline.obtain();
+		}
+		return frame;
+	}
+	
+	/**
+	 * Wait until the recorded time, scaled by the replay speed
+	 * @param time time in ns since the start of the recording
+	 */
+	private void pace(long time)
+	{
+		if(mSpeed<=0)
+			return;
+		
+		long delay=startTime+(long)(time/mSpeed)-System.nanoTime();
+		if(delay<=0)
+			return;
+		try{sleep(delay/1000000, (int)(delay%1000000));}
+		catch(InterruptedException ex){}
+	}
+}
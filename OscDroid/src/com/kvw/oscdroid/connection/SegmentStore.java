@@ -0,0 +1,152 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.connection;
+
+/**
+ * Preallocated store for segmented (fast-frame) acquisition. Every segment holds
+ * one raw frame as read from the device, including the 5 byte header, and the
+ * time at which it was captured.
+ *
+ * @author K. van Wijk
+ *
+ */
+public class SegmentStore {
+
+	/** Raw frame size: '+','+', trigger address high, low, reserved, 2048 samples */
+	public static final int FRAME_SIZE=2053;
+	public static final int HEADER_SIZE=5;
+	public static final int NUM_SAMPLES=FRAME_SIZE-HEADER_SIZE;
+
+	private final byte[][] mFrames;
+	private final long[] mTimestamps;
+	private volatile int numSegments=0;
+	private long startTime=0;
+
+	/**
+	 * Constructor, allocates all segments up front
+	 * @param maxSegments number of segments to capture
+	 */
+	public SegmentStore(int maxSegments)
+	{
+		mFrames=new byte[maxSegments][FRAME_SIZE];
+		mTimestamps=new long[maxSegments];
+	}
+
+	/**
+	 * Forget all captured segments, start a new capture
+	 */
+	public synchronized void reset()
+	{
+		numSegments=0;
+		startTime=System.nanoTime();
+	}
+
+	/**
+	 *
+	 * @return maximum number of segments
+	 */
+	public int getCapacity()
+	{
+		return mFrames.length;
+	}
+
+	/**
+	 *
+	 * @return number of captured segments
+	 */
+	public int getCount()
+	{
+		return numSegments;
+	}
+
+	/**
+	 *
+	 * @return true when all segments were captured
+	 */
+	public boolean isFull()
+	{
+		return numSegments>=mFrames.length;
+	}
+
+	/**
+	 * Buffer to read the next frame in. Only valid until commit() was called
+	 * @return byte[] of FRAME_SIZE bytes, null when full
+	 */
+	byte[] nextFrame()
+	{
+		if(isFull())
+			return null;
+		return mFrames[numSegments];
+	}
+
+	/**
+	 * Mark the frame returned by nextFrame() as captured
+	 * @param timestamp System.nanoTime() at which the frame was read
+	 */
+	synchronized void commit(long timestamp)
+	{
+		if(isFull())
+			return;
+		mTimestamps[numSegments]=timestamp-startTime;
+		numSegments++;
+	}
+
+	/**
+	 *
+	 * @param segment segment number
+	 * @return time of capture in ns, relative to the start of the capture
+	 */
+	public long getTimestamp(int segment)
+	{
+		return mTimestamps[segment];
+	}
+
+	/**
+	 *
+	 * @param segment segment number
+	 * @return trigger address of the segment
+	 */
+	public int getTrigAddress(int segment)
+	{
+		byte[] frame=mFrames[segment];
+		return (frame[3] & 0xFF) + ((frame[2] & 0xFF) << 8);
+	}
+
+	/**
+	 * Copy samples of a segment, converted to unsigned
+	 * @param segment segment number
+	 * @param offset first sample to copy, 1024 for channel 2 when both channels are enabled
+	 * @param count number of samples to copy
+	 * @param out array to copy the samples to, a new array is allocated when null
+	 * @return array containing the samples
+	 */
+	public int[] getSamples(int segment, int offset, int count, int[] out)
+	{
+		if(out==null || out.length<count)
+			out=new int[count];
+
+		byte[] frame=mFrames[segment];
+		for(int i=0;i<count;i++)
+			out[i]=frame[HEADER_SIZE+offset+i] & 0xFF;
+
+		return out;
+	}
+}
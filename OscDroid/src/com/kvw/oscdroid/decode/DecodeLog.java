@@ -0,0 +1,250 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.decode;
+
+/**
+ * Decoded words and conditions, in a ring buffer of CAPACITY events allocated up 
+ * front. When it is full the oldest events are overwritten. Events are numbered from
+ * the oldest, 0..getCount()-1, and located by their first and last sample number.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class DecodeLog {
+	
+	public static final int TYPE_DATA=0;
+	public static final int TYPE_ADDRESS=1;
+	public static final int TYPE_START=2;
+	public static final int TYPE_STOP=3;
+	
+	public static final int FLAG_READ=1;
+	public static final int FLAG_NACK=2;
+	public static final int FLAG_PARITY_ERROR=4;
+	public static final int FLAG_FRAMING_ERROR=8;
+	public static final int FLAG_INCOMPLETE=16;
+	/** Flags that mark an error */
+	public static final int ERROR_FLAGS=FLAG_PARITY_ERROR | FLAG_FRAMING_ERROR | FLAG_INCOMPLETE;
+	
+	public static final int CAPACITY=4096;
+	private static final char[] HEX = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
+	
+	private final long[] mStart = new long[CAPACITY];
+	private final long[] mEnd = new long[CAPACITY];
+	private final int[] mValue = new int[CAPACITY];
+	private final byte[] mType = new byte[CAPACITY];
+	private final byte[] mFlags = new byte[CAPACITY];
+	private int first=0;
+	private int count=0;
+	private long total=0;
+	
+	/**
+	 * Remove all events
+	 */
+	public synchronized void clear()
+	{
+		first=0;
+		count=0;
+		total++;
+	}
+	
+	/**
+	 * Add an event, the oldest is overwritten when full
+	 * @param type TYPE_DATA..TYPE_STOP
+	 * @param value word or address
+	 * @param flags FLAG_ bits
+	 * @param start first sample
+	 * @param end last sample
+	 */
+	synchronized void add(int type, int value, int flags, long start, long end)
+	{
+		int index=first+count;
+		if(index>=CAPACITY)
+			index-=CAPACITY;
+		if(count<CAPACITY)
+			count++;
+		else if(++first==CAPACITY)
+			first=0;
+		
+		mType[index]=(byte)type;
+		mValue[index]=value;
+		mFlags[index]=(byte)flags;
+		mStart[index]=start;
+		mEnd[index]=end;
+		total++;
+	}
+	
+	private int index(int i)
+	{
+		int index=first+i;
+		return index>=CAPACITY ? index-CAPACITY : index;
+	}
+	
+	/**
+	 * 
+	 * @return number of events
+	 */
+	public synchronized int getCount()
+	{
+		return count;
+	}
+	
+	/**
+	 * 
+	 * @return number that changes whenever events are added or removed
+	 */
+	public synchronized long getVersion()
+	{
+		return total;
+	}
+	
+	public synchronized int getType(int i)
+	{
+		return mType[index(i)];
+	}
+	
+	public synchronized int getValue(int i)
+	{
+		return mValue[index(i)];
+	}
+	
+	public synchronized int getFlags(int i)
+	{
+		return mFlags[index(i)];
+	}
+	
+	public synchronized long getStart(int i)
+	{
+		return mStart[index(i)];
+	}
+	
+	public synchronized long getEnd(int i)
+	{
+		return mEnd[index(i)];
+	}
+	
+	/**
+	 * First event ending at or after a sample, events are in sample order
+	 * @param sample sample number
+	 * @return event number, getCount() when none
+	 */
+	public synchronized int findSample(long sample)
+	{
+		int low=0;
+		int high=count;
+		while(low<high){
+			int mid=(low+high)>>>1;
+			if(mEnd[index(mid)]<sample)
+				low=mid+1;
+			else
+				high=mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * Search a word or address
+	 * @param value value to search
+	 * @param from first event to look at
+	 * @return event number, -1 when not found
+	 */
+	public synchronized int find(int value, int from)
+	{
+		for(int i=Math.max(from, 0);i<count;i++){
+			int index=index(i);
+			if(mValue[index]==value && (mType[index]==TYPE_DATA || mType[index]==TYPE_ADDRESS))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Short label of an event to annotate the trace with, without allocating
+	 * @param i event
+	 * @param label array of at least 8 characters
+	 * @return number of characters
+	 */
+	public synchronized int getLabel(int i, char[] label)
+	{
+		int index=index(i);
+		int n=0;
+		switch(mType[index]){
+		case TYPE_START:
+			label[n++]='S';
+			break;
+		case TYPE_STOP:
+			label[n++]='P';
+			break;
+		case TYPE_ADDRESS:
+			label[n++]= (mFlags[index] & FLAG_READ)!=0 ? 'R' : 'W';
+			label[n++]=':';
+			// fall through
+		default:
+			int value=mValue[index];
+			if(value>0xFF)
+				label[n++]=HEX[(value>>8) & 0xF];
+			label[n++]=HEX[(value>>4) & 0xF];
+			label[n++]=HEX[value & 0xF];
+			if((mFlags[index] & FLAG_NACK)!=0)
+				label[n++]='~';
+			if((mFlags[index] & ERROR_FLAGS)!=0)
+				label[n++]='!';
+			break;
+		}
+		return n;
+	}
+	
+	/**
+	 * Describe an event for the list of decoded events
+	 * @param i event
+	 * @param text StringBuilder to append to
+	 */
+	public synchronized void appendText(int i, StringBuilder text)
+	{
+		int index=index(i);
+		int value=mValue[index];
+		int flags=mFlags[index];
+		switch(mType[index]){
+		case TYPE_START:
+			text.append("Start");
+			return;
+		case TYPE_STOP:
+			text.append("Stop");
+			return;
+		case TYPE_ADDRESS:
+			text.append((flags & FLAG_READ)!=0 ? "Read " : "Write ");
+			break;
+		}
+		text.append("0x");
+		if(value>0xFF)
+			text.append(HEX[(value>>8) & 0xF]);
+		text.append(HEX[(value>>4) & 0xF]).append(HEX[value & 0xF]);
+		if(mType[index]==TYPE_DATA && value>=0x20 && value<0x7F)
+			text.append(" '").append((char)value).append('\'');
+		if((flags & FLAG_NACK)!=0)
+			text.append(" NACK");
+		if((flags & FLAG_PARITY_ERROR)!=0)
+			text.append(" parity error");
+		if((flags & FLAG_FRAMING_ERROR)!=0)
+			text.append(" framing error");
+		if((flags & FLAG_INCOMPLETE)!=0)
+			text.append(" incomplete");
+	}
+}
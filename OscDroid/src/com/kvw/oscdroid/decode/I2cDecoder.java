@@ -0,0 +1,111 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.decode;
+
+/**
+ * I2C decoder, SCL on LINE_A and SDA on LINE_B. SDA falling while SCL is high is a
+ * start condition, rising a stop condition. SDA is sampled on the rising edges of 
+ * SCL: 8 bits and the acknowledge. The first byte after a start is the 7 bit address
+ * with the read/write bit. Only samples where a line changes are processed.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class I2cDecoder extends ProtocolDecoder {
+	
+	private int previous=-1;
+	private boolean active=false;
+	private boolean addressNext=false;
+	private int bitCount=0;
+	private int value=0;
+	private long byteStart=0;
+	
+	@Override
+	public String getName()
+	{
+		return "I2C";
+	}
+	
+	@Override
+	public int getNumLines()
+	{
+		return 2;
+	}
+	
+	@Override
+	void reset()
+	{
+		previous=-1;
+		active=false;
+		bitCount=0;
+		value=0;
+	}
+	
+	@Override
+	void decode(byte[] lines, int count, long firstSample, double sampleRate)
+	{
+		if(count==0)
+			return;
+		int last= previous<0 ? lines[0] : previous;
+		
+		for(int i=0;i<count;i++){
+			int level=lines[i];
+			if(level==last)
+				continue;
+			int changed=level^last;
+			long sample=firstSample+i;
+			
+			if((changed & LINE_B)!=0 && (level & last & LINE_A)!=0){
+				if((level & LINE_B)==0){
+					mLog.add(DecodeLog.TYPE_START, 0, 0, sample, sample);
+					active=true;
+					addressNext=true;
+				}else{
+					mLog.add(DecodeLog.TYPE_STOP, 0, 0, sample, sample);
+					active=false;
+				}
+				bitCount=0;
+				value=0;
+			}else if(active && (changed & level & LINE_A)!=0){
+				int bit= (level & LINE_B)!=0 ? 1 : 0;
+				if(bitCount==0)
+					byteStart=sample;
+				if(bitCount<8){
+					value=(value<<1) | bit;
+					bitCount++;
+				}else{
+					int flags= bit!=0 ? DecodeLog.FLAG_NACK : 0;
+					if(addressNext){
+						if((value & 1)!=0)
+							flags|=DecodeLog.FLAG_READ;
+						mLog.add(DecodeLog.TYPE_ADDRESS, value>>1, flags, byteStart, sample);
+						addressNext=false;
+					}else
+						mLog.add(DecodeLog.TYPE_DATA, value, flags, byteStart, sample);
+					bitCount=0;
+					value=0;
+				}
+			}
+			last=level;
+		}
+		previous=last;
+	}
+}
@@ -0,0 +1,66 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.decode;
+
+/**
+ * State machine decoding a serial protocol from logic levels. The levels of up to 
+ * two lines are packed per sample, see LINE_A and LINE_B. Decoding runs block by 
+ * block, the state is kept between blocks so a word can continue in the next block
+ * of the continuous stream. Decoded words are added to the DecodeLog.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public abstract class ProtocolDecoder {
+	
+	/** Level of the first line, from the first decoded channel */
+	public static final int LINE_A=1;
+	/** Level of the second line, from the second decoded channel */
+	public static final int LINE_B=2;
+	
+	DecodeLog mLog;
+	
+	/**
+	 * 
+	 * @return name of the protocol and its settings
+	 */
+	public abstract String getName();
+	
+	/**
+	 * 
+	 * @return number of lines used, 1 or 2
+	 */
+	public abstract int getNumLines();
+	
+	/**
+	 * Forget the state, the next block starts a new recording
+	 */
+	abstract void reset();
+	
+	/**
+	 * Decode a block of line levels
+	 * @param lines LINE_A and LINE_B levels of every sample
+	 * @param count number of samples
+	 * @param firstSample sample number of the first sample, continuing over blocks
+	 * @param sampleRate samples per second
+	 */
+	abstract void decode(byte[] lines, int count, long firstSample, double sampleRate);
+}
@@ -0,0 +1,325 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.decode;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+
+import com.kvw.oscdroid.channels.AnalogChannel;
+
+/**
+ * Runs a ProtocolDecoder over the samples of one or two channels. The samples are
+ * converted to logic levels with a threshold halfway the low and high level and 
+ * hysteresis, then handed to the decoder block by block. 
+ * 
+ * Triggered acquisitions are decoded one by one, each starting afresh, sample 0 is 
+ * the oldest sample. The continuous stream of channel 1 is decoded as one recording:
+ * the levels follow the signal, sample numbers and the decoder state continue over
+ * the blocks. The decoded events are drawn above the trace of the first channel.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class ProtocolDecoding {
+	
+	/** Least difference between the low and high level to switch levels */
+	private static final int MIN_SWING=8;
+	/** Part of the swing between the threshold and the hysteresis levels */
+	private static final int HYSTERESIS_PART=8;
+	private static final float ANNOTATION_Y=30;
+	private static final float TICK=6;
+	/** Width of a label character, labels that do not fit their event are left out */
+	private static final float CHAR_WIDTH=9;
+	
+	private volatile ProtocolDecoder mDecoder=null;
+	private volatile AnalogChannel mChannelA=null;
+	private AnalogChannel mChannelB=null;
+	private final DecodeLog mLog = new DecodeLog();
+	
+	private byte[] mLines = new byte[2048];
+	private final int[] lineLow = new int[2];
+	private final int[] lineHigh = new int[2];
+	private final boolean[] lineLevel = new boolean[2];
+	
+	private boolean streaming=false;
+	private long nextSample=0;
+	private double sampleRate=0;
+	/** Sample number of the oldest sample of the displayed dataset, and of the trigger */
+	private long displayFirst=0;
+	private long triggerSample=0;
+	
+	private final Paint linePaint;
+	private final Paint errorPaint;
+	private final Paint textPaint;
+	private final float[] mVertices = new float[12*DecodeLog.CAPACITY];
+	private final float[] mErrorVertices = new float[12*DecodeLog.CAPACITY];
+	private final char[] mLabel = new char[8];
+	
+	public ProtocolDecoding()
+	{
+		linePaint=new Paint();
+		linePaint.setStrokeWidth(2f);
+		linePaint.setStyle(Style.STROKE);
+		
+		errorPaint=new Paint(linePaint);
+		errorPaint.setColor(Color.RED);
+		
+		textPaint=new Paint(Paint.ANTI_ALIAS_FLAG);
+		textPaint.setTextSize(14f);
+	}
+	
+	/**
+	 * Select the decoder and its channels, decoding starts again
+	 * @param decoder decoder, null to stop decoding
+	 * @param a channel of LINE_A
+	 * @param b channel of LINE_B, only used by decoders of 2 lines
+	 */
+	public synchronized void setDecoder(ProtocolDecoder decoder, AnalogChannel a, AnalogChannel b)
+	{
+		mDecoder=decoder;
+		mChannelA= decoder==null ? null : a;
+		mChannelB= decoder!=null && decoder.getNumLines()>1 ? b : null;
+		if(decoder!=null){
+			decoder.mLog=mLog;
+			linePaint.setColor(a.getColor());
+			textPaint.setColor(a.getColor());
+		}
+		restart();
+	}
+	
+	/**
+	 * 
+	 * @return current decoder, null when not decoding
+	 */
+	public ProtocolDecoder getDecoder()
+	{
+		return mDecoder;
+	}
+	
+	/**
+	 * 
+	 * @return channel of LINE_A, null when not decoding
+	 */
+	public AnalogChannel getChannel()
+	{
+		return mChannelA;
+	}
+	
+	/**
+	 * 
+	 * @return decoded events
+	 */
+	public DecodeLog getLog()
+	{
+		return mLog;
+	}
+	
+	private void restart()
+	{
+		if(mDecoder!=null)
+			mDecoder.reset();
+		mLog.clear();
+		streaming=false;
+		nextSample=0;
+		displayFirst=0;
+		triggerSample=0;
+	}
+	
+	/**
+	 * Decode the current datasets of the channels, acquired at once. Called on the 
+	 * acquisition thread after the channels got their new data
+	 * @param trigger trigger address of the datasets
+	 */
+	public synchronized void decodeFrame(int trigger)
+	{
+		ProtocolDecoder decoder=mDecoder;
+		AnalogChannel a=mChannelA;
+		if(decoder==null || !a.isEnabled() || (mChannelB!=null && !mChannelB.isEnabled()))
+			return;
+		
+		int[] dataA=a.getCurrentData();
+		int[] dataB= mChannelB!=null ? mChannelB.getCurrentData() : null;
+		int numSamples=dataA.length;
+		if(numSamples<2 || (dataB!=null && dataB.length!=numSamples))
+			return;
+		int start=trigger-AnalogChannel.getTriggerColumn(numSamples, a.getTriggerPos());
+		if(start<0)
+			start+=numSamples;
+		if(start>=numSamples)
+			start=0;
+		
+		restart();
+		sampleRate=AnalogChannel.getSampleRate(a.getTimeDiv());
+		triggerSample=AnalogChannel.getTriggerColumn(numSamples, a.getTriggerPos());
+		toLevels(dataA, numSamples, start, 0, false);
+		if(dataB!=null)
+			toLevels(dataB, numSamples, start, 1, false);
+		decoder.decode(mLines, numSamples, 0, sampleRate);
+	}
+	
+	/**
+	 * Decode a block of the continuous stream of channel 1
+	 * @param channel channel the block was appended to
+	 * @param data new samples, in time order
+	 * @param numSamples number of new samples
+	 * @param decimation number of acquired samples averaged into one sample
+	 */
+	public synchronized void decodeStream(AnalogChannel channel, int[] data, int numSamples, int decimation)
+	{
+		ProtocolDecoder decoder=mDecoder;
+		if(decoder==null || channel!=mChannelA || decoder.getNumLines()>1 || numSamples==0)
+			return;
+		
+		double rate=AnalogChannel.getSampleRate(channel.getTimeDiv())/decimation;
+		if(!streaming || rate!=sampleRate){
+			restart();
+			streaming=true;
+			sampleRate=rate;
+		}
+		toLevels(data, numSamples, 0, 0, nextSample>0);
+		decoder.decode(mLines, numSamples, nextSample, sampleRate);
+		nextSample+=numSamples;
+		displayFirst=nextSample-channel.getCurrentData().length;
+	}
+	
+	/**
+	 * Convert samples to the levels of a line in mLines
+	 * @param line 0 for LINE_A, 1 for LINE_B
+	 * @param follow true to follow the low and high level of the previous block
+	 */
+	private void toLevels(int[] data, int numSamples, int start, int line, boolean follow)
+	{
+		if(mLines.length<numSamples)
+			mLines=new byte[numSamples];
+		final byte[] lines=mLines;
+		
+		int min=255;
+		int max=0;
+		for(int i=0;i<numSamples;i++){
+			int s=data[i] & 0xFF;
+			if(s<min) min=s;
+			if(s>max) max=s;
+		}
+		if(follow){
+			// Levels follow the signal, widened at once and narrowed slowly
+			lineLow[line]= min<lineLow[line] ? min : (lineLow[line]*3+min)/4;
+			lineHigh[line]= max>lineHigh[line] ? max : (lineHigh[line]*3+max+3)/4;
+		}else{
+			lineLow[line]=min;
+			lineHigh[line]=max;
+			lineLevel[line]= (data[start] & 0xFF)>(min+max)/2;
+		}
+		
+		int swing=lineHigh[line]-lineLow[line];
+		int threshold=(lineLow[line]+lineHigh[line])/2;
+		int hysteresis= swing<MIN_SWING ? 256 : swing/HYSTERESIS_PART;
+		int bit= line==0 ? ProtocolDecoder.LINE_A : ProtocolDecoder.LINE_B;
+		boolean level=lineLevel[line];
+		int index=start;
+		for(int i=0;i<numSamples;i++){
+			int s=data[index] & 0xFF;
+			if(++index==numSamples)
+				index=0;
+			if(level ? s<threshold-hysteresis : s>threshold+hysteresis)
+				level=!level;
+			if(line==0)
+				lines[i]=(byte)(level ? bit : 0);
+			else if(level)
+				lines[i]|=bit;
+		}
+		lineLevel[line]=level;
+	}
+	
+	/**
+	 * 
+	 * @param sample sample number of an event
+	 * @return time in seconds, from the trigger for acquisitions, from the start of 
+	 * decoding for the continuous stream
+	 */
+	public synchronized double getTime(long sample)
+	{
+		return sampleRate>0 ? (sample-triggerSample)/sampleRate : 0;
+	}
+	
+	/**
+	 * Draw the decoded events over the displayed part of the trace, as a bar with the 
+	 * value above it. Errors are drawn red
+	 * @param canvas Canvas to draw on
+	 */
+	public void drawAnnotations(Canvas canvas)
+	{
+		AnalogChannel channel=mChannelA;
+		if(channel==null)
+			return;
+		
+		// Screen positions are read outside the lock, the acquisition thread holds the 
+		// channel while it decodes
+		float x0=channel.getXOfSample(0);
+		float step=channel.getXOfSample(1)-x0;
+		float width=channel.getWidth();
+		if(step<=0)
+			return;
+		
+		synchronized(this){
+			if(channel!=mChannelA)
+				return;
+			
+			long firstVisible=displayFirst+(long)Math.floor(-x0/step);
+			int n=0;
+			int errors=0;
+			int count=mLog.getCount();
+			for(int i=mLog.findSample(firstVisible);i<count;i++){
+				float start=x0+(mLog.getStart(i)-displayFirst)*step;
+				if(start>width)
+					break;
+				float end=Math.max(x0+(mLog.getEnd(i)-displayFirst)*step, start+1);
+				
+				boolean error=(mLog.getFlags(i) & DecodeLog.ERROR_FLAGS)!=0;
+				float[] vertices= error ? mErrorVertices : mVertices;
+				int m= error ? errors : n;
+				vertices[m++]=start;
+				vertices[m++]=ANNOTATION_Y;
+				vertices[m++]=end;
+				vertices[m++]=ANNOTATION_Y;
+				vertices[m++]=start;
+				vertices[m++]=ANNOTATION_Y-TICK;
+				vertices[m++]=start;
+				vertices[m++]=ANNOTATION_Y+TICK;
+				vertices[m++]=end;
+				vertices[m++]=ANNOTATION_Y-TICK;
+				vertices[m++]=end;
+				vertices[m++]=ANNOTATION_Y+TICK;
+				if(error)
+					errors=m;
+				else
+					n=m;
+				
+				int length=mLog.getLabel(i, mLabel);
+				if(length*CHAR_WIDTH<=end-start+2*CHAR_WIDTH)
+					canvas.drawText(mLabel, 0, length, start, ANNOTATION_Y-TICK-2, textPaint);
+			}
+			canvas.drawLines(mVertices, 0, n, linePaint);
+			canvas.drawLines(mErrorVertices, 0, errors, errorPaint);
+		}
+	}
+}
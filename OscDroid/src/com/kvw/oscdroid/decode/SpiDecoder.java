@@ -0,0 +1,115 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.decode;
+
+/**
+ * SPI decoder, clock on LINE_A and data on LINE_B, most significant bit first. Data 
+ * is sampled on the rising clock edge in mode 0 and 3, on the falling edge in mode 1
+ * and 2. Without a chip select line the words are aligned on gaps in the clock: a
+ * sampling edge more than GAP_PERIODS clock periods after the previous one starts a
+ * new word, an unfinished word is logged as incomplete.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class SpiDecoder extends ProtocolDecoder {
+	
+	private static final int WORD_BITS=8;
+	private static final int GAP_PERIODS=4;
+	
+	private final int mode;
+	private final int sampleEdge;
+	
+	private int previous=-1;
+	private int bitCount=0;
+	private int value=0;
+	private long wordStart=0;
+	private long lastEdge=0;
+	private long period=0;
+	
+	/**
+	 * Constructor
+	 * @param spiMode SPI mode 0..3
+	 */
+	public SpiDecoder(int spiMode)
+	{
+		mode=spiMode;
+		sampleEdge= mode==0 || mode==3 ? LINE_A : 0;
+	}
+	
+	@Override
+	public String getName()
+	{
+		return "SPI mode " + mode;
+	}
+	
+	@Override
+	public int getNumLines()
+	{
+		return 2;
+	}
+	
+	@Override
+	void reset()
+	{
+		previous=-1;
+		bitCount=0;
+		value=0;
+		period=0;
+	}
+	
+	@Override
+	void decode(byte[] lines, int count, long firstSample, double sampleRate)
+	{
+		if(count==0)
+			return;
+		int last= previous<0 ? lines[0] : previous;
+		
+		for(int i=0;i<count;i++){
+			int level=lines[i];
+			if(((level^last) & LINE_A)==0 || (level & LINE_A)!=sampleEdge){
+				last=level;
+				continue;
+			}
+			last=level;
+			long sample=firstSample+i;
+			
+			if(bitCount>0 && period>0 && sample-lastEdge>GAP_PERIODS*period){
+				mLog.add(DecodeLog.TYPE_DATA, value, DecodeLog.FLAG_INCOMPLETE, wordStart, lastEdge);
+				bitCount=0;
+				value=0;
+			}
+			if(bitCount==0)
+				wordStart=sample;
+			else
+				period=sample-lastEdge;
+			lastEdge=sample;
+			
+			value=(value<<1) | ((level & LINE_B)!=0 ? 1 : 0);
+			if(++bitCount==WORD_BITS){
+				mLog.add(DecodeLog.TYPE_DATA, value, 0, wordStart, sample);
+				bitCount=0;
+				value=0;
+			}
+		}
+		previous=last;
+	}
+}
@@ -0,0 +1,145 @@
+/** This file is part of OscDroid for Android.
+ *
+ * Copyright (C) 2012 K. van Wijk, Enschede, The Netherlands
+ *
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA. * 
+ * 
+ */
+
+package com.kvw.oscdroid.decode;
+
+/**
+ * Asynchronous serial decoder on LINE_A, idle high, least significant bit first. 
+ * A falling edge starts a frame, the start, data, parity and stop bits are sampled 
+ * in the middle of their bit times. Between the sample points nothing is read, so 
+ * the cost is one sample per bit plus the search for the next start bit.
+ * 
+ * @author K. van Wijk
+ *
+ */
+public class UartDecoder extends ProtocolDecoder {
+	
+	public static final int PARITY_NONE=0;
+	public static final int PARITY_EVEN=1;
+	public static final int PARITY_ODD=2;
+	private static final String[] PARITY_NAMES = {"N","E","O"};
+	
+	/** Least number of samples per bit to decode */
+	private static final double MIN_SAMPLES_PER_BIT=3;
+	
+	private final int bitRate;
+	private final int dataBits;
+	private final int parity;
+	
+	private int previous=-1;
+	private boolean inFrame=false;
+	private double frameStart;
+	private int bit;
+	private int value;
+	private int ones;
+	private int flags;
+	
+	/**
+	 * Constructor
+	 * @param rate bits per second
+	 * @param bits data bits, 5..9
+	 * @param parityMode PARITY_NONE..PARITY_ODD
+	 */
+	public UartDecoder(int rate, int bits, int parityMode)
+	{
+		bitRate=rate;
+		dataBits=bits;
+		parity=parityMode;
+	}
+	
+	@Override
+	public String getName()
+	{
+		return "UART " + bitRate + " " + dataBits + PARITY_NAMES[parity] + "1";
+	}
+	
+	@Override
+	public int getNumLines()
+	{
+		return 1;
+	}
+	
+	@Override
+	void reset()
+	{
+		previous=-1;
+		inFrame=false;
+	}
+	
+	@Override
+	void decode(byte[] lines, int count, long firstSample, double sampleRate)
+	{
+		final double samplesPerBit=sampleRate/bitRate;
+		if(samplesPerBit<MIN_SAMPLES_PER_BIT || count==0)
+			return;
+		final int stopBit= parity==PARITY_NONE ? dataBits+1 : dataBits+2;
+		
+		int i=0;
+		while(i<count){
+			if(!inFrame){
+				// Search the falling edge of the start bit
+				int last=previous<0 ? lines[0] & LINE_A : previous;
+				while(i<count && (last==0 || (lines[i] & LINE_A)!=0)){
+					last=lines[i] & LINE_A;
+					i++;
+				}
+				if(i==count){
+					previous=last;
+					return;
+				}
+				inFrame=true;
+				frameStart=firstSample+i-0.5;
+				bit=0;
+				value=0;
+				ones=0;
+				flags=0;
+			}
+			
+			// Jump to the middle of the next bit, it may be in the next block
+			long point=(long)Math.floor(frameStart+(bit+0.5)*samplesPerBit+0.5);
+			if(point-firstSample>=count)
+				return;
+			int index=(int)Math.max(point-firstSample, i);
+			int level=lines[index] & LINE_A;
+			i=index+1;
+			
+			if(bit==0){
+				if(level!=0){	// glitch, not a start bit
+					inFrame=false;
+					previous=level;
+				}
+			}else if(bit<=dataBits){
+				value|=level<<(bit-1);
+				ones+=level;
+			}else if(bit<stopBit){
+				if(((ones+level) & 1)!=(parity==PARITY_EVEN ? 0 : 1))
+					flags|=DecodeLog.FLAG_PARITY_ERROR;
+			}else{
+				if(level==0)
+					flags|=DecodeLog.FLAG_FRAMING_ERROR;
+				mLog.add(DecodeLog.TYPE_DATA, value, flags, (long)Math.ceil(frameStart), 
+						(long)(frameStart+(stopBit+1)*samplesPerBit));
+				inFrame=false;
+				previous=level;
+			}
+			bit++;
+		}
+	}
+}
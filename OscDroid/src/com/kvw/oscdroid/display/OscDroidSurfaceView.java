@@ -34,6 +34,11 @@ import android.view.SurfaceView;
 
 import com.kvw.oscdroid.channels.AnalogChannel;
 import com.kvw.oscdroid.channels.Cursor;
+import com.kvw.oscdroid.channels.MaskTest;
+import com.kvw.oscdroid.channels.ReferenceWaveform;
+import com.kvw.oscdroid.channels.WaveformHistogram;
+import com.kvw.oscdroid.channels.EyeDiagram;
+import com.kvw.oscdroid.decode.ProtocolDecoding;
 import com.kvw.oscdroid.channels.Trigger;
 
 /**
@@ -75,6 +80,7 @@ public class OscDroidSurfaceView extends SurfaceView implements SurfaceHolder.Ca
 	
 	private AnalogChannel channel1;
 	private AnalogChannel channel2;
+	private AnalogChannel mathChannel;
 	
 	private Cursor curv1;
 	private Cursor curv2;
@@ -107,6 +113,11 @@ public class OscDroidSurfaceView extends SurfaceView implements SurfaceHolder.Ca
 	
 	private Grid mGrid;
 	private Trigger mTrigger;
+	private ReferenceWaveform[] mReferences;
+	private MaskTest mMaskTest;
+	private WaveformHistogram mHistogram;
+	private EyeDiagram mEyeDiagram;
+	private ProtocolDecoding mDecoding;
 	
 	private DrawThread drawThread;
 	Paint tmpPaint = new Paint();
@@ -160,6 +171,17 @@ public class OscDroidSurfaceView extends SurfaceView implements SurfaceHolder.Ca
 		else return;
 	}
 	
+	/**
+	 * Add the math channel to the SurfaceView to enable drawing of the channel
+	 * @param chan math channel
+	 */
+	public void setMathChannel(AnalogChannel chan)
+	{
+		mathChannel=chan;
+		if(surfaceWidth>0)
+			mathChannel.setDimensions(surfaceWidth, surfaceHeight);
+	}
+	
 	/**
 	 * Add cursor references to the surface
 	 * @param v1
@@ -184,6 +206,51 @@ public class OscDroidSurfaceView extends SurfaceView implements SurfaceHolder.Ca
 		mTrigger=trig;
 	}
 	
+	/**
+	 * Add reference waveform references to the surface
+	 * @param refs
+	 */
+	public void setReferences(ReferenceWaveform[] refs)
+	{
+		mReferences=refs;
+	}
+	
+	/**
+	 * Add mask test reference to the surface
+	 * @param mask
+	 */
+	public void setMaskTest(MaskTest mask)
+	{
+		mMaskTest=mask;
+	}
+	
+	/**
+	 * Add histogram reference to the surface
+	 * @param histogram
+	 */
+	public void setHistogram(WaveformHistogram histogram)
+	{
+		mHistogram=histogram;
+	}
+	
+	/**
+	 * Add eye diagram reference to the surface
+	 * @param eye
+	 */
+	public void setEyeDiagram(EyeDiagram eye)
+	{
+		mEyeDiagram=eye;
+	}
+	
+	/**
+	 * Add protocol decoding reference to the surface, to annotate the trace
+	 * @param decoding
+	 */
+	public void setDecoding(ProtocolDecoding decoding)
+	{
+		mDecoding=decoding;
+	}
+	
 	/**
 	 * Set running mode, used to do zooming or div setting on multitouch gestures
 	 * @param mode
@@ -382,10 +449,25 @@ public class OscDroidSurfaceView extends SurfaceView implements SurfaceHolder.Ca
 		if (mGrid != null)
 			mGrid.drawGrid(canvas);
 		
+		if(mMaskTest!=null)
+			mMaskTest.drawMask(canvas);
+		
 		if(channel1!=null)
 			channel1.drawChannel(canvas);
 		if(channel2!=null)
 			channel2.drawChannel(canvas);
+		if(mathChannel!=null)
+			mathChannel.drawChannel(canvas);
+		if(mReferences!=null){
+			for(int i=0;i<mReferences.length;i++)
+				mReferences[i].drawReference(canvas);
+		}
+		if(mHistogram!=null)
+			mHistogram.drawHistogram(canvas);
+		if(mEyeDiagram!=null)
+			mEyeDiagram.drawEyeDiagram(canvas);
+		if(mDecoding!=null)
+			mDecoding.drawAnnotations(canvas);
 		if(mTrigger!=null)
 			mTrigger.drawTrigger(canvas);
 		
@@ -568,6 +650,8 @@ public class OscDroidSurfaceView extends SurfaceView implements SurfaceHolder.Ca
 			channel1.setDimensions(width,height);
 		if(channel2!=null)
 			channel2.setDimensions(width,height);
+		if(mathChannel!=null)
+			mathChannel.setDimensions(width,height);
 		
 		mGrid = new Grid(width,height);
 		if(backgroundColor==Color.WHITE)